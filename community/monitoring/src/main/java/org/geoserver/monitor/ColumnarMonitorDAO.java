@@ -0,0 +1,1585 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.geoserver.monitor.Query.Comparison;
+import org.geoserver.monitor.Query.SortOrder;
+import org.geoserver.monitor.RequestData.Category;
+import org.geoserver.monitor.RequestData.Status;
+import org.geoserver.ows.util.OwsUtils;
+import org.geotools.util.Converters;
+
+/**
+ * An in memory {@link MonitorDAO} storing the request history in columns rather than as
+ * {@link RequestData} objects.
+ * <p>
+ * The history is split in segments, each covering at most an hour of traffic, that store every
+ * property in a primitive array: numbers and dates as longs, enumerations as bytes, and the low
+ * cardinality strings (services, operations, content types, ...) as codes of a shared dictionary.
+ * The high cardinality strings (paths, remote addresses and hosts, resources, ...) are kept as
+ * plain references, so that they go away with their segment. Filters, sorting and aggregates
+ * are evaluated on the columns, the segments not overlapping the requested time range are skipped,
+ * and {@link RequestData} objects are only materialized for the results. Once the maximum number
+ * of requests is reached the oldest segments are dropped.
+ * </p>
+ * <p>
+ * The request bodies, errors and per resource times are not retained. The requests in progress
+ * are kept as plain objects until saved.
+ * </p>
+ */
+public class ColumnarMonitorDAO implements MonitorDAO {
+
+    public static final int DEFAULT_MAX_REQUESTS = 5000000;
+
+    static final int DEFAULT_SEGMENT_SIZE = 65536;
+
+    static final int INITIAL_CAPACITY = 1024;
+
+    static final long PARTITION = 60 * 60 * 1000;
+
+    /**
+     * The key of null values, sorts after every other value
+     */
+    static final long NULL = Long.MAX_VALUE;
+
+    static final String RESOURCE = "resource";
+
+    AtomicLong REQUEST_ID_GEN = new AtomicLong(1);
+
+    Map<Long, RequestData> live = new ConcurrentHashMap<Long, RequestData>();
+
+    Dictionary dictionary = new Dictionary();
+
+    List<Column> columns = new ArrayList<Column>();
+
+    Map<String, Column> columnsByName = new HashMap<String, Column>();
+
+    volatile Segment[] segments = new Segment[0];
+
+    /**
+     * Guards the saved rows against {@link #update(RequestData)} rewriting them in place, appends
+     * only publish new rows and do not need it
+     */
+    ReadWriteLock rowLock = new ReentrantReadWriteLock();
+
+    int maxRequests;
+
+    int segmentSize;
+
+    public ColumnarMonitorDAO() {
+        this(DEFAULT_MAX_REQUESTS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public ColumnarMonitorDAO(int maxRequests) {
+        this(maxRequests, DEFAULT_SEGMENT_SIZE);
+    }
+
+    ColumnarMonitorDAO(int maxRequests, int segmentSize) {
+        this.maxRequests = maxRequests;
+        this.segmentSize = segmentSize;
+
+        add(new LongColumn("id"));
+        add(new EnumColumn("status", Status.class));
+        add(new EnumColumn("category", Category.class));
+        add(new StringColumn("path"));
+        add(new StringColumn("queryString"));
+        add(new LongColumn("bodyContentLength"));
+        add(new DictionaryColumn("bodyContentType"));
+        add(new DictionaryColumn("httpMethod"));
+        add(new DateColumn("startTime"));
+        add(new DateColumn("endTime"));
+        add(new LongColumn("totalTime"));
+        add(new StringColumn("remoteAddr"));
+        add(new StringColumn("remoteHost"));
+        add(new DictionaryColumn("remoteUser"));
+        add(new DictionaryColumn("remoteCountry"));
+        add(new DictionaryColumn("remoteCity"));
+        add(new FloatColumn("remoteLat"));
+        add(new FloatColumn("remoteLon"));
+        add(new DictionaryColumn("host"));
+        add(new DictionaryColumn("internalHost"));
+        add(new DictionaryColumn("service"));
+        add(new DictionaryColumn("operation"));
+        add(new DictionaryColumn("owsVersion"));
+        add(new DictionaryColumn("subOperation"));
+        add(new LongColumn("responseLength"));
+        add(new DictionaryColumn("responseContentType"));
+        add(new StringColumn("errorMessage"));
+        add(new IntColumn("responseStatus"));
+    }
+
+    void add(Column column) {
+        column.index = columns.size();
+        columns.add(column);
+        columnsByName.put(column.name.toLowerCase(), column);
+    }
+
+    Column column(String property) {
+        Column column = columnsByName.get(property.toLowerCase());
+        if (column == null) {
+            throw new IllegalArgumentException("No such property '" + property + "'");
+        }
+        return column;
+    }
+
+    public RequestData init(RequestData data) {
+        data.setId(REQUEST_ID_GEN.getAndIncrement());
+        return data;
+    }
+
+    public void add(RequestData data) {
+        live.put(data.getId(), data);
+    }
+
+    public void update(RequestData data) {
+        if (live.containsKey(data.getId())) {
+            // same object, nothing to do
+            return;
+        }
+        synchronized (this) {
+            Segment[] segments = this.segments;
+            for (int i = segments.length - 1; i >= 0; i--) {
+                int row = segments[i].find(data.getId());
+                if (row >= 0) {
+                    rowLock.writeLock().lock();
+                    try {
+                        segments[i].encode(row, data);
+                    } finally {
+                        rowLock.writeLock().unlock();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    public synchronized void save(RequestData data) {
+        live.remove(data.getId());
+
+        Segment[] segments = this.segments;
+        long partition = System.currentTimeMillis() / PARTITION;
+        Segment current = segments.length > 0 ? segments[segments.length - 1] : null;
+        if (current == null || current.size == segmentSize || current.partition != partition) {
+            current = new Segment(partition, segmentSize);
+            segments = append(segments, current);
+            segments = trim(segments);
+            this.segments = segments;
+        }
+        current.append(data);
+    }
+
+    Segment[] append(Segment[] segments, Segment segment) {
+        Segment[] result = new Segment[segments.length + 1];
+        System.arraycopy(segments, 0, result, 0, segments.length);
+        result[segments.length] = segment;
+        return result;
+    }
+
+    /**
+     * Drops the oldest segments once the history is larger than the maximum number of requests
+     */
+    Segment[] trim(Segment[] segments) {
+        long total = 0;
+        int first = segments.length;
+        while (first > 0 && total + segments[first - 1].size <= maxRequests) {
+            total += segments[first - 1].size;
+            first--;
+        }
+        // always keep the current segment
+        first = Math.min(first, segments.length - 1);
+        if (first == 0) {
+            return segments;
+        }
+        Segment[] result = new Segment[segments.length - first];
+        System.arraycopy(segments, first, result, 0, result.length);
+        return result;
+    }
+
+    public RequestData getRequest(long id) {
+        RequestData data = live.get(id);
+        if (data != null) {
+            return data;
+        }
+        Segment[] segments = this.segments;
+        for (int i = segments.length - 1; i >= 0; i--) {
+            int row = segments[i].find(id);
+            if (row >= 0) {
+                rowLock.readLock().lock();
+                try {
+                    return segments[i].materialize(row, null);
+                } finally {
+                    rowLock.readLock().unlock();
+                }
+            }
+        }
+        return null;
+    }
+
+    public List<RequestData> getRequests() {
+        return getRequests(new Query());
+    }
+
+    public List<RequestData> getRequests(Query q) {
+        final List<RequestData> result = new ArrayList<RequestData>();
+        getRequests(q, new RequestDataVisitor() {
+            public void visit(RequestData data, Object... aggregates) {
+                result.add(data);
+            }
+        });
+        return result;
+    }
+
+    public void getRequests(Query q, RequestDataVisitor visitor) {
+        Snapshot snapshot = new Snapshot();
+        Matches matches;
+        int[] order = null;
+        List<Group> groups = null;
+        rowLock.readLock().lock();
+        try {
+            matches = select(snapshot, q);
+            if (!q.getAggregates().isEmpty()) {
+                groups = aggregate(snapshot, matches, q);
+            } else {
+                order = sort(snapshot, matches, q.getSortBy(), q.getSortOrder(), q);
+            }
+        } finally {
+            rowLock.readLock().unlock();
+        }
+
+        if (groups != null) {
+            for (Group group : groups) {
+                visitor.visit(group.data, group.values);
+            }
+            return;
+        }
+
+        int start = q.getOffset() != null ? (int) Math.min(q.getOffset(), matches.size) : 0;
+        int end = q.getCount() != null ? (int) Math.min(matches.size, start + q.getCount())
+                : matches.size;
+
+        List<String> properties = q.getProperties().isEmpty() ? null : q.getProperties();
+        for (int i = start; i < end; i++) {
+            int m = order != null ? order[i] : i;
+            Segment segment = snapshot.segments[matches.segment(m)];
+            int row = matches.row(m);
+            // materialize under the lock, visit outside of it
+            List<RequestData> results = new ArrayList<RequestData>(1);
+            rowLock.readLock().lock();
+            try {
+                if (properties != null && properties.contains(RESOURCE)) {
+                    // one result per accessed resource, as in a join
+                    int count = segment.resourceCounts[row];
+                    for (int j = 0; j < Math.max(1, count); j++) {
+                        RequestData data = segment.materialize(row, properties);
+                        if (count > 0) {
+                            data.getResources().add(
+                                    segment.resources[segment.resourceOffsets[row] + j]);
+                        }
+                        results.add(data);
+                    }
+                } else {
+                    results.add(segment.materialize(row, properties));
+                }
+            } finally {
+                rowLock.readLock().unlock();
+            }
+            for (RequestData data : results) {
+                visitor.visit(data);
+            }
+        }
+    }
+
+    public long getCount(Query q) {
+        Snapshot snapshot = new Snapshot();
+        long count;
+        rowLock.readLock().lock();
+        try {
+            count = select(snapshot, q).size;
+        } finally {
+            rowLock.readLock().unlock();
+        }
+        if (q.getOffset() != null) {
+            count = Math.max(0, count - q.getOffset());
+        }
+        if (q.getCount() != null) {
+            count = Math.min(count, q.getCount());
+        }
+        return count;
+    }
+
+    public Iterator<RequestData> getIterator(Query q) {
+        return getRequests(q).iterator();
+    }
+
+    public List<RequestData> getOwsRequests() {
+        return getRequests(new Query().filter("service", null, Comparison.NEQ));
+    }
+
+    public List<RequestData> getOwsRequests(String service, String operation, String version) {
+        Query q = new Query().filter("service", service, Comparison.EQ);
+        if (operation != null) {
+            q.and("operation", operation, Comparison.EQ);
+        }
+        if (version != null) {
+            q.and("owsVersion", version, Comparison.EQ);
+        }
+        return getRequests(q);
+    }
+
+    public synchronized void clear() {
+        segments = new Segment[0];
+    }
+
+    public void dispose() {
+        clear();
+        live.clear();
+    }
+
+    /*
+     * Query evaluation
+     */
+
+    /**
+     * The segments a query runs against, the requests in progress being encoded in a temporary
+     * segment ahead of the history ones
+     */
+    class Snapshot {
+        Segment[] segments;
+
+        Snapshot() {
+            Segment[] history = ColumnarMonitorDAO.this.segments;
+            List<RequestData> running = new ArrayList<RequestData>(live.values());
+            Segment current = new Segment(-1, running.size());
+            for (RequestData data : running) {
+                current.append(data);
+            }
+            current.objects = running;
+
+            segments = new Segment[history.length + 1];
+            segments[0] = current;
+            System.arraycopy(history, 0, segments, 1, history.length);
+        }
+    }
+
+    /**
+     * The matching rows, as segment index and row pairs packed in longs
+     */
+    static class Matches {
+        long[] refs = new long[64];
+
+        int size;
+
+        void add(int segment, int row) {
+            if (size == refs.length) {
+                refs = Arrays.copyOf(refs, size * 2);
+            }
+            refs[size++] = ((long) segment << 32) | row;
+        }
+
+        int segment(int i) {
+            return (int) (refs[i] >>> 32);
+        }
+
+        int row(int i) {
+            return (int) refs[i];
+        }
+    }
+
+    Matches select(Snapshot snapshot, Query q) {
+        Matches matches = new Matches();
+        long from = q.getFromDate() != null ? q.getFromDate().getTime() : Long.MIN_VALUE;
+        long to = q.getToDate() != null ? q.getToDate().getTime() : Long.MAX_VALUE;
+        boolean ranged = q.getFromDate() != null || q.getToDate() != null;
+        RowFilter filter = q.getFilter() != null ? compile(q.getFilter()) : null;
+        int startTime = column("startTime").index;
+
+        for (int s = 0; s < snapshot.segments.length; s++) {
+            Segment segment = snapshot.segments[s];
+            int size = segment.size;
+            if (size == 0 || (ranged && (segment.maxStart < from || segment.minStart > to))) {
+                continue;
+            }
+            long[] starts = (long[]) segment.storage[startTime];
+            for (int row = 0; row < size; row++) {
+                if (ranged) {
+                    long start = starts[row];
+                    if (start == NULL || start < from || start > to) {
+                        continue;
+                    }
+                }
+                if (filter == null || filter.matches(segment, row)) {
+                    matches.add(s, row);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the order in which the matches should be returned, or null if the natural order
+     * should be used
+     */
+    int[] sort(Snapshot snapshot, final Matches matches, String sortBy, SortOrder order,
+            Query q) {
+        if (sortBy == null) {
+            if (q.getFromDate() == null && q.getToDate() == null) {
+                return null;
+            }
+            // date range queries are sorted by start time, most recent first
+            sortBy = "startTime";
+            order = SortOrder.DESC;
+        }
+
+        final Column column = column(sortBy);
+        final long[] keys;
+        if (column instanceof DictionaryColumn) {
+            // rank the dictionary codes in alphabetical order
+            int[] ranks = dictionary.ranks();
+            keys = new long[matches.size];
+            for (int i = 0; i < matches.size; i++) {
+                int code = ((int[]) snapshot.segments[matches.segment(i)].storage[column.index])[matches
+                        .row(i)];
+                keys[i] = code < 0 ? NULL : ranks[code];
+            }
+        } else if (column instanceof KeyedColumn) {
+            keys = new long[matches.size];
+            for (int i = 0; i < matches.size; i++) {
+                keys[i] = ((KeyedColumn) column).key(
+                        snapshot.segments[matches.segment(i)].storage[column.index],
+                        matches.row(i));
+            }
+        } else {
+            keys = null;
+        }
+
+        final boolean ascending = order != SortOrder.DESC;
+        Integer[] boxed = null;
+        int[] result = new int[matches.size];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = i;
+        }
+        if (keys != null) {
+            mergeSort(result, new int[result.length], 0, result.length, keys, ascending);
+        } else {
+            // values without a sortable key, compare the actual values
+            final Object[] values = new Object[matches.size];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = column.value(snapshot.segments[matches.segment(i)].storage[column.index],
+                        matches.row(i));
+            }
+            boxed = new Integer[result.length];
+            for (int i = 0; i < boxed.length; i++) {
+                boxed[i] = i;
+            }
+            Arrays.sort(boxed, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    int c = compareValues(values[i1], values[i2]);
+                    return ascending ? c : -c;
+                }
+            });
+            for (int i = 0; i < boxed.length; i++) {
+                result[i] = boxed[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stable merge sort of indexes by key
+     */
+    static void mergeSort(int[] a, int[] tmp, int from, int to, long[] keys, boolean ascending) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, keys, ascending);
+        mergeSort(a, tmp, mid, to, keys, ascending);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to) {
+            long ki = keys[a[i]], kj = keys[a[j]];
+            boolean takeRight = ascending ? kj < ki : kj > ki;
+            tmp[k++] = takeRight ? a[j++] : a[i++];
+        }
+        while (i < mid) {
+            tmp[k++] = a[i++];
+        }
+        while (j < to) {
+            tmp[k++] = a[j++];
+        }
+        System.arraycopy(tmp, from, a, from, to - from);
+    }
+
+    /**
+     * Same ordering as the other DAOs, nulls last
+     */
+    @SuppressWarnings("unchecked")
+    static int compareValues(Object o1, Object o2) {
+        if (o1 == null) {
+            return o2 == null ? 0 : 1;
+        }
+        if (o2 == null) {
+            return -1;
+        }
+        if (o1 instanceof Comparable) {
+            return ((Comparable<Object>) o1).compareTo(o2);
+        }
+        return o1.toString().compareTo(o2.toString());
+    }
+
+    /*
+     * Aggregation
+     */
+
+    /**
+     * Groups and aggregates the matches, returning the requested page of groups
+     */
+    List<Group> aggregate(Snapshot snapshot, Matches matches, Query q) {
+        List<String> groupBy = q.getGroupBy();
+        boolean byResource = groupBy.contains(RESOURCE);
+        final Aggregator[] aggregators = new Aggregator[q.getAggregates().size()];
+        for (int i = 0; i < aggregators.length; i++) {
+            aggregators[i] = new Aggregator(q.getAggregates().get(i));
+        }
+
+        List<Column> keyColumns = new ArrayList<Column>();
+        for (String property : groupBy) {
+            if (!RESOURCE.equals(property)) {
+                keyColumns.add(column(property));
+            }
+        }
+        int width = keyColumns.size() + (byResource ? 1 : 0);
+        Map<String, Integer> localCodes = new HashMap<String, Integer>();
+        List<String> localValues = new ArrayList<String>();
+
+        LinkedHashMap<GroupKey, Group> groups = new LinkedHashMap<GroupKey, Group>();
+        GroupKey probe = new GroupKey(new long[width]);
+        for (int i = 0; i < matches.size; i++) {
+            Segment segment = snapshot.segments[matches.segment(i)];
+            int row = matches.row(i);
+            for (int k = 0; k < keyColumns.size(); k++) {
+                Column column = keyColumns.get(k);
+                Object storage = segment.storage[column.index];
+                if (column instanceof KeyedColumn) {
+                    probe.values[k] = ((KeyedColumn) column).key(storage, row);
+                } else {
+                    // raw strings, code them locally
+                    probe.values[k] = localCode((String) column.value(storage, row), localCodes,
+                            localValues);
+                }
+            }
+
+            int resources = byResource ? Math.max(1, segment.resourceCounts[row]) : 1;
+            for (int r = 0; r < resources; r++) {
+                if (byResource) {
+                    probe.values[width - 1] = segment.resourceCounts[row] == 0 ? NULL
+                            : localCode(segment.resources[segment.resourceOffsets[row] + r],
+                                    localCodes, localValues);
+                }
+                probe.rehash();
+                Group group = groups.get(probe);
+                if (group == null) {
+                    GroupKey key = new GroupKey(probe.values.clone());
+                    key.rehash();
+                    group = new Group(segment, row, aggregators.length);
+                    if (byResource) {
+                        group.resource = probe.values[width - 1];
+                    }
+                    groups.put(key, group);
+                }
+                for (int a = 0; a < aggregators.length; a++) {
+                    aggregators[a].accumulate(group, a, segment, row);
+                }
+            }
+        }
+
+        // build the results
+        List<Group> results = new ArrayList<Group>(groups.values());
+        List<String> properties = new ArrayList<String>(q.getProperties());
+        for (String property : groupBy) {
+            if (!properties.contains(property)) {
+                properties.add(property);
+            }
+        }
+        properties.remove(RESOURCE);
+        for (Group group : results) {
+            group.data = group.segment.materialize(group.row, properties);
+            group.data.setId(-1);
+            if (group.resource != NULL) {
+                group.data.getResources().add(localValues.get((int) group.resource));
+            }
+            group.values = new Object[aggregators.length];
+            for (int a = 0; a < aggregators.length; a++) {
+                group.values[a] = aggregators[a].result(group, a);
+            }
+        }
+
+        final String sortBy = q.getSortBy();
+        if (sortBy != null) {
+            final boolean ascending = q.getSortOrder() != SortOrder.DESC;
+            int idx = q.getAggregates().indexOf(sortBy);
+            final int aggregate = idx >= 0 ? idx : "count()".equals(sortBy) ? 0 : -1;
+            Collections.sort(results, new Comparator<Group>() {
+                public int compare(Group g1, Group g2) {
+                    int c;
+                    if (aggregate >= 0) {
+                        c = compareValues(g1.values[aggregate], g2.values[aggregate]);
+                    } else {
+                        c = compareValues(OwsUtils.get(g1.data, sortBy), OwsUtils.get(g2.data,
+                                sortBy));
+                    }
+                    return ascending ? c : -c;
+                }
+            });
+        }
+
+        int start = q.getOffset() != null ? (int) Math.min(q.getOffset(), results.size()) : 0;
+        int end = q.getCount() != null ? (int) Math.min(results.size(), start + q.getCount())
+                : results.size();
+        return results.subList(start, end);
+    }
+
+    static int localCode(String value, Map<String, Integer> localCodes, List<String> localValues) {
+        Integer code = localCodes.get(value);
+        if (code == null) {
+            code = localValues.size();
+            localCodes.put(value, code);
+            localValues.add(value);
+        }
+        return code;
+    }
+
+    static class GroupKey {
+        long[] values;
+
+        int hash;
+
+        GroupKey(long[] values) {
+            this.values = values;
+        }
+
+        void rehash() {
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof GroupKey && Arrays.equals(values, ((GroupKey) obj).values);
+        }
+    }
+
+    static class Group {
+        /**
+         * The first row of the group, used to materialize the grouping properties
+         */
+        Segment segment;
+
+        int row;
+
+        long resource = NULL;
+
+        long[] counts;
+
+        double[] accumulators;
+
+        RequestData data;
+
+        Object[] values;
+
+        Group(Segment segment, int row, int aggregates) {
+            this.segment = segment;
+            this.row = row;
+            this.counts = new long[aggregates];
+            this.accumulators = new double[aggregates];
+        }
+    }
+
+    /**
+     * Computes one of count(), count(property), sum, avg, min and max over a numeric property
+     */
+    class Aggregator {
+        String function;
+
+        KeyedColumn column;
+
+        /**
+         * The property of a count over a column without keys, whose nulls are not counted
+         */
+        Column counted;
+
+        Aggregator(String aggregate) {
+            String spec = aggregate.trim();
+            int open = spec.indexOf('(');
+            int close = spec.lastIndexOf(')');
+            if (open < 0 || close < open) {
+                throw new IllegalArgumentException("Unsupported aggregate " + aggregate);
+            }
+            function = spec.substring(0, open).trim().toLowerCase();
+            String property = spec.substring(open + 1, close).trim();
+            if (!Arrays.asList("count", "sum", "avg", "min", "max").contains(function)) {
+                throw new IllegalArgumentException("Unsupported aggregate " + aggregate);
+            }
+            if (property.length() > 0 && !"*".equals(property)) {
+                Column c = column(property);
+                if (!(c instanceof NumericColumn) && !"count".equals(function)) {
+                    throw new IllegalArgumentException("Aggregate " + aggregate
+                            + " requires a numeric property");
+                }
+                if (c instanceof KeyedColumn) {
+                    column = (KeyedColumn) c;
+                } else {
+                    counted = c;
+                }
+            }
+        }
+
+        void accumulate(Group group, int a, Segment segment, int row) {
+            if (column == null) {
+                if (counted == null
+                        || counted.value(segment.storage[counted.index], row) != null) {
+                    group.counts[a]++;
+                }
+                return;
+            }
+            long key = column.key(segment.storage[column.index], row);
+            if (key == NULL) {
+                return;
+            }
+            double value = column.toDouble(key);
+            if (group.counts[a] == 0) {
+                group.accumulators[a] = value;
+            } else if ("min".equals(function)) {
+                group.accumulators[a] = Math.min(group.accumulators[a], value);
+            } else if ("max".equals(function)) {
+                group.accumulators[a] = Math.max(group.accumulators[a], value);
+            } else {
+                group.accumulators[a] += value;
+            }
+            group.counts[a]++;
+        }
+
+        Object result(Group group, int a) {
+            long count = group.counts[a];
+            if ("count".equals(function)) {
+                return count;
+            }
+            if (count == 0) {
+                return null;
+            }
+            double value = group.accumulators[a];
+            if ("avg".equals(function)) {
+                return value / count;
+            }
+            return column instanceof FloatColumn ? (Object) value : (Object) Math.round(value);
+        }
+    }
+
+    /*
+     * Filters
+     */
+
+    interface RowFilter {
+        boolean matches(Segment segment, int row);
+    }
+
+    RowFilter compile(Filter filter) {
+        if (filter instanceof CompositeFilter) {
+            List<Filter> children = ((CompositeFilter) filter).getFilters();
+            final RowFilter[] compiled = new RowFilter[children.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = compile(children.get(i));
+            }
+            if (filter instanceof Or) {
+                return new RowFilter() {
+                    public boolean matches(Segment segment, int row) {
+                        for (RowFilter f : compiled) {
+                            if (f.matches(segment, row)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                };
+            }
+            return new RowFilter() {
+                public boolean matches(Segment segment, int row) {
+                    for (RowFilter f : compiled) {
+                        if (!f.matches(segment, row)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            };
+        }
+
+        // figure out which side is the property
+        String property = null;
+        Object value = null;
+        if (filter.getLeft() instanceof String && isProperty((String) filter.getLeft())) {
+            property = (String) filter.getLeft();
+            value = filter.getRight();
+        } else if (filter.getRight() instanceof String && isProperty((String) filter.getRight())) {
+            property = (String) filter.getRight();
+            value = filter.getLeft();
+        }
+        if (property == null) {
+            throw new IllegalArgumentException("Could not find property");
+        }
+        if (filter.getType() == Comparison.IN && !(value instanceof Collection)) {
+            throw new UnsupportedOperationException(
+                    "IN comparison only supported against list values");
+        }
+
+        if (RESOURCE.equalsIgnoreCase(property)) {
+            return new ResourceFilter(filter.getType(), value);
+        }
+        Column column = column(property);
+        if (column instanceof DictionaryColumn) {
+            RowFilter compiled = ((DictionaryColumn) column).compile(filter.getType(), value);
+            if (compiled != null) {
+                return compiled;
+            }
+        } else if (column instanceof KeyedColumn) {
+            RowFilter compiled = ((KeyedColumn) column).compile(filter.getType(), value);
+            if (compiled != null) {
+                return compiled;
+            }
+        }
+        return new ValueFilter(column, filter.getType(), value);
+    }
+
+    boolean isProperty(String name) {
+        return RESOURCE.equalsIgnoreCase(name) || columnsByName.containsKey(name.toLowerCase());
+    }
+
+    /**
+     * Compares the decoded values, with the same semantics as the {@link MemoryMonitorDAO}
+     */
+    static class ValueFilter implements RowFilter {
+        Column column;
+
+        Comparison comparison;
+
+        Object value;
+
+        ValueFilter(Column column, Comparison comparison, Object value) {
+            this.column = column;
+            this.comparison = comparison;
+            this.value = value;
+        }
+
+        public boolean matches(Segment segment, int row) {
+            return ValueFilter.matches(column.value(segment.storage[column.index], row),
+                    comparison, value);
+        }
+
+        @SuppressWarnings("unchecked")
+        static boolean matches(Object o, Comparison comparison, Object value) {
+            if (o == null) {
+                return value == null && comparison == Comparison.EQ;
+            }
+            switch (comparison) {
+            case IN:
+                return ((Collection<Object>) value).contains(o);
+            case EQ:
+                return o.equals(value);
+            case NEQ:
+                return !o.equals(value);
+            default:
+                if (!(o instanceof Comparable)) {
+                    throw new UnsupportedOperationException("Values of type "
+                            + o.getClass().getName()
+                            + " only support equality and non-equality comparison.");
+                }
+                int c = ((Comparable<Object>) o).compareTo(value);
+                return compare(c, comparison);
+            }
+        }
+    }
+
+    static boolean compare(int c, Comparison comparison) {
+        switch (comparison) {
+        case LT:
+            return c < 0;
+        case LTE:
+            return c <= 0;
+        case GT:
+            return c > 0;
+        case GTE:
+            return c >= 0;
+        case EQ:
+            return c == 0;
+        case NEQ:
+            return c != 0;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Matches the requests accessing at least one resource satisfying the comparison
+     */
+    class ResourceFilter implements RowFilter {
+        Comparison comparison;
+
+        Object value;
+
+        Set<String> values;
+
+        ResourceFilter(Comparison comparison, Object value) {
+            this.comparison = comparison;
+            this.value = value;
+            if (comparison == Comparison.EQ || comparison == Comparison.NEQ
+                    || comparison == Comparison.IN) {
+                values = new HashSet<String>();
+                Collection<?> candidates = comparison == Comparison.IN ? (Collection<?>) value
+                        : Collections.singleton(value);
+                for (Object v : candidates) {
+                    if (v instanceof String) {
+                        values.add((String) v);
+                    }
+                }
+            }
+        }
+
+        public boolean matches(Segment segment, int row) {
+            int offset = segment.resourceOffsets[row];
+            int count = segment.resourceCounts[row];
+            for (int i = offset; i < offset + count; i++) {
+                String resource = segment.resources[i];
+                boolean match;
+                if (values != null) {
+                    match = values.contains(resource) ^ (comparison == Comparison.NEQ);
+                } else {
+                    match = ValueFilter.matches(resource, comparison, value);
+                }
+                if (match) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /*
+     * Storage
+     */
+
+    /**
+     * A block of rows, appended to under the DAO lock and read without locking
+     */
+    class Segment {
+        long partition;
+
+        /**
+         * The allocated rows, grown on demand up to the segment size
+         */
+        int capacity;
+
+        Object[] storage;
+
+        int[] resourceOffsets;
+
+        int[] resourceCounts;
+
+        String[] resources = new String[16];
+
+        int resourceSize;
+
+        long minStart = Long.MAX_VALUE;
+
+        long maxStart = Long.MIN_VALUE;
+
+        long minId = Long.MAX_VALUE;
+
+        long maxId = Long.MIN_VALUE;
+
+        volatile int size;
+
+        /**
+         * The original objects, for the segment holding the requests in progress
+         */
+        List<RequestData> objects;
+
+        Segment(long partition, int maxSize) {
+            this.partition = partition;
+            this.capacity = Math.max(1, Math.min(maxSize, INITIAL_CAPACITY));
+            this.storage = new Object[columns.size()];
+            for (Column column : columns) {
+                storage[column.index] = column.allocate(capacity);
+            }
+            resourceOffsets = new int[capacity];
+            resourceCounts = new int[capacity];
+        }
+
+        void append(RequestData data) {
+            int row = size;
+            if (row == capacity) {
+                // the rows below size are copied before being published
+                capacity *= 2;
+                for (Column column : columns) {
+                    storage[column.index] = column.grow(storage[column.index], capacity);
+                }
+                resourceOffsets = Arrays.copyOf(resourceOffsets, capacity);
+                resourceCounts = Arrays.copyOf(resourceCounts, capacity);
+            }
+            encode(row, data);
+            // publish the row
+            size = row + 1;
+        }
+
+        void encode(int row, RequestData data) {
+            for (Column column : columns) {
+                column.encode(storage[column.index], row, data);
+            }
+
+            List<String> resources = data.getResources();
+            int count = resources != null ? resources.size() : 0;
+            if (count <= resourceCounts[row] && row < size) {
+                // updating, reuse the existing slots
+                resourceCounts[row] = count;
+            } else {
+                if (resourceSize + count > this.resources.length) {
+                    this.resources = Arrays.copyOf(this.resources, Math.max(resourceSize + count,
+                            this.resources.length * 2));
+                }
+                resourceOffsets[row] = resourceSize;
+                resourceCounts[row] = count;
+                resourceSize += count;
+            }
+            for (int i = 0; i < count; i++) {
+                this.resources[resourceOffsets[row] + i] = resources.get(i);
+            }
+
+            long id = data.getId();
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            if (data.getStartTime() != null) {
+                long start = data.getStartTime().getTime();
+                minStart = Math.min(minStart, start);
+                maxStart = Math.max(maxStart, start);
+            }
+        }
+
+        int find(long id) {
+            if (size == 0 || id < minId || id > maxId) {
+                return -1;
+            }
+            long[] ids = (long[]) storage[columns.get(0).index];
+            for (int row = size - 1; row >= 0; row--) {
+                if (ids[row] == id) {
+                    return row;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Builds the request for the row, only filling the specified properties if not null
+         */
+        RequestData materialize(int row, List<String> properties) {
+            if (objects != null && properties == null) {
+                return objects.get(row);
+            }
+            RequestData data = new RequestData();
+            if (properties == null) {
+                for (Column column : columns) {
+                    column.decode(storage[column.index], row, data);
+                }
+                for (int i = 0; i < resourceCounts[row]; i++) {
+                    data.getResources().add(resources[resourceOffsets[row] + i]);
+                }
+            } else {
+                data.setId(((long[]) storage[columns.get(0).index])[row]);
+                for (String property : properties) {
+                    if (!RESOURCE.equals(property)) {
+                        Column column = column(property);
+                        column.decode(storage[column.index], row, data);
+                    }
+                }
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Assigns integer codes to strings, codes are never reused. Only meant for properties with a
+     * bounded set of values, as the entries outlive the segments referring to them
+     */
+    static class Dictionary {
+        ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+        volatile String[] values = new String[256];
+
+        int size;
+
+        int code(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            synchronized (this) {
+                code = codes.get(value);
+                if (code == null) {
+                    String[] values = this.values;
+                    if (size == values.length) {
+                        values = Arrays.copyOf(values, size * 2);
+                    }
+                    code = size;
+                    values[size++] = value;
+                    this.values = values;
+                    codes.put(value, code);
+                }
+                return code;
+            }
+        }
+
+        /**
+         * Returns the code of the value, or -2 if the value is not in the dictionary
+         */
+        int lookup(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            return code != null ? code : -2;
+        }
+
+        String get(int code) {
+            return code < 0 ? null : values[code];
+        }
+
+        /**
+         * Returns the alphabetical rank of each code assigned so far
+         */
+        int[] ranks() {
+            // read the values and their count together, code() might be growing them
+            final String[] values;
+            int n;
+            synchronized (this) {
+                values = this.values;
+                n = size;
+            }
+            Integer[] sorted = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                sorted[i] = i;
+            }
+            Arrays.sort(sorted, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    return values[i1].compareTo(values[i2]);
+                }
+            });
+            int[] ranks = new int[n];
+            for (int i = 0; i < n; i++) {
+                ranks[sorted[i]] = i;
+            }
+            return ranks;
+        }
+    }
+
+    /*
+     * Columns
+     */
+
+    abstract static class Column {
+        String name;
+
+        int index;
+
+        Method getter;
+
+        Method setter;
+
+        Column(String name, Class<?> type) {
+            this.name = name;
+            this.getter = OwsUtils.getter(RequestData.class, name, type);
+            this.setter = OwsUtils.setter(RequestData.class, name, type);
+        }
+
+        Object get(RequestData data) {
+            try {
+                return getter.invoke(data);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void decode(Object storage, int row, RequestData data) {
+            Object value = value(storage, row);
+            if (value != null) {
+                try {
+                    setter.invoke(data, value);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        abstract Object allocate(int capacity);
+
+        Object grow(Object storage, int capacity) {
+            Object grown = allocate(capacity);
+            System.arraycopy(storage, 0, grown, 0, Array.getLength(storage));
+            return grown;
+        }
+
+        abstract void encode(Object storage, int row, RequestData data);
+
+        abstract Object value(Object storage, int row);
+    }
+
+    /**
+     * Raw strings, for the high cardinality properties
+     */
+    static class StringColumn extends Column {
+        StringColumn(String name) {
+            super(name, String.class);
+        }
+
+        Object allocate(int capacity) {
+            return new String[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            ((String[]) storage)[row] = (String) get(data);
+        }
+
+        Object value(Object storage, int row) {
+            return ((String[]) storage)[row];
+        }
+    }
+
+    /**
+     * A column whose values are represented by a long key, {@link #NULL} for nulls
+     */
+    abstract static class KeyedColumn extends Column {
+        KeyedColumn(String name, Class<?> type) {
+            super(name, type);
+        }
+
+        abstract long key(Object storage, int row);
+
+        /**
+         * Converts a comparison value to a key, returns null if not possible
+         */
+        abstract Long toKey(Object value);
+
+        double toDouble(long key) {
+            return key;
+        }
+
+        /**
+         * Compiles a filter working on the keys, or returns null if the comparison cannot be
+         * evaluated on them
+         */
+        RowFilter compile(final Comparison comparison, Object value) {
+            if (value == null) {
+                return null;
+            }
+            if (comparison == Comparison.IN) {
+                final List<Long> keys = new ArrayList<Long>();
+                for (Object v : (Collection<?>) value) {
+                    Long key = toKey(v);
+                    if (key == null) {
+                        return null;
+                    }
+                    keys.add(key);
+                }
+                final long[] set = new long[keys.size()];
+                for (int i = 0; i < set.length; i++) {
+                    set[i] = keys.get(i);
+                }
+                Arrays.sort(set);
+                return new RowFilter() {
+                    public boolean matches(Segment segment, int row) {
+                        long key = key(segment.storage[index], row);
+                        return key != NULL && Arrays.binarySearch(set, key) >= 0;
+                    }
+                };
+            }
+            final Long target = toKey(value);
+            if (target == null || !isOrdered() && comparison != Comparison.EQ
+                    && comparison != Comparison.NEQ) {
+                return null;
+            }
+            return new RowFilter() {
+                public boolean matches(Segment segment, int row) {
+                    long key = key(segment.storage[index], row);
+                    return key != NULL && ColumnarMonitorDAO.compare(key < target ? -1
+                            : key == target ? 0 : 1, comparison);
+                }
+            };
+        }
+
+        boolean isOrdered() {
+            return true;
+        }
+    }
+
+    /**
+     * Marker for the columns that can be summed and averaged
+     */
+    interface NumericColumn {
+    }
+
+    static class LongColumn extends KeyedColumn implements NumericColumn {
+        LongColumn(String name) {
+            super(name, long.class);
+        }
+
+        Object allocate(int capacity) {
+            return new long[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            ((long[]) storage)[row] = (Long) get(data);
+        }
+
+        Object value(Object storage, int row) {
+            return ((long[]) storage)[row];
+        }
+
+        long key(Object storage, int row) {
+            return ((long[]) storage)[row];
+        }
+
+        Long toKey(Object value) {
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            if (value instanceof String) {
+                return Converters.convert(value, Long.class);
+            }
+            return null;
+        }
+    }
+
+    static class IntColumn extends KeyedColumn implements NumericColumn {
+        IntColumn(String name) {
+            super(name, int.class);
+        }
+
+        Object allocate(int capacity) {
+            return new int[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            ((int[]) storage)[row] = (Integer) get(data);
+        }
+
+        Object value(Object storage, int row) {
+            return ((int[]) storage)[row];
+        }
+
+        long key(Object storage, int row) {
+            return ((int[]) storage)[row];
+        }
+
+        Long toKey(Object value) {
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            if (value instanceof String) {
+                return Converters.convert(value, Long.class);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Doubles stored with float precision, plenty for coordinates
+     */
+    static class FloatColumn extends KeyedColumn implements NumericColumn {
+        FloatColumn(String name) {
+            super(name, double.class);
+        }
+
+        Object allocate(int capacity) {
+            return new float[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            ((float[]) storage)[row] = ((Double) get(data)).floatValue();
+        }
+
+        Object value(Object storage, int row) {
+            return (double) ((float[]) storage)[row];
+        }
+
+        long key(Object storage, int row) {
+            return sortable(((float[]) storage)[row]);
+        }
+
+        static long sortable(float value) {
+            int bits = Float.floatToIntBits(value);
+            return bits ^ ((bits >> 31) & 0x7fffffff);
+        }
+
+        double toDouble(long key) {
+            int bits = (int) key;
+            return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7fffffff));
+        }
+
+        Long toKey(Object value) {
+            if (value instanceof Number) {
+                return sortable(((Number) value).floatValue());
+            }
+            return null;
+        }
+    }
+
+    static class DateColumn extends KeyedColumn {
+        DateColumn(String name) {
+            super(name, Date.class);
+        }
+
+        Object allocate(int capacity) {
+            return new long[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            Date date = (Date) get(data);
+            ((long[]) storage)[row] = date != null ? date.getTime() : NULL;
+        }
+
+        Object value(Object storage, int row) {
+            long time = ((long[]) storage)[row];
+            return time == NULL ? null : new Date(time);
+        }
+
+        long key(Object storage, int row) {
+            return ((long[]) storage)[row];
+        }
+
+        Long toKey(Object value) {
+            if (value instanceof String) {
+                value = Converters.convert(value, Date.class);
+            }
+            return value instanceof Date ? ((Date) value).getTime() : null;
+        }
+    }
+
+    static class EnumColumn extends KeyedColumn {
+        Enum<?>[] constants;
+
+        Class<? extends Enum<?>> type;
+
+        EnumColumn(String name, Class<? extends Enum<?>> type) {
+            super(name, type);
+            this.type = type;
+            this.constants = type.getEnumConstants();
+        }
+
+        Object allocate(int capacity) {
+            return new byte[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            Enum<?> value = (Enum<?>) get(data);
+            ((byte[]) storage)[row] = (byte) (value != null ? value.ordinal() : -1);
+        }
+
+        Object value(Object storage, int row) {
+            byte ordinal = ((byte[]) storage)[row];
+            return ordinal < 0 ? null : constants[ordinal];
+        }
+
+        long key(Object storage, int row) {
+            byte ordinal = ((byte[]) storage)[row];
+            return ordinal < 0 ? NULL : ordinal;
+        }
+
+        Long toKey(Object value) {
+            if (type.isInstance(value)) {
+                return (long) ((Enum<?>) value).ordinal();
+            }
+            if (value instanceof String) {
+                for (Enum<?> constant : constants) {
+                    if (constant.name().equalsIgnoreCase((String) value)) {
+                        return (long) constant.ordinal();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Strings stored as dictionary codes. The codes are not ordered, only equality is evaluated on
+     * them
+     */
+    class DictionaryColumn extends KeyedColumn {
+        DictionaryColumn(String name) {
+            super(name, String.class);
+        }
+
+        Object allocate(int capacity) {
+            return new int[capacity];
+        }
+
+        void encode(Object storage, int row, RequestData data) {
+            ((int[]) storage)[row] = dictionary.code((String) get(data));
+        }
+
+        Object value(Object storage, int row) {
+            return dictionary.get(((int[]) storage)[row]);
+        }
+
+        long key(Object storage, int row) {
+            int code = ((int[]) storage)[row];
+            return code < 0 ? NULL : code;
+        }
+
+        Long toKey(Object value) {
+            // strings not in the dictionary get a code that matches nothing
+            return value instanceof String ? (long) dictionary.lookup((String) value) : null;
+        }
+
+        boolean isOrdered() {
+            return false;
+        }
+
+        RowFilter compile(final Comparison comparison, Object value) {
+            if (value == null && (comparison == Comparison.EQ || comparison == Comparison.NEQ)) {
+                // null checks, consistent with the other DAOs a null never matches NEQ
+                final boolean eq = comparison == Comparison.EQ;
+                return new RowFilter() {
+                    public boolean matches(Segment segment, int row) {
+                        return eq == (((int[]) segment.storage[index])[row] < 0);
+                    }
+                };
+            }
+            return super.compile(comparison, value);
+        }
+    }
+}
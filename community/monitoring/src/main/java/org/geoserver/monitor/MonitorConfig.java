@@ -91,6 +91,11 @@ public class MonitorConfig implements ApplicationContextAware {
     public MonitorDAO createDAO() {
         Mode m = getMode();
         
+        if ("columnar".equalsIgnoreCase(props().getProperty("storage"))) {
+            Integer max = getProperty("columnar", "max_requests", Integer.class);
+            return new ColumnarMonitorDAO(max != null ? max : ColumnarMonitorDAO.DEFAULT_MAX_REQUESTS);
+        }
+        
         if (m == Mode.LIVE) {
             return new MemoryMonitorDAO();
         }
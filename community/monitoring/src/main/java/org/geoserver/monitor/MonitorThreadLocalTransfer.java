@@ -0,0 +1,36 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.Map;
+
+import org.geoserver.ows.ThreadLocalTransfer;
+
+/**
+ * Moves the monitored request started by the monitor filter over to the service executor thread,
+ * so that the ows callbacks keep filling it in.
+ */
+public class MonitorThreadLocalTransfer implements ThreadLocalTransfer {
+
+    static final String KEY = MonitorThreadLocalTransfer.class.getName() + "#REQUEST";
+
+    public void collect(Map<String, Object> storage) {
+        RequestData data = Monitor.REQUEST.get();
+        if (data != null) {
+            storage.put(KEY, data);
+        }
+    }
+
+    public void apply(Map<String, Object> storage) {
+        RequestData data = (RequestData) storage.get(KEY);
+        if (data != null) {
+            Monitor.REQUEST.set(data);
+        }
+    }
+
+    public void cleanup() {
+        Monitor.REQUEST.remove();
+    }
+}
@@ -7,7 +7,9 @@ package org.geoserver.monitor;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.geoserver.platform.ServiceException;
@@ -175,6 +177,17 @@ public class RequestData implements Serializable {
      * The requested resources
      */
     private List<String> resources = new ArrayList<String>(1);
+    
+    /**
+     * The time spent accessing each of the requested resources, in milliseconds, if known
+     */
+    private Map<String, Long> resourceTimes;
+
+    /**
+     * The time spent in each of the traced request phases, in microseconds, if request tracing
+     * is enabled
+     */
+    private Map<String, Long> phaseTimes;
 
     /**
      * The HTTP response length, in bytes
@@ -426,6 +439,22 @@ public class RequestData implements Serializable {
         this.resources = resources;
     }
     
+    public Map<String, Long> getResourceTimes() {
+        return resourceTimes;
+    }
+    
+    public void setResourceTimes(Map<String, Long> resourceTimes) {
+        this.resourceTimes = resourceTimes;
+    }
+    
+    public Map<String, Long> getPhaseTimes() {
+        return phaseTimes;
+    }
+    
+    public void setPhaseTimes(Map<String, Long> phaseTimes) {
+        this.phaseTimes = phaseTimes;
+    }
+    
     public long getResponseLength() {
         return responseLength;
     }
@@ -479,6 +508,12 @@ public class RequestData implements Serializable {
         clone.setSubOperation(subOperation);
         clone.setOwsVersion(owsVersion);
         clone.setResources(new ArrayList(resources));
+        if (resourceTimes != null) {
+            clone.setResourceTimes(new LinkedHashMap<String, Long>(resourceTimes));
+        }
+        if (phaseTimes != null) {
+            clone.setPhaseTimes(new LinkedHashMap<String, Long>(phaseTimes));
+        }
         clone.setResponseLength(responseLength);
         clone.setResponseContentType(responseContentType);
         clone.setErrorMessage(errorMessage);
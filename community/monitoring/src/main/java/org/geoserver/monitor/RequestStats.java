@@ -0,0 +1,154 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.Date;
+
+import org.geoserver.ows.util.Histogram;
+
+/**
+ * A snapshot of the statistics gathered by the {@link RequestStatsCollector} for a service,
+ * operation and resource combination. A null resource means the statistics cover all the requests
+ * of the operation. Times are in milliseconds, lengths in bytes.
+ */
+public class RequestStats {
+
+    String service;
+
+    String operation;
+
+    String resource;
+
+    Date startTime;
+
+    Date endTime;
+
+    long count;
+
+    long errors;
+
+    long totalTime;
+
+    long minTime;
+
+    double meanTime;
+
+    long medianTime;
+
+    long time90;
+
+    long time99;
+
+    long maxTime;
+
+    long totalBytes;
+
+    double meanBytes;
+
+    long bytes90;
+
+    long maxBytes;
+
+    RequestStats(String service, String operation, String resource, Date startTime, Date endTime,
+            long errors, Histogram times, Histogram bytes) {
+        this.service = service;
+        this.operation = operation;
+        this.resource = resource;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.count = times.getCount();
+        this.errors = errors;
+        this.totalTime = times.getTotal();
+        this.minTime = times.getMin();
+        this.meanTime = times.getMean();
+        this.medianTime = times.getValueAtPercentile(50);
+        this.time90 = times.getValueAtPercentile(90);
+        this.time99 = times.getValueAtPercentile(99);
+        this.maxTime = times.getMax();
+        this.totalBytes = bytes.getTotal();
+        this.meanBytes = bytes.getMean();
+        this.bytes90 = bytes.getValueAtPercentile(90);
+        this.maxBytes = bytes.getMax();
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public long getMinTime() {
+        return minTime;
+    }
+
+    public double getMeanTime() {
+        return meanTime;
+    }
+
+    public long getMedianTime() {
+        return medianTime;
+    }
+
+    public long getTime90() {
+        return time90;
+    }
+
+    public long getTime99() {
+        return time99;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public double getMeanBytes() {
+        return meanBytes;
+    }
+
+    public long getBytes90() {
+        return bytes90;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestStats[" + service + ":" + operation
+                + (resource != null ? ":" + resource : "") + ", count=" + count + ", errors="
+                + errors + ", meanTime=" + meanTime + ", maxTime=" + maxTime + "]";
+    }
+}
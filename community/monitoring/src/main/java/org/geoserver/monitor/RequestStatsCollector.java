@@ -0,0 +1,646 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.monitor.RequestData.Status;
+import org.geoserver.ows.util.Histogram;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.util.logging.Logging;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+
+/**
+ * Aggregates in memory the latency, response size and error statistics of the completed requests,
+ * by service, operation and resource, and periodically appends the statistics of the last interval
+ * to a log file.
+ * <p>
+ * The request threads only publish the request figures in a fixed size ring buffer, without
+ * locking nor allocating, while a single background thread drains the ring into the per key
+ * {@link Histogram histograms}. If the ring is full the figures are dropped and counted rather than
+ * slowing down the requests.
+ * </p>
+ * <p>
+ * The collector is configured in monitor.properties with the following keys:
+ * <ul>
+ * <li>stats.enabled: false by default</li>
+ * <li>stats.ring_size: the number of requests the ring can hold, 8192 by default</li>
+ * <li>stats.max_keys: the maximum number of service/operation/resource combinations tracked,
+ * 10000 by default, past that new resources are only accounted at the operation level</li>
+ * <li>stats.interval: the rollup interval in seconds, 60 by default</li>
+ * <li>stats.path: the directory the rollups are written into, "monitoring/stats" in the data
+ * directory by default, an empty value disables the rollup files</li>
+ * <li>stats.retention: the number of days the daily rollup files are kept, 7 by default</li>
+ * <li>stats.idle_time: the time in seconds after which the statistics of a combination that
+ * received no request are dropped, 3600 by default</li>
+ * </ul>
+ * The configuration is read at startup.
+ * </p>
+ */
+public class RequestStatsCollector implements RequestDataListener,
+        ApplicationListener<ApplicationEvent> {
+
+    static final String STATS = "stats";
+
+    static final Logger LOGGER = Logging.getLogger(RequestStatsCollector.class);
+
+    public static final int DEFAULT_RING_SIZE = 8192;
+
+    public static final int DEFAULT_MAX_KEYS = 10000;
+
+    public static final int DEFAULT_INTERVAL = 60;
+
+    public static final int DEFAULT_RETENTION = 7;
+
+    public static final int DEFAULT_IDLE_TIME = 3600;
+
+    /**
+     * How often the ring is drained, in milliseconds
+     */
+    static final long DRAIN_PERIOD = 500;
+
+    static final String FILE_PREFIX = "request_stats_";
+
+    static final String HEADER = "#startTime\tendTime\tservice\toperation\tresource\tcount\terrors"
+            + "\ttotalTime\tminTime\tmeanTime\tmedianTime\ttime90\ttime99\tmaxTime"
+            + "\ttotalBytes\tmeanBytes\tbytes90\tmaxBytes";
+
+    boolean enabled;
+
+    int maxKeys;
+
+    File directory;
+
+    /**
+     * The days the rollup files are kept
+     */
+    int retention = DEFAULT_RETENTION;
+
+    /**
+     * The rollup intervals without requests after which an aggregate is dropped
+     */
+    int maxIdleIntervals = DEFAULT_IDLE_TIME / DEFAULT_INTERVAL;
+
+    /**
+     * The day of the rollup file old files were last purged for
+     */
+    String purgedDay;
+
+    /*
+     * The ring buffer, a slot is readable when its published sequence is the claimed sequence + 1
+     */
+    int mask;
+
+    Aggregate[] targets;
+
+    long[] times;
+
+    long[] lengths;
+
+    boolean[] failures;
+
+    AtomicLongArray published;
+
+    AtomicLong head = new AtomicLong();
+
+    volatile long tail;
+
+    AtomicLong dropped = new AtomicLong();
+
+    ConcurrentHashMap<Key, Aggregate> aggregates = new ConcurrentHashMap<Key, Aggregate>();
+
+    ThreadLocal<Key> probes = new ThreadLocal<Key>() {
+        protected Key initialValue() {
+            return new Key(null, null, null);
+        }
+    };
+
+    Date startTime = new Date();
+
+    Date intervalStart = startTime;
+
+    volatile List<RequestStats> lastInterval = Collections.emptyList();
+
+    ScheduledExecutorService scheduler;
+
+    public RequestStatsCollector(MonitorConfig config, GeoServerResourceLoader loader) {
+        Boolean enabled = config.getProperty(STATS, "enabled", Boolean.class);
+        this.enabled = enabled != null && enabled;
+        init(getProperty(config, "ring_size", DEFAULT_RING_SIZE), getProperty(config, "max_keys",
+                DEFAULT_MAX_KEYS), this.enabled ? getDirectory(config, loader.getBaseDirectory())
+                : null);
+
+        if (this.enabled) {
+            int interval = getProperty(config, "interval", DEFAULT_INTERVAL);
+            this.retention = getProperty(config, "retention", DEFAULT_RETENTION);
+            // round up, an aggregate is kept at least for the idle time
+            this.maxIdleIntervals = (getProperty(config, "idle_time", DEFAULT_IDLE_TIME)
+                    + interval - 1) / interval;
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "RequestStatsCollector");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        drain();
+                    } catch (Throwable t) {
+                        LOGGER.log(Level.WARNING, "Failed to collect the request statistics", t);
+                    }
+                }
+            }, DRAIN_PERIOD, DRAIN_PERIOD, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    try {
+                        rollup();
+                    } catch (Throwable t) {
+                        LOGGER.log(Level.WARNING, "Failed to roll up the request statistics", t);
+                    }
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    RequestStatsCollector(int ringSize, int maxKeys, File directory) {
+        this.enabled = true;
+        init(ringSize, maxKeys, directory);
+    }
+
+    void init(int ringSize, int maxKeys, File directory) {
+        // round up the ring size to a power of two, so that the slot is a simple mask
+        int capacity = Integer.highestOneBit(Math.max(2, ringSize) - 1) << 1;
+        this.mask = capacity - 1;
+        this.targets = new Aggregate[capacity];
+        this.times = new long[capacity];
+        this.lengths = new long[capacity];
+        this.failures = new boolean[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.maxKeys = maxKeys;
+        this.directory = directory;
+    }
+
+    int getProperty(MonitorConfig config, String name, int defaultValue) {
+        Integer value = config.getProperty(STATS, name, Integer.class);
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
+    File getDirectory(MonitorConfig config, File dataDirectory) {
+        String path = config.getProperty(STATS, "path", String.class);
+        if (path != null && "".equals(path.trim())) {
+            return null;
+        }
+        File dir;
+        if (path == null) {
+            if (dataDirectory == null) {
+                return null;
+            }
+            dir = new File(new File(dataDirectory, "monitoring"), "stats");
+        } else {
+            dir = new File(path);
+            if (!dir.isAbsolute()) {
+                if (dataDirectory == null) {
+                    return null;
+                }
+                dir = new File(dataDirectory, path);
+            }
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            LOGGER.warning("Could not create the request statistics directory " + dir
+                    + ", the statistics won't be saved");
+            return null;
+        }
+        return dir;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The number of requests that could not be accounted because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void requestStarted(RequestData rd) {
+        // nothing to do
+    }
+
+    public void requestUpdated(RequestData rd) {
+        // nothing to do
+    }
+
+    public void requestCompleted(RequestData rd) {
+        if (!enabled || rd == null) {
+            return;
+        }
+
+        String service = rd.getService();
+        String operation = rd.getOperation();
+        if (service == null) {
+            // not an OWS request, use the category and the method instead
+            service = rd.getCategory() != null ? rd.getCategory().name()
+                    : RequestData.Category.OTHER.name();
+            operation = rd.getHttpMethod();
+        }
+        long time = rd.getTotalTime();
+        long length = rd.getResponseLength();
+        boolean failed = rd.getStatus() == Status.FAILED || rd.getErrorMessage() != null;
+
+        publish(aggregate(service, operation, null), time, length, failed);
+        List<String> resources = rd.getResources();
+        if (resources != null) {
+            // indexed loop, no iterator allocation
+            for (int i = 0; i < resources.size(); i++) {
+                publish(aggregate(service, operation, resources.get(i)), time, length, failed);
+            }
+        }
+    }
+
+    public void requestPostProcessed(RequestData rd) {
+        // nothing to do
+    }
+
+    /**
+     * Looks up the aggregate for the key using a thread local probe, allocating only the first
+     * time a key is met
+     */
+    Aggregate aggregate(String service, String operation, String resource) {
+        Key probe = probes.get();
+        probe.set(service, operation, resource);
+        Aggregate aggregate = aggregates.get(probe);
+        if (aggregate == null) {
+            if (resource != null && aggregates.size() >= maxKeys) {
+                return aggregate(service, operation, null);
+            }
+            Key key = new Key(service, operation, resource);
+            aggregate = new Aggregate(key);
+            Aggregate existing = aggregates.putIfAbsent(key, aggregate);
+            if (existing != null) {
+                aggregate = existing;
+            }
+        }
+        return aggregate;
+    }
+
+    /**
+     * Claims a slot in the ring and fills it, or drops the figures if the ring is full
+     */
+    boolean publish(Aggregate aggregate, long time, long length, boolean failed) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & mask);
+        targets[slot] = aggregate;
+        times[slot] = time;
+        lengths[slot] = length;
+        failures[slot] = failed;
+        // volatile write, makes the slot contents visible to the draining thread
+        published.set(slot, seq + 1);
+        return true;
+    }
+
+    /**
+     * Moves the published figures from the ring into the aggregates
+     */
+    synchronized int drain() {
+        long seq = tail;
+        int drained = 0;
+        while (true) {
+            int slot = (int) (seq & mask);
+            if (published.get(slot) != seq + 1) {
+                break;
+            }
+            Aggregate aggregate = targets[slot];
+            if (aggregate.expired) {
+                // published while the aggregate was being dropped
+                Key key = aggregate.key;
+                aggregate = aggregate(key.service, key.operation, key.resource);
+            }
+            aggregate.record(times[slot], lengths[slot], failures[slot]);
+            targets[slot] = null;
+            seq++;
+            // free the slot for the producers
+            tail = seq;
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Returns the statistics accumulated since startup, filtered by service, operation and
+     * resource, a null filter value matching anything. The operation level statistics have a null
+     * resource.
+     */
+    public synchronized List<RequestStats> getStats(String service, String operation,
+            String resource) {
+        drain();
+        Date now = new Date();
+        List<RequestStats> result = new ArrayList<RequestStats>();
+        for (Aggregate aggregate : aggregates.values()) {
+            if (!aggregate.key.matches(service, operation, resource)) {
+                continue;
+            }
+            Histogram times = new Histogram();
+            times.add(aggregate.times);
+            times.add(aggregate.intervalTimes);
+            if (times.getCount() == 0) {
+                continue;
+            }
+            Histogram bytes = new Histogram();
+            bytes.add(aggregate.bytes);
+            bytes.add(aggregate.intervalBytes);
+            result.add(aggregate.key.stats(startTime, now, aggregate.errors
+                    + aggregate.intervalErrors, times, bytes));
+        }
+        Collections.sort(result, STATS_ORDER);
+        return result;
+    }
+
+    /**
+     * Returns the statistics of the last complete rollup interval
+     */
+    public List<RequestStats> getLastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * Closes the current interval, merging it into the overall statistics and appending it to
+     * the rollup file. The aggregates idle for too many intervals are dropped
+     */
+    synchronized List<RequestStats> rollup() throws IOException {
+        drain();
+        Date now = new Date();
+        List<RequestStats> result = new ArrayList<RequestStats>();
+        for (Iterator<Aggregate> it = aggregates.values().iterator(); it.hasNext();) {
+            Aggregate aggregate = it.next();
+            if (aggregate.intervalTimes.getCount() == 0) {
+                if (++aggregate.idleIntervals >= maxIdleIntervals) {
+                    aggregate.expired = true;
+                    it.remove();
+                }
+                continue;
+            }
+            aggregate.idleIntervals = 0;
+            result.add(aggregate.key.stats(intervalStart, now, aggregate.intervalErrors,
+                    aggregate.intervalTimes, aggregate.intervalBytes));
+            aggregate.rollup();
+        }
+        Collections.sort(result, STATS_ORDER);
+        intervalStart = now;
+        lastInterval = Collections.unmodifiableList(result);
+
+        if (directory != null && !result.isEmpty()) {
+            write(result, now);
+        }
+        return result;
+    }
+
+    void write(List<RequestStats> stats, Date now) throws IOException {
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+        dayFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        timeFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        String day = dayFormat.format(now);
+        if (!day.equals(purgedDay)) {
+            purge(now);
+            purgedDay = day;
+        }
+        File file = new File(directory, FILE_PREFIX + day + ".log");
+        boolean created = !file.exists();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file, true));
+        try {
+            if (created) {
+                writer.write(HEADER);
+                writer.newLine();
+            }
+            for (RequestStats s : stats) {
+                writer.write(timeFormat.format(s.getStartTime()));
+                writer.write('\t');
+                writer.write(timeFormat.format(s.getEndTime()));
+                writer.write('\t');
+                writer.write(clean(s.getService()));
+                writer.write('\t');
+                writer.write(clean(s.getOperation()));
+                writer.write('\t');
+                writer.write(clean(s.getResource()));
+                writer.write("\t" + s.getCount() + "\t" + s.getErrors() + "\t" + s.getTotalTime()
+                        + "\t" + s.getMinTime() + "\t" + Math.round(s.getMeanTime()) + "\t"
+                        + s.getMedianTime() + "\t" + s.getTime90() + "\t" + s.getTime99() + "\t"
+                        + s.getMaxTime() + "\t" + s.getTotalBytes() + "\t"
+                        + Math.round(s.getMeanBytes()) + "\t" + s.getBytes90() + "\t"
+                        + s.getMaxBytes());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Deletes the rollup files older than the retention days
+     */
+    void purge(Date now) {
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+        dayFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String oldest = dayFormat.format(new Date(now.getTime() - retention * 24L * 3600 * 1000));
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX) || !name.endsWith(".log")) {
+                continue;
+            }
+            // the yyyyMMdd days sort as strings
+            String day = name.substring(FILE_PREFIX.length(), name.length() - ".log".length());
+            if (day.compareTo(oldest) <= 0 && !file.delete()) {
+                LOGGER.warning("Could not delete the old request statistics file " + file);
+            }
+        }
+    }
+
+    String clean(String value) {
+        if (value == null) {
+            return "-";
+        }
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextClosedEvent && scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+            try {
+                rollup();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the last request statistics", e);
+            }
+        }
+    }
+
+    static final Comparator<RequestStats> STATS_ORDER = new Comparator<RequestStats>() {
+        public int compare(RequestStats s1, RequestStats s2) {
+            int c = compare(s1.getService(), s2.getService());
+            if (c == 0) {
+                c = compare(s1.getOperation(), s2.getOperation());
+            }
+            if (c == 0) {
+                c = compare(s1.getResource(), s2.getResource());
+            }
+            return c;
+        }
+
+        int compare(String s1, String s2) {
+            if (s1 == null) {
+                return s2 == null ? 0 : -1;
+            }
+            return s2 == null ? 1 : s1.compareTo(s2);
+        }
+    };
+
+    /**
+     * A service, operation and resource combination. Used both as the immutable map key and as a
+     * mutable, thread local lookup probe
+     */
+    static class Key {
+        String service;
+
+        String operation;
+
+        String resource;
+
+        int hash;
+
+        Key(String service, String operation, String resource) {
+            set(service, operation, resource);
+        }
+
+        void set(String service, String operation, String resource) {
+            this.service = service;
+            this.operation = operation;
+            this.resource = resource;
+            int h = service != null ? service.hashCode() : 0;
+            h = 31 * h + (operation != null ? operation.hashCode() : 0);
+            h = 31 * h + (resource != null ? resource.hashCode() : 0);
+            this.hash = h;
+        }
+
+        boolean matches(String service, String operation, String resource) {
+            return (service == null || service.equalsIgnoreCase(this.service))
+                    && (operation == null || operation.equalsIgnoreCase(this.operation))
+                    && (resource == null || resource.equals(this.resource));
+        }
+
+        RequestStats stats(Date start, Date end, long errors, Histogram times, Histogram bytes) {
+            return new RequestStats(service, operation, resource, start, end, errors, times,
+                    bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && eq(service, other.service)
+                    && eq(operation, other.operation) && eq(resource, other.resource);
+        }
+
+        static boolean eq(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    /**
+     * The statistics of a key, only accessed by the thread holding the collector lock
+     */
+    static class Aggregate {
+        Key key;
+
+        Histogram times = new Histogram();
+
+        Histogram bytes = new Histogram();
+
+        long errors;
+
+        Histogram intervalTimes = new Histogram();
+
+        Histogram intervalBytes = new Histogram();
+
+        long intervalErrors;
+
+        /**
+         * The rollup intervals since the last request
+         */
+        int idleIntervals;
+
+        /**
+         * Set once the aggregate is dropped from the collector, the figures still in the ring are
+         * moved to its replacement
+         */
+        volatile boolean expired;
+
+        Aggregate(Key key) {
+            this.key = key;
+        }
+
+        void record(long time, long length, boolean failed) {
+            intervalTimes.record(time);
+            intervalBytes.record(length);
+            if (failed) {
+                intervalErrors++;
+            }
+        }
+
+        void rollup() {
+            times.add(intervalTimes);
+            bytes.add(intervalBytes);
+            errors += intervalErrors;
+            intervalTimes.reset();
+            intervalBytes.reset();
+            intervalErrors = 0;
+        }
+    }
+}
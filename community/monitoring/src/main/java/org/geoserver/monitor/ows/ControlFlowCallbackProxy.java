@@ -12,6 +12,7 @@ import org.geoserver.monitor.Monitor;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestData.Status;
 import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.ows.FlowControlStatus;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 
@@ -31,15 +32,24 @@ public class ControlFlowCallbackProxy implements InvocationHandler, BeanPostProc
     
     public Object postProcessAfterInitialization(Object bean, String beanName)
             throws BeansException {
-        if ("ControlFlowCallback".equals(bean.getClass().getSimpleName())) {
+        if (isControlFlowCallback(bean)) {
             //wrap the control flow in a proxy
             bean = Proxy.newProxyInstance(bean.getClass().getClassLoader(), 
-                new Class[]{DispatcherCallback.class}, new ControlFlowCallbackProxy(monitor, bean));
+                new Class[]{DispatcherCallback.class, FlowControlStatus.class}, 
+                new ControlFlowCallbackProxy(monitor, bean));
         }
         
         return bean;
     }
 
+    /**
+     * Checks if the bean is the control flow callback, found through the interface it publishes
+     * its status with, which proxies wrapping it are expected to keep
+     */
+    static boolean isControlFlowCallback(Object bean) {
+        return bean instanceof DispatcherCallback && bean instanceof FlowControlStatus;
+    }
+
     public Object postProcessBeforeInitialization(Object bean, String beanName)
             throws BeansException {
         return bean;
@@ -6,6 +6,7 @@ package org.geoserver.monitor.ows;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -101,23 +102,52 @@ public class MonitorCallback implements DispatcherCallback {
     }
 
     public Object operationExecuted(Request request, Operation operation, Object result) {
-        return null;
-    }
-    
-    public void finished(Request request) {
-        if (request.getError() != null) {
+        if (request.getHttpRequest() == null) {
+            return result;
+        }
+        
+        Object times = request.getHttpRequest().getAttribute(Request.RESOURCE_TIMES);
+        if (times instanceof Map) {
             RequestData data = monitor.current();
             if (data == null) {
                 //will happen in cases where the filter is not active
-                return;
+                return result;
             }
             
+            data.setResourceTimes(new LinkedHashMap<String, Long>((Map<String, Long>) times));
+            monitor.update();
+        }
+        
+        return result;
+    }
+    
+    public void finished(Request request) {
+        if (request.getError() == null && request.getTrace() == null) {
+            return;
+        }
+        
+        RequestData data = monitor.current();
+        if (data == null) {
+            //will happen in cases where the filter is not active
+            return;
+        }
+        
+        if (request.getError() != null) {
             data.setStatus(Status.FAILED);
             data.setErrorMessage(request.getError().getLocalizedMessage());
             data.setError(request.getError());
-            
-            monitor.update();
         }
+        
+        if (request.getTrace() != null) {
+            //per phase breakdown of the request time, see OWS_TRACING
+            Map<String, Long> times = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, Long> entry : request.getTrace().getTimes().entrySet()) {
+                times.put(entry.getKey(), entry.getValue() / 1000);
+            }
+            data.setPhaseTimes(times);
+        }
+        
+        monitor.update();
     }
     
     Map<String,Map<String,String>> OPS;
@@ -0,0 +1,72 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geoserver.monitor.RequestStats;
+import org.geoserver.monitor.RequestStatsCollector;
+import org.geoserver.rest.ReflectiveResource;
+import org.geoserver.rest.format.DataFormat;
+import org.restlet.data.Form;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Exposes the request statistics of the {@link RequestStatsCollector}. The <code>service</code>,
+ * <code>operation</code> and <code>resource</code> query parameters filter the statistics, while
+ * <code>interval=true</code> returns the last rollup interval instead of the totals since startup.
+ */
+public class RequestStatsResource extends ReflectiveResource {
+
+    RequestStatsCollector collector;
+
+    public RequestStatsResource(RequestStatsCollector collector) {
+        this.collector = collector;
+    }
+
+    @Override
+    protected List<DataFormat> createSupportedFormats(Request request, Response response) {
+        List<DataFormat> formats = new ArrayList<DataFormat>();
+        formats.add(createXMLFormat(request, response));
+        formats.add(createJSONFormat(request, response));
+        return formats;
+    }
+
+    @Override
+    protected void configureXStream(XStream xstream) {
+        xstream.alias("stats", RequestStats.class);
+    }
+
+    @Override
+    protected Object handleObjectGet() throws Exception {
+        Form form = getRequest().getResourceRef() != null ? getRequest().getResourceRef()
+                .getQueryAsForm() : new Form();
+        String service = form.getFirstValue("service");
+        String operation = form.getFirstValue("operation");
+        String resource = form.getFirstValue("resource");
+
+        if (Boolean.valueOf(form.getFirstValue("interval"))) {
+            List<RequestStats> result = new ArrayList<RequestStats>();
+            for (RequestStats stats : collector.getLastInterval()) {
+                if ((service == null || service.equalsIgnoreCase(stats.getService()))
+                        && (operation == null || operation.equalsIgnoreCase(stats.getOperation()))
+                        && (resource == null || resource.equals(stats.getResource()))) {
+                    result.add(stats);
+                }
+            }
+            return result;
+        }
+        return collector.getStats(service, operation, resource);
+    }
+
+    @Override
+    public boolean allowGet() {
+        return true;
+    }
+}
@@ -0,0 +1,194 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.geoserver.monitor.MonitorTestData.assertCovered;
+import static org.geoserver.monitor.MonitorTestData.assertCoveredInOrder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.geoserver.monitor.Query.Comparison;
+import org.geoserver.monitor.Query.SortOrder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ColumnarMonitorDAOTest extends MonitorDAOTestSupport {
+
+    @BeforeClass
+    public static void createDAO() throws Exception {
+        // small segments, to exercise the queries across several of them
+        dao = new ColumnarMonitorDAO(1000, 4);
+        setUpData();
+    }
+
+    @Test
+    public void testGetRequestsFilterResource() throws Exception {
+        assertCovered(dao.getRequests(new Query().filter("resource", "widgets", Comparison.EQ)),
+                11, 14, 18);
+        assertCovered(dao.getRequests(new Query().filter("resource",
+                Arrays.asList("stuff", "missing"), Comparison.IN)), 13, 15, 16, 17, 19);
+    }
+
+    @Test
+    public void testGetRequestsFilterOr() throws Exception {
+        assertCovered(dao.getRequests(new Query().filter("path", "/two", Comparison.EQ).or(
+                "path", "/seven", Comparison.EQ)), 2, 7);
+        assertCoveredInOrder(dao.getRequests(new Query().filter("service", "foo", Comparison.EQ)
+                .and("id", 15l, Comparison.GTE).sort("id", SortOrder.DESC)), 20, 16, 15);
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        dao.getRequests(new Query().properties("service").aggregate("count()").group("service")
+                .filter("service", null, Comparison.NEQ), new RequestDataVisitor() {
+            public void visit(RequestData data, Object... aggregates) {
+                counts.put(data.getService(), (Long) aggregates[0]);
+            }
+        });
+        assertEquals(4, counts.size());
+        assertEquals(Long.valueOf(4), counts.get("foo"));
+        assertEquals(Long.valueOf(2), counts.get("bar"));
+        assertEquals(Long.valueOf(1), counts.get("baz"));
+        assertEquals(Long.valueOf(3), counts.get("bam"));
+    }
+
+    @Test
+    public void testGetRequestsCountProperty() throws Exception {
+        final List<Object> aggs = new ArrayList<Object>();
+        dao.getRequests(new Query().aggregate("count()", "count(path)", "count(service)"),
+                new RequestDataVisitor() {
+                    public void visit(RequestData data, Object... aggregates) {
+                        aggs.addAll(Arrays.asList(aggregates));
+                    }
+                });
+
+        assertEquals(3, aggs.size());
+        assertEquals(testData.getData().size(), ((Number) aggs.get(0)).intValue());
+        assertEquals(testData.getData().size(), ((Number) aggs.get(1)).intValue());
+        // only the ows requests have a service, nulls are not counted
+        assertEquals(10, ((Number) aggs.get(2)).intValue());
+    }
+
+    @Test
+    public void testAggregateByResource() throws Exception {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        dao.getRequests(new Query().properties("resource").aggregate("count()").group("resource")
+                .filter("service", null, Comparison.NEQ).sort("count()", SortOrder.DESC),
+                new RequestDataVisitor() {
+                    public void visit(RequestData data, Object... aggregates) {
+                        counts.put(data.getResources().get(0), (Long) aggregates[0]);
+                    }
+                });
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(3), counts.get("widgets"));
+        assertEquals(Long.valueOf(5), counts.get("things"));
+        assertEquals(Long.valueOf(5), counts.get("stuff"));
+        // sorted by decreasing count
+        assertEquals("widgets", new ArrayList<String>(counts.keySet()).get(2));
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        ColumnarMonitorDAO small = new ColumnarMonitorDAO(8, 4);
+        for (int i = 0; i < 20; i++) {
+            RequestData data = small.init(new RequestData());
+            data.setPath("/" + i);
+            small.save(data);
+        }
+        long count = small.getCount(new Query());
+        assertTrue(count >= 8 && count <= 12);
+        assertNull(small.getRequest(1));
+        assertEquals("/19", small.getRequest(20).getPath());
+        // the paths go away with the dropped segments, they are not kept in the dictionary
+        assertEquals(0, small.dictionary.codes.size());
+    }
+
+    @Test
+    public void testLiveRequests() throws Exception {
+        ColumnarMonitorDAO columnar = new ColumnarMonitorDAO();
+        RequestData running = columnar.init(new RequestData());
+        running.setPath("/running");
+        columnar.add(running);
+
+        assertEquals(1, columnar.getRequests().size());
+        assertTrue(running == columnar.getRequests().get(0));
+        assertTrue(running == columnar.getRequest(running.getId()));
+
+        columnar.save(running);
+        RequestData saved = columnar.getRequest(running.getId());
+        assertTrue(running != saved);
+        assertEquals("/running", saved.getPath());
+    }
+
+    @Test
+    public void testRanksAfterGrowth() throws Exception {
+        ColumnarMonitorDAO.Dictionary dictionary = new ColumnarMonitorDAO.Dictionary();
+        for (int i = 999; i >= 0; i--) {
+            dictionary.code("v" + (1000 + i));
+        }
+        int[] ranks = dictionary.ranks();
+        assertEquals(1000, ranks.length);
+        assertEquals(999, ranks[0]);
+        assertEquals(0, ranks[999]);
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final ColumnarMonitorDAO columnar = new ColumnarMonitorDAO(1000, 4);
+        final List<RequestData> saved = new ArrayList<RequestData>();
+        for (int i = 0; i < 16; i++) {
+            RequestData data = columnar.init(new RequestData());
+            data.setPath("/" + i);
+            data.setService("s" + i);
+            data.getResources().add("r" + i);
+            columnar.save(data);
+            saved.add(data);
+        }
+
+        // keep rewriting the saved rows and growing the dictionary while querying
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread updater = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        RequestData data = saved.get(i % saved.size());
+                        data.setService("s" + i);
+                        data.setPath("/" + i);
+                        data.getResources().set(0, "r" + i);
+                        columnar.update(data);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+        updater.start();
+        while (!done.get()) {
+            for (RequestData data : columnar.getRequests(new Query().sort("service",
+                    SortOrder.ASC).properties("service", "path", "resource"))) {
+                // the row is never seen half rewritten
+                String suffix = data.getService().substring(1);
+                assertEquals("/" + suffix, data.getPath());
+                assertEquals("r" + suffix, data.getResources().get(0));
+            }
+        }
+        updater.join();
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,202 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geoserver.monitor.RequestData.Status;
+
+public class RequestStatsCollectorTest extends TestCase {
+
+    File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("stats", "", new File("target"));
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testAggregation() throws Exception {
+        RequestStatsCollector collector = new RequestStatsCollector(64, 100, directory);
+        collector.requestCompleted(request("WMS", "GetMap", 100, 1000, false, "topp:states"));
+        collector.requestCompleted(request("WMS", "GetMap", 300, 3000, true, "topp:states",
+                "sf:roads"));
+        collector.requestCompleted(request("WFS", "GetFeature", 50, 500, false));
+
+        List<RequestStats> stats = collector.getStats("wms", "GetMap", null);
+        assertEquals(3, stats.size());
+        // operation level first
+        RequestStats getMap = stats.get(0);
+        assertNull(getMap.getResource());
+        assertEquals(2, getMap.getCount());
+        assertEquals(1, getMap.getErrors());
+        assertEquals(400, getMap.getTotalTime());
+        assertEquals(300, getMap.getMaxTime());
+        assertEquals(4000, getMap.getTotalBytes());
+        assertEquals("sf:roads", stats.get(1).getResource());
+        assertEquals(1, stats.get(1).getCount());
+        assertEquals("topp:states", stats.get(2).getResource());
+        assertEquals(2, stats.get(2).getCount());
+
+        assertEquals(4, collector.getStats(null, null, null).size());
+        assertEquals(1, collector.getStats(null, null, "sf:roads").size());
+    }
+
+    public void testRollup() throws Exception {
+        RequestStatsCollector collector = new RequestStatsCollector(64, 100, directory);
+        collector.requestCompleted(request("WMS", "GetMap", 100, 1000, false, "topp:states"));
+
+        List<RequestStats> interval = collector.rollup();
+        assertEquals(2, interval.size());
+        assertEquals(interval, collector.getLastInterval());
+        // nothing new in the next interval, the totals are preserved
+        assertTrue(collector.rollup().isEmpty());
+        assertEquals(1, collector.getStats("WMS", "GetMap", "topp:states").get(0).getCount());
+
+        collector.requestCompleted(request("WMS", "GetMap", 200, 1000, false, "topp:states"));
+        assertEquals(2, collector.rollup().size());
+        assertEquals(2, collector.getStats("WMS", "GetMap", "topp:states").get(0).getCount());
+
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(files[0]));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(5, lines.size());
+        assertEquals(RequestStatsCollector.HEADER, lines.get(0));
+        String[] fields = lines.get(2).split("\t");
+        assertEquals(Arrays.asList("WMS", "GetMap", "topp:states", "1", "0", "100"), Arrays
+                .asList(fields).subList(2, 8));
+    }
+
+    public void testIdleKeysExpire() throws Exception {
+        RequestStatsCollector collector = new RequestStatsCollector(64, 100, null);
+        collector.maxIdleIntervals = 2;
+        collector.requestCompleted(request("WMS", "GetMap", 100, 1000, false, "topp:states"));
+        collector.rollup();
+        collector.requestCompleted(request("WMS", "GetMap", 100, 1000, false));
+        collector.rollup();
+        collector.rollup();
+        // the resource was idle for two intervals, the operation for one only
+        List<RequestStats> stats = collector.getStats(null, null, null);
+        assertEquals(1, stats.size());
+        assertNull(stats.get(0).getResource());
+        assertEquals(2, stats.get(0).getCount());
+
+        // figures published for a dropped aggregate go to its replacement
+        RequestStatsCollector.Aggregate getMap = collector.aggregate("WMS", "GetMap", null);
+        collector.rollup();
+        assertTrue(getMap.expired);
+        collector.publish(getMap, 10, 10, false);
+        stats = collector.getStats(null, null, null);
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.get(0).getCount());
+    }
+
+    public void testRetention() throws Exception {
+        RequestStatsCollector collector = new RequestStatsCollector(64, 100, directory);
+        collector.retention = 2;
+        File old = new File(directory, RequestStatsCollector.FILE_PREFIX + "20000101.log");
+        old.createNewFile();
+        File other = new File(directory, "other.log");
+        other.createNewFile();
+        collector.requestCompleted(request("WMS", "GetMap", 100, 1000, false));
+        collector.rollup();
+
+        assertFalse(old.exists());
+        assertTrue(other.exists());
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    public void testRingFull() throws Exception {
+        RequestStatsCollector collector = new RequestStatsCollector(4, 100, null);
+        for (int i = 0; i < 6; i++) {
+            collector.requestCompleted(request("WFS", "GetFeature", 10, 10, false));
+        }
+        assertEquals(2, collector.getDropped());
+        assertEquals(4, collector.drain());
+        collector.requestCompleted(request("WFS", "GetFeature", 10, 10, false));
+        assertEquals(5, collector.getStats("WFS", null, null).get(0).getCount());
+    }
+
+    public void testMaxKeys() throws Exception {
+        RequestStatsCollector collector = new RequestStatsCollector(64, 2, null);
+        collector.requestCompleted(request("WMS", "GetMap", 10, 10, false, "a", "b", "c"));
+        List<RequestStats> stats = collector.getStats(null, null, null);
+        assertEquals(2, stats.size());
+        assertNull(stats.get(0).getResource());
+        // the overflowing resources are accounted at the operation level
+        assertEquals(3, stats.get(0).getCount());
+    }
+
+    public void testConcurrentProducers() throws Exception {
+        final RequestStatsCollector collector = new RequestStatsCollector(1024, 100, null);
+        final int requests = 5000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < requests; j++) {
+                        while (!collector.publish(collector.aggregate("WMS", "GetMap", null), j,
+                                j, false)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long drained = 0;
+        while (drained < requests * threads.length) {
+            drained += collector.drain();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        RequestStats stats = collector.getStats("WMS", "GetMap", null).get(0);
+        assertEquals(requests * threads.length, stats.getCount());
+        assertEquals((long) threads.length * requests * (requests - 1) / 2, stats.getTotalTime());
+    }
+
+    RequestData request(String service, String operation, long time, long length,
+            boolean failed, String... resources) {
+        RequestData data = new RequestData();
+        data.setService(service);
+        data.setOperation(operation);
+        data.setTotalTime(time);
+        data.setResponseLength(length);
+        data.setStatus(failed ? Status.FAILED : Status.FINISHED);
+        if (resources.length > 0) {
+            data.setResources(new ArrayList<String>(Arrays.asList(resources)));
+        }
+        return data;
+    }
+}
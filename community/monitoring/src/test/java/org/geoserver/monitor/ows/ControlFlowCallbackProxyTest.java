@@ -5,7 +5,11 @@
 package org.geoserver.monitor.ows;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 
 import org.geoserver.monitor.MemoryMonitorDAO;
@@ -14,7 +18,9 @@ import org.geoserver.monitor.MonitorDAO;
 import org.geoserver.monitor.MonitorTestData;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.monitor.RequestData.Status;
+import org.geoserver.ows.AbstractDispatcherCallback;
 import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.ows.FlowControlStatus;
 import org.geoserver.ows.Request;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.Operation;
@@ -74,4 +80,34 @@ public class ControlFlowCallbackProxyTest {
         
         assertEquals(Status.RUNNING, data.getStatus());
     }
+    
+    @Test
+    public void testAlreadyProxied() throws Exception {
+        // another post processor wrapped the control flow callback first
+        Object callback = new ControlFlowCallback();
+        Object proxied = Proxy.newProxyInstance(getClass().getClassLoader(), 
+            new Class[]{DispatcherCallback.class, FlowControlStatus.class}, 
+            new ControlFlowCallbackProxy(monitor, callback) {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    return method.invoke(target, args);
+                }
+            });
+        
+        Object wrapped = new ControlFlowCallbackProxy(monitor).postProcessAfterInitialization(
+                proxied, "controlFlowCallback");
+        assertNotSame(proxied, wrapped);
+        assertTrue(wrapped instanceof DispatcherCallback);
+        assertEquals(3, ((FlowControlStatus) wrapped).getQueuedRequests());
+        
+        Object other = new ControlFlowCallbackProxy(monitor).postProcessAfterInitialization(
+                new AbstractDispatcherCallback() {}, "other");
+        assertFalse(Proxy.isProxyClass(other.getClass()));
+    }
+    
+    static class ControlFlowCallback extends AbstractDispatcherCallback implements
+            FlowControlStatus {
+        public int getQueuedRequests() {
+            return 3;
+        }
+    }
 }
@@ -8,6 +8,7 @@ import static org.junit.Assert.assertEquals;
 import static org.easymock.EasyMock.*;
 
 import java.util.Arrays;
+import java.util.concurrent.Callable;
 
 import javax.xml.namespace.QName;
 
@@ -34,8 +35,11 @@ import org.geoserver.monitor.MemoryMonitorDAO;
 import org.geoserver.monitor.Monitor;
 import org.geoserver.monitor.MonitorDAO;
 import org.geoserver.monitor.MonitorTestData;
+import org.geoserver.monitor.MonitorThreadLocalTransfer;
 import org.geoserver.monitor.RequestData;
 import org.geoserver.ows.Request;
+import org.geoserver.ows.ServiceExecutor;
+import org.geoserver.ows.ThreadLocalTransfer;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.Service;
 import org.geoserver.wms.GetFeatureInfoRequest;
@@ -82,6 +86,27 @@ public class MonitorCallbackTest {
         assertEquals("1.2.3", data.getOwsVersion());
     }
     
+    @Test
+    public void testServiceExecutor() throws Exception {
+        ServiceExecutor executor = new ServiceExecutor("bar:1");
+        executor.setTransfers(
+            Arrays.<ThreadLocalTransfer>asList(new MonitorThreadLocalTransfer()));
+        try {
+            executor.execute("BAR", new Callable<Object>() {
+                public Object call() throws Exception {
+                    callback.operationDispatched(new Request(), op("foo", "bar", "1.2.3", null));
+                    return null;
+                }
+            });
+        } finally {
+            executor.destroy();
+        }
+
+        assertEquals("BAR", data.getService());
+        assertEquals("foo", data.getOperation());
+        assertEquals("1.2.3", data.getOwsVersion());
+    }
+
     @Test
     public void testWFSDescribeFeatureType() throws Exception {
         DescribeFeatureTypeType dft = WfsFactory.eINSTANCE.createDescribeFeatureTypeType();
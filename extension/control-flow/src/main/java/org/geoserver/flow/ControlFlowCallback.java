@@ -4,20 +4,28 @@
  */
 package org.geoserver.flow;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.geoserver.flow.config.DefaultControlFlowConfigurator;
+import org.geoserver.flow.controller.AdaptiveCostFlowControllerMXBean;
 import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.FlowControlStatus;
 import org.geoserver.ows.HttpErrorCodeException;
 import org.geoserver.ows.Request;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geotools.util.logging.Logging;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
@@ -25,13 +33,21 @@ import org.springframework.context.ApplicationContextAware;
  * Callback that controls the flow of OWS requests based on user specified rules and makes sure
  * GeoServer does not get overwhelmed by too many concurrent ones. Can also be used to provide
  * different quality of service on different users.
+ * <p>
+ * The number of requests waiting for the flow controllers to let them through is published as a
+ * {@link FlowControlStatus}, while the adaptive cost controllers are registered as
+ * {@link AdaptiveCostFlowControllerMXBean}s, replaced at each configuration reload.
+ * </p>
  * 
  * @author Andrea Aime - OpenGeo
  */
 public class ControlFlowCallback extends AbstractDispatcherCallback implements
-        ApplicationContextAware {
+        ApplicationContextAware, FlowControlStatus, DisposableBean {
     static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
 
+    static final String ADAPTIVE_MBEAN_NAME = "org.geoserver:type=ControlFlow,"
+            + "controller=AdaptiveCost,index=";
+
     static ThreadLocal<List<FlowController>> REQUEST_CONTROLLERS = new ThreadLocal<List<FlowController>>();
     
     static NestedRequestSentinel SENTINEL = new NestedRequestSentinel();
@@ -39,6 +55,17 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
     List<FlowController> controllers = Collections.emptyList();
     long timeout = -1;
 
+    /**
+     * The requests blocked in the flow controllers, updated by the controllers themselves around
+     * their blocking waits
+     */
+    static final AtomicInteger BLOCKED = new AtomicInteger();
+
+    /**
+     * The number of adaptive controller MBeans currently registered
+     */
+    int adaptiveMBeans;
+
     ControlFlowConfigurator configurator;
 
     public void finished(Request request) {
@@ -84,6 +111,28 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
         return operation;
     }
 
+    /**
+     * Returns the number of requests blocked in the flow controllers, waiting for their turn
+     */
+    public int getQueuedRequests() {
+        return BLOCKED.get();
+    }
+
+    /**
+     * Called by the flow controllers right before blocking a request, must be paired with a call
+     * to {@link #requestReleased()} in a finally block
+     */
+    public static void requestBlocked() {
+        BLOCKED.incrementAndGet();
+    }
+
+    /**
+     * Called by the flow controllers when a blocked request stops waiting
+     */
+    public static void requestReleased() {
+        BLOCKED.decrementAndGet();
+    }
+
     /**
      * Reloads the flow controller list and replaces the existing ones
      */
@@ -94,11 +143,57 @@ public class ControlFlowCallback extends AbstractDispatcherCallback implements
             Collections.sort(newControllers, new ControllerPriorityComparator());
             controllers = newControllers;
             timeout = configurator.getTimeout();
+            registerMBeans(newControllers);
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Error occurerd during flow controllers reconfiguration");
         }
     }
 
+    /**
+     * Replaces the registered adaptive controller MBeans with the ones of the new controllers
+     */
+    synchronized void registerMBeans(List<FlowController> controllers) {
+        unregisterMBeans();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (FlowController controller : controllers) {
+            if (!(controller instanceof AdaptiveCostFlowControllerMXBean)) {
+                continue;
+            }
+            try {
+                ObjectName name = new ObjectName(ADAPTIVE_MBEAN_NAME + adaptiveMBeans);
+                if (server.isRegistered(name)) {
+                    // left behind by a previous instance
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(controller, name);
+                adaptiveMBeans++;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not register the adaptive flow controller MBean",
+                        e);
+            }
+        }
+    }
+
+    synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 0; i < adaptiveMBeans; i++) {
+            try {
+                ObjectName name = new ObjectName(ADAPTIVE_MBEAN_NAME + i);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not unregister the adaptive flow controller MBean",
+                        e);
+            }
+        }
+        adaptiveMBeans = 0;
+    }
+
+    public void destroy() throws Exception {
+        unregisterMBeans();
+    }
+
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         // look for a ControlFlowConfigurator in the application context, if none is found, use the
         // default one
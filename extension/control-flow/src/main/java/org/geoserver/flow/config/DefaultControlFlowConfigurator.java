@@ -12,9 +12,13 @@ import java.util.logging.Logger;
 
 import org.geoserver.flow.ControlFlowConfigurator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveCostFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
+import org.geoserver.flow.controller.ForwardedRateFlowController;
 import org.geoserver.flow.controller.GlobalFlowController;
+import org.geoserver.flow.controller.IpRateFlowController;
 import org.geoserver.flow.controller.UserFlowController;
+import org.geoserver.flow.controller.UserRateFlowController;
 import org.geoserver.security.PropertyFileWatcher;
 import org.geotools.util.logging.Logging;
 import org.vfny.geoserver.global.GeoserverDataDirectory;
@@ -32,6 +36,11 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
     long timeout = -1;
 
+    /**
+     * The number of trusted proxies in front of GeoServer, used by the forwarded rate rules
+     */
+    int proxies = 1;
+
     public DefaultControlFlowConfigurator() {
         configFile = new PropertyFileWatcher(new File(GeoserverDataDirectory
                 .getGeoserverDataDirectory(), "controlflow.properties"));
@@ -49,12 +58,41 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
         timeout = -1;
 
         Properties p = configFile.getProperties();
+        proxies = 1;
+        String proxiesValue = p.getProperty("forwarded.proxies");
+        if (proxiesValue != null) {
+            try {
+                proxies = Integer.parseInt(proxiesValue.trim());
+            } catch (NumberFormatException e) {
+                proxies = 0;
+            }
+            if (proxies <= 0) {
+                LOGGER.severe("Invalid forwarded.proxies value " + proxiesValue
+                        + ", expected a positive number, using 1");
+                proxies = 1;
+            }
+        }
+
         List<FlowController> newControllers = new ArrayList<FlowController>();
         for (Object okey : p.keySet()) {
             String key = ((String) okey).trim();
+            if ("forwarded.proxies".equals(key)) {
+                continue;
+            }
             String value = (String) p.get(okey);
             String[] keys = key.trim().split("\\s*\\.\\s*");
 
+            // rate limits have their own syntax, requests/period
+            if ("rate".equals(keys[0])) {
+                FlowController controller = buildRateController(keys, value.trim());
+                if (controller == null) {
+                    LOGGER.severe("Could not parse rule '" + okey + "=" + value);
+                } else {
+                    newControllers.add(controller);
+                }
+                continue;
+            }
+
             int queueSize = 0;
             try {
                 queueSize = Integer.parseInt(value);
@@ -82,6 +120,14 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
                 }
             } else if ("user".equals(keys[0])) {
                 controller = new UserFlowController(queueSize);
+            } else if ("adaptive".equals(keys[0])) {
+                // here the value is the total cost budget, not a queue size
+                if (queueSize <= 0) {
+                    LOGGER.severe("Invalid rule '" + okey + "=" + value
+                            + "', the cost budget should be a positive number");
+                    continue;
+                }
+                controller = new AdaptiveCostFlowController(queueSize);
             }
 
             if (controller == null) {
@@ -94,6 +140,56 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
         return newControllers;
     }
 
+    /**
+     * Parses a rate rule, in the form
+     * <code>rate.&lt;ip|forwarded|user&gt;[.service[.method]]=requests/&lt;s|m|h|d&gt;</code>.
+     * The forwarded rules trust as many X-Forwarded-For entries as configured with
+     * <code>forwarded.proxies=n</code>, one by default.
+     */
+    FlowController buildRateController(String[] keys, String value) {
+        if (keys.length < 2) {
+            return null;
+        }
+        String service = keys.length > 2 ? keys[2] : null;
+        String method = keys.length > 3 ? keys[3] : null;
+
+        String[] rate = value.split("\\s*/\\s*");
+        if (rate.length != 2) {
+            return null;
+        }
+        int requests;
+        try {
+            requests = Integer.parseInt(rate[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (requests <= 0) {
+            return null;
+        }
+        long period;
+        if ("s".equalsIgnoreCase(rate[1])) {
+            period = 1000;
+        } else if ("m".equalsIgnoreCase(rate[1])) {
+            period = 60 * 1000;
+        } else if ("h".equalsIgnoreCase(rate[1])) {
+            period = 60 * 60 * 1000;
+        } else if ("d".equalsIgnoreCase(rate[1])) {
+            period = 24 * 60 * 60 * 1000;
+        } else {
+            return null;
+        }
+
+        if ("ip".equalsIgnoreCase(keys[1])) {
+            return new IpRateFlowController(service, method, requests, period);
+        } else if ("forwarded".equalsIgnoreCase(keys[1])) {
+            return new ForwardedRateFlowController(service, method, requests, period,
+                    proxies);
+        } else if ("user".equalsIgnoreCase(keys[1])) {
+            return new UserRateFlowController(service, method, requests, period);
+        }
+        return null;
+    }
+
     public boolean isStale() {
         return configFile.isStale();
     }
@@ -0,0 +1,339 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A flow controller that admits requests against a total cost budget, instead of just counting
+ * them.
+ * <p>
+ * The cost of a request is estimated from its parameters, using a 256x256 single layer GetMap as
+ * the unit: a GetMap costs its image area divided by the tile area times the number of layers, a
+ * GetFeature costs its maxFeatures (or count) divided by 1000, with a default of 10 when no limit
+ * is set, anything else costs 1. The estimate is then weighted by the moving average of the
+ * latencies observed for the same operation, so that operations that turn out to be slow weigh
+ * more.
+ * </p>
+ * <p>
+ * The budget adapts to the load, AIMD style: the controller tracks both a short and a long term
+ * moving average of the latency per unit of cost, and when the short term one grows
+ * significantly over the long term one the budget is cut by 10%, otherwise it grows back by one
+ * unit at each request completion, up to the configured maximum. The budget never goes below
+ * one tenth of the maximum, and a request is always admitted when nothing else is running, no
+ * matter how expensive it is.
+ * </p>
+ * <p>
+ * Queue length, wait times and rejections are tracked and published over JMX, see
+ * {@link AdaptiveCostFlowControllerMXBean}.
+ * </p>
+ */
+public class AdaptiveCostFlowController implements FlowController,
+        AdaptiveCostFlowControllerMXBean {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    static final double TILE_AREA = 256 * 256;
+
+    static final double DEFAULT_FEATURE_COST = 10;
+
+    /**
+     * Smoothing factors for the short and long term latency averages
+     */
+    static final double SHORT_ALPHA = 0.2;
+
+    static final double LONG_ALPHA = 0.01;
+
+    /**
+     * When the ratio between the long and short term latency goes below this value the budget is
+     * decreased
+     */
+    static final double GRADIENT_THRESHOLD = 0.8;
+
+    static final double DECREASE_FACTOR = 0.9;
+
+    /**
+     * Bounds of the latency based weight applied to the estimated cost
+     */
+    static final double MIN_WEIGHT = 0.25;
+
+    static final double MAX_WEIGHT = 4;
+
+    int maxBudget;
+
+    int minBudget;
+
+    double budget;
+
+    double inFlight;
+
+    int waiting;
+
+    long admitted;
+
+    long rejected;
+
+    long totalWaitTime;
+
+    double shortLatency = -1;
+
+    double longLatency = -1;
+
+    Map<String, Double> operationLatencies = new HashMap<String, Double>();
+
+    ThreadLocal<Admission> admission = new ThreadLocal<Admission>();
+
+    /**
+     * Builds a new {@link AdaptiveCostFlowController}
+     *
+     * @param maxBudget
+     *            the maximum total cost of the requests running in parallel
+     */
+    public AdaptiveCostFlowController(int maxBudget) {
+        if (maxBudget <= 0) {
+            throw new IllegalArgumentException("The cost budget must be positive");
+        }
+        this.maxBudget = maxBudget;
+        this.minBudget = Math.max(1, maxBudget / 10);
+        this.budget = maxBudget;
+    }
+
+    public int getPriority() {
+        return maxBudget;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        long start = System.currentTimeMillis();
+        String operation = getOperationKey(request);
+        double structuralCost = estimateCost(request);
+
+        double cost;
+        synchronized (this) {
+            cost = structuralCost * getLatencyWeight(operation);
+            boolean blocked = inFlight > 0 && inFlight + cost > budget;
+            if (blocked) {
+                ControlFlowCallback.requestBlocked();
+            }
+            waiting++;
+            try {
+                while (inFlight > 0 && inFlight + cost > budget) {
+                    if (timeout > 0) {
+                        long remaining = start + timeout - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            rejected++;
+                            return false;
+                        }
+                        wait(remaining);
+                    } else {
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Unexpected interruption while "
+                        + "waiting for the cost budget");
+                Thread.currentThread().interrupt();
+                rejected++;
+                return false;
+            } finally {
+                waiting--;
+                if (blocked) {
+                    ControlFlowCallback.requestReleased();
+                }
+            }
+            inFlight += cost;
+            admitted++;
+            totalWaitTime += System.currentTimeMillis() - start;
+        }
+
+        admission.set(new Admission(operation, structuralCost, cost, System.currentTimeMillis()));
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " admitted " + operation + " with cost " + cost
+                    + ", in flight cost " + inFlight);
+        }
+        return true;
+    }
+
+    public void requestComplete(Request request) {
+        Admission current = admission.get();
+        if (current == null) {
+            // the request was not admitted by this controller
+            return;
+        }
+        admission.remove();
+
+        long elapsed = System.currentTimeMillis() - current.start;
+        synchronized (this) {
+            inFlight = Math.max(0, inFlight - current.cost);
+            updateLatencies(current, elapsed);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Updates the latency averages and adapts the budget. Must be called while holding the lock
+     */
+    void updateLatencies(Admission completed, long elapsed) {
+        double unitLatency = elapsed / completed.structuralCost;
+
+        Double operationLatency = operationLatencies.get(completed.operation);
+        if (operationLatency == null) {
+            operationLatencies.put(completed.operation, unitLatency);
+        } else {
+            operationLatencies.put(completed.operation, operationLatency + SHORT_ALPHA
+                    * (unitLatency - operationLatency));
+        }
+
+        if (shortLatency < 0) {
+            shortLatency = unitLatency;
+            longLatency = unitLatency;
+            return;
+        }
+        shortLatency += SHORT_ALPHA * (unitLatency - shortLatency);
+        longLatency += LONG_ALPHA * (unitLatency - longLatency);
+
+        // the gradient goes below one when the latency grows, that is, we are overloading
+        double gradient = shortLatency > 0 ? longLatency / shortLatency : 1;
+        if (gradient < GRADIENT_THRESHOLD) {
+            budget = Math.max(minBudget, budget * DECREASE_FACTOR);
+        } else {
+            budget = Math.min(maxBudget, budget + 1);
+        }
+    }
+
+    /**
+     * Returns the weight of the operation based on its average latency compared to the overall
+     * one. Must be called while holding the lock
+     */
+    double getLatencyWeight(String operation) {
+        Double operationLatency = operationLatencies.get(operation);
+        if (operationLatency == null || longLatency <= 0) {
+            return 1;
+        }
+        double weight = operationLatency / longLatency;
+        return Math.max(MIN_WEIGHT, Math.min(MAX_WEIGHT, weight));
+    }
+
+    /**
+     * Estimates the cost of the request from its parameters, in units of 256x256 single layer
+     * GetMap
+     */
+    double estimateCost(Request request) {
+        Map kvp = request.getRawKvp();
+        if (kvp == null) {
+            return 1;
+        }
+
+        if ("GetMap".equalsIgnoreCase(request.getRequest())) {
+            double width = toNumber(kvp.get("WIDTH"), 256);
+            double height = toNumber(kvp.get("HEIGHT"), 256);
+            int layers = 1;
+            Object layersParam = kvp.get("LAYERS");
+            if (layersParam != null) {
+                layers = layersParam.toString().split(",").length;
+            }
+            return Math.max(1, width * height / TILE_AREA * layers);
+        } else if ("GetFeature".equalsIgnoreCase(request.getRequest())) {
+            Object limit = kvp.get("MAXFEATURES");
+            if (limit == null) {
+                limit = kvp.get("COUNT");
+            }
+            if (limit == null) {
+                return DEFAULT_FEATURE_COST;
+            }
+            return Math.max(1, toNumber(limit, DEFAULT_FEATURE_COST * 1000) / 1000);
+        }
+
+        return 1;
+    }
+
+    double toNumber(Object value, double defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.abs(Double.parseDouble(value.toString().trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    String getOperationKey(Request request) {
+        return request.getService() + "." + request.getRequest();
+    }
+
+    /**
+     * Returns the current cost budget
+     */
+    public synchronized double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the total cost of the requests currently running
+     */
+    public synchronized double getInFlightCost() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of requests waiting for the budget to free up
+     */
+    public synchronized int getQueueLength() {
+        return waiting;
+    }
+
+    /**
+     * Returns the number of requests admitted so far
+     */
+    public synchronized long getAdmittedCount() {
+        return admitted;
+    }
+
+    /**
+     * Returns the number of requests that timed out waiting for the budget
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Returns the average time, in milliseconds, the admitted requests waited for the budget
+     */
+    public synchronized double getAverageWaitTime() {
+        return admitted > 0 ? totalWaitTime / (double) admitted : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveCostFlowController(" + maxBudget + ")";
+    }
+
+    /**
+     * The cost assigned to a running request
+     */
+    static class Admission {
+        String operation;
+
+        double structuralCost;
+
+        double cost;
+
+        long start;
+
+        Admission(String operation, double structuralCost, double cost, long start) {
+            this.operation = operation;
+            this.structuralCost = structuralCost;
+            this.cost = cost;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+/**
+ * Management interface of an {@link AdaptiveCostFlowController}, registered by the
+ * {@link org.geoserver.flow.ControlFlowCallback} as
+ * <code>org.geoserver:type=ControlFlow,controller=AdaptiveCost,index=&lt;n&gt;</code>.
+ */
+public interface AdaptiveCostFlowControllerMXBean {
+
+    /**
+     * The current cost budget
+     */
+    double getBudget();
+
+    /**
+     * The total cost of the requests currently running
+     */
+    double getInFlightCost();
+
+    /**
+     * The number of requests waiting for the budget to free up
+     */
+    int getQueueLength();
+
+    /**
+     * The number of requests admitted since startup
+     */
+    long getAdmittedCount();
+
+    /**
+     * The number of requests that timed out waiting for the budget
+     */
+    long getRejectedCount();
+
+    /**
+     * The average time, in milliseconds, the admitted requests waited for the budget
+     */
+    double getAverageWaitTime();
+}
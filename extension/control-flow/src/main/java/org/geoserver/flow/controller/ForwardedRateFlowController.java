@@ -0,0 +1,60 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import org.geoserver.ows.Request;
+
+/**
+ * A rate flow controller identifying clients by the IP address reported in the X-Forwarded-For
+ * header, to be used when GeoServer sits behind a proxy. Falls back on the remote address when
+ * the header is missing.
+ * <p>
+ * Each proxy appends the address it received the request from, while anything on the left of
+ * the chain can be forged by the client. The client is thus the entry added by the outermost
+ * trusted proxy, that is, the entry as many positions from the right as there are trusted
+ * proxies in front of GeoServer.
+ * </p>
+ */
+public class ForwardedRateFlowController extends RateFlowController {
+
+    /**
+     * The number of trusted proxies in front of GeoServer
+     */
+    int proxies;
+
+    public ForwardedRateFlowController(String service, String method, int requests, long period) {
+        this(service, method, requests, period, 1);
+    }
+
+    public ForwardedRateFlowController(String service, String method, int requests, long period,
+            int proxies) {
+        super(service, method, requests, period);
+        if (proxies <= 0) {
+            throw new IllegalArgumentException("The number of trusted proxies must be positive");
+        }
+        this.proxies = proxies;
+    }
+
+    /**
+     * Returns the number of trusted proxies in front of GeoServer
+     */
+    public int getProxies() {
+        return proxies;
+    }
+
+    @Override
+    String getClientKey(Request request) {
+        String forwardedFor = request.getHttpRequest().getHeader("X-Forwarded-For");
+        if (forwardedFor != null) {
+            String[] chain = forwardedFor.split(",");
+            String client = chain[Math.max(0, chain.length - proxies)].trim();
+            if (client.length() > 0) {
+                return client;
+            }
+        }
+        return request.getHttpRequest().getRemoteAddr();
+    }
+
+}
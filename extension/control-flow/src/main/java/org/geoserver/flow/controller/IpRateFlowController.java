@@ -0,0 +1,23 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import org.geoserver.ows.Request;
+
+/**
+ * A rate flow controller identifying clients by their IP address
+ */
+public class IpRateFlowController extends RateFlowController {
+
+    public IpRateFlowController(String service, String method, int requests, long period) {
+        super(service, method, requests, period);
+    }
+
+    @Override
+    String getClientKey(Request request) {
+        return request.getHttpRequest().getRemoteAddr();
+    }
+
+}
@@ -0,0 +1,251 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Base class for flow controllers limiting the rate at which a single client can issue requests,
+ * using a token bucket per client. Subclasses decide how clients are identified.
+ * <p>
+ * Each bucket holds up to <code>requests</code> tokens and is refilled at a rate of
+ * <code>requests</code> tokens per <code>period</code>. The buckets are implemented as a
+ * "theoretical arrival time" (GCRA) kept in a single atomic long, so that consuming a token is a
+ * lock free compare and set, and are kept in a concurrent map so that tens of thousands of clients
+ * can be tracked without any global lock. Buckets that have been completely refilled carry no
+ * information and are purged as the map grows.
+ * </p>
+ * <p>
+ * Requests exceeding the rate are not queued, they are rejected with a HTTP 429 error and a
+ * Retry-After header telling the client when a new token will be available.
+ * </p>
+ */
+public abstract class RateFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * The "too many requests" HTTP code
+     */
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Number of buckets at which we start looking for purging the idle ones
+     */
+    static final int DEFAULT_MAX_BUCKETS = 10000;
+
+    /**
+     * Minimum time between two scans for idle buckets, in nanoseconds
+     */
+    static final long CLEANUP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    String service;
+
+    String method;
+
+    int requests;
+
+    long period;
+
+    /**
+     * Time it takes to generate a new token, in nanoseconds
+     */
+    long emissionInterval;
+
+    /**
+     * How far in the future the theoretical arrival time can go before requests get rejected
+     */
+    long tolerance;
+
+    int maxBuckets = DEFAULT_MAX_BUCKETS;
+
+    ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>(
+            1024, 0.75f, 64);
+
+    AtomicLong lastCleanup = new AtomicLong(System.nanoTime());
+
+    /**
+     * Builds a new rate controller
+     *
+     * @param service
+     *            the service to be controlled, or null to match all of them
+     * @param method
+     *            the request to be controlled, or null to match all of them
+     * @param requests
+     *            the number of requests allowed in the period
+     * @param period
+     *            the period length, in milliseconds
+     */
+    public RateFlowController(String service, String method, int requests, long period) {
+        if (requests <= 0 || period <= 0) {
+            throw new IllegalArgumentException("The number of requests and the period "
+                    + "must be positive");
+        }
+        if (service == null && method != null) {
+            throw new IllegalArgumentException(
+                    "Invalid rate definition, the service must be provided along with the method");
+        }
+        this.service = service;
+        this.method = method;
+        this.requests = requests;
+        this.period = period;
+        this.emissionInterval = Math.max(1, TimeUnit.MILLISECONDS.toNanos(period) / requests);
+        this.tolerance = emissionInterval * requests;
+    }
+
+    /**
+     * Rate controllers go first, there is no point in having a request wait in a queue to reject
+     * it later
+     */
+    public int getPriority() {
+        return 0;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        if (!matchesRequest(request)) {
+            return true;
+        }
+
+        String key = getClientKey(request);
+        long wait = acquire(key, System.nanoTime());
+        cleanupBuckets();
+        if (wait > 0) {
+            long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait
+                    + TimeUnit.SECONDS.toNanos(1) - 1));
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " rejecting request from " + key + ", retry after "
+                        + seconds + "s");
+            }
+            if (request.getHttpResponse() != null) {
+                request.getHttpResponse().setHeader("Retry-After", String.valueOf(seconds));
+            }
+            throw new HttpErrorCodeException(TOO_MANY_REQUESTS, "Too many requests, "
+                    + "the limit is " + requests + " every " + period + "ms");
+        }
+        return true;
+    }
+
+    public void requestComplete(Request request) {
+        // nothing to do, the tokens are not given back
+    }
+
+    /**
+     * Tries to consume a token from the client bucket
+     *
+     * @return 0 if the token was consumed, or the nanoseconds to wait for a token to be available
+     */
+    long acquire(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new AtomicLong(now);
+            AtomicLong existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
+        }
+
+        while (true) {
+            long tat = bucket.get();
+            long newTat = Math.max(tat, now) + emissionInterval;
+            long excess = newTat - now - tolerance;
+            if (excess > 0) {
+                return excess;
+            }
+            if (bucket.compareAndSet(tat, newTat)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Removes the buckets that have been fully refilled, they are equivalent to a missing one. Only
+     * one thread at a time performs the scan, the others just move on
+     */
+    void cleanupBuckets() {
+        long now = System.nanoTime();
+        long last = lastCleanup.get();
+        if ((buckets.size() > maxBuckets && now - last > CLEANUP_INTERVAL / 10)
+                || now - last > CLEANUP_INTERVAL) {
+            if (!lastCleanup.compareAndSet(last, now)) {
+                return;
+            }
+            int cleanupCount = 0;
+            for (Iterator<Map.Entry<String, AtomicLong>> it = buckets.entrySet().iterator(); it
+                    .hasNext();) {
+                Map.Entry<String, AtomicLong> entry = it.next();
+                if (entry.getValue().get() <= now) {
+                    it.remove();
+                    cleanupCount++;
+                }
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine(this + " purged " + cleanupCount + " idle buckets");
+            }
+        }
+    }
+
+    boolean matchesRequest(Request request) {
+        if (service == null)
+            return true;
+        else if (!service.equalsIgnoreCase(request.getService()))
+            return false;
+
+        if (method == null)
+            return true;
+        else
+            return method.equalsIgnoreCase(request.getRequest());
+    }
+
+    /**
+     * Returns the key identifying the client that issued the request
+     */
+    abstract String getClientKey(Request request);
+
+    /**
+     * Returns the controlled service, or null if all services are controlled
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * Returns the controlled method, or null if all methods are controlled
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the number of requests allowed in each period
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns the period length in milliseconds
+     */
+    public long getPeriod() {
+        return period;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + service + "," + method + "," + requests + "/"
+                + period + "ms)";
+    }
+
+}
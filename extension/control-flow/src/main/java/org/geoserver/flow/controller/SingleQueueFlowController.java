@@ -47,10 +47,17 @@ public abstract class SingleQueueFlowController implements FlowController {
         boolean retval = true;
         if (matchesRequest(request)) {
             try {
-                if(timeout > 0) {
-                    retval = queue.offer(request, timeout, TimeUnit.MILLISECONDS);
-                } else {
-                    queue.put(request);
+                if (!queue.offer(request)) {
+                    ControlFlowCallback.requestBlocked();
+                    try {
+                        if(timeout > 0) {
+                            retval = queue.offer(request, timeout, TimeUnit.MILLISECONDS);
+                        } else {
+                            queue.put(request);
+                        }
+                    } finally {
+                        ControlFlowCallback.requestReleased();
+                    }
                 }
             } catch (InterruptedException e) {
                 LOGGER.log(Level.WARNING,
@@ -99,6 +99,10 @@ public class UserFlowController implements FlowController {
     public void requestComplete(Request request) {
         String queueId = QUEUE_ID.get();
         QUEUE_ID.remove();
+        if (queueId == null) {
+            // the request was rejected before reaching this controller
+            return;
+        }
         BlockingQueue<Request> queue = queues.get(queueId);
         if (queue != null)
             queue.remove(request);
@@ -136,10 +140,17 @@ public class UserFlowController implements FlowController {
 
         // queue token handling
         try {
-            if(timeout > 0) {
-                retval = queue.offer(request, timeout, TimeUnit.MILLISECONDS);
-            } else {
-                queue.put(request);
+            if (!queue.offer(request)) {
+                ControlFlowCallback.requestBlocked();
+                try {
+                    if(timeout > 0) {
+                        retval = queue.offer(request, timeout, TimeUnit.MILLISECONDS);
+                    } else {
+                        queue.put(request);
+                    }
+                } finally {
+                    ControlFlowCallback.requestReleased();
+                }
             }
         } catch (InterruptedException e) {
             LOGGER.log(Level.WARNING, "Unexpected interruption while "
@@ -189,6 +200,15 @@ public class UserFlowController implements FlowController {
             lastModified = System.currentTimeMillis();
         }
 
+        @Override
+        public boolean offer(Request o) {
+            boolean added = super.offer(o);
+            if (added) {
+                lastModified = System.currentTimeMillis();
+            }
+            return added;
+        }
+
         @Override
         public boolean remove(Object o) {
             lastModified = System.currentTimeMillis();
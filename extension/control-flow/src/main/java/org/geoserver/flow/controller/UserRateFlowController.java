@@ -0,0 +1,32 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import org.geoserver.ows.Request;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * A rate flow controller identifying clients by the authenticated user name. Anonymous requests
+ * are identified by their IP address instead, so that they cannot share a single bucket.
+ */
+public class UserRateFlowController extends RateFlowController {
+
+    public UserRateFlowController(String service, String method, int requests, long period) {
+        super(service, method, requests, period);
+    }
+
+    @Override
+    String getClientKey(Request request) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null && auth.isAuthenticated()
+                && !(auth instanceof AnonymousAuthenticationToken)) {
+            return "user:" + auth.getName();
+        }
+        return "ip:" + request.getHttpRequest().getRemoteAddr();
+    }
+
+}
@@ -1,11 +1,17 @@
 package org.geoserver.flow;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import junit.framework.TestCase;
 
+import org.geoserver.flow.controller.AdaptiveCostFlowController;
+import org.geoserver.flow.controller.GlobalFlowController;
 import org.geoserver.ows.HttpErrorCodeException;
 import org.geoserver.ows.Request;
 
@@ -50,6 +56,68 @@ public class ControlFlowCallbackTest extends TestCase {
         callback.finished(null);
     }
 
+    public void testQueuedRequests() throws Exception {
+        final ControlFlowCallback callback = new ControlFlowCallback();
+        TestingConfigurator tc = new TestingConfigurator();
+        tc.controllers.add(new GlobalFlowController(1));
+        callback.configurator = tc;
+
+        // the first request goes through without waiting
+        Request first = new Request();
+        callback.operationDispatched(first, null);
+        assertEquals(0, callback.getQueuedRequests());
+
+        // the second one waits for the first to complete
+        final Request second = new Request();
+        Thread t = new Thread() {
+            public void run() {
+                callback.operationDispatched(second, null);
+                callback.finished(second);
+            }
+        };
+        t.start();
+        long maxTime = System.currentTimeMillis() + 5000;
+        while (callback.getQueuedRequests() == 0 && System.currentTimeMillis() < maxTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, callback.getQueuedRequests());
+
+        callback.finished(first);
+        t.join();
+        assertEquals(0, callback.getQueuedRequests());
+    }
+
+    public void testAdaptiveControllerMBean() throws Exception {
+        ControlFlowCallback callback = new ControlFlowCallback();
+        TestingConfigurator tc = new TestingConfigurator();
+        tc.controllers.add(new CountingController(1, 0));
+        tc.controllers.add(new AdaptiveCostFlowController(20));
+        callback.configurator = tc;
+        Request request = new Request();
+        request.setService("WMS");
+        request.setRequest("GetMap");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ControlFlowCallback.ADAPTIVE_MBEAN_NAME + 0);
+        try {
+            callback.operationDispatched(request, null);
+            assertTrue(server.isRegistered(name));
+            assertEquals(20.0, server.getAttribute(name, "Budget"));
+            assertEquals(1L, server.getAttribute(name, "AdmittedCount"));
+            assertEquals(0, server.getAttribute(name, "QueueLength"));
+            callback.finished(request);
+
+            // a reload replaces the published controllers
+            tc.controllers.remove(1);
+            tc.stale = true;
+            callback.operationDispatched(request, null);
+            callback.finished(request);
+            assertFalse(server.isRegistered(name));
+        } finally {
+            callback.destroy();
+        }
+    }
+
     /**
      * A wide open configurator to be used for testing
      */
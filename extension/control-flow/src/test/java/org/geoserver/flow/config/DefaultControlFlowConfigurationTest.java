@@ -9,9 +9,14 @@ import junit.framework.TestCase;
 
 import org.geoserver.flow.ControllerPriorityComparator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveCostFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
+import org.geoserver.flow.controller.ForwardedRateFlowController;
 import org.geoserver.flow.controller.GlobalFlowController;
+import org.geoserver.flow.controller.IpRateFlowController;
+import org.geoserver.flow.controller.RateFlowController;
 import org.geoserver.flow.controller.UserFlowController;
+import org.geoserver.flow.controller.UserRateFlowController;
 import org.geoserver.security.PropertyFileWatcher;
 
 public class DefaultControlFlowConfigurationTest extends TestCase {
@@ -47,6 +52,62 @@ public class DefaultControlFlowConfigurationTest extends TestCase {
         assertEquals(100, gc.getPriority());
     }
     
+    public void testAdaptiveParsing() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive", "64");
+        
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+        AdaptiveCostFlowController ac = (AdaptiveCostFlowController) controllers.get(0);
+        assertEquals(64, ac.getPriority());
+        assertEquals(64, ac.getBudget(), 1e-6);
+    }
+    
+    public void testInvalidAdaptiveBudget() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive", "0");
+        p.put("ows.global", "100");
+        
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+        assertTrue(controllers.get(0) instanceof GlobalFlowController);
+    }
+    
+    public void testRateParsing() throws Exception {
+        Properties p = new Properties();
+        p.put("rate.ip.wfs.getfeature", "10/s");
+        p.put("rate.forwarded.wms", "1000/h");
+        p.put("rate.user", "20/m");
+        p.put("rate.foo", "20/m");
+        p.put("rate.ip", "20/y");
+        p.put("forwarded.proxies", "2");
+        
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(3, controllers.size());
+        for (FlowController controller : controllers) {
+            RateFlowController rc = (RateFlowController) controller;
+            if (rc instanceof IpRateFlowController) {
+                assertEquals("wfs", rc.getService());
+                assertEquals("getfeature", rc.getMethod());
+                assertEquals(10, rc.getRequests());
+                assertEquals(1000, rc.getPeriod());
+            } else if (rc instanceof ForwardedRateFlowController) {
+                assertEquals("wms", rc.getService());
+                assertNull(rc.getMethod());
+                assertEquals(1000, rc.getRequests());
+                assertEquals(60 * 60 * 1000, rc.getPeriod());
+                assertEquals(2, ((ForwardedRateFlowController) rc).getProxies());
+            } else {
+                assertTrue(rc instanceof UserRateFlowController);
+                assertNull(rc.getService());
+                assertEquals(20, rc.getRequests());
+                assertEquals(60 * 1000, rc.getPeriod());
+            }
+        }
+    }
     
     static class FixedWatcher extends PropertyFileWatcher {
         boolean stale = true;
@@ -0,0 +1,142 @@
+package org.geoserver.flow.controller;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.ows.Request;
+
+public class AdaptiveCostFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    public void testCostEstimate() {
+        AdaptiveCostFlowController controller = new AdaptiveCostFlowController(10);
+        assertEquals(10, controller.getPriority());
+
+        assertEquals(1.0, controller.estimateCost(getMap(256, 256, "topp:states")), 1e-6);
+        assertEquals(1.0, controller.estimateCost(getMap(100, 100, "topp:states")), 1e-6);
+        assertEquals(32.0, controller.estimateCost(getMap(1024, 1024, "topp:states,sf:roads")),
+                1e-6);
+
+        Request getFeature = request("WFS", "GetFeature", new HashMap<String, Object>());
+        assertEquals(AdaptiveCostFlowController.DEFAULT_FEATURE_COST, controller
+                .estimateCost(getFeature), 1e-6);
+        getFeature.getRawKvp().put("MAXFEATURES", "5000");
+        assertEquals(5.0, controller.estimateCost(getFeature), 1e-6);
+
+        assertEquals(1.0, controller.estimateCost(request("WMS", "GetCapabilities",
+                new HashMap<String, Object>())), 1e-6);
+    }
+
+    public void testBudget() throws Exception {
+        AdaptiveCostFlowController controller = new AdaptiveCostFlowController(4);
+
+        // t1 uses the whole budget, t2 has to wait even if it is cheap
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(controller, getMap(512,
+                512, "topp:states"), 0, Long.MAX_VALUE);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(controller, getMap(256,
+                256, "topp:states"), 0, Long.MAX_VALUE);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+            assertEquals(1, controller.getQueueLength());
+
+            // let t1 go, t2 gets the budget
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+            assertEquals(0, controller.getQueueLength());
+
+            t2.interrupt();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(2, controller.getAdmittedCount());
+            assertEquals(0, controller.getInFlightCost(), 1e-6);
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    public void testTimeout() {
+        AdaptiveCostFlowController controller = new AdaptiveCostFlowController(1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(controller, getMap(256,
+                256, "topp:states"), 100, 400);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(controller, getMap(256,
+                256, "topp:states"), 100, 400);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+
+            waitTerminated(t1, MAX_WAIT);
+            waitTerminated(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+            assertEquals(1, controller.getRejectedCount());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    public void testInterrupted() {
+        AdaptiveCostFlowController controller = new AdaptiveCostFlowController(1);
+        assertTrue(controller.requestIncoming(getMap(256, 256, "topp:states"), -1));
+
+        // the budget is taken, an interrupted wait rejects the request
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(controller.requestIncoming(getMap(256, 256, "topp:states"), -1));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, controller.getAdmittedCount());
+        assertEquals(1, controller.getRejectedCount());
+        assertEquals(0, controller.getQueueLength());
+    }
+
+    public void testAdaptiveBudget() {
+        AdaptiveCostFlowController controller = new AdaptiveCostFlowController(100);
+        AdaptiveCostFlowController.Admission fast = new AdaptiveCostFlowController.Admission(
+                "WMS.GetMap", 1, 1, 0);
+
+        // steady latency, the budget stays at the max
+        for (int i = 0; i < 50; i++) {
+            controller.updateLatencies(fast, 10);
+        }
+        assertEquals(100, controller.getBudget(), 1e-6);
+
+        // latency skyrockets, the budget goes down, but not below the minimum
+        for (int i = 0; i < 200; i++) {
+            controller.updateLatencies(fast, 1000);
+        }
+        assertTrue(controller.getBudget() < 100);
+        assertTrue(controller.getBudget() >= 10);
+    }
+
+    Request getMap(int width, int height, String layers) {
+        Map<String, Object> kvp = new HashMap<String, Object>();
+        kvp.put("WIDTH", String.valueOf(width));
+        kvp.put("HEIGHT", String.valueOf(height));
+        kvp.put("LAYERS", layers);
+        return request("WMS", "GetMap", kvp);
+    }
+
+    Request request(String service, String operation, Map<String, Object> kvp) {
+        Request request = new Request();
+        request.setService(service);
+        request.setRequest(operation);
+        request.setRawKvp(kvp);
+        return request;
+    }
+}
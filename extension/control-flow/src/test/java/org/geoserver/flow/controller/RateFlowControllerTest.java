@@ -0,0 +1,124 @@
+package org.geoserver.flow.controller;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class RateFlowControllerTest extends TestCase {
+
+    public void testPriority() {
+        // rate controllers always go first
+        assertEquals(0, new IpRateFlowController(null, null, 10, 1000).getPriority());
+    }
+
+    public void testBucket() {
+        IpRateFlowController controller = new IpRateFlowController(null, null, 2, 1000);
+        long now = 0;
+
+        // the bucket starts full, two requests go through, the third has to wait half a second
+        assertEquals(0, controller.acquire("a", now));
+        assertEquals(0, controller.acquire("a", now));
+        long wait = controller.acquire("a", now);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), wait);
+
+        // other clients are not affected
+        assertEquals(0, controller.acquire("b", now));
+
+        // after half a second a new token is available
+        now += TimeUnit.MILLISECONDS.toNanos(500);
+        assertEquals(0, controller.acquire("a", now));
+        assertTrue(controller.acquire("a", now) > 0);
+    }
+
+    public void testRejection() {
+        IpRateFlowController controller = new IpRateFlowController("wms", "GetMap", 1, 60 * 1000);
+
+        // other requests are not controlled
+        Request getCaps = buildRequest("wms", "GetCapabilities", "192.168.1.1", null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(controller.requestIncoming(getCaps, -1));
+        }
+
+        Request getMap = buildRequest("wms", "GetMap", "192.168.1.1", null);
+        assertTrue(controller.requestIncoming(getMap, -1));
+        try {
+            controller.requestIncoming(getMap, -1);
+            fail("Should have been rejected");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(429, e.getErrorCode());
+        }
+        String retryAfter = ((MockHttpServletResponse) getMap.getHttpResponse())
+                .getHeader("Retry-After");
+        assertNotNull(retryAfter);
+        assertTrue(Integer.parseInt(retryAfter) > 0);
+        assertTrue(Integer.parseInt(retryAfter) <= 60);
+    }
+
+    public void testForwardedKey() {
+        ForwardedRateFlowController controller = new ForwardedRateFlowController(null, null, 1,
+                1000);
+        // the proxy appends the address it got the request from
+        assertEquals("10.0.0.1", controller.getClientKey(buildRequest("wms", "GetMap",
+                "192.168.1.1", "10.0.0.1")));
+        assertEquals("192.168.1.1", controller.getClientKey(buildRequest("wms", "GetMap",
+                "192.168.1.1", null)));
+    }
+
+    public void testForwardedSpoofing() {
+        ForwardedRateFlowController controller = new ForwardedRateFlowController("wms",
+                "GetMap", 1, 60 * 1000);
+
+        // the client makes up the leftmost entries, the proxy appends the real address
+        assertEquals("10.0.0.1", controller.getClientKey(buildRequest("wms", "GetMap",
+                "192.168.1.1", "1.2.3.4, 5.6.7.8, 10.0.0.1")));
+        assertTrue(controller.requestIncoming(buildRequest("wms", "GetMap", "192.168.1.1",
+                "1.1.1.1, 10.0.0.1"), -1));
+        try {
+            controller.requestIncoming(buildRequest("wms", "GetMap", "192.168.1.1",
+                    "2.2.2.2, 10.0.0.1"), -1);
+            fail("A spoofed header should not escape the rate limit");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(429, e.getErrorCode());
+        }
+
+        // with two trusted proxies the client is the second entry from the right
+        controller = new ForwardedRateFlowController(null, null, 1, 1000, 2);
+        assertEquals("10.0.0.1", controller.getClientKey(buildRequest("wms", "GetMap",
+                "192.168.1.1", "1.2.3.4, 10.0.0.1, 172.16.0.1")));
+        assertEquals("10.0.0.1", controller.getClientKey(buildRequest("wms", "GetMap",
+                "192.168.1.1", "10.0.0.1")));
+    }
+
+    public void testCleanup() {
+        IpRateFlowController controller = new IpRateFlowController(null, null, 10, 1000);
+        controller.maxBuckets = 0;
+        controller.lastCleanup.set(System.nanoTime() - RateFlowController.CLEANUP_INTERVAL);
+        controller.acquire("a", System.nanoTime() - TimeUnit.SECONDS.toNanos(10));
+        controller.acquire("b", System.nanoTime());
+        controller.cleanupBuckets();
+
+        // "a" got refilled long ago, "b" is still in use
+        assertFalse(controller.buckets.containsKey("a"));
+        assertTrue(controller.buckets.containsKey("b"));
+    }
+
+    Request buildRequest(String service, String method, String ip, String forwardedFor) {
+        Request request = new Request();
+        request.setService(service);
+        request.setRequest(method);
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+        httpRequest.setRemoteAddr(ip);
+        if (forwardedFor != null) {
+            httpRequest.setHeader("X-Forwarded-For", forwardedFor);
+        }
+        request.setHttpRequest(httpRequest);
+        request.setHttpResponse(new MockHttpServletResponse());
+        return request;
+    }
+}
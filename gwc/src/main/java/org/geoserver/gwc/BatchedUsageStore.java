@@ -0,0 +1,649 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.diskquota.storage.BDBQuotaStore;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TileSet;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageBroker;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Keeps track of the disk space used by each tile set (layer and grid set) aggregating the blob
+ * store events in memory and flushing them in batches to an embedded H2 database.
+ * <p>
+ * The deltas are accumulated in striped counters, each thread updating the stripe picked by its
+ * id, so that the threads saving tiles do not contend on a single lock, and are written to the
+ * database in a single transaction every flush interval. The queries add the deltas not flushed
+ * yet to the stored totals, the last deltas are flushed on shutdown.
+ * </p>
+ * <p>
+ * The store is enabled setting the <code>GWC_USAGE_STORE</code> system variable to true, in
+ * which case it replaces the per tile usage updates of the GWC disk quota monitor (see
+ * {@link UsageStoreQuotaMonitor}) and is the only source of the used quota. As GWC enforces the
+ * disk quota limits from its own usage accounting the store is not enabled while a global or layer
+ * quota is configured, the monitor keeps running instead. The
+ * flush interval, in seconds, is set with <code>GWC_USAGE_FLUSH_INTERVAL</code> and defaults to
+ * 10. The database is kept in the <code>diskquota_usage</code> directory of the GWC cache, its
+ * credentials can be set with <code>GWC_USAGE_STORE_USER</code> and
+ * <code>GWC_USAGE_STORE_PASSWORD</code>.
+ * </p>
+ * <p>
+ * The events only report the changes to the cache, so the totals are seeded from the GWC disk
+ * quota store the first time the database is created, unless the disk quota was disabled with
+ * <code>GWC_DISKQUOTA_DISABLED</code> (the quota store is not maintained then). The quota store
+ * used bytes are recorded on every startup and, as the quota store is only maintained while this
+ * store is disabled, the totals are reconciled with it when they changed in between. The quota
+ * store does not count tiles, the seeded tile sets start with a zero tile count. After an unclean
+ * shutdown the totals flushed last are kept, only the deltas of the last flush interval are lost.
+ * </p>
+ */
+public class BatchedUsageStore implements BlobStoreListener, DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(BatchedUsageStore.class);
+
+    static final int STRIPES = 16;
+
+    static final String DEFAULT_USER = "geoserver";
+
+    static final String DEFAULT_PASSWORD = "geopass";
+
+    final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * The totals stored in the database, guarded by the store lock
+     */
+    final Map<TileSetKey, long[]> totals = new HashMap<TileSetKey, long[]>();
+
+    /**
+     * Written under the store lock, read without it by the event handlers
+     */
+    volatile Connection connection;
+
+    /**
+     * Held in read mode by the event handlers and in write mode while the store is destroyed, so
+     * that no delta gets added after the last flush
+     */
+    final ReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+
+    ScheduledThreadPoolExecutor flusher;
+
+    /**
+     * Builds a disabled store
+     */
+    BatchedUsageStore() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public BatchedUsageStore(DefaultStorageFinder storageFinder, StorageBroker storageBroker,
+            BDBQuotaStore quotaStore, UsageStoreQuotaMonitor quotaMonitor) {
+        this();
+        if (!quotaMonitor.isReplaced()) {
+            return;
+        }
+        try {
+            File directory = new File(storageFinder.getDefaultPath(), "diskquota_usage");
+            // the quota store was maintained by the disk quota monitor unless it was disabled
+            boolean quotaDisabled = Boolean.valueOf(GeoServerExtensions
+                    .getProperty("GWC_DISKQUOTA_DISABLED"));
+            open(directory, quotaDisabled ? null : quotaStore);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to open the tile usage store, "
+                    + "the used disk quota will not be available", e);
+            return;
+        }
+        start(getFlushInterval());
+        storageBroker.addBlobStoreListener(this);
+    }
+
+    /**
+     * Whether the store is enabled with the <code>GWC_USAGE_STORE</code> variable
+     */
+    static boolean isConfigured() {
+        return Boolean.valueOf(GeoServerExtensions.getProperty("GWC_USAGE_STORE"));
+    }
+
+    static long getFlushInterval() {
+        String interval = GeoServerExtensions.getProperty("GWC_USAGE_FLUSH_INTERVAL");
+        if (interval != null) {
+            try {
+                return Long.parseLong(interval.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid GWC_USAGE_FLUSH_INTERVAL value " + interval
+                        + ", using 10 seconds");
+            }
+        }
+        return 10;
+    }
+
+    void open(File directory) throws Exception {
+        open(directory, null);
+    }
+
+    static String getProperty(String name, String defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Opens, or creates, the database and loads the stored totals, seeding them from the quota
+     * store, if not null, when the database is new or the quota store changed since the last
+     * startup
+     */
+    synchronized void open(File directory, BDBQuotaStore quotaStore) throws Exception {
+        directory.mkdirs();
+        Class.forName("org.h2.Driver");
+        Connection connection = DriverManager.getConnection("jdbc:h2:file:"
+                + new File(directory, "usage").getAbsolutePath(),
+                getProperty("GWC_USAGE_STORE_USER", DEFAULT_USER),
+                getProperty("GWC_USAGE_STORE_PASSWORD", DEFAULT_PASSWORD));
+        Statement st = connection.createStatement();
+        ResultSet rs = null;
+        boolean seed = false;
+        Long quotaStoreBytes = null;
+        try {
+            st.execute("CREATE TABLE IF NOT EXISTS TILESET_USAGE(" //
+                    + "LAYER VARCHAR(512) NOT NULL, " //
+                    + "GRIDSET VARCHAR(512) NOT NULL, " //
+                    + "BYTES BIGINT NOT NULL, " //
+                    + "TILES BIGINT NOT NULL, " //
+                    + "PRIMARY KEY(LAYER, GRIDSET))");
+            st.execute("CREATE TABLE IF NOT EXISTS USAGE_STATE(CLEAN BOOLEAN NOT NULL, "
+                    + "QUOTA_STORE_BYTES BIGINT)");
+
+            rs = st.executeQuery("SELECT CLEAN, QUOTA_STORE_BYTES FROM USAGE_STATE");
+            if (!rs.next()) {
+                seed = true;
+            } else {
+                if (!rs.getBoolean(1)) {
+                    // the flushed totals are durable, only the last deltas are missing
+                    LOGGER.warning("The tile usage store was not closed properly, the changes of "
+                            + "the last flush interval might have been lost");
+                }
+                quotaStoreBytes = rs.getLong(2);
+                if (rs.wasNull()) {
+                    quotaStoreBytes = null;
+                }
+            }
+            rs.close();
+            st.execute("DELETE FROM USAGE_STATE");
+            st.execute("INSERT INTO USAGE_STATE VALUES(FALSE, NULL)");
+
+            rs = st.executeQuery("SELECT LAYER, GRIDSET, BYTES, TILES FROM TILESET_USAGE");
+            while (rs.next()) {
+                totals.put(new TileSetKey(rs.getString(1), rs.getString(2)), new long[] {
+                        rs.getLong(3), rs.getLong(4) });
+            }
+        } finally {
+            close(rs);
+            close(st);
+        }
+        this.connection = connection;
+
+        if (quotaStore != null) {
+            try {
+                reconcile(getQuotaStoreUsage(quotaStore), seed, quotaStoreBytes);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to seed the tile usage from the disk quota "
+                        + "store, the usage might be underestimated", e);
+            }
+        }
+    }
+
+    /**
+     * Seeds the totals from the quota store usage if the database is new or the quota store used
+     * bytes differ from the ones recorded at the last startup, meaning the disk quota monitor
+     * updated it while this store was disabled, and records the current ones
+     */
+    private void reconcile(Map<TileSetKey, long[]> usage, boolean seed, Long lastQuotaStoreBytes)
+            throws SQLException {
+        long quotaStoreBytes = 0;
+        for (long[] value : usage.values()) {
+            quotaStoreBytes += value[0];
+        }
+        if (!seed && lastQuotaStoreBytes != null
+                && lastQuotaStoreBytes.longValue() != quotaStoreBytes) {
+            LOGGER.info("The disk quota store changed since the tile usage store was last open, "
+                    + "reconciling the tile usage with it");
+            seed = true;
+        }
+        if (seed) {
+            seed(usage);
+        }
+        PreparedStatement ps = connection
+                .prepareStatement("UPDATE USAGE_STATE SET QUOTA_STORE_BYTES = ?");
+        try {
+            ps.setLong(1, quotaStoreBytes);
+            ps.executeUpdate();
+        } finally {
+            close(ps);
+        }
+    }
+
+    /**
+     * Sums up the bytes used by each layer and grid set according to the quota store
+     */
+    static Map<TileSetKey, long[]> getQuotaStoreUsage(BDBQuotaStore quotaStore)
+            throws InterruptedException {
+        Map<TileSetKey, long[]> usage = new HashMap<TileSetKey, long[]>();
+        for (TileSet tileSet : quotaStore.getTileSets()) {
+            Quota quota = quotaStore.getUsedQuotaByTileSetId(tileSet.getId());
+            if (quota == null) {
+                continue;
+            }
+            TileSetKey key = new TileSetKey(tileSet.getLayerName(), tileSet.getGridsetId());
+            long[] value = usage.get(key);
+            if (value == null) {
+                value = new long[2];
+                usage.put(key, value);
+            }
+            value[0] += quota.getBytes().longValue();
+        }
+        return usage;
+    }
+
+    /**
+     * Replaces the stored usage with the specified one. The tile counts are kept for the tile
+     * sets whose usage is not changed, and zeroed otherwise as they are unknown
+     */
+    synchronized void seed(Map<TileSetKey, long[]> usage) throws SQLException {
+        if (connection == null) {
+            return;
+        }
+        // the deltas not flushed yet are included in the new usage
+        for (Stripe stripe : stripes) {
+            stripe.drain();
+        }
+        Statement st = null;
+        PreparedStatement insert = null;
+        try {
+            connection.setAutoCommit(false);
+            st = connection.createStatement();
+            st.execute("DELETE FROM TILESET_USAGE");
+            insert = connection.prepareStatement("INSERT INTO TILESET_USAGE"
+                    + "(LAYER, GRIDSET, BYTES, TILES) VALUES(?, ?, ?, ?)");
+            Map<TileSetKey, long[]> seeded = new HashMap<TileSetKey, long[]>();
+            for (Map.Entry<TileSetKey, long[]> entry : usage.entrySet()) {
+                TileSetKey key = entry.getKey();
+                long[] value = entry.getValue().clone();
+                long[] previous = totals.get(key);
+                if (previous != null && previous[0] == value[0]) {
+                    value[1] = previous[1];
+                }
+                insert.setString(1, key.layerName);
+                insert.setString(2, key.gridSetId);
+                insert.setLong(3, value[0]);
+                insert.setLong(4, value[1]);
+                insert.executeUpdate();
+                seeded.put(key, value);
+            }
+            connection.commit();
+            totals.clear();
+            totals.putAll(seeded);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            close(st);
+            close(insert);
+            connection.setAutoCommit(true);
+        }
+    }
+
+    void start(long flushInterval) {
+        flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GWC usage flusher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.SECONDS);
+    }
+
+    public synchronized boolean isEnabled() {
+        return connection != null;
+    }
+
+    public void destroy() throws Exception {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        lifecycleLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (connection == null) {
+                    return;
+                }
+                flush();
+                Statement st = connection.createStatement();
+                try {
+                    st.execute("UPDATE USAGE_STATE SET CLEAN = TRUE");
+                } finally {
+                    close(st);
+                    Connection closing = connection;
+                    connection = null;
+                    closing.close();
+                }
+            }
+        } finally {
+            lifecycleLock.writeLock().unlock();
+        }
+    }
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        add(layerName, gridSetId, blobSize, 1);
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        add(layerName, gridSetId, -blobSize, -1);
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        add(layerName, gridSetId, blobSize - oldSize, 0);
+    }
+
+    public void layerDeleted(String layerName) {
+        delete(layerName, null);
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        delete(layerName, gridSetId);
+    }
+
+    public synchronized void layerRenamed(String oldLayerName, String newLayerName) {
+        if (!isEnabled()) {
+            return;
+        }
+        flush();
+        try {
+            PreparedStatement ps = connection
+                    .prepareStatement("UPDATE TILESET_USAGE SET LAYER = ? WHERE LAYER = ?");
+            try {
+                ps.setString(1, newLayerName);
+                ps.setString(2, oldLayerName);
+                ps.executeUpdate();
+            } finally {
+                close(ps);
+            }
+            Map<TileSetKey, long[]> renamed = new HashMap<TileSetKey, long[]>();
+            for (Map.Entry<TileSetKey, long[]> entry : totals.entrySet()) {
+                TileSetKey key = entry.getKey();
+                if (key.layerName.equals(oldLayerName)) {
+                    renamed.put(new TileSetKey(newLayerName, key.gridSetId), entry.getValue());
+                } else {
+                    renamed.put(key, entry.getValue());
+                }
+            }
+            totals.clear();
+            totals.putAll(renamed);
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Failed to rename the usage of layer " + oldLayerName, e);
+        }
+    }
+
+    /**
+     * Drops the usage of a layer, or of one of its grid sets
+     */
+    synchronized void delete(String layerName, String gridSetId) {
+        if (!isEnabled()) {
+            return;
+        }
+        flush();
+        try {
+            PreparedStatement ps;
+            if (gridSetId == null) {
+                ps = connection.prepareStatement("DELETE FROM TILESET_USAGE WHERE LAYER = ?");
+                ps.setString(1, layerName);
+            } else {
+                ps = connection.prepareStatement("DELETE FROM TILESET_USAGE "
+                        + "WHERE LAYER = ? AND GRIDSET = ?");
+                ps.setString(1, layerName);
+                ps.setString(2, gridSetId);
+            }
+            try {
+                ps.executeUpdate();
+            } finally {
+                close(ps);
+            }
+            for (Iterator<TileSetKey> it = totals.keySet().iterator(); it.hasNext();) {
+                TileSetKey key = it.next();
+                if (key.layerName.equals(layerName)
+                        && (gridSetId == null || key.gridSetId.equals(gridSetId))) {
+                    it.remove();
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete the usage of layer " + layerName, e);
+        }
+    }
+
+    void add(String layerName, String gridSetId, long bytes, long tiles) {
+        lifecycleLock.readLock().lock();
+        try {
+            if (connection == null) {
+                return;
+            }
+            int idx = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            stripes[idx].add(new TileSetKey(layerName, gridSetId), bytes, tiles);
+        } finally {
+            lifecycleLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the accumulated deltas to the database in a single transaction
+     */
+    synchronized void flush() {
+        if (connection == null) {
+            return;
+        }
+        Map<TileSetKey, long[]> deltas = new HashMap<TileSetKey, long[]>();
+        for (Stripe stripe : stripes) {
+            merge(deltas, stripe.drain());
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        PreparedStatement update = null;
+        PreparedStatement insert = null;
+        try {
+            connection.setAutoCommit(false);
+            update = connection.prepareStatement("UPDATE TILESET_USAGE "
+                    + "SET BYTES = BYTES + ?, TILES = TILES + ? WHERE LAYER = ? AND GRIDSET = ?");
+            insert = connection.prepareStatement("INSERT INTO TILESET_USAGE"
+                    + "(LAYER, GRIDSET, BYTES, TILES) VALUES(?, ?, ?, ?)");
+            for (Map.Entry<TileSetKey, long[]> entry : deltas.entrySet()) {
+                TileSetKey key = entry.getKey();
+                long[] delta = entry.getValue();
+                update.setLong(1, delta[0]);
+                update.setLong(2, delta[1]);
+                update.setString(3, key.layerName);
+                update.setString(4, key.gridSetId);
+                if (update.executeUpdate() == 0) {
+                    insert.setString(1, key.layerName);
+                    insert.setString(2, key.gridSetId);
+                    insert.setLong(3, delta[0]);
+                    insert.setLong(4, delta[1]);
+                    insert.executeUpdate();
+                }
+            }
+            connection.commit();
+            merge(totals, deltas);
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Failed to flush the tile usage, will retry", e);
+            try {
+                connection.rollback();
+            } catch (SQLException re) {
+                LOGGER.log(Level.FINE, "Rollback failed", re);
+            }
+            // keep the deltas for the next flush
+            for (Map.Entry<TileSetKey, long[]> entry : deltas.entrySet()) {
+                long[] delta = entry.getValue();
+                stripes[0].add(entry.getKey(), delta[0], delta[1]);
+            }
+        } finally {
+            close(update);
+            close(insert);
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                LOGGER.log(Level.FINE, "Failed to restore auto commit", e);
+            }
+        }
+    }
+
+    private void merge(Map<TileSetKey, long[]> target, Map<TileSetKey, long[]> deltas) {
+        for (Map.Entry<TileSetKey, long[]> entry : deltas.entrySet()) {
+            long[] value = target.get(entry.getKey());
+            if (value == null) {
+                target.put(entry.getKey(), entry.getValue().clone());
+            } else {
+                value[0] += entry.getValue()[0];
+                value[1] += entry.getValue()[1];
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes and tiles used by the layer, or by all layers if the name is {@code null}
+     * , including the deltas not flushed yet
+     */
+    public long[] getUsage(String layerName) {
+        long[] usage = new long[2];
+        synchronized (this) {
+            for (Map.Entry<TileSetKey, long[]> entry : totals.entrySet()) {
+                if (layerName == null || layerName.equals(entry.getKey().layerName)) {
+                    usage[0] += entry.getValue()[0];
+                    usage[1] += entry.getValue()[1];
+                }
+            }
+            for (Stripe stripe : stripes) {
+                stripe.sum(layerName, usage);
+            }
+        }
+        return usage;
+    }
+
+    public long getUsedBytes(String layerName) {
+        return getUsage(layerName)[0];
+    }
+
+    public long getGlobalUsedBytes() {
+        return getUsage(null)[0];
+    }
+
+    private static void close(Statement st) {
+        if (st != null) {
+            try {
+                st.close();
+            } catch (SQLException e) {
+                LOGGER.log(Level.FINE, "Failed to close statement", e);
+            }
+        }
+    }
+
+    private static void close(ResultSet rs) {
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (SQLException e) {
+                LOGGER.log(Level.FINE, "Failed to close result set", e);
+            }
+        }
+    }
+
+    /**
+     * A set of usage deltas, updated by the threads mapped to it
+     */
+    static class Stripe {
+
+        Map<TileSetKey, long[]> deltas = new HashMap<TileSetKey, long[]>();
+
+        synchronized void add(TileSetKey key, long bytes, long tiles) {
+            long[] delta = deltas.get(key);
+            if (delta == null) {
+                delta = new long[2];
+                deltas.put(key, delta);
+            }
+            delta[0] += bytes;
+            delta[1] += tiles;
+        }
+
+        synchronized Map<TileSetKey, long[]> drain() {
+            Map<TileSetKey, long[]> result = deltas;
+            deltas = new HashMap<TileSetKey, long[]>();
+            return result;
+        }
+
+        synchronized void sum(String layerName, long[] usage) {
+            for (Map.Entry<TileSetKey, long[]> entry : deltas.entrySet()) {
+                if (layerName == null || layerName.equals(entry.getKey().layerName)) {
+                    usage[0] += entry.getValue()[0];
+                    usage[1] += entry.getValue()[1];
+                }
+            }
+        }
+    }
+
+    static class TileSetKey {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        TileSetKey(String layerName, String gridSetId) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileSetKey)) {
+                return false;
+            }
+            TileSetKey other = (TileSetKey) obj;
+            return layerName.equals(other.layerName) && gridSetId.equals(other.gridSetId);
+        }
+
+        @Override
+        public int hashCode() {
+            return layerName.hashCode() * 31 + gridSetId.hashCode();
+        }
+    }
+}
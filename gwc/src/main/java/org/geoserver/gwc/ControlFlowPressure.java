@@ -0,0 +1,64 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.geoserver.ows.FlowControlStatus;
+import org.geoserver.platform.GeoServerExtensions;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+
+/**
+ * Tells how many OWS requests are held back by the control-flow extension, so that background work
+ * such as the {@link ReseedScheduler} can step aside when live traffic is waiting.
+ * <p>
+ * The control-flow module is optional and not a dependency of this one, its callback is found in
+ * the application context through the {@link FlowControlStatus} interface it implements. When
+ * control-flow is not installed the pressure is always zero.
+ * </p>
+ */
+public class ControlFlowPressure implements ApplicationContextAware {
+
+    ApplicationContext applicationContext;
+
+    volatile List<FlowControlStatus> statuses;
+
+    public void setApplicationContext(ApplicationContext applicationContext)
+            throws BeansException {
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * Sets the flow control statuses, looked up in the application context otherwise
+     */
+    public void setStatuses(List<FlowControlStatus> statuses) {
+        this.statuses = statuses;
+    }
+
+    List<FlowControlStatus> getStatuses() {
+        if (statuses == null) {
+            // looked up lazily, the control-flow callback is a dispatcher callback and might
+            // not be initialized yet when this bean is
+            statuses = applicationContext != null ? GeoServerExtensions.extensions(
+                    FlowControlStatus.class, applicationContext) : Collections
+                    .<FlowControlStatus> emptyList();
+        }
+        return statuses;
+    }
+
+    /**
+     * Returns the number of requests currently waiting in the control-flow queues
+     */
+    public int getWaitingRequests() {
+        int waiting = 0;
+        for (FlowControlStatus status : getStatuses()) {
+            waiting += status.getQueuedRequests();
+        }
+        return waiting;
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSubset;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * Computes the tiles of a grid subset touched by a set of geometries, as a list of tile ranges per
+ * zoom level.
+ * <p>
+ * The geometries are expanded by a buffer, in pixels, accounting for the size of the symbols used
+ * to draw them. The tiles of each level are found subdividing the coverage of the geometries
+ * envelope as a quad tree: cells not touching the geometries are skipped, cells contained in them
+ * are taken as a whole, the others are split further. When a level ends up with more than the
+ * allowed number of ranges the subdivision stops at bigger cells, trading precision for fewer
+ * ranges.
+ * </p>
+ */
+class DirtyTiles {
+
+    /**
+     * The max number of cells per side the geometries envelope is split into at each level,
+     * bounds the work done on the deepest levels
+     */
+    static final int MAX_CELLS = 256;
+
+    static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    final GridSubset gridSubset;
+
+    final int buffer;
+
+    final List<PreparedGeometry> geometries = new ArrayList<PreparedGeometry>();
+
+    final Envelope envelope = new Envelope();
+
+    /**
+     * @param buffer
+     *            the size of the symbols, in pixels
+     */
+    DirtyTiles(GridSubset gridSubset, int buffer) {
+        this.gridSubset = gridSubset;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Adds a geometry, expressed in the grid set CRS
+     */
+    void add(Geometry geometry) {
+        if (geometry == null || geometry.isEmpty()) {
+            return;
+        }
+        geometries.add(PreparedGeometryFactory.prepare(geometry));
+        envelope.expandToInclude(geometry.getEnvelopeInternal());
+    }
+
+    boolean isEmpty() {
+        return geometries.isEmpty();
+    }
+
+    /**
+     * Returns the ranges of tiles touched by the geometries at the specified zoom level
+     *
+     * @return the ranges as <code>{minx, miny, maxx, maxy, z}</code>, empty if no tile is
+     *         touched
+     */
+    List<long[]> getTileRanges(int z, int maxRanges) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        if (geometries.isEmpty()) {
+            return ranges;
+        }
+
+        final double resolution = gridSubset.getGridSet().getGrids()[z].getResolution();
+        final double distance = buffer * resolution;
+        Envelope expanded = new Envelope(envelope);
+        // never let the envelope collapse to a point or a line, the coverage computation
+        // expects an area
+        expanded.expandBy(Math.max(distance, resolution / 1000));
+        long[] coverage = gridSubset.getCoverageIntersection(z, new BoundingBox(expanded.getMinX(),
+                expanded.getMinY(), expanded.getMaxX(), expanded.getMaxY()));
+        if (coverage == null || coverage[0] > coverage[2] || coverage[1] > coverage[3]) {
+            return ranges;
+        }
+
+        long size = Math.max(coverage[2] - coverage[0] + 1, coverage[3] - coverage[1] + 1);
+        long minCellSize = 1;
+        while (size / minCellSize > MAX_CELLS) {
+            minCellSize *= 2;
+        }
+        collect(coverage[0], coverage[1], coverage[2], coverage[3], z, distance, minCellSize,
+                ranges);
+        while (ranges.size() > maxRanges) {
+            minCellSize *= 2;
+            ranges.clear();
+            collect(coverage[0], coverage[1], coverage[2], coverage[3], z, distance,
+                    minCellSize, ranges);
+        }
+        return ranges;
+    }
+
+    /**
+     * Packs the ranges of all the zoom levels of the grid subset in batches, each one holding one
+     * range per zoom level, so that each batch can be truncated as a single tile range.
+     *
+     * @return the batches, as arrays of <code>{minx, miny, maxx, maxy, z}</code> indexed by zoom
+     *         level. The levels outside of the batch zoom range hold the level coverage, levels
+     *         without affected tiles an empty range
+     */
+    List<long[][]> getBatches(int maxRanges) {
+        final int zoomStart = gridSubset.getZoomStart();
+        final int zoomStop = gridSubset.getZoomStop();
+        List<List<long[]>> levels = new ArrayList<List<long[]>>();
+        int batchCount = 0;
+        for (int z = zoomStart; z <= zoomStop; z++) {
+            List<long[]> ranges = getTileRanges(z, maxRanges);
+            levels.add(ranges);
+            batchCount = Math.max(batchCount, ranges.size());
+        }
+
+        List<long[][]> batches = new ArrayList<long[][]>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            long[][] batch = new long[zoomStop + 1][];
+            for (int z = 0; z <= zoomStop; z++) {
+                List<long[]> ranges = z < zoomStart ? null : levels.get(z - zoomStart);
+                if (ranges == null) {
+                    batch[z] = gridSubset.getCoverage(z);
+                } else if (ranges.isEmpty()) {
+                    long[] coverage = gridSubset.getCoverage(z);
+                    batch[z] = new long[] { coverage[0], coverage[1], coverage[0] - 1,
+                            coverage[1] - 1, z };
+                } else {
+                    // levels with fewer ranges repeat their last one
+                    batch[z] = ranges.get(Math.min(i, ranges.size() - 1));
+                }
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private void collect(long minX, long minY, long maxX, long maxY, int z, double distance,
+            long minCellSize, List<long[]> ranges) {
+        BoundingBox bounds = gridSubset.boundsFromRectangle(new long[] { minX, minY, maxX, maxY,
+                z });
+        Envelope cell = new Envelope(bounds.getMinX(), bounds.getMaxX(), bounds.getMinY(),
+                bounds.getMaxY());
+        Envelope expanded = new Envelope(cell);
+        expanded.expandBy(distance);
+
+        Geometry expandedCell = GEOMETRY_FACTORY.toGeometry(expanded);
+        boolean touched = false;
+        for (PreparedGeometry geometry : geometries) {
+            if (geometry.getGeometry().getEnvelopeInternal().intersects(expanded)
+                    && geometry.intersects(expandedCell)) {
+                touched = true;
+                break;
+            }
+        }
+        if (!touched) {
+            return;
+        }
+
+        final long width = maxX - minX + 1;
+        final long height = maxY - minY + 1;
+        if ((width <= minCellSize && height <= minCellSize) || isCovered(cell)) {
+            ranges.add(new long[] { minX, minY, maxX, maxY, z });
+            return;
+        }
+
+        long splitX = width > minCellSize ? minX + width / 2 : maxX + 1;
+        long splitY = height > minCellSize ? minY + height / 2 : maxY + 1;
+        collect(minX, minY, splitX - 1, splitY - 1, z, distance, minCellSize, ranges);
+        if (splitX <= maxX) {
+            collect(splitX, minY, maxX, splitY - 1, z, distance, minCellSize, ranges);
+        }
+        if (splitY <= maxY) {
+            collect(minX, splitY, splitX - 1, maxY, z, distance, minCellSize, ranges);
+            if (splitX <= maxX) {
+                collect(splitX, splitY, maxX, maxY, z, distance, minCellSize, ranges);
+            }
+        }
+    }
+
+    /**
+     * Whether the cell is fully inside one of the geometries, in which case all of its tiles are
+     * touched
+     */
+    private boolean isCovered(Envelope cell) {
+        Geometry cellGeometry = null;
+        for (PreparedGeometry geometry : geometries) {
+            if (geometry.getGeometry().getDimension() == 2
+                    && geometry.getGeometry().getEnvelopeInternal().contains(cell)) {
+                if (cellGeometry == null) {
+                    cellGeometry = GEOMETRY_FACTORY.toGeometry(cell);
+                }
+                if (geometry.contains(cellGeometry)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
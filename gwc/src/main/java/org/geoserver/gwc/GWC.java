@@ -7,7 +7,9 @@ package org.geoserver.gwc;
 import static org.geowebcache.seed.GWCTask.TYPE.TRUNCATE;
 
 import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -33,10 +35,12 @@ import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.gwc.config.GWCConfigPersister;
 import org.geoserver.gwc.layer.CatalogLayerEventListener;
 import org.geoserver.gwc.layer.CatalogStyleChangeListener;
+import org.geoserver.gwc.layer.GeoServerMetaTile;
 import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
@@ -92,6 +96,14 @@ public class GWC implements DisposableBean, InitializingBean {
 
     private static Logger log = Logging.getLogger(GWC.class);
 
+    /**
+     * The GetMap parameters that are part of the tile definition, or that do not change the map
+     * contents
+     */
+    private static final Set<String> TILE_PARAMETERS = new HashSet<String>(Arrays.asList(
+            "SERVICE", "VERSION", "REQUEST", "LAYERS", "SRS", "CRS", "BBOX", "WIDTH", "HEIGHT",
+            "FORMAT", "TILED", "TILESORIGIN", "TRANSPARENT", "EXCEPTIONS"));
+
     private final TileLayerDispatcher tld;
 
     private final StorageBroker storageBroker;
@@ -114,10 +126,20 @@ public class GWC implements DisposableBean, InitializingBean {
 
     private final Catalog rawCatalog;
 
+    private final MemoryTileCache memoryCache;
+
+    private final ReseedScheduler reseedScheduler;
+
+    private final BatchedUsageStore usageStore;
+
+    private final TileWarmer tileWarmer;
+
     public GWC(final GWCConfigPersister gwcConfigPersister, final StorageBroker sb,
             final TileLayerDispatcher tld, final GridSetBroker gridSetBroker,
             final TileBreeder tileBreeder, final BDBQuotaStore quotaStore,
-            final DiskQuotaMonitor monitor, final Dispatcher owsDispatcher, final Catalog rawCatalog) {
+            final DiskQuotaMonitor monitor, final Dispatcher owsDispatcher, final Catalog rawCatalog,
+            final MemoryTileCache memoryCache, final ReseedScheduler reseedScheduler,
+            final BatchedUsageStore usageStore, final TileWarmer tileWarmer) {
 
         this.gwcConfigPersister = gwcConfigPersister;
         this.tld = tld;
@@ -128,6 +150,10 @@ public class GWC implements DisposableBean, InitializingBean {
         this.owsDispatcher = owsDispatcher;
         this.quotaStore = quotaStore;
         this.rawCatalog = rawCatalog;
+        this.memoryCache = memoryCache;
+        this.reseedScheduler = reseedScheduler;
+        this.usageStore = usageStore;
+        this.tileWarmer = tileWarmer;
     }
 
     public synchronized static GWC get() {
@@ -171,6 +197,8 @@ public class GWC implements DisposableBean, InitializingBean {
         if (this.catalogStyleChangeListener != null) {
             catalog.removeListener(this.catalogStyleChangeListener);
         }
+        GeoServerMetaTile.shutdownEncoderPool();
+        GeoServerTileLayer.shutdownTileSaver();
     }
 
     private Catalog getCatalog() {
@@ -181,6 +209,29 @@ public class GWC implements DisposableBean, InitializingBean {
         return gwcConfigPersister.getConfig();
     }
 
+    /**
+     * @return the in memory tier for the hot tiles, may be disabled but never {@code null}
+     */
+    public MemoryTileCache getMemoryCache() {
+        return memoryCache;
+    }
+
+    /**
+     * @return the scheduler re-seeding the top zoom levels after a truncation, may be disabled but
+     *         never {@code null}
+     */
+    public ReseedScheduler getReseedScheduler() {
+        return reseedScheduler;
+    }
+
+    /**
+     * @return the recorder of the most requested tiles, pre-rendering them after a truncation, may
+     *         be disabled but never {@code null}
+     */
+    public TileWarmer getTileWarmer() {
+        return tileWarmer;
+    }
+
     /**
      * Fully truncates the given layer, including any ParameterFilter
      * 
@@ -298,6 +349,7 @@ public class GWC implements DisposableBean, InitializingBean {
             final BoundingBox bounds, final String format) {
 
         final TileLayer layer = getTileLayerByName(layerName);
+
         final Set<String> styleNames;
         final Set<String> gridSetIds;
         final List<MimeType> mimeTypes;
@@ -329,20 +381,70 @@ public class GWC implements DisposableBean, InitializingBean {
         for (String gridSetId : gridSetIds) {
             final GridSubset gridSubset = layer.getGridSubset(gridSetId);
             for (String style : styleNames) {
-                Map<String, String> parameters;
-                if (style.length() == 0 || style.equals(defaultStyle)) {
-                    log.finer("'" + style + "' is the layer's default style, "
-                            + "not adding a parameter filter");
-                    parameters = null;
-                } else {
-                    parameters = Collections.singletonMap("STYLES", style);
-                }
+                Map<String, String> parameters = getStyleParameters(style, defaultStyle);
                 for (MimeType mime : mimeTypes) {
                     String formatName = mime.getFormat();
                     truncate(layer, bounds, gridSubset, formatName, parameters);
+                    reseedScheduler.reseed(layerName, gridSubset, mime, parameters, bounds);
                 }
             }
         }
+        tileWarmer.warmUp(layerName);
+    }
+
+    /**
+     * Truncates the specified tile ranges of a layer, for all its cached styles and formats,
+     * issuing a single truncate task for each batch of ranges.
+     * 
+     * @param layerName
+     *            name of the layer to truncate, non {@code null}
+     * @param gridSetId
+     *            grid set to truncate, non {@code null}
+     * @param rangeBatches
+     *            the batches of ranges to truncate, each one an array of
+     *            <code>{minx, miny, maxx, maxy, z}</code> tile ranges indexed by zoom level,
+     *            covering all the zoom levels of the grid subset
+     */
+    public void truncate(final String layerName, final String gridSetId,
+            final List<long[][]> rangeBatches) {
+
+        final TileLayer layer = getTileLayerByName(layerName);
+
+        final GridSubset gridSubset = layer.getGridSubset(gridSetId);
+        final Set<String> styleNames = getCachedStyles(layerName);
+        if (styleNames.size() == 0) {
+            styleNames.add("");
+        }
+        final String defaultStyle = layer.getStyles();
+        final int threadCount = 1;
+        final boolean filterUpdate = false;
+        for (String style : styleNames) {
+            Map<String, String> parameters = getStyleParameters(style, defaultStyle);
+            for (MimeType mime : layer.getMimeTypes()) {
+                for (long[][] rangeBounds : rangeBatches) {
+                    TileRange tr = new TileRange(layerName, gridSetId, gridSubset.getZoomStart(),
+                            gridSubset.getZoomStop(), rangeBounds, mime, parameters);
+                    try {
+                        GWCTask[] tasks = tileBreeder.createTasks(tr, TRUNCATE, threadCount,
+                                filterUpdate);
+                        tileBreeder.dispatchTasks(tasks);
+                    } catch (GeoWebCacheException e) {
+                        throw new RuntimeException(e);
+                    }
+                    reseedScheduler.reseed(layerName, gridSubset, mime, parameters, rangeBounds);
+                }
+            }
+        }
+        tileWarmer.warmUp(layerName);
+    }
+
+    private Map<String, String> getStyleParameters(final String style, final String defaultStyle) {
+        if (style.length() == 0 || style.equals(defaultStyle)) {
+            log.finer("'" + style + "' is the layer's default style, "
+                    + "not adding a parameter filter");
+            return null;
+        }
+        return Collections.singletonMap("STYLES", style);
     }
 
     private void truncate(final TileLayer layer, final BoundingBox bounds,
@@ -411,6 +513,9 @@ public class GWC implements DisposableBean, InitializingBean {
     public synchronized void layerRemoved(final String prefixedName) {
         // embeddedConfig.removeLayer(prefixedName);
         tld.remove(prefixedName);
+        memoryCache.invalidate(prefixedName);
+        reseedScheduler.remove(prefixedName);
+        tileWarmer.remove(prefixedName);
         try {
             storageBroker.delete(prefixedName);
         } catch (StorageException e) {
@@ -530,6 +635,119 @@ public class GWC implements DisposableBean, InitializingBean {
         return tileResp;
     }
 
+    /**
+     * Tries to serve a WMS GetMap request from the cache looking only at its raw parameters,
+     * before the OWS dispatcher parses it.
+     * <p>
+     * Only tiled requests for a single layer are considered, and all their parameters must be
+     * either part of the tile definition or handled by a parameter filter of the layer. The tile
+     * is looked up in the cache only, never rendered.
+     * </p>
+     * 
+     * @param rawKvp
+     *            the request parameters, with upper case keys
+     * @return the cached tile, or {@code null} if the request does not match a tile or the tile
+     *         is not cached, in which case the request has to go through the normal path
+     */
+    public ConveyorTile dispatchCached(final Map<String, String> rawKvp) {
+        if (!"GetMap".equalsIgnoreCase(rawKvp.get("REQUEST"))
+                || !"true".equalsIgnoreCase(rawKvp.get("TILED"))) {
+            return null;
+        }
+        final String layerName = rawKvp.get("LAYERS");
+        if (layerName == null || layerName.indexOf(',') != -1) {
+            return null;
+        }
+
+        final TileLayer tileLayer;
+        try {
+            tileLayer = this.tld.getTileLayer(layerName);
+        } catch (GeoWebCacheException e) {
+            return null;
+        }
+        if (!(tileLayer instanceof GeoServerTileLayer) || !tileLayer.isEnabled()) {
+            return null;
+        }
+
+        final Map<String, ParameterFilter> filters = getParameterFilters(tileLayer);
+        for (Map.Entry<String, String> entry : rawKvp.entrySet()) {
+            final String key = entry.getKey();
+            final String value = entry.getValue();
+            if (TILE_PARAMETERS.contains(key)) {
+                continue;
+            }
+            if ("STYLES".equals(key)
+                    && (value.length() == 0 || value.equals(tileLayer.getStyles()))) {
+                continue;
+            }
+            ParameterFilter filter = filters.get(key);
+            if (filter == null || !filter.applies(value)) {
+                return null;
+            }
+        }
+
+        final GridSubset gridSubset;
+        final BoundingBox tileBounds;
+        final MimeType mimeType;
+        try {
+            final String version = rawKvp.get("VERSION");
+            final String srs = rawKvp.containsKey("CRS") ? rawKvp.get("CRS") : rawKvp.get("SRS");
+            int epsgId = Integer.parseInt(srs.substring(srs.indexOf(':') + 1));
+            gridSubset = tileLayer.getGridSubsetForSRS(SRS.getSRS(epsgId));
+            if (gridSubset == null) {
+                return null;
+            }
+            if (Integer.parseInt(rawKvp.get("WIDTH")) != gridSubset.getTileWidth()
+                    || Integer.parseInt(rawKvp.get("HEIGHT")) != gridSubset.getTileHeight()) {
+                return null;
+            }
+
+            String[] bbox = rawKvp.get("BBOX").split(",");
+            if (bbox.length != 4) {
+                return null;
+            }
+            double[] coords = new double[4];
+            for (int i = 0; i < 4; i++) {
+                coords[i] = Double.parseDouble(bbox[i].trim());
+            }
+            // WMS 1.3 follows the axis order of the CRS, plain EPSG codes are forced to lon/lat
+            // order so decode the urn form the WMS 1.3 request reader uses
+            if (WMS.VERSION_1_3_0.equals(WMS.version(version))
+                    && CRS.getAxisOrder(CRS.decode(WMS.toInternalSRS(srs, WMS.VERSION_1_3_0)))
+                        == CRS.AxisOrder.NORTH_EAST) {
+                tileBounds = new BoundingBox(coords[1], coords[0], coords[3], coords[2]);
+            } else {
+                tileBounds = new BoundingBox(coords[0], coords[1], coords[2], coords[3]);
+            }
+
+            mimeType = MimeType.createFromFormat(rawKvp.get("FORMAT"));
+            if (!tileLayer.getMimeTypes().contains(mimeType)) {
+                return null;
+            }
+        } catch (Exception e) {
+            // missing or invalid parameters, let the normal path deal with them
+            return null;
+        }
+
+        try {
+            long[] tileIndex = gridSubset.closestIndex(tileBounds);
+            if (!gridSubset.covers(tileIndex)) {
+                return null;
+            }
+            Map<String, String> fullParameters = tileLayer.getModifiableParameters(rawKvp,
+                    "UTF-8");
+            ConveyorTile tileReq = new ConveyorTile(storageBroker, layerName,
+                    gridSubset.getName(), tileIndex, mimeType, fullParameters, null, null);
+            tileReq.setTileLayer(tileLayer);
+            return ((GeoServerTileLayer) tileLayer).getCachedTile(tileReq);
+        } catch (GridMismatchException e) {
+            return null;
+        } catch (Exception e) {
+            log.log(Level.FINE, "Failed to look up the cached tile, using the normal path", e);
+            return null;
+        }
+    }
+
     /**
      * Determines whether the given {@link GetMapRequest} is a candidate to match a GWC tile or not.
      * 
@@ -546,18 +764,7 @@ public class GWC implements DisposableBean, InitializingBean {
             return false;
         }
 
-        Map<String, ParameterFilter> filters;
-        {
-            List<ParameterFilter> parameterFilters = layer.getParameterFilters();
-            if (null != parameterFilters && parameterFilters.size() > 0) {
-                filters = new HashMap<String, ParameterFilter>();
-                for (ParameterFilter pf : parameterFilters) {
-                    filters.put(pf.getKey().toUpperCase(), pf);
-                }
-            } else {
-                filters = Collections.emptyMap();
-            }
-        }
+        Map<String, ParameterFilter> filters = getParameterFilters(layer);
 
         // if (request.isTransparent()) {
         // if (!filterApplies(filters, request, "TRANSPARENT")) {
@@ -647,6 +854,21 @@ public class GWC implements DisposableBean, InitializingBean {
         return true;
     }
 
+    /**
+     * @return the parameter filters of the layer, by upper case key
+     */
+    private Map<String, ParameterFilter> getParameterFilters(TileLayer layer) {
+        List<ParameterFilter> parameterFilters = layer.getParameterFilters();
+        if (null == parameterFilters || parameterFilters.size() == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, ParameterFilter> filters = new HashMap<String, ParameterFilter>();
+        for (ParameterFilter pf : parameterFilters) {
+            filters.put(pf.getKey().toUpperCase(), pf);
+        }
+        return filters;
+    }
+
     private boolean filterApplies(Map<String, ParameterFilter> filters, GetMapRequest request,
             String key) {
         ParameterFilter parameterFilter = filters.get(key);
@@ -766,11 +988,27 @@ public class GWC implements DisposableBean, InitializingBean {
     }
 
     /**
-     * Precondition: {@link #getDiskQuotaConfig() != null}
+     * Returns whether the used disk quota can be looked up, either because the disk quota module is
+     * available or because the {@link BatchedUsageStore} is enabled, in which case it replaces the
+     * disk quota module usage accounting.
+     */
+    public boolean isUsedQuotaAvailable() {
+        return isUsageStoreEnabled() || isDiskQuotaAvailable();
+    }
+
+    private boolean isUsageStoreEnabled() {
+        return usageStore != null && usageStore.isEnabled();
+    }
+
+    /**
+     * Precondition: {@link #isUsedQuotaAvailable()}
      * 
      * @return the globally used quota
      */
     public Quota getGlobalUsedQuota() {
+        if (isUsageStoreEnabled()) {
+            return new Quota(BigInteger.valueOf(usageStore.getGlobalUsedBytes()));
+        }
         Assert.isTrue(isDiskQuotaAvailable());
         try {
             return quotaStore.getGloballyUsedQuota();
@@ -802,11 +1040,14 @@ public class GWC implements DisposableBean, InitializingBean {
     }
 
     /**
-     * Precondition: {@link #isDiskQuotaAvailable()}
+     * Precondition: {@link #isUsedQuotaAvailable()}
      * 
      * @return the currently used disk quota for the layer or {@code null} if can't be determined
      */
     public Quota getUsedQuota(final String layerName) {
+        if (isUsageStoreEnabled()) {
+            return new Quota(BigInteger.valueOf(usageStore.getUsedBytes(layerName)));
+        }
         Assert.isTrue(isDiskQuotaAvailable());
         try {
             Quota usedQuotaByLayerName = quotaStore.getUsedQuotaByLayerName(layerName);
@@ -876,6 +1117,9 @@ public class GWC implements DisposableBean, InitializingBean {
             log.info("Renaming GWC TileLayer '" + oldLayerName + "' as '" + newLayerName + "'");
             // /embeddedConfig.rename(oldLayerName, newLayerName);
             storageBroker.rename(oldLayerName, newLayerName);
+            memoryCache.invalidate(oldLayerName);
+            reseedScheduler.remove(oldLayerName);
+            tileWarmer.remove(oldLayerName);
         } catch (StorageException e) {
             log.log(Level.WARNING, e.getMessage(), e);
         }
@@ -7,8 +7,10 @@
  */
 package org.geoserver.gwc;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,20 +28,30 @@ import net.opengis.wfs.UpdateElementType;
 import org.eclipse.emf.ecore.EObject;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
 import org.geoserver.gwc.layer.GeoServerTileLayer;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionPlugin;
 import org.geoserver.wfs.WFSException;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.renderer.lite.MetaBufferEstimator;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.GridSubset;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 import org.springframework.util.Assert;
 
+import com.vividsolutions.jts.geom.Geometry;
+
 /**
  * Listens to transactions (so far only issued by WFS) and truncates the cache for the affected area
  * of the layers involved in the transaction.
@@ -48,6 +60,14 @@ import org.springframework.util.Assert;
  * pick it up automatically and forward transaction events to it.
  * </p>
  * <p>
+ * By default the bounding box of the changed features is truncated at all zoom levels. When the
+ * <code>GWC_PRECISE_TRUNCATE</code> system variable is set to <code>true</code> the geometries of
+ * the changed features, both before and after the change, are collected instead and only the tiles
+ * they touch at each zoom level are truncated, taking into account the size of the symbols of the
+ * layer styles. The bounding box is still used for the transactions changing too many features, and
+ * for the layers whose styles symbol size can't be estimated.
+ * </p>
+ * <p>
  * TODO: upon deletion, only truncate if feature count > 0
  * </p>
  * 
@@ -64,11 +84,31 @@ public class GWCTransactionListener implements TransactionPlugin {
 
     private static final String GWC_TRANSACTION_INFO_PLACEHOLDER = "GWC_TRANSACTION_INFO_PLACEHOLDER";
 
+    private static final String GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER = "GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER";
+
+    /**
+     * The max number of changed geometries collected per layer, past which the bounding box of the
+     * changes is truncated instead
+     */
+    static final int MAX_GEOMETRIES = 1000;
+
+    /**
+     * The max number of tile ranges truncated per zoom level
+     */
+    static final int MAX_RANGES = 32;
+
+    final boolean precise;
+
     /**
      * @param gwc
      */
     public GWCTransactionListener(final GWC gwc) {
+        this(gwc, Boolean.valueOf(GeoServerExtensions.getProperty("GWC_PRECISE_TRUNCATE")));
+    }
+
+    GWCTransactionListener(final GWC gwc, boolean precise) {
         this.gwc = gwc;
+        this.precise = precise;
     }
 
     /**
@@ -117,7 +157,19 @@ public class GWCTransactionListener implements TransactionPlugin {
         if (byLayerDirtyRegions.isEmpty()) {
             return;
         }
+        final Map<String, DirtyGeometries> byLayerDirtyGeometries = getByLayerDirtyGeometries(transaction);
         for (String tileLayerName : byLayerDirtyRegions.keySet()) {
+            DirtyGeometries dirtyGeometries = byLayerDirtyGeometries.get(tileLayerName);
+            if (precise && dirtyGeometries != null && !dirtyGeometries.overflow) {
+                try {
+                    if (truncate(tileLayerName, dirtyGeometries)) {
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Error computing the tiles touched by the transaction "
+                            + "on " + tileLayerName + ", truncating its affected bounds", e);
+                }
+            }
             List<ReferencedEnvelope> dirtyList = byLayerDirtyRegions.get(tileLayerName);
             ReferencedEnvelope dirtyRegion;
             try {
@@ -138,6 +190,80 @@ public class GWCTransactionListener implements TransactionPlugin {
         }
     }
 
+    /**
+     * Truncates the tiles touched by the changed geometries in all the grid subsets of the layer
+     * 
+     * @return {@code false} if the symbol size of the layer styles can't be estimated, nothing
+     *         has been truncated
+     */
+    private boolean truncate(final String tileLayerName, final DirtyGeometries dirtyGeometries)
+            throws Exception {
+        final GeoServerTileLayer layer = (GeoServerTileLayer) gwc.getTileLayerByName(tileLayerName);
+        final int symbolSize = getSymbolSize(layer);
+        if (symbolSize < 0) {
+            return false;
+        }
+
+        // compute all the ranges before truncating anything, so that an error leaves the
+        // bounding box truncation as a fallback
+        Map<String, List<long[][]>> byGridSetBatches = new HashMap<String, List<long[][]>>();
+        for (GridSubset gridSubset : layer.getGridSubsets().values()) {
+            final CoordinateReferenceSystem gridSetCrs = CRS.decode("EPSG:"
+                    + gridSubset.getSRS().getNumber(), true);
+            DirtyTiles dirtyTiles = new DirtyTiles(gridSubset, symbolSize);
+            for (Map.Entry<CoordinateReferenceSystem, List<Geometry>> entry : dirtyGeometries.geometries
+                    .entrySet()) {
+                MathTransform transform = CRS.findMathTransform(entry.getKey(), gridSetCrs, true);
+                for (Geometry geometry : entry.getValue()) {
+                    dirtyTiles.add(JTS.transform(geometry, transform));
+                }
+            }
+            List<long[][]> batches = dirtyTiles.getBatches(MAX_RANGES);
+            if (!batches.isEmpty()) {
+                byGridSetBatches.put(gridSubset.getName(), batches);
+            }
+        }
+
+        for (Map.Entry<String, List<long[][]>> entry : byGridSetBatches.entrySet()) {
+            gwc.truncate(tileLayerName, entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Estimates the size, in pixels, of the biggest symbol used by the styles of the layer
+     * 
+     * @return the size, or {@code -1} if it can't be estimated
+     */
+    private int getSymbolSize(final GeoServerTileLayer layer) throws IOException {
+        final List<LayerInfo> layers = new ArrayList<LayerInfo>();
+        if (layer.getLayerInfo() != null) {
+            layers.add(layer.getLayerInfo());
+        } else {
+            layers.addAll(layer.getLayerGroupInfo().getLayers());
+        }
+
+        MetaBufferEstimator estimator = new MetaBufferEstimator();
+        int size = 0;
+        for (LayerInfo layerInfo : layers) {
+            Set<StyleInfo> styles = new HashSet<StyleInfo>(layerInfo.getStyles());
+            styles.add(layerInfo.getDefaultStyle());
+            for (StyleInfo style : styles) {
+                if (style != null) {
+                    style.getStyle().accept(estimator);
+                }
+            }
+            Integer layerBuffer = layerInfo.getMetadata().get(LayerInfo.BUFFER, Integer.class);
+            if (layerBuffer != null) {
+                size = Math.max(size, layerBuffer);
+            }
+        }
+        if (!estimator.isEstimateAccurate()) {
+            return -1;
+        }
+        return Math.max(size, estimator.getBuffer());
+    }
+
     private ReferencedEnvelope merge(final String tileLayerName,
             final List<ReferencedEnvelope> dirtyList) throws TransformException, FactoryException {
         if (dirtyList.size() == 0) {
@@ -216,6 +342,106 @@ public class GWCTransactionListener implements TransactionPlugin {
         for (String tileLayerName : affectedTileLayers) {
             addLayerDirtyRegion(transaction, tileLayerName, affectedBounds);
         }
+
+        if (precise) {
+            addLayersDirtyGeometries(transaction, affectedTileLayers, affectedFeatures);
+        }
+    }
+
+    /**
+     * Collects the geometries of the affected features, for the updates this is called both
+     * before and after the change, so both the old and new geometries are collected
+     */
+    private void addLayersDirtyGeometries(final TransactionType transaction,
+            final Set<String> affectedTileLayers, final SimpleFeatureCollection affectedFeatures) {
+
+        final Map<String, DirtyGeometries> byLayerDirtyGeometries = getByLayerDirtyGeometries(transaction);
+        int collected = 0;
+        for (String tileLayerName : affectedTileLayers) {
+            DirtyGeometries dirtyGeometries = byLayerDirtyGeometries.get(tileLayerName);
+            if (dirtyGeometries == null) {
+                dirtyGeometries = new DirtyGeometries();
+                byLayerDirtyGeometries.put(tileLayerName, dirtyGeometries);
+            }
+            collected = Math.max(collected, dirtyGeometries.count);
+        }
+        if (collected >= MAX_GEOMETRIES) {
+            // all the layers overflowed already, no need to read the features
+            return;
+        }
+
+        final CoordinateReferenceSystem crs = affectedFeatures.getSchema()
+                .getCoordinateReferenceSystem();
+        final List<Geometry> geometries = new ArrayList<Geometry>();
+        boolean overflow = crs == null;
+        if (!overflow) {
+            SimpleFeatureIterator it = affectedFeatures.features();
+            try {
+                while (it.hasNext()) {
+                    Object geometry = it.next().getDefaultGeometry();
+                    if (geometry instanceof Geometry) {
+                        if (geometries.size() + collected >= MAX_GEOMETRIES) {
+                            overflow = true;
+                            break;
+                        }
+                        geometries.add((Geometry) geometry);
+                    }
+                }
+            } finally {
+                it.close();
+            }
+        }
+
+        for (String tileLayerName : affectedTileLayers) {
+            byLayerDirtyGeometries.get(tileLayerName).add(crs, geometries, overflow);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, DirtyGeometries> getByLayerDirtyGeometries(
+            final TransactionType transaction) {
+
+        final Map<Object, Object> extendedProperties = transaction.getExtendedProperties();
+        Map<String, DirtyGeometries> byLayerDirtyGeometries;
+        byLayerDirtyGeometries = (Map<String, DirtyGeometries>) extendedProperties
+                .get(GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER);
+        if (byLayerDirtyGeometries == null) {
+            byLayerDirtyGeometries = new HashMap<String, DirtyGeometries>();
+            extendedProperties.put(GWC_TRANSACTION_GEOMETRIES_PLACEHOLDER,
+                    byLayerDirtyGeometries);
+        }
+        return byLayerDirtyGeometries;
+    }
+
+    /**
+     * The geometries changed by a transaction on a tile layer, by CRS
+     */
+    static class DirtyGeometries {
+        Map<CoordinateReferenceSystem, List<Geometry>> geometries = new HashMap<CoordinateReferenceSystem, List<Geometry>>();
+
+        int count;
+
+        boolean overflow;
+
+        void add(CoordinateReferenceSystem crs, List<Geometry> changed, boolean overflow) {
+            if (overflow || count + changed.size() > MAX_GEOMETRIES) {
+                this.overflow = true;
+                // no need to keep them around any longer
+                geometries.clear();
+                count = MAX_GEOMETRIES;
+                return;
+            }
+            if (this.overflow || changed.isEmpty()) {
+                return;
+            }
+            List<Geometry> list = geometries.get(crs);
+            if (list == null) {
+                list = new ArrayList<Geometry>();
+                geometries.put(crs, list);
+            }
+            list.addAll(changed);
+            count += changed.size();
+        }
     }
 
     @SuppressWarnings("unchecked")
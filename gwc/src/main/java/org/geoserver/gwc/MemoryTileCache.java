@@ -0,0 +1,502 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.StorageBroker;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * A byte budgeted, in memory tier for the most requested tiles, consulted by
+ * {@link org.geoserver.gwc.layer.GeoServerTileLayer} before going to the GWC storage broker.
+ * <p>
+ * The cache is split in segments, each one keeping its tiles in least recently used order and
+ * counting how many times each tile has been hit. When a segment goes over its share of the
+ * budget the least recently used tile is evicted only if it has not been hit since the last time
+ * it was considered, otherwise its hit count is halved and it gets another chance, so that
+ * frequently requested tiles survive a scan of cold ones.
+ * </p>
+ * <p>
+ * The cache listens to the blob store events, so that the tiles deleted or updated on disk, be it
+ * by a truncate task, the GWC REST API or a layer removal, are evicted as well. Each layer has a
+ * generation number that every invalidation increments: callers read it before loading or
+ * rendering a tile and pass it to {@link #put(TileKey, byte[], long)}, which discards the tile if
+ * the layer has been invalidated in the meantime, so that a tile read from disk just before being
+ * deleted cannot make its way back into the cache.
+ * </p>
+ * <p>
+ * The size, in megabytes, is set with the <code>GWC_MEMORY_CACHE_SIZE</code> system variable, the
+ * cache is disabled when the variable is not set. The hit ratio, evictions and memory usage are
+ * published over JMX, see {@link MemoryTileCacheMXBean}.
+ * </p>
+ */
+public class MemoryTileCache implements BlobStoreListener, MemoryTileCacheMXBean,
+        DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(MemoryTileCache.class);
+
+    static final String MBEAN_NAME = "org.geoserver:type=MemoryTileCache";
+
+    static final int SEGMENTS = 16;
+
+    /**
+     * The max value of the per tile hit counters
+     */
+    static final int MAX_FREQUENCY = 15;
+
+    final long maxBytes;
+
+    final Segment[] segments;
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Whether this cache registered the MBean, only the one listening to the storage broker does
+     */
+    boolean registered;
+
+    final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Creates a cache sized after the <code>GWC_MEMORY_CACHE_SIZE</code> variable, listening to
+     * the blob store events of the storage broker
+     */
+    public MemoryTileCache(StorageBroker storageBroker) {
+        this(getConfiguredSize());
+        if (isEnabled()) {
+            storageBroker.addBlobStoreListener(this);
+            registerMBean();
+        }
+    }
+
+    /**
+     * @param maxBytes
+     *            the memory budget, zero or less disables the cache
+     */
+    public MemoryTileCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(this.maxBytes / SEGMENTS);
+        }
+    }
+
+    static long getConfiguredSize() {
+        String size = GeoServerExtensions.getProperty("GWC_MEMORY_CACHE_SIZE");
+        if (size == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(size.trim()) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid GWC_MEMORY_CACHE_SIZE value " + size
+                    + ", the in memory tile cache is disabled");
+            return 0;
+        }
+    }
+
+    void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                // left behind by a previous instance
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registered = true;
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not register the memory tile cache MBean", e);
+        }
+    }
+
+    public void destroy() throws Exception {
+        if (!registered) {
+            return;
+        }
+        registered = false;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not unregister the memory tile cache MBean", e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Returns the contents of the tile, or null if the tile is not cached
+     */
+    public byte[] get(TileKey key) {
+        byte[] contents = segment(key).get(key);
+        if (contents == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return contents;
+    }
+
+    /**
+     * Returns the current generation of the layer, to be read before loading or rendering a tile
+     * that is going to be {@link #put(TileKey, byte[], long) put} in the cache
+     */
+    public long getGeneration(String layerName) {
+        return generation(layerName).get();
+    }
+
+    private AtomicLong generation(String layerName) {
+        AtomicLong generation = generations.get(layerName);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = generations.putIfAbsent(layerName, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * Caches the contents of a tile, unless they are too big to fit comfortably in a segment or
+     * the layer has been invalidated since the specified generation
+     * 
+     * @return whether the tile has been cached
+     */
+    public boolean put(TileKey key, byte[] contents, long generation) {
+        Segment segment = segment(key);
+        if (contents.length > segment.maxBytes / 8) {
+            return false;
+        }
+        return segment.put(key, contents, generation(key.layerName), generation);
+    }
+
+    public void remove(TileKey key) {
+        segment(key).remove(key);
+    }
+
+    /**
+     * Removes all the tiles of the specified layer
+     */
+    public void invalidate(String layerName) {
+        invalidate(layerName, null, null, null);
+    }
+
+    /**
+     * Removes the tiles of the specified layer matching the grid set, format and tile index, for
+     * any set of parameters. A null value matches any grid set, format or tile
+     */
+    void invalidate(String layerName, String gridSetId, String format, long[] index) {
+        // the generation is incremented first, the segments sweep happens under the same lock
+        // the puts check it with
+        generation(layerName).incrementAndGet();
+        if (index != null) {
+            segments[segmentIndex(TileKey.positionHash(layerName, gridSetId, index))].invalidate(
+                    layerName, gridSetId, format, index);
+        } else {
+            for (Segment segment : segments) {
+                segment.invalidate(layerName, gridSetId, format, null);
+            }
+        }
+    }
+
+    public void clear() {
+        for (AtomicLong generation : generations.values()) {
+            generation.incrementAndGet();
+        }
+        for (Segment segment : segments) {
+            segment.invalidate(null, null, null, null);
+        }
+    }
+
+    /*
+     * BlobStoreListener, the stored tiles are cached by the layer that renders them, the updated,
+     * deleted and renamed ones are evicted
+     */
+
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        // nothing to do
+    }
+
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        invalidate(layerName, gridSetId, blobFormat, new long[] { x, y, z });
+    }
+
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        invalidate(layerName, gridSetId, blobFormat, new long[] { x, y, z });
+    }
+
+    public void layerDeleted(String layerName) {
+        invalidate(layerName);
+    }
+
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        invalidate(oldLayerName);
+        invalidate(newLayerName);
+    }
+
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        invalidate(layerName, gridSetId, null, null);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : ((double) h) / total;
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getBytes();
+        }
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    public int getTileCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.getCount();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryTileCache[tiles=" + getTileCount() + ", size=" + getSize() + "/" + maxBytes
+                + ", hitRatio=" + getHitRatio() + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * The segment is picked from the tile position only, so that all the formats and parameters of
+     * a deleted tile can be found in a single segment
+     */
+    Segment segment(TileKey key) {
+        return segments[segmentIndex(key.positionHash)];
+    }
+
+    static int segmentIndex(int hash) {
+        int h = hash ^ (hash >>> 16);
+        return h & (SEGMENTS - 1);
+    }
+
+    static class Entry {
+        byte[] contents;
+
+        int frequency;
+
+        Entry(byte[] contents) {
+            this.contents = contents;
+        }
+    }
+
+    class Segment {
+        final long maxBytes;
+
+        final LinkedHashMap<TileKey, Entry> entries = new LinkedHashMap<TileKey, Entry>(64, 0.75f,
+                true);
+
+        long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(TileKey key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.frequency < MAX_FREQUENCY) {
+                entry.frequency++;
+            }
+            return entry.contents;
+        }
+
+        synchronized boolean put(TileKey key, byte[] contents, AtomicLong layerGeneration,
+                long generation) {
+            if (layerGeneration.get() != generation) {
+                return false;
+            }
+            Entry previous = entries.put(key, new Entry(contents));
+            if (previous != null) {
+                bytes -= previous.contents.length;
+            }
+            bytes += contents.length;
+            evict();
+            return true;
+        }
+
+        synchronized void remove(TileKey key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                bytes -= entry.contents.length;
+            }
+        }
+
+        synchronized void invalidate(String layerName, String gridSetId, String format,
+                long[] index) {
+            for (Iterator<Map.Entry<TileKey, Entry>> it = entries.entrySet().iterator(); it
+                    .hasNext();) {
+                Map.Entry<TileKey, Entry> e = it.next();
+                if (e.getKey().matches(layerName, gridSetId, format, index)) {
+                    bytes -= e.getValue().contents.length;
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Evicts the least recently used tiles that have not been hit since their last chance,
+         * until the segment fits in its budget
+         */
+        void evict() {
+            while (bytes > maxBytes && !entries.isEmpty()) {
+                Map.Entry<TileKey, Entry> eldest = entries.entrySet().iterator().next();
+                Entry entry = eldest.getValue();
+                if (entry.frequency > 0) {
+                    // give it another chance, moving it to the most recently used end
+                    entry.frequency >>= 1;
+                    entries.get(eldest.getKey());
+                } else {
+                    entries.remove(eldest.getKey());
+                    bytes -= entry.contents.length;
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        synchronized int getCount() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Identifies a tile of a layer, grid set, format and set of parameters
+     */
+    public static class TileKey {
+        final String layerName;
+
+        final String gridSetId;
+
+        final long x, y, z;
+
+        final String format;
+
+        final String parameters;
+
+        final int hashCode;
+
+        final int positionHash;
+
+        /**
+         * @param parameters
+         *            the parameters identifying the tile set, normalized so that equal parameters
+         *            result in the same string, or null if the tile uses the default ones
+         */
+        public TileKey(String layerName, String gridSetId, long[] index, String format,
+                String parameters) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.x = index[0];
+            this.y = index[1];
+            this.z = index[2];
+            this.format = format;
+            this.parameters = parameters;
+            this.hashCode = Arrays.hashCode(new Object[] { layerName, gridSetId, x, y, z, format,
+                    parameters });
+            this.positionHash = positionHash(layerName, gridSetId, index);
+        }
+
+        static int positionHash(String layerName, String gridSetId, long[] index) {
+            return Arrays.hashCode(new Object[] { layerName, gridSetId, index[0], index[1],
+                    index[2] });
+        }
+
+        /**
+         * Whether the tile matches the specified layer, grid set, format and index, null values
+         * matching anything
+         */
+        boolean matches(String layerName, String gridSetId, String format, long[] index) {
+            return (layerName == null || layerName.equals(this.layerName))
+                    && (gridSetId == null || gridSetId.equals(this.gridSetId))
+                    && (format == null || format.equals(this.format))
+                    && (index == null || (index[0] == x && index[1] == y && index[2] == z));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return x == other.x && y == other.y && z == other.z
+                    && layerName.equals(other.layerName) && gridSetId.equals(other.gridSetId)
+                    && format.equals(other.format)
+                    && (parameters == null ? other.parameters == null : parameters
+                            .equals(other.parameters));
+        }
+
+        @Override
+        public String toString() {
+            return layerName + "/" + gridSetId + "/" + format + "/" + z + "/" + x + "/" + y
+                    + (parameters != null ? "?" + parameters : "");
+        }
+    }
+}
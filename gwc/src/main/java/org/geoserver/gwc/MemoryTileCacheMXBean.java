@@ -0,0 +1,47 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+/**
+ * Management interface of the {@link MemoryTileCache}, registered as
+ * <code>org.geoserver:type=MemoryTileCache</code> when the cache is enabled.
+ */
+public interface MemoryTileCacheMXBean {
+
+    /**
+     * The number of lookups that found the tile in memory
+     */
+    long getHitCount();
+
+    /**
+     * The number of lookups that did not find the tile in memory
+     */
+    long getMissCount();
+
+    /**
+     * The ratio between hits and lookups, between 0 and 1
+     */
+    double getHitRatio();
+
+    /**
+     * The number of tiles evicted to stay within the memory budget
+     */
+    long getEvictionCount();
+
+    /**
+     * The memory used by the cached tiles, in bytes
+     */
+    long getSize();
+
+    /**
+     * The memory budget, in bytes
+     */
+    long getMaxSize();
+
+    /**
+     * The number of cached tiles
+     */
+    int getTileCount();
+}
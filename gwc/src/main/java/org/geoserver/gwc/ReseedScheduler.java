@@ -0,0 +1,543 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.StorageBroker;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Re-renders in the background the tiles of the top zoom levels that have just been truncated, so
+ * that the users coming after a data or style change do not all hit cold tiles at once.
+ * <p>
+ * The truncated ranges are queued, lower zoom levels first, and seeded one meta tile at a time by
+ * a single low priority thread, at a limited pace. Before each meta tile the thread checks the
+ * {@link ControlFlowPressure} and pauses while live requests are waiting in the control-flow
+ * queues. The ranges are seeded only once the truncate tasks of their layer are done.
+ * </p>
+ * <p>
+ * The scheduler is configured with the following system variables:
+ * <ul>
+ * <li><code>GWC_RESEED_LEVELS</code>: the number of zoom levels, starting from the top one, to
+ * re-seed. The scheduler is disabled when not set</li>
+ * <li><code>GWC_RESEED_RATE</code>: the max number of tiles seeded per second, 20 by default</li>
+ * <li><code>GWC_RESEED_PRIORITY</code>: the priority of the seeding thread, from 1 to 10,
+ * {@link Thread#MIN_PRIORITY} by default</li>
+ * <li><code>GWC_RESEED_MAX_WAITING</code>: the number of requests that can be waiting in the
+ * control-flow queues before the seeding pauses, 0 by default</li>
+ * <li><code>GWC_RESEED_MAX_TILES</code>: the max number of tiles in the backlog, ranges coming in
+ * when it's full are dropped, 100000 by default</li>
+ * </ul>
+ * </p>
+ */
+public class ReseedScheduler implements DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(ReseedScheduler.class);
+
+    /**
+     * How long the seeding thread sleeps when there is live traffic waiting, or the truncation
+     * of the next range is still running
+     */
+    static final long PAUSE = 500;
+
+    final TileLayerDispatcher tld;
+
+    final StorageBroker storageBroker;
+
+    final TileBreeder tileBreeder;
+
+    final ControlFlowPressure pressure;
+
+    final int levels;
+
+    final double rate;
+
+    final int priority;
+
+    final int maxWaiting;
+
+    final long maxTiles;
+
+    final PriorityQueue<ReseedTask> queue = new PriorityQueue<ReseedTask>(16,
+            new Comparator<ReseedTask>() {
+                public int compare(ReseedTask t1, ReseedTask t2) {
+                    if (t1.getZoomLevel() != t2.getZoomLevel()) {
+                        return t1.getZoomLevel() < t2.getZoomLevel() ? -1 : 1;
+                    }
+                    return t1.sequence < t2.sequence ? -1 : (t1.sequence == t2.sequence ? 0 : 1);
+                }
+            });
+
+    /**
+     * The task being seeded, guarded by the scheduler lock like the queue
+     */
+    ReseedTask current;
+
+    long sequence;
+
+    long pendingTiles;
+
+    final AtomicLong seededTiles = new AtomicLong();
+
+    final AtomicLong droppedTiles = new AtomicLong();
+
+    final AtomicLong pauses = new AtomicLong();
+
+    Thread worker;
+
+    public ReseedScheduler(TileLayerDispatcher tld, StorageBroker storageBroker,
+            TileBreeder tileBreeder, ControlFlowPressure pressure) {
+        this(tld, storageBroker, tileBreeder, pressure, getProperty("GWC_RESEED_LEVELS", 0),
+                getProperty("GWC_RESEED_RATE", 20), getProperty("GWC_RESEED_PRIORITY",
+                        Thread.MIN_PRIORITY), getProperty("GWC_RESEED_MAX_WAITING", 0),
+                getProperty("GWC_RESEED_MAX_TILES", 100000));
+        if (isEnabled()) {
+            start();
+        }
+    }
+
+    /**
+     * Builds a scheduler without starting its thread, the tasks are then seeded only calling
+     * {@link #seedNext()}
+     */
+    ReseedScheduler(TileLayerDispatcher tld, StorageBroker storageBroker,
+            TileBreeder tileBreeder, ControlFlowPressure pressure, int levels, double rate,
+            int priority, int maxWaiting, long maxTiles) {
+        this.tld = tld;
+        this.storageBroker = storageBroker;
+        this.tileBreeder = tileBreeder;
+        this.pressure = pressure;
+        this.levels = Math.max(0, levels);
+        this.rate = rate;
+        this.priority = Math.min(Thread.MAX_PRIORITY, Math.max(Thread.MIN_PRIORITY, priority));
+        this.maxWaiting = maxWaiting;
+        this.maxTiles = maxTiles;
+    }
+
+    static int getProperty(String name, int defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid " + name + " value " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean isEnabled() {
+        return levels > 0;
+    }
+
+    synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            public void run() {
+                seed();
+            }
+        }, "GWC reseeder");
+        worker.setDaemon(true);
+        worker.setPriority(priority);
+        worker.start();
+    }
+
+    public void destroy() throws Exception {
+        Thread worker;
+        synchronized (this) {
+            worker = this.worker;
+            this.worker = null;
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queues the tiles of the top zoom levels of the grid subset intersecting the bounds
+     *
+     * @param bounds
+     *            the truncated bounds, or {@code null} for the whole grid subset
+     */
+    public void reseed(String layerName, GridSubset gridSubset, MimeType mimeType,
+            Map<String, String> parameters, BoundingBox bounds) {
+        if (!isEnabled()) {
+            return;
+        }
+        long[][] rangeBounds = new long[gridSubset.getZoomStop() + 1][];
+        for (int z = gridSubset.getZoomStart(); z <= getLastLevel(gridSubset); z++) {
+            rangeBounds[z] = bounds == null ? gridSubset.getCoverage(z) : gridSubset
+                    .getCoverageIntersection(z, bounds);
+        }
+        reseed(layerName, gridSubset, mimeType, parameters, rangeBounds);
+    }
+
+    /**
+     * Queues the tiles of the top zoom levels of the grid subset falling in the ranges
+     *
+     * @param rangeBounds
+     *            the truncated ranges, as <code>{minx, miny, maxx, maxy, z}</code> indexed by zoom
+     *            level
+     */
+    public void reseed(String layerName, GridSubset gridSubset, MimeType mimeType,
+            Map<String, String> parameters, long[][] rangeBounds) {
+        if (!isEnabled()) {
+            return;
+        }
+        final int lastLevel = Math.min(getLastLevel(gridSubset), rangeBounds.length - 1);
+        for (int z = gridSubset.getZoomStart(); z <= lastLevel; z++) {
+            long[] range = rangeBounds[z];
+            if (range == null || range[0] > range[2] || range[1] > range[3]) {
+                continue;
+            }
+            Map<String, String> taskParameters = parameters == null ? new HashMap<String, String>()
+                    : new HashMap<String, String>(parameters);
+            ReseedTask task = new ReseedTask(layerName, gridSubset.getName(), mimeType,
+                    taskParameters, new long[] { range[0], range[1], range[2], range[3], z });
+            enqueue(task);
+        }
+    }
+
+    private int getLastLevel(GridSubset gridSubset) {
+        return Math.min(gridSubset.getZoomStop(), gridSubset.getZoomStart() + levels - 1);
+    }
+
+    private synchronized void enqueue(ReseedTask task) {
+        for (ReseedTask queued : queue) {
+            if (queued.isSameRange(task)) {
+                return;
+            }
+        }
+        if (pendingTiles + task.tiles > maxTiles) {
+            droppedTiles.addAndGet(task.tiles);
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Re-seeding backlog full, dropping " + task);
+            }
+            return;
+        }
+        task.sequence = sequence++;
+        queue.add(task);
+        pendingTiles += task.tiles;
+        notifyAll();
+    }
+
+    /**
+     * Drops the queued tasks of a layer, removed or renamed
+     */
+    public synchronized void remove(String layerName) {
+        for (Iterator<ReseedTask> it = queue.iterator(); it.hasNext();) {
+            ReseedTask task = it.next();
+            if (task.layerName.equals(layerName)) {
+                pendingTiles -= task.getPendingTiles();
+                it.remove();
+            }
+        }
+        if (current != null && current.layerName.equals(layerName)) {
+            pendingTiles -= current.getPendingTiles();
+            current = null;
+        }
+    }
+
+    /**
+     * Drops the whole backlog
+     */
+    public synchronized void clear() {
+        queue.clear();
+        pendingTiles = current == null ? 0 : current.getPendingTiles();
+    }
+
+    /**
+     * Returns a snapshot of the backlog, the task being seeded first
+     */
+    public synchronized List<ReseedTask> getBacklog() {
+        List<ReseedTask> backlog = new ArrayList<ReseedTask>(queue.size() + 1);
+        if (current != null) {
+            backlog.add(current.copy());
+        }
+        ReseedTask[] queued = queue.toArray(new ReseedTask[queue.size()]);
+        Arrays.sort(queued, queue.comparator());
+        for (ReseedTask task : queued) {
+            backlog.add(task.copy());
+        }
+        return backlog;
+    }
+
+    public synchronized long getPendingTiles() {
+        return pendingTiles;
+    }
+
+    public long getSeededTiles() {
+        return seededTiles.get();
+    }
+
+    public long getDroppedTiles() {
+        return droppedTiles.get();
+    }
+
+    /**
+     * Returns how many times the seeding paused to let the live requests through
+     */
+    public long getPauseCount() {
+        return pauses.get();
+    }
+
+    /**
+     * Whether the live requests are queuing up in the control-flow queues
+     */
+    boolean isUnderPressure() {
+        return pressure != null && pressure.getWaitingRequests() > maxWaiting;
+    }
+
+    private void seed() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                synchronized (this) {
+                    while (current == null && queue.isEmpty()) {
+                        wait();
+                    }
+                }
+                if (isUnderPressure()) {
+                    pauses.incrementAndGet();
+                    Thread.sleep(PAUSE);
+                    continue;
+                }
+                long start = System.currentTimeMillis();
+                int tiles = seedNext();
+                if (tiles < 0) {
+                    Thread.sleep(PAUSE);
+                } else if (tiles > 0 && rate > 0) {
+                    long pause = (long) (tiles * 1000 / rate)
+                            - (System.currentTimeMillis() - start);
+                    if (pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.fine("Re-seeding thread stopped");
+        }
+    }
+
+    /**
+     * Seeds the next meta tile of the backlog
+     *
+     * @return the number of tiles seeded, -1 if the next range cannot be seeded yet because its
+     *         layer is still being truncated
+     */
+    int seedNext() {
+        ReseedTask task;
+        long[] gridLoc;
+        int tiles;
+        TileLayer layer;
+        synchronized (this) {
+            if (current == null) {
+                current = queue.peek();
+                if (current == null) {
+                    return 0;
+                }
+                if (isTruncating(tileBreeder, current.layerName)) {
+                    current = null;
+                    return -1;
+                }
+                queue.poll();
+            }
+            task = current;
+            try {
+                layer = tld.getTileLayer(task.layerName);
+            } catch (GeoWebCacheException e) {
+                // the layer is gone
+                pendingTiles -= task.getPendingTiles();
+                current = null;
+                return 0;
+            }
+            int[] metaTiling = layer.getMetaTilingFactors();
+            if (!task.mimeType.supportsTiling()) {
+                metaTiling = new int[] { 1, 1 };
+            }
+            gridLoc = task.next(metaTiling);
+            tiles = task.lastStep;
+            pendingTiles -= tiles;
+            if (task.isDone()) {
+                current = null;
+            }
+        }
+
+        if (!layer.isEnabled()) {
+            return 0;
+        }
+        ConveyorTile tile = new ConveyorTile(storageBroker, task.layerName, task.gridSetId,
+                gridLoc, task.mimeType, task.parameters, null, null);
+        tile.setTileLayer(layer);
+        try {
+            layer.seedTile(tile, true);
+            seededTiles.addAndGet(tiles);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to re-seed tile " + Arrays.toString(gridLoc)
+                    + " of layer " + task.layerName, e);
+        }
+        return tiles;
+    }
+
+    /**
+     * Whether a truncate task for the layer is running or waiting to run
+     */
+    static boolean isTruncating(TileBreeder tileBreeder, String layerName) {
+        Iterator<GWCTask> tasks = tileBreeder.getRunningAndPendingTasks();
+        while (tasks != null && tasks.hasNext()) {
+            GWCTask task = tasks.next();
+            if (task.getType() == GWCTask.TYPE.TRUNCATE && layerName.equals(task.getLayerName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A range of tiles of a single zoom level waiting to be re-seeded
+     */
+    public static class ReseedTask {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final MimeType mimeType;
+
+        final Map<String, String> parameters;
+
+        /**
+         * The range, as <code>{minx, miny, maxx, maxy, z}</code>
+         */
+        final long[] range;
+
+        final long tiles;
+
+        long sequence;
+
+        /**
+         * The origin of the next meta tile to seed
+         */
+        long nextX, nextY;
+
+        long seeded;
+
+        int lastStep;
+
+        ReseedTask(String layerName, String gridSetId, MimeType mimeType,
+                Map<String, String> parameters, long[] range) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.mimeType = mimeType;
+            this.parameters = parameters;
+            this.range = range;
+            this.tiles = (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+            this.nextX = range[0];
+            this.nextY = range[1];
+        }
+
+        ReseedTask copy() {
+            ReseedTask copy = new ReseedTask(layerName, gridSetId, mimeType, parameters, range);
+            copy.sequence = sequence;
+            copy.nextX = nextX;
+            copy.nextY = nextY;
+            copy.seeded = seeded;
+            return copy;
+        }
+
+        boolean isSameRange(ReseedTask other) {
+            return layerName.equals(other.layerName) && gridSetId.equals(other.gridSetId)
+                    && mimeType.equals(other.mimeType) && parameters.equals(other.parameters)
+                    && Arrays.equals(range, other.range);
+        }
+
+        /**
+         * Returns the index of a tile of the next meta tile to seed, and moves on to the following
+         * one. The meta tiles are aligned to the grid like the ones rendered for live requests.
+         */
+        long[] next(int[] metaTiling) {
+            final long metaX = metaTiling[0];
+            final long metaY = metaTiling[1];
+            long[] gridLoc = new long[] { nextX, nextY, range[4] };
+            long stopX = Math.min(range[2], (nextX / metaX + 1) * metaX - 1);
+            long stopY = Math.min(range[3], (nextY / metaY + 1) * metaY - 1);
+            lastStep = (int) ((stopX - nextX + 1) * (stopY - nextY + 1));
+
+            nextX = stopX + 1;
+            if (nextX > range[2]) {
+                nextX = range[0];
+                nextY = stopY + 1;
+            }
+            seeded += lastStep;
+            return gridLoc;
+        }
+
+        boolean isDone() {
+            return nextY > range[3];
+        }
+
+        public String getLayerName() {
+            return layerName;
+        }
+
+        public String getGridSetId() {
+            return gridSetId;
+        }
+
+        public String getFormat() {
+            return mimeType.getFormat();
+        }
+
+        public Map<String, String> getParameters() {
+            return Collections.unmodifiableMap(parameters);
+        }
+
+        public int getZoomLevel() {
+            return (int) range[4];
+        }
+
+        /**
+         * The range, as <code>{minx, miny, maxx, maxy, z}</code>
+         */
+        public long[] getRange() {
+            return range.clone();
+        }
+
+        public long getPendingTiles() {
+            return tiles - seeded;
+        }
+
+        @Override
+        public String toString() {
+            return "ReseedTask[" + layerName + ", " + gridSetId + ", " + mimeType.getFormat()
+                    + ", " + parameters + ", " + Arrays.toString(range) + "]";
+        }
+    }
+}
@@ -0,0 +1,633 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.mime.MimeException;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageBroker;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Keeps a sampled record of the most requested tiles of each tile set and pre-renders the hottest
+ * ones of a layer after it's been truncated, and of all layers on startup.
+ * <p>
+ * One tile request out of <code>GWC_WARMUP_SAMPLING</code> is counted. Each tile set (layer, grid
+ * set, format and parameters) tracks a bounded number of tiles: when it's full a new tile replaces
+ * the least requested one, unless that one is hotter. Every ten times as many samples as tracked
+ * tiles all the counts are halved and the tiles left at zero dropped, so that the record follows
+ * the recent traffic without the long tail of tiles requested once pushing out the hot ones. The
+ * record is saved in the GWC cache directory on shutdown and loaded back on startup.
+ * </p>
+ * <p>
+ * The warm-up runs on a single low priority thread, seeding the tiles through
+ * {@link TileLayer#seedTile(ConveyorTile, boolean)} once the truncate tasks of the layer are done.
+ * Each warm-up is bounded in time and the thread sleeps after each meta tile so that it's busy
+ * only a share of the time. Like the {@link ReseedScheduler} it pauses while live requests are
+ * waiting in the control-flow queues.
+ * </p>
+ * <p>
+ * The warmer is configured with the following system variables:
+ * <ul>
+ * <li><code>GWC_WARMUP_TILES</code>: the number of hottest tiles pre-rendered for each layer. The
+ * warmer is disabled when not set</li>
+ * <li><code>GWC_WARMUP_SAMPLING</code>: one request out of this many is counted, 10 by default</li>
+ * <li><code>GWC_WARMUP_TRACKED_TILES</code>: the max number of tiles tracked per tile set, 4 times
+ * the warm-up tiles by default</li>
+ * <li><code>GWC_WARMUP_TIME</code>: the max duration of the warm-up of a layer, in seconds, 60 by
+ * default</li>
+ * <li><code>GWC_WARMUP_CPU</code>: the percentage of time the warm-up thread can be busy, 25 by
+ * default</li>
+ * <li><code>GWC_WARMUP_STARTUP_DELAY</code>: how long to wait after startup before warming up all
+ * the layers, in seconds, 60 by default</li>
+ * </ul>
+ * </p>
+ */
+public class TileWarmer implements DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(TileWarmer.class);
+
+    static final String RECORD_FILE = "gwc-tile-access.txt";
+
+    /**
+     * How long the warm-up thread sleeps when there is live traffic waiting, or the truncation of
+     * the layer is still running
+     */
+    static final long PAUSE = 500;
+
+    final TileLayerDispatcher tld;
+
+    final StorageBroker storageBroker;
+
+    final TileBreeder tileBreeder;
+
+    final ControlFlowPressure pressure;
+
+    final int warmUpTiles;
+
+    final int sampling;
+
+    final int trackedTiles;
+
+    final long maxTime;
+
+    final int cpuShare;
+
+    final ConcurrentMap<TileSetKey, TileSetAccess> record = new ConcurrentHashMap<TileSetKey, TileSetAccess>();
+
+    final AtomicLong requests = new AtomicLong();
+
+    final AtomicLong warmedTiles = new AtomicLong();
+
+    /**
+     * The layers waiting to be warmed up, guarded by the warmer lock
+     */
+    final Set<String> pending = new LinkedHashSet<String>();
+
+    File recordFile;
+
+    Thread worker;
+
+    public TileWarmer(TileLayerDispatcher tld, StorageBroker storageBroker,
+            TileBreeder tileBreeder, ControlFlowPressure pressure,
+            DefaultStorageFinder storageFinder) {
+        this(tld, storageBroker, tileBreeder, pressure, ReseedScheduler.getProperty(
+                "GWC_WARMUP_TILES", 0), ReseedScheduler.getProperty("GWC_WARMUP_SAMPLING", 10),
+                ReseedScheduler.getProperty("GWC_WARMUP_TRACKED_TILES", 0), ReseedScheduler
+                        .getProperty("GWC_WARMUP_TIME", 60) * 1000L, ReseedScheduler.getProperty(
+                        "GWC_WARMUP_CPU", 25));
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            recordFile = new File(storageFinder.getDefaultPath(), RECORD_FILE);
+            if (recordFile.exists()) {
+                load(recordFile);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to load the tile access record", e);
+        }
+        start(ReseedScheduler.getProperty("GWC_WARMUP_STARTUP_DELAY", 60) * 1000L);
+    }
+
+    /**
+     * Builds a warmer without starting its thread, the layers are then warmed up only calling
+     * {@link #warmUpNow(String)}
+     */
+    TileWarmer(TileLayerDispatcher tld, StorageBroker storageBroker, TileBreeder tileBreeder,
+            ControlFlowPressure pressure, int warmUpTiles, int sampling, int trackedTiles,
+            long maxTime, int cpuShare) {
+        this.tld = tld;
+        this.storageBroker = storageBroker;
+        this.tileBreeder = tileBreeder;
+        this.pressure = pressure;
+        this.warmUpTiles = Math.max(0, warmUpTiles);
+        this.sampling = Math.max(1, sampling);
+        this.trackedTiles = trackedTiles > 0 ? trackedTiles : 4 * this.warmUpTiles;
+        this.maxTime = maxTime;
+        this.cpuShare = Math.min(100, Math.max(1, cpuShare));
+    }
+
+    public boolean isEnabled() {
+        return warmUpTiles > 0;
+    }
+
+    synchronized void start(final long startupDelay) {
+        if (worker != null) {
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(startupDelay);
+                    warmUpAll();
+                    warmUp();
+                } catch (InterruptedException e) {
+                    LOGGER.fine("Warm-up thread stopped");
+                }
+            }
+        }, "GWC warm-up");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    public void destroy() throws Exception {
+        Thread worker;
+        synchronized (this) {
+            worker = this.worker;
+            this.worker = null;
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+        if (recordFile != null) {
+            try {
+                save(recordFile);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save the tile access record", e);
+            }
+        }
+    }
+
+    /**
+     * Counts a tile request, if sampled
+     */
+    public void record(ConveyorTile tile) {
+        if (!isEnabled() || requests.incrementAndGet() % sampling != 0) {
+            return;
+        }
+        TileSetKey key = new TileSetKey(tile.getLayerId(), tile.getGridSetId(), tile
+                .getMimeType(), tile.getFullParameters());
+        TileSetAccess access = record.get(key);
+        if (access == null) {
+            access = new TileSetAccess(key);
+            TileSetAccess existing = record.putIfAbsent(key, access);
+            if (existing != null) {
+                access = existing;
+            }
+        }
+        long[] index = tile.getTileIndex();
+        access.sample(new TileIndex(index[0], index[1], (int) index[2]), trackedTiles);
+    }
+
+    /**
+     * Queues the warm-up of a layer
+     */
+    public synchronized void warmUp(String layerName) {
+        if (!isEnabled()) {
+            return;
+        }
+        pending.add(layerName);
+        notifyAll();
+    }
+
+    /**
+     * Queues the warm-up of all the layers in the record
+     */
+    public synchronized void warmUpAll() {
+        for (TileSetKey key : record.keySet()) {
+            pending.add(key.layerName);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forgets a layer, removed or renamed
+     */
+    public synchronized void remove(String layerName) {
+        pending.remove(layerName);
+        for (Iterator<TileSetKey> it = record.keySet().iterator(); it.hasNext();) {
+            if (it.next().layerName.equals(layerName)) {
+                it.remove();
+            }
+        }
+    }
+
+    public long getWarmedTiles() {
+        return warmedTiles.get();
+    }
+
+    private void warmUp() throws InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            String layerName;
+            synchronized (this) {
+                while (pending.isEmpty()) {
+                    wait();
+                }
+                Iterator<String> it = pending.iterator();
+                layerName = it.next();
+                it.remove();
+            }
+            while (ReseedScheduler.isTruncating(tileBreeder, layerName)) {
+                Thread.sleep(PAUSE);
+            }
+            warmUpNow(layerName);
+        }
+    }
+
+    /**
+     * Pre-renders the hottest tiles of the layer, stopping when the max warm-up time is over
+     *
+     * @return the number of tiles seeded
+     */
+    int warmUpNow(String layerName) throws InterruptedException {
+        TileLayer layer;
+        try {
+            layer = tld.getTileLayer(layerName);
+        } catch (GeoWebCacheException e) {
+            remove(layerName);
+            return 0;
+        }
+        if (!layer.isEnabled()) {
+            return 0;
+        }
+
+        final long start = System.currentTimeMillis();
+        int seeded = 0;
+        for (HotTile hot : getHottestTiles(layerName, warmUpTiles)) {
+            while (pressure != null && pressure.getWaitingRequests() > 0
+                    && System.currentTimeMillis() - start < maxTime) {
+                Thread.sleep(PAUSE);
+            }
+            if (System.currentTimeMillis() - start >= maxTime) {
+                LOGGER.fine("Warm-up time of layer " + layerName + " is over");
+                break;
+            }
+            TileSetKey key = hot.tileSet;
+            ConveyorTile tile = new ConveyorTile(storageBroker, layerName, key.gridSetId,
+                    hot.index.toArray(), key.mimeType, new HashMap<String, String>(
+                            key.parameters), null, null);
+            tile.setTileLayer(layer);
+            long tileStart = System.currentTimeMillis();
+            try {
+                layer.seedTile(tile, true);
+                seeded++;
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to warm up tile " + hot.index + " of layer "
+                        + layerName, e);
+            }
+            // cached tiles return right away, only rendered ones make the thread rest
+            long busy = System.currentTimeMillis() - tileStart;
+            if (cpuShare < 100 && busy > 0) {
+                Thread.sleep(busy * (100 - cpuShare) / cpuShare);
+            }
+        }
+        warmedTiles.addAndGet(seeded);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Warmed up " + seeded + " tiles of layer " + layerName + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return seeded;
+    }
+
+    /**
+     * Returns the most requested tiles of the layer, across all its tile sets, the hottest first
+     */
+    List<HotTile> getHottestTiles(String layerName, int count) {
+        List<HotTile> tiles = new ArrayList<HotTile>();
+        for (TileSetAccess access : record.values()) {
+            if (access.key.layerName.equals(layerName)) {
+                access.collect(tiles);
+            }
+        }
+        Collections.sort(tiles, new Comparator<HotTile>() {
+            public int compare(HotTile t1, HotTile t2) {
+                if (t1.hits != t2.hits) {
+                    return t1.hits > t2.hits ? -1 : 1;
+                }
+                // top levels first, they cover the most ground
+                return t1.index.z - t2.index.z;
+            }
+        });
+        return tiles.size() > count ? new ArrayList<HotTile>(tiles.subList(0, count)) : tiles;
+    }
+
+    /**
+     * Saves the record, one line per tile: layer, grid set, format, parameters, x, y, z and hits
+     */
+    synchronized void save(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                file), "UTF-8"));
+        try {
+            List<HotTile> tiles = new ArrayList<HotTile>();
+            for (TileSetAccess access : record.values()) {
+                tiles.clear();
+                access.collect(tiles);
+                TileSetKey key = access.key;
+                String prefix = encode(key.layerName) + "\t" + encode(key.gridSetId) + "\t"
+                        + encode(key.mimeType.getFormat()) + "\t"
+                        + encodeParameters(key.parameters);
+                for (HotTile hot : tiles) {
+                    writer.write(prefix + "\t" + hot.index.x + "\t" + hot.index.y + "\t"
+                            + hot.index.z + "\t" + hot.hits);
+                    writer.newLine();
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    synchronized void load(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+                file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 8) {
+                    continue;
+                }
+                try {
+                    TileSetKey key = new TileSetKey(decode(fields[0]), decode(fields[1]),
+                            MimeType.createFromFormat(decode(fields[2])),
+                            decodeParameters(fields[3]));
+                    TileSetAccess access = record.get(key);
+                    if (access == null) {
+                        access = new TileSetAccess(key);
+                        record.put(key, access);
+                    }
+                    TileIndex index = new TileIndex(Long.parseLong(fields[4]), Long
+                            .parseLong(fields[5]), Integer.parseInt(fields[6]));
+                    access.hit(index, Integer.parseInt(fields[7]), trackedTiles);
+                } catch (MimeException e) {
+                    LOGGER.fine("Skipping tile access record line " + line);
+                } catch (NumberFormatException e) {
+                    LOGGER.fine("Skipping tile access record line " + line);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    private static String encodeParameters(Map<String, String> parameters)
+            throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(parameters).entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(encode(entry.getKey())).append('=').append(encode(entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> decodeParameters(String kvp)
+            throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (kvp.length() == 0) {
+            return parameters;
+        }
+        for (String pair : kvp.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx > 0) {
+                parameters.put(decode(pair.substring(0, idx)), decode(pair.substring(idx + 1)));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * The tiles of a tile set with their hit counts
+     */
+    static class TileSetAccess {
+
+        static final int AGING_FACTOR = 10;
+
+        final TileSetKey key;
+
+        final Map<TileIndex, int[]> hits = new HashMap<TileIndex, int[]>();
+
+        /**
+         * The samples counted since the counts were last halved
+         */
+        int samples;
+
+        TileSetAccess(TileSetKey key) {
+            this.key = key;
+        }
+
+        /**
+         * Counts a sampled request, halving the counts every {@link #AGING_FACTOR} times as many
+         * samples as tracked tiles
+         */
+        synchronized void sample(TileIndex index, int maxTiles) {
+            hit(index, 1, maxTiles);
+            if (++samples >= AGING_FACTOR * maxTiles) {
+                decay();
+                samples /= 2;
+            }
+        }
+
+        synchronized void hit(TileIndex index, int count, int maxTiles) {
+            int[] tileHits = hits.get(index);
+            if (tileHits != null) {
+                tileHits[0] += count;
+                return;
+            }
+            if (hits.size() >= maxTiles && !evictColdest(count)) {
+                // everything tracked is hotter than the new tile
+                return;
+            }
+            hits.put(index, new int[] { count });
+        }
+
+        /**
+         * Drops the least requested tile, if it's not hotter than the specified count
+         */
+        private boolean evictColdest(int count) {
+            TileIndex coldest = null;
+            int min = Integer.MAX_VALUE;
+            for (Map.Entry<TileIndex, int[]> entry : hits.entrySet()) {
+                if (entry.getValue()[0] < min) {
+                    min = entry.getValue()[0];
+                    coldest = entry.getKey();
+                }
+            }
+            if (coldest == null || min > count) {
+                return false;
+            }
+            hits.remove(coldest);
+            return true;
+        }
+
+        /**
+         * Halves the counts, dropping the tiles left at zero
+         */
+        private void decay() {
+            for (Iterator<int[]> it = hits.values().iterator(); it.hasNext();) {
+                int[] tileHits = it.next();
+                tileHits[0] /= 2;
+                if (tileHits[0] == 0) {
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void collect(List<HotTile> tiles) {
+            for (Map.Entry<TileIndex, int[]> entry : hits.entrySet()) {
+                tiles.add(new HotTile(key, entry.getKey(), entry.getValue()[0]));
+            }
+        }
+
+        synchronized int size() {
+            return hits.size();
+        }
+    }
+
+    static class HotTile {
+
+        final TileSetKey tileSet;
+
+        final TileIndex index;
+
+        final int hits;
+
+        HotTile(TileSetKey tileSet, TileIndex index, int hits) {
+            this.tileSet = tileSet;
+            this.index = index;
+            this.hits = hits;
+        }
+    }
+
+    static class TileSetKey {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final MimeType mimeType;
+
+        final Map<String, String> parameters;
+
+        TileSetKey(String layerName, String gridSetId, MimeType mimeType,
+                Map<String, String> parameters) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.mimeType = mimeType;
+            this.parameters = parameters == null ? Collections.<String, String> emptyMap()
+                    : new HashMap<String, String>(parameters);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileSetKey)) {
+                return false;
+            }
+            TileSetKey other = (TileSetKey) obj;
+            return layerName.equals(other.layerName) && gridSetId.equals(other.gridSetId)
+                    && mimeType.equals(other.mimeType) && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { layerName, gridSetId, mimeType.getFormat(),
+                    parameters });
+        }
+    }
+
+    static class TileIndex {
+
+        final long x;
+
+        final long y;
+
+        final int z;
+
+        TileIndex(long x, long y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        long[] toArray() {
+            return new long[] { x, y, z };
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileIndex)) {
+                return false;
+            }
+            TileIndex other = (TileIndex) obj;
+            return x == other.x && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (x ^ (x >>> 32)) * 31 * 31 + (int) (y ^ (y >>> 32)) * 31 + z;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + x + ", " + y + ", " + z + "]";
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+import org.geowebcache.diskquota.CacheCleaner;
+import org.geowebcache.diskquota.ConfigLoader;
+import org.geowebcache.diskquota.DiskQuotaConfig;
+import org.geowebcache.diskquota.DiskQuotaMonitor;
+import org.geowebcache.diskquota.storage.LayerQuota;
+import org.geowebcache.diskquota.storage.BDBQuotaStore;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.storage.DefaultStorageFinder;
+import org.geowebcache.storage.StorageBroker;
+
+/**
+ * GWC disk quota monitor that is not started when the {@link BatchedUsageStore} is enabled.
+ * <p>
+ * The GWC monitor updates the BDB quota store on every tile saved, deleted or requested, which is
+ * the contention the batched store is meant to remove. When <code>GWC_USAGE_STORE</code> is set
+ * the batched store does the usage accounting alone and this monitor reports itself as disabled.
+ * GWC enforces the disk quota limits from the BDB usage only, so the monitor is replaced only if
+ * no global or layer quota is configured, otherwise it keeps running and the batched store stays
+ * disabled.
+ * </p>
+ */
+public class UsageStoreQuotaMonitor extends DiskQuotaMonitor {
+
+    static final Logger LOGGER = Logging.getLogger(UsageStoreQuotaMonitor.class);
+
+    final boolean replaced;
+
+    public UsageStoreQuotaMonitor(DefaultStorageFinder storageFinder, ConfigLoader configLoader,
+            TileLayerDispatcher tld, StorageBroker storageBroker, BDBQuotaStore quotaStore,
+            CacheCleaner cacheCleaner) throws Exception {
+        super(storageFinder, configLoader, tld, storageBroker, quotaStore, cacheCleaner);
+        if (!BatchedUsageStore.isConfigured()) {
+            this.replaced = false;
+        } else if (hasQuotaLimits(configLoader.loadConfig())) {
+            this.replaced = false;
+            LOGGER.warning("GWC_USAGE_STORE is set but disk quota limits are configured, the "
+                    + "batched usage store is disabled so that the GWC disk quota monitor keeps "
+                    + "enforcing them");
+        } else {
+            this.replaced = true;
+            LOGGER.info("GWC_USAGE_STORE is set, the disk usage is accounted by the batched "
+                    + "usage store and the GWC disk quota monitor is disabled");
+        }
+    }
+
+    static boolean hasQuotaLimits(DiskQuotaConfig config) {
+        if (config == null) {
+            return false;
+        }
+        List<LayerQuota> layerQuotas = config.getLayerQuotas();
+        return config.getGlobalQuota() != null
+                || (layerQuotas != null && !layerQuotas.isEmpty());
+    }
+
+    /**
+     * Whether the {@link BatchedUsageStore} does the usage accounting in place of this monitor
+     */
+    public boolean isReplaced() {
+        return replaced;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return !replaced && super.isEnabled();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!replaced) {
+            super.afterPropertiesSet();
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (!replaced) {
+            super.destroy();
+        }
+    }
+}
@@ -22,6 +22,8 @@ import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.MetadataMap;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.MemoryTileCache;
+import org.geoserver.gwc.TileWarmer;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.gwc.config.GWCConfigPersister;
 import org.geoserver.ows.Response;
@@ -70,6 +72,10 @@ public class CatalogConfiguration implements Configuration {
 
     private final WMS wmsFacade;
 
+    private MemoryTileCache memoryCache;
+
+    private TileWarmer tileWarmer;
+
     /**
      * 
      * @param mediator
@@ -316,6 +322,26 @@ public class CatalogConfiguration implements Configuration {
         getGWC().layerRenamed(oldLayerName, newLayerName);
     }
 
+    /**
+     * @see GWC#getMemoryCache()
+     */
+    public MemoryTileCache getMemoryCache() {
+        if (memoryCache == null) {
+            memoryCache = getGWC().getMemoryCache();
+        }
+        return memoryCache;
+    }
+
+    /**
+     * @see GWC#getTileWarmer()
+     */
+    public TileWarmer getTileWarmer() {
+        if (tileWarmer == null) {
+            tileWarmer = getGWC().getTileWarmer();
+        }
+        return tileWarmer;
+    }
+
     /**
      * @see GWC#truncate(String, String)
      */
@@ -9,6 +9,14 @@ import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.PlanarImage;
 
@@ -22,6 +30,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.resources.image.ImageUtilities;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.MetaTile;
 import org.geowebcache.mime.FormatModifier;
@@ -29,10 +38,61 @@ import org.geowebcache.mime.ImageMime;
 import org.geowebcache.mime.MimeType;
 import org.springframework.util.Assert;
 
+/**
+ * A meta tile rendered by GeoServer's WMS.
+ * <p>
+ * The tiles are cut out of the meta tile image without copying its pixels, and can be encoded
+ * concurrently on a pool shared by all the meta tiles, sized after the number of processors, see
+ * {@link #encodeTile(int)}. The pool is created on first use and shut down by
+ * {@link #shutdownEncoderPool()}.
+ * </p>
+ */
 public class GeoServerMetaTile extends MetaTile {
 
+    private static ThreadPoolExecutor ENCODER_POOL;
+
+    private static synchronized ThreadPoolExecutor getEncoderPool() {
+        if (ENCODER_POOL == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            // the queue does not need to be bounded, each request waits for the tiles it submitted
+            ENCODER_POOL = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "GWC tile encoder "
+                                    + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            // start the threads now, so that they don't inherit the thread locals of a request
+            ENCODER_POOL.prestartAllCoreThreads();
+        }
+        return ENCODER_POOL;
+    }
+
+    /**
+     * Shuts down the encoder pool, if it was ever created, letting the submitted tiles be
+     * encoded. Called when the GWC integration is destroyed, a new pool will be created if needed
+     * afterwards
+     */
+    public static void shutdownEncoderPool() throws InterruptedException {
+        ThreadPoolExecutor pool;
+        synchronized (GeoServerMetaTile.class) {
+            pool = ENCODER_POOL;
+            ENCODER_POOL = null;
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
     private RenderedImageMap metaTileMap;
 
+    private RenderedImageMapResponse mapEncoder;
+
     private final String layer;
 
     private final CatalogConfiguration mediator;
@@ -86,12 +146,7 @@ public class GeoServerMetaTile extends MetaTile {
             throw new IllegalArgumentException("Only RenderedImageMaps are supported so far: "
                     + metaTileMap.getClass().getName());
         }
-        final RenderedImageMapResponse mapEncoder;
-        {
-            final Response responseEncoder = mediator.getResponseEncoder(responseFormat,
-                    metaTileMap);
-            mapEncoder = (RenderedImageMapResponse) responseEncoder;
-        }
+        final RenderedImageMapResponse mapEncoder = getMapEncoder();
 
         RenderedImage tile = metaTileMap.getImage();
         WMSMapContent tileContext = metaTileMap.getMapContext();
@@ -133,6 +188,60 @@ public class GeoServerMetaTile extends MetaTile {
         }
     }
 
+    /**
+     * Encodes the tile at index {@code tileIdx} on the shared encoder pool, or on the calling
+     * thread if the meta tile is made of a single tile.
+     * <p>
+     * Tiles can be encoded concurrently, but the meta tile shall not be {@link #dispose() disposed}
+     * before all of them are done.
+     * </p>
+     * 
+     * @return the encoded tile, its value is {@code null} if
+     *         {@link #writeTileToStream(int, Resource)} returned {@code false}
+     */
+    public Future<Resource> encodeTile(final int tileIdx) {
+        FutureTask<Resource> task = new FutureTask<Resource>(new Callable<Resource>() {
+            public Resource call() throws Exception {
+                ByteArrayResource resource = new ByteArrayResource();
+                return writeTileToStream(tileIdx, resource) ? resource : null;
+            }
+        });
+        if (this.tiles.length > 1) {
+            getEncoderPool().execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * Overrides to return a view of the meta tile image sharing its raster when possible, instead
+     * of a cropped copy
+     * 
+     * @see org.geowebcache.layer.MetaTile#createTile(int, int, int, int)
+     */
+    @Override
+    public RenderedImage createTile(final int minX, final int minY, final int tileWidth,
+            final int tileHeight) {
+        final RenderedImage image = metaTileMap.getImage();
+        if (image instanceof BufferedImage) {
+            return ((BufferedImage) image).getSubimage(minX, minY, tileWidth, tileHeight);
+        }
+        return super.createTile(minX, minY, tileWidth, tileHeight);
+    }
+
+    /**
+     * The encoder is looked up once per meta tile and shared by all the tiles
+     */
+    private synchronized RenderedImageMapResponse getMapEncoder() {
+        if (mapEncoder == null) {
+            final Response responseEncoder = mediator.getResponseEncoder(responseFormat,
+                    metaTileMap);
+            mapEncoder = (RenderedImageMapResponse) responseEncoder;
+        }
+        return mapEncoder;
+    }
+
     public void dispose() {
         if (metaTileMap != null) {
             RenderedImage image = metaTileMap.getImage();
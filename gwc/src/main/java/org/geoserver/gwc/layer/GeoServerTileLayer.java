@@ -5,6 +5,7 @@
 package org.geoserver.gwc.layer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -12,13 +13,24 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.commons.io.IOUtils;
 import org.geoserver.catalog.KeywordInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
@@ -26,6 +38,9 @@ import org.geoserver.catalog.MetadataMap;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.MemoryTileCache;
+import org.geoserver.gwc.MemoryTileCache.TileKey;
+import org.geoserver.gwc.TileWarmer;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
@@ -37,6 +52,7 @@ import org.geotools.util.CanonicalSet;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.ConfigurationException;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.parameters.ParameterException;
 import org.geowebcache.filter.parameters.ParameterFilter;
@@ -49,7 +65,11 @@ import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.GridSubsetFactory;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
 import org.geowebcache.layer.GridLocObj;
 import org.geowebcache.layer.LayerListenerList;
 import org.geowebcache.layer.MetaTile;
@@ -88,7 +108,7 @@ public class GeoServerTileLayer extends TileLayer {
 
     private List<ParameterFilter> parameterFilters;
 
-    private Map<String, GridSubset> subSets;
+    private volatile Map<String, GridSubset> subSets;
 
     private static LayerListenerList listeners = new LayerListenerList();
 
@@ -460,6 +480,26 @@ public class GeoServerTileLayer extends TileLayer {
         return returnTile;
     }
 
+    /**
+     * Looks up the tile in the memory tier and in the storage, without ever rendering it.
+     * <p>
+     * Unlike {@link #getTile(ConveyorTile)} no check is performed on the tile format and position,
+     * it's up to the caller to make sure they are valid for this layer.
+     * </p>
+     *
+     * @return the tile with its contents, or {@code null} if it's not cached
+     */
+    public ConveyorTile getCachedTile(ConveyorTile tile) {
+        if (!tryCacheFetch(tile)) {
+            return null;
+        }
+        ConveyorTile returnTile = finalizeTile(tile);
+
+        sendTileRequestedEvent(returnTile);
+
+        return returnTile;
+    }
+
     @Override
     public void addLayerListener(final TileLayerListener listener) {
         listeners.addListener(listener);
@@ -475,11 +515,64 @@ public class GeoServerTileLayer extends TileLayer {
         if (listeners != null) {
             listeners.sendTileRequested(this, tile);
         }
+        final TileWarmer tileWarmer = mediator.getTileWarmer();
+        if (tileWarmer != null) {
+            tileWarmer.record(tile);
+        }
     }
 
     private static final CanonicalSet<GridLocObj> META_GRID_LOCKS = CanonicalSet
             .newInstance(GridLocObj.class);
 
+    /**
+     * The tiles of the meta tiles that have been rendered but not saved yet. Requests waiting on
+     * the lock of a meta tile are released as soon as it's rendered, and pick their tile from here
+     * as soon as it's encoded instead of waiting for the whole meta tile to be saved
+     */
+    static final ConcurrentMap<TileKey, Future<Resource>> PENDING_TILES = new ConcurrentHashMap<TileKey, Future<Resource>>();
+
+    /**
+     * Saves the encoded tiles on the storage broker in the background. The queue is bounded, when
+     * it's full the tiles are saved by the thread that encoded them, so that seeding slows down to
+     * the pace of the storage instead of piling up encoded tiles in memory. Created on first use
+     * and shut down by {@link #shutdownTileSaver()}
+     */
+    private static ThreadPoolExecutor TILE_SAVER;
+
+    private static synchronized ThreadPoolExecutor getTileSaver() {
+        if (TILE_SAVER == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            TILE_SAVER = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadFactory() {
+                        AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "GWC tile saver " + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return TILE_SAVER;
+    }
+
+    /**
+     * Shuts down the tile saver pool, if it was ever created, letting the queued tiles be saved.
+     * Called when the GWC integration is destroyed, a new pool will be created if needed
+     * afterwards
+     */
+    public static void shutdownTileSaver() throws InterruptedException {
+        ThreadPoolExecutor saver;
+        synchronized (GeoServerTileLayer.class) {
+            saver = TILE_SAVER;
+            TILE_SAVER = null;
+        }
+        if (saver != null) {
+            saver.shutdown();
+            saver.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
     private ConveyorTile getMetatilingReponse(ConveyorTile tile, final boolean tryCache,
             final int metaX, final int metaY) throws GeoWebCacheException, IOException {
 
@@ -491,39 +584,227 @@ public class GeoServerTileLayer extends TileLayer {
         final GeoServerMetaTile metaTile = createMetaTile(tile, metaX, metaY);
         final GridLocObj metaGridLoc;
         metaGridLoc = META_GRID_LOCKS.unique(new GridLocObj(metaTile.getMetaGridPos(), 32));
+        final List<EncodedTile> encodedTiles;
+        final long generation;
+        // the lock is held only while rendering, the tiles are encoded and saved after releasing it
         synchronized (metaGridLoc) {
             // got the lock on the meta tile, try again
             if (tryCache && tryCacheFetch(tile)) {
                 LOGGER.finest("--> " + Thread.currentThread().getName() + " returns cache hit for "
                         + Arrays.toString(metaTile.getMetaGridPos()));
-            } else {
-                LOGGER.finer("--> " + Thread.currentThread().getName()
-                        + " submitting getMap request for meta grid location "
-                        + Arrays.toString(metaTile.getMetaGridPos()) + " on " + metaTile);
-                RenderedImageMap map;
-                try {
-                    map = dispatchGetMap(tile, metaTile);
-                    Assert.notNull(map, "Did not obtain a WebMap from GeoServer's Dispatcher");
-                    metaTile.setWebMap(map);
-                    saveTiles(metaTile, tile);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new GeoWebCacheException("Problem communicating with GeoServer", e);
-                } finally {
-                    META_GRID_LOCKS.remove(metaGridLoc);
-                }
+                return finalizeTile(tile);
+            }
+            LOGGER.finer("--> " + Thread.currentThread().getName()
+                    + " submitting getMap request for meta grid location "
+                    + Arrays.toString(metaTile.getMetaGridPos()) + " on " + metaTile);
+            // read before rendering, so that a tile rendered out of data invalidated in the
+            // meantime does not end up in the memory tier
+            generation = getMemoryGeneration();
+            RenderedImageMap map;
+            try {
+                map = dispatchGetMap(tile, metaTile);
+                Assert.notNull(map, "Did not obtain a WebMap from GeoServer's Dispatcher");
+                metaTile.setWebMap(map);
+                encodedTiles = encodeTiles(metaTile, tile);
+            } catch (Exception e) {
+                e.printStackTrace();
+                metaTile.dispose();
+                throw new GeoWebCacheException("Problem communicating with GeoServer", e);
+            } finally {
+                META_GRID_LOCKS.remove(metaGridLoc);
             }
         }
 
+        saveTiles(metaTile, tile, encodedTiles, generation);
+
         return finalizeTile(tile);
     }
 
-    @Override
-    protected void saveTiles(MetaTile metaTile, ConveyorTile tileProto) throws GeoWebCacheException {
+    /**
+     * Starts encoding the tiles of a freshly rendered meta tile, the requested one first,
+     * registering the ones to be stored as pending and evicting them from the memory tier as they
+     * might be stale.
+     */
+    private List<EncodedTile> encodeTiles(final GeoServerMetaTile metaTile,
+            final ConveyorTile tileProto) {
+        final MemoryTileCache memoryCache = getMemoryCache();
+        final long[] gridLoc = tileProto.getTileIndex();
+        final boolean store = this.getExpireCache((int) gridLoc[2]) != GWCVars.CACHE_DISABLE_CACHE;
+        final GridSubset gridSubset = getGridSubset(tileProto.getGridSetId());
+        final long[][] gridPositions = metaTile.getTilesGridPositions();
+
+        // encode the requested tile first, its request is the one waiting the most
+        List<Integer> order = new ArrayList<Integer>(gridPositions.length);
+        for (int i = 0; i < gridPositions.length; i++) {
+            if (Arrays.equals(gridLoc, gridPositions[i])) {
+                order.add(0, i);
+            } else {
+                order.add(i);
+            }
+        }
+
+        List<EncodedTile> encodedTiles = new ArrayList<EncodedTile>(gridPositions.length);
+        for (int i : order) {
+            final long[] gridPos = gridPositions[i];
+            final TileKey key = getTileKey(tileProto, gridPos);
+            if (memoryCache != null) {
+                memoryCache.remove(key);
+            }
+            final boolean requested = Arrays.equals(gridLoc, gridPos);
+            final boolean stored = store && gridSubset.covers(gridPos);
+            if (requested || stored) {
+                EncodedTile encoded = new EncodedTile(gridPos, key, metaTile.encodeTile(i),
+                        requested, stored);
+                if (stored) {
+                    PENDING_TILES.put(key, encoded.encoding);
+                }
+                encodedTiles.add(encoded);
+            }
+        }
+        return encodedTiles;
+    }
+
+    /**
+     * Waits for the tiles of a rendered meta tile to be encoded, and saves them on the storage
+     * broker in the background.
+     */
+    private void saveTiles(final GeoServerMetaTile metaTile, final ConveyorTile tileProto,
+            final List<EncodedTile> encodedTiles, final long generation)
+            throws GeoWebCacheException {
         try {
-            super.saveTiles(metaTile, tileProto);
+            for (EncodedTile encoded : encodedTiles) {
+                final Resource resource = encoded.getResource();
+                if (encoded.requested) {
+                    if (resource == null) {
+                        throw new GeoWebCacheException("Unable to encode tile " + encoded.key);
+                    }
+                    tileProto.setBlob(resource);
+                    cacheInMemory(getMemoryCache(), encoded.key, resource, generation);
+                }
+                if (!encoded.stored || resource == null) {
+                    continue;
+                }
+                final long[] gridPos = encoded.gridPos;
+                TileObject tile = TileObject.createCompleteTileObject(getName(), new long[] {
+                        gridPos[0], gridPos[1], gridPos[2] }, tileProto.getGridSetId(),
+                        tileProto.getMimeType().getFormat(), tileProto.getParameters(), resource);
+                getTileSaver().execute(new SaveTileTask(tileProto.getStorageBroker(), tile,
+                        encoded.key, encoded.encoding));
+                encoded.saving = true;
+            }
         } finally {
-            ((GeoServerMetaTile) metaTile).dispose();
+            for (EncodedTile encoded : encodedTiles) {
+                // the tiles share the meta tile image, make sure none is still being encoded
+                encoded.await();
+                if (encoded.stored && !encoded.saving) {
+                    PENDING_TILES.remove(encoded.key, encoded.encoding);
+                }
+            }
+            metaTile.dispose();
+        }
+    }
+
+    /**
+     * A tile of a rendered meta tile, being encoded
+     */
+    static class EncodedTile {
+        final long[] gridPos;
+
+        final TileKey key;
+
+        final Future<Resource> encoding;
+
+        final boolean requested;
+
+        final boolean stored;
+
+        boolean saving;
+
+        EncodedTile(long[] gridPos, TileKey key, Future<Resource> encoding, boolean requested,
+                boolean stored) {
+            this.gridPos = gridPos;
+            this.key = key;
+            this.encoding = encoding;
+            this.requested = requested;
+            this.stored = stored;
+        }
+
+        /**
+         * Waits for the tile to be encoded even if the thread is interrupted, as the meta tile
+         * can't be disposed before
+         * 
+         * @return the encoded tile, or {@code null} if it could not be encoded
+         */
+        Resource getResource() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return encoding.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.SEVERE, "Unable to encode tile " + key, e.getCause());
+                        return null;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Waits for the tile to be encoded, successfully or not
+         */
+        void await() {
+            boolean interrupted = false;
+            while (!encoding.isDone()) {
+                try {
+                    encoding.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // done
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Saves an encoded tile, and removes it from the pending ones once it can be found in the
+     * storage
+     */
+    static class SaveTileTask implements Runnable {
+        final StorageBroker storageBroker;
+
+        final TileObject tile;
+
+        final TileKey key;
+
+        final Future<Resource> pending;
+
+        SaveTileTask(StorageBroker storageBroker, TileObject tile, TileKey key,
+                Future<Resource> pending) {
+            this.storageBroker = storageBroker;
+            this.tile = tile;
+            this.key = key;
+            this.pending = pending;
+        }
+
+        public void run() {
+            try {
+                storageBroker.put(tile);
+            } catch (StorageException e) {
+                LOGGER.log(Level.WARNING, "Unable to save tile " + key, e);
+            } finally {
+                // only if it has not been replaced by a newer rendering in the meantime
+                PENDING_TILES.remove(key, pending);
+            }
         }
     }
 
@@ -606,8 +887,32 @@ public class GeoServerTileLayer extends TileLayer {
     private boolean tryCacheFetch(ConveyorTile tile) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
+            // the memory tier does not track expiration, which is not configurable for
+            // GeoServer tile layers anyways (see getExpireCache)
+            final MemoryTileCache memoryCache = getMemoryCache();
+            TileKey key = null;
+            if (memoryCache != null || !PENDING_TILES.isEmpty()) {
+                key = getTileKey(tile, tile.getTileIndex());
+            }
+            if (memoryCache != null) {
+                byte[] contents = memoryCache.get(key);
+                if (contents != null) {
+                    tile.setBlob(new ByteArrayResource(contents));
+                    tile.setCacheResult(CacheResult.HIT);
+                    return true;
+                }
+            }
+            if (key != null && tryPendingFetch(tile, key)) {
+                return true;
+            }
             try {
-                return tile.retrieve(expireCache * 1000L);
+                // read before the storage, see MemoryTileCache
+                final long generation = getMemoryGeneration();
+                boolean hit = tile.retrieve(expireCache * 1000L);
+                if (hit && memoryCache != null) {
+                    cacheInMemory(memoryCache, key, tile.getBlob(), generation);
+                }
+                return hit;
             } catch (GeoWebCacheException gwce) {
                 LOGGER.info(gwce.getMessage());
                 tile.setErrorMsg(gwce.getMessage());
@@ -617,6 +922,76 @@ public class GeoServerTileLayer extends TileLayer {
         return false;
     }
 
+    /**
+     * Looks up the tile among the ones of the meta tiles being encoded, waiting for it to be
+     * encoded if necessary
+     */
+    private boolean tryPendingFetch(ConveyorTile tile, TileKey key) {
+        Future<Resource> pending = PENDING_TILES.get(key);
+        if (pending == null) {
+            return false;
+        }
+        Resource contents;
+        try {
+            contents = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            // logged by the thread that rendered the meta tile
+            return false;
+        }
+        if (contents == null) {
+            return false;
+        }
+        tile.setBlob(contents);
+        tile.setCacheResult(CacheResult.HIT);
+        return true;
+    }
+
+    /**
+     * @return the in memory tile tier, or {@code null} if it's not enabled
+     */
+    private MemoryTileCache getMemoryCache() {
+        MemoryTileCache memoryCache = mediator.getMemoryCache();
+        return memoryCache != null && memoryCache.isEnabled() ? memoryCache : null;
+    }
+
+    /**
+     * @return the generation of this layer in the memory tier, or 0 if it's not enabled
+     */
+    private long getMemoryGeneration() {
+        MemoryTileCache memoryCache = getMemoryCache();
+        return memoryCache == null ? 0 : memoryCache.getGeneration(getName());
+    }
+
+    private TileKey getTileKey(final ConveyorTile tile, final long[] tileIndex) {
+        Map<String, String> parameters = tile.getFullParameters();
+        String parametersKey = null;
+        if (parameters != null && !parameters.isEmpty()) {
+            parametersKey = new TreeMap<String, String>(parameters).toString();
+        }
+        return new TileKey(getName(), tile.getGridSetId(), tileIndex, tile.getMimeType()
+                .getFormat(), parametersKey);
+    }
+
+    private void cacheInMemory(final MemoryTileCache memoryCache, final TileKey key,
+            final Resource blob, final long generation) {
+        if (memoryCache == null || blob == null) {
+            return;
+        }
+        try {
+            InputStream in = blob.getInputStream();
+            try {
+                memoryCache.put(key, IOUtils.toByteArray(in), generation);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not cache tile " + key + " in memory", e);
+        }
+    }
+
     private ConveyorTile finalizeTile(ConveyorTile tile) {
         if (tile.getStatus() == 0 && !tile.getError()) {
             tile.setStatus(200);
@@ -765,21 +1140,33 @@ public class GeoServerTileLayer extends TileLayer {
         return info;
     }
 
+    /**
+     * Called on every tile request, the grid subsets are computed only once and then read without
+     * locking
+     */
     @Override
-    public synchronized Map<String, GridSubset> getGridSubsets() {
-        if (this.subSets == null) {
-            ReferencedEnvelope latLongBbox = getLatLonBbox();
-            try {
-                GridSetBroker gridSetBroker = mediator.getGridSetBroker();
-                this.subSets = getGrids(latLongBbox, gridSetBroker);
-            } catch (ConfigurationException e) {
-                String msg = "Can't create grids for '" + getName() + "': " + e.getMessage();
-                LOGGER.log(Level.WARNING, msg, e);
-                setConfigErrorMessage(msg);
-                return Collections.emptyMap();
+    public Map<String, GridSubset> getGridSubsets() {
+        Map<String, GridSubset> subSets = this.subSets;
+        if (subSets == null) {
+            synchronized (this) {
+                subSets = this.subSets;
+                if (subSets == null) {
+                    ReferencedEnvelope latLongBbox = getLatLonBbox();
+                    try {
+                        GridSetBroker gridSetBroker = mediator.getGridSetBroker();
+                        subSets = getGrids(latLongBbox, gridSetBroker);
+                        this.subSets = subSets;
+                    } catch (ConfigurationException e) {
+                        String msg = "Can't create grids for '" + getName() + "': "
+                                + e.getMessage();
+                        LOGGER.log(Level.WARNING, msg, e);
+                        setConfigErrorMessage(msg);
+                        return Collections.emptyMap();
+                    }
+                }
             }
         }
-        return this.subSets;
+        return subSets;
     }
 
     /**
@@ -0,0 +1,93 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.rest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.gwc.ReseedScheduler;
+import org.geoserver.gwc.ReseedScheduler.ReseedTask;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.StringRepresentation;
+
+/**
+ * Exposes the backlog of the {@link ReseedScheduler} at <code>/gwc/rest/reseed</code>: a GET
+ * returns the pending ranges, lower zoom levels first, a DELETE drops them.
+ */
+public class ReseedRestlet extends Restlet {
+
+    final ReseedScheduler scheduler;
+
+    public ReseedRestlet(ReseedScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        Method method = request.getMethod();
+        if (Method.GET.equals(method)) {
+            response.setEntity(new StringRepresentation(encode(), MediaType.TEXT_XML));
+        } else if (Method.DELETE.equals(method)) {
+            scheduler.clear();
+            response.setStatus(Status.SUCCESS_OK);
+        } else {
+            response.setStatus(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+        }
+    }
+
+    String encode() {
+        List<ReseedTask> backlog = scheduler.getBacklog();
+        StringBuilder sb = new StringBuilder();
+        sb.append("<reseed>");
+        element(sb, "enabled", scheduler.isEnabled());
+        element(sb, "pendingTiles", scheduler.getPendingTiles());
+        element(sb, "seededTiles", scheduler.getSeededTiles());
+        element(sb, "droppedTiles", scheduler.getDroppedTiles());
+        element(sb, "pauses", scheduler.getPauseCount());
+        sb.append("<tasks>");
+        for (ReseedTask task : backlog) {
+            sb.append("<task>");
+            element(sb, "layer", task.getLayerName());
+            element(sb, "gridSet", task.getGridSetId());
+            element(sb, "format", task.getFormat());
+            if (!task.getParameters().isEmpty()) {
+                sb.append("<parameters>");
+                for (Map.Entry<String, String> entry : task.getParameters().entrySet()) {
+                    sb.append("<entry key=\"").append(escape(entry.getKey())).append("\">");
+                    sb.append(escape(entry.getValue())).append("</entry>");
+                }
+                sb.append("</parameters>");
+            }
+            element(sb, "zoomLevel", task.getZoomLevel());
+            long[] range = task.getRange();
+            element(sb, "range", Arrays.toString(Arrays.copyOf(range, 4)));
+            element(sb, "pendingTiles", task.getPendingTiles());
+            sb.append("</task>");
+        }
+        sb.append("</tasks>");
+        sb.append("</reseed>");
+        return sb.toString();
+    }
+
+    private void element(StringBuilder sb, String name, Object value) {
+        sb.append('<').append(name).append('>');
+        sb.append(escape(String.valueOf(value)));
+        sb.append("</").append(name).append('>');
+    }
+
+    private String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,265 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.wms;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.Wrapper;
+import org.geoserver.gwc.GWC;
+import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.SingleFlightCallback;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.OperationSecurityCallback;
+import org.geoserver.security.impl.ServiceAccessRuleDAO;
+import org.geoserver.wms.WMS;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.handler.AbstractHandlerMapping;
+import org.springframework.web.servlet.mvc.Controller;
+import org.springframework.web.util.UrlPathHelper;
+
+/**
+ * Handler mapping serving the cached tiles of tiled WMS GetMap requests straight from their raw
+ * parameters, before the OWS {@link org.geoserver.ows.Dispatcher} parses the request.
+ * <p>
+ * It must be ordered before the WMS {@link org.geoserver.ows.OWSHandlerMapping}. When the request
+ * is not a plain <code>/wms</code> GET matching a tile, the layer is not fully accessible to the
+ * current user, or the tile is not cached, no handler is returned and the request goes through
+ * the normal path, where {@link CachingWebMapService} gets another chance to serve it.
+ * </p>
+ * <p>
+ * Since a tile served here never reaches the dispatcher, none of the {@link DispatcherCallback}s
+ * run for it. The <code>wms.GetMap</code> service security rules are evaluated here the same way
+ * {@link OperationSecurityCallback} does, while the layer access rules are enforced through the
+ * secured catalog. Any other callback that is not known to be irrelevant for a cached tile (e.g.,
+ * control flow, monitoring, single flight of GetMap requests) disables this mapping altogether,
+ * leaving all requests to the dispatcher.
+ * </p>
+ */
+public class CachedTileHandlerMapping extends AbstractHandlerMapping {
+
+    static final Logger LOGGER = Logging.getLogger(CachedTileHandlerMapping.class);
+
+    /**
+     * The callbacks that have nothing to do for a GetMap request answered with a cached tile.
+     * Matched on the exact class name, subclasses might do more than their parent
+     */
+    static final Set<String> SKIPPABLE_CALLBACKS = new HashSet<String>(Arrays.asList(
+            "org.geoserver.ows.DisabledServiceCheck",
+            "org.geoserver.ows.LocalWorkspaceCallback",
+            "org.geoserver.wms.WMSWorkspaceQualifier",
+            "org.geoserver.wfs.WFSWorkspaceQualifier",
+            "org.geoserver.wcs.WCS10WorkspaceQualifier",
+            "org.geoserver.wcs.WCS11WorkspaceQualifier",
+            "org.geoserver.wms.EnvVariableCleaner",
+            "org.geoserver.wms.RasterCleaner",
+            "org.geoserver.wfs.xml.SchemaCleanerCallback",
+            "org.geoserver.wfs.xml.StreamingTransactionCleaner",
+            "org.geoserver.wps.resource.WPSResourceManager"));
+
+    final GWC gwc;
+
+    final WMS wms;
+
+    final Catalog catalog;
+
+    final OperationSecurityCallback serviceSecurity;
+
+    final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    List<DispatcherCallback> callbacks;
+
+    /**
+     * @param catalog
+     *            the secured catalog, used to check the current user can access the layer
+     * @param serviceRules
+     *            the service security rules, checked for <code>wms.GetMap</code>
+     */
+    public CachedTileHandlerMapping(GWC gwc, WMS wms, Catalog catalog,
+            ServiceAccessRuleDAO serviceRules) {
+        this.gwc = gwc;
+        this.wms = wms;
+        this.catalog = catalog;
+        this.serviceSecurity = new OperationSecurityCallback(serviceRules);
+    }
+
+    @Override
+    protected Object getHandlerInternal(HttpServletRequest request) throws Exception {
+        if (!"GET".equalsIgnoreCase(request.getMethod())
+                || !"/wms".equals(urlPathHelper.getPathWithinApplication(request))
+                || !gwc.getConfig().isDirectWMSIntegrationEnabled()) {
+            return null;
+        }
+
+        Map<String, String> rawKvp = getRawKvp(request);
+        if (!"GetMap".equalsIgnoreCase(rawKvp.get("REQUEST"))
+                || !"true".equalsIgnoreCase(rawKvp.get("TILED"))) {
+            return null;
+        }
+
+        try {
+            if (!wms.isEnabled() || !isSkippable(getCallbacks()) || !isServiceAccessible()
+                    || !isAccessible(rawKvp.get("LAYERS"))) {
+                return null;
+            }
+            ConveyorTile tile = gwc.dispatchCached(rawKvp);
+            if (tile == null) {
+                return null;
+            }
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("GetMap request served from the cache before parsing: " + rawKvp);
+            }
+            return new CachedTileController(tile, rawKvp.get("LAYERS"));
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Cached tile lookup failed, using the normal GetMap path", e);
+            return null;
+        }
+    }
+
+    private Map<String, String> getRawKvp(HttpServletRequest request) {
+        Map<?, ?> parameters = request.getParameterMap();
+        Map<String, String> rawKvp = new HashMap<String, String>();
+        for (Map.Entry<?, ?> entry : parameters.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String[]) {
+                String[] values = (String[]) value;
+                value = values.length > 0 ? values[0] : null;
+            }
+            rawKvp.put(((String) entry.getKey()).toUpperCase(), (String) value);
+        }
+        return rawKvp;
+    }
+
+    List<DispatcherCallback> getCallbacks() {
+        if (callbacks == null) {
+            callbacks = GeoServerExtensions.extensions(DispatcherCallback.class,
+                    getApplicationContext());
+        }
+        return callbacks;
+    }
+
+    /**
+     * Whether all the callbacks can be skipped for a cached tile. The service security callback is
+     * replaced by {@link #isServiceAccessible()}, the single flight one only matters if it handles
+     * GetMap requests
+     */
+    static boolean isSkippable(List<DispatcherCallback> callbacks) {
+        for (DispatcherCallback callback : callbacks) {
+            Class<?> clazz = callback.getClass();
+            if (clazz == OperationSecurityCallback.class) {
+                continue;
+            }
+            if (clazz == SingleFlightCallback.class) {
+                if (((SingleFlightCallback) callback).getOperations().contains("WMS.GETMAP")) {
+                    return false;
+                }
+                continue;
+            }
+            if (!SKIPPABLE_CALLBACKS.contains(clazz.getName())) {
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("Cached tiles left to the dispatcher because of " + clazz);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the service security rules allow the current user to run a WMS GetMap
+     */
+    boolean isServiceAccessible() {
+        Request request = new Request();
+        request.setService("WMS");
+        request.setRequest("GetMap");
+        try {
+            serviceSecurity.operationDispatched(request, null);
+            return true;
+        } catch (RuntimeException e) {
+            // let the dispatcher report the security exception as usual
+            return false;
+        }
+    }
+
+    /**
+     * Whether the current user has full access to the layer or layer group. The secured catalog
+     * hides the layers that are not accessible and wraps the ones with restricted access, which
+     * are left to the normal path
+     */
+    boolean isAccessible(String layerName) {
+        if (layerName == null) {
+            return false;
+        }
+        Object layer = catalog.getLayerByName(layerName);
+        if (layer == null) {
+            layer = catalog.getLayerGroupByName(layerName);
+        }
+        return layer != null && !(layer instanceof Wrapper);
+    }
+
+    /**
+     * Writes a cached tile back with the same headers {@link CachingWebMapService} would set
+     */
+    static class CachedTileController implements Controller {
+
+        final ConveyorTile tile;
+
+        final String layerName;
+
+        CachedTileController(ConveyorTile tile, String layerName) {
+            this.tile = tile;
+            this.layerName = layerName;
+        }
+
+        public ModelAndView handleRequest(HttpServletRequest request, HttpServletResponse response)
+                throws Exception {
+            final byte[] tileBytes;
+            final Resource mapContents = tile.getBlob();
+            if (mapContents instanceof ByteArrayResource) {
+                tileBytes = ((ByteArrayResource) mapContents).getContents();
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                mapContents.transferTo(Channels.newChannel(out));
+                tileBytes = out.toByteArray();
+            }
+
+            final byte[] hash = MessageDigest.getInstance("MD5").digest(tileBytes);
+            final String etag = CachingWebMapService.toHexString(hash);
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return null;
+            }
+
+            response.setContentType(tile.getMimeType().getMimeType());
+            response.setHeader("Cache-Control", "no-cache");
+            response.setHeader("ETag", etag);
+            response.setHeader("geowebcache-tile-index", Arrays.toString(tile.getTileIndex()));
+            response.setHeader("Content-Disposition", "attachment; filename="
+                    + layerName.replace(":", "-") + "." + tile.getMimeType().getFileExtension());
+            response.setContentLength(tileBytes.length);
+            response.getOutputStream().write(tileBytes);
+            response.getOutputStream().flush();
+            return null;
+        }
+    }
+}
@@ -115,7 +115,7 @@ public class CachingWebMapService implements MethodInterceptor {
         return (WebMap) invocation.proceed();
     }
 
-    private String toHexString(byte[] hash) {
+    static String toHexString(byte[] hash) {
 
         StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,242 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geowebcache.diskquota.DiskQuotaConfig;
+import org.geowebcache.diskquota.storage.BDBQuotaStore;
+import org.geowebcache.diskquota.storage.Quota;
+import org.geowebcache.diskquota.storage.TileSet;
+
+public class BatchedUsageStoreTest extends TestCase {
+
+    private File root;
+
+    private BatchedUsageStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = new File("target/test-usage-store");
+        if (root.exists()) {
+            FileUtils.deleteDirectory(root);
+        }
+        store = open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.destroy();
+        FileUtils.deleteDirectory(root);
+    }
+
+    private BatchedUsageStore open() throws Exception {
+        BatchedUsageStore store = new BatchedUsageStore();
+        store.open(root);
+        return store;
+    }
+
+    private void store(String layer, String gridSet, long size) {
+        store.tileStored(layer, gridSet, "png", null, 0, 0, 0, size);
+    }
+
+    public void testDisabled() throws Exception {
+        BatchedUsageStore disabled = new BatchedUsageStore();
+        assertFalse(disabled.isEnabled());
+        disabled.tileStored("topp:states", "EPSG:4326", "png", null, 0, 0, 0, 100);
+        assertEquals(0, disabled.getGlobalUsedBytes());
+        disabled.destroy();
+    }
+
+    public void testPendingUsage() throws Exception {
+        store("topp:states", "EPSG:4326", 100);
+        store("topp:states", "EPSG:900913", 50);
+        store("topp:roads", "EPSG:4326", 10);
+        store.tileUpdated("topp:states", "EPSG:4326", "png", null, 0, 0, 0, 120, 100);
+        store.tileDeleted("topp:roads", "EPSG:4326", "png", null, 0, 0, 0, 10);
+
+        // not flushed yet
+        assertEquals(170, store.getUsedBytes("topp:states"));
+        assertEquals(0, store.getUsedBytes("topp:roads"));
+        assertEquals(170, store.getGlobalUsedBytes());
+        assertEquals(2, store.getUsage("topp:states")[1]);
+
+        store.flush();
+        assertEquals(170, store.getUsedBytes("topp:states"));
+        assertEquals(170, store.getGlobalUsedBytes());
+
+        // deltas over the flushed totals
+        store("topp:states", "EPSG:4326", 30);
+        assertEquals(200, store.getUsedBytes("topp:states"));
+        store.flush();
+        assertEquals(200, store.getUsedBytes("topp:states"));
+        assertEquals(3, store.getUsage("topp:states")[1]);
+    }
+
+    public void testRestart() throws Exception {
+        store("topp:states", "EPSG:4326", 100);
+        store.flush();
+        store("topp:states", "EPSG:4326", 25);
+        // the last deltas are flushed on shutdown
+        store.destroy();
+
+        store = open();
+        assertEquals(125, store.getUsedBytes("topp:states"));
+        assertEquals(2, store.getUsage("topp:states")[1]);
+    }
+
+    public void testLayerRenamed() throws Exception {
+        store("topp:states", "EPSG:4326", 100);
+        store.flush();
+        store("topp:states", "EPSG:900913", 20);
+        store.layerRenamed("topp:states", "topp:usa");
+        assertEquals(0, store.getUsedBytes("topp:states"));
+        assertEquals(120, store.getUsedBytes("topp:usa"));
+
+        store.destroy();
+        store = open();
+        assertEquals(120, store.getUsedBytes("topp:usa"));
+    }
+
+    public void testDeletes() throws Exception {
+        store("topp:states", "EPSG:4326", 100);
+        store("topp:states", "EPSG:900913", 20);
+        store("topp:roads", "EPSG:4326", 10);
+        store.gridSubsetDeleted("topp:states", "EPSG:900913");
+        assertEquals(100, store.getUsedBytes("topp:states"));
+        store.layerDeleted("topp:states");
+        assertEquals(0, store.getUsedBytes("topp:states"));
+        assertEquals(10, store.getGlobalUsedBytes());
+
+        store.destroy();
+        store = open();
+        assertEquals(0, store.getUsedBytes("topp:states"));
+        assertEquals(10, store.getGlobalUsedBytes());
+    }
+
+    public void testConcurrentUpdates() throws Exception {
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        store("topp:states", "EPSG:4326", 2);
+                        if (j % 100 == 0) {
+                            store.flush();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(16000, store.getUsedBytes("topp:states"));
+        store.flush();
+        assertEquals(8000, store.getUsage("topp:states")[1]);
+    }
+
+    public void testSeedFromQuotaStore() throws Exception {
+        store.destroy();
+        FileUtils.deleteDirectory(root);
+
+        BDBQuotaStore quotaStore = quotaStore(1000, 500);
+        store = new BatchedUsageStore();
+        store.open(root, quotaStore);
+        assertEquals(1500, store.getUsedBytes("topp:states"));
+        assertEquals(1500, store.getGlobalUsedBytes());
+
+        // a clean restart trusts the stored totals while the quota store did not change
+        store("topp:states", "EPSG:4326", 100);
+        store.destroy();
+        store = new BatchedUsageStore();
+        store.open(root, quotaStore(1000, 500));
+        assertEquals(1600, store.getUsedBytes("topp:states"));
+    }
+
+    public void testReconcileWithQuotaStore() throws Exception {
+        store.destroy();
+        FileUtils.deleteDirectory(root);
+        store = new BatchedUsageStore();
+        store.open(root, quotaStore(1000, 500));
+        store("topp:states", "EPSG:4326", 100);
+        store.destroy();
+
+        // the disk quota monitor updated the quota store while the usage store was disabled
+        store = new BatchedUsageStore();
+        store.open(root, quotaStore(10, 10));
+        assertEquals(20, store.getUsedBytes("topp:states"));
+        store("topp:states", "EPSG:4326", 5);
+        store.destroy();
+
+        store = new BatchedUsageStore();
+        store.open(root, quotaStore(10, 10));
+        assertEquals(25, store.getUsedBytes("topp:states"));
+    }
+
+    public void testQuotaLimits() throws Exception {
+        assertFalse(UsageStoreQuotaMonitor.hasQuotaLimits(null));
+        DiskQuotaConfig config = new DiskQuotaConfig();
+        assertFalse(UsageStoreQuotaMonitor.hasQuotaLimits(config));
+        config.setGlobalQuota(new Quota(BigInteger.valueOf(1000)));
+        assertTrue(UsageStoreQuotaMonitor.hasQuotaLimits(config));
+    }
+
+    public void testUncleanShutdown() throws Exception {
+        store("topp:states", "EPSG:4326", 100);
+        store.flush();
+        store("topp:states", "EPSG:4326", 50);
+        // crash, the last deltas are lost and the store is not marked as clean
+        store.connection.close();
+        store.connection = null;
+
+        // the flushed totals are kept, no quota store was recorded to compare with
+        store = new BatchedUsageStore();
+        store.open(root, quotaStore(120, 30));
+        assertEquals(100, store.getUsedBytes("topp:states"));
+        assertEquals(1, store.getUsage("topp:states")[1]);
+        store.destroy();
+
+        store = open();
+        assertEquals(100, store.getUsedBytes("topp:states"));
+    }
+
+    public void testNoDeltaAfterDestroy() throws Exception {
+        store("topp:states", "EPSG:4326", 100);
+        store.destroy();
+        assertFalse(store.isEnabled());
+        // ignored, the store has been flushed for the last time
+        store("topp:states", "EPSG:4326", 50);
+        assertEquals(100, store.getUsedBytes("topp:states"));
+    }
+
+    /**
+     * A quota store with two formats of the topp:states EPSG:4326 tile set
+     */
+    private BDBQuotaStore quotaStore(long pngBytes, long jpegBytes) throws Exception {
+        BDBQuotaStore quotaStore = mock(BDBQuotaStore.class);
+        TileSet png = new TileSet("topp:states", "EPSG:4326", "image/png", null);
+        TileSet jpeg = new TileSet("topp:states", "EPSG:4326", "image/jpeg", null);
+        Set<TileSet> tileSets = new HashSet<TileSet>();
+        tileSets.add(png);
+        tileSets.add(jpeg);
+        when(quotaStore.getTileSets()).thenReturn(tileSets);
+        when(quotaStore.getUsedQuotaByTileSetId(png.getId())).thenReturn(
+                new Quota(BigInteger.valueOf(pngBytes)));
+        when(quotaStore.getUsedQuotaByTileSetId(jpeg.getId())).thenReturn(
+                new Quota(BigInteger.valueOf(jpegBytes)));
+        return quotaStore;
+    }
+}
@@ -0,0 +1,36 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.geoserver.ows.FlowControlStatus;
+
+public class ControlFlowPressureTest extends TestCase {
+
+    public void testNoControlFlow() throws Exception {
+        assertEquals(0, new ControlFlowPressure().getWaitingRequests());
+    }
+
+    public void testWaitingRequests() throws Exception {
+        FlowControlStatus s1 = mock(FlowControlStatus.class);
+        FlowControlStatus s2 = mock(FlowControlStatus.class);
+        when(s1.getQueuedRequests()).thenReturn(2);
+        when(s2.getQueuedRequests()).thenReturn(1);
+
+        ControlFlowPressure pressure = new ControlFlowPressure();
+        pressure.setStatuses(Arrays.asList(s1, s2));
+        assertEquals(3, pressure.getWaitingRequests());
+
+        when(s1.getQueuedRequests()).thenReturn(0);
+        when(s2.getQueuedRequests()).thenReturn(0);
+        assertEquals(0, pressure.getWaitingRequests());
+    }
+}
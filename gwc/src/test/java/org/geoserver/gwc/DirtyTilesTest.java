@@ -0,0 +1,143 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class DirtyTilesTest extends TestCase {
+
+    private GridSubset gridSubset;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(true, true);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+    }
+
+    public void testPoint() throws Exception {
+        DirtyTiles tiles = new DirtyTiles(gridSubset, 0);
+        tiles.add(geometry("POINT(10.1 10.1)"));
+        List<long[]> ranges = tiles.getTileRanges(3, 10);
+        assertEquals(1, ranges.size());
+        assertRange(new long[] { 8, 4, 8, 4, 3 }, ranges.get(0));
+
+        // a symbol as big as a tile touches the neighbours too
+        tiles = new DirtyTiles(gridSubset, 256);
+        tiles.add(geometry("POINT(10.1 10.1)"));
+        ranges = tiles.getTileRanges(3, 10);
+        assertEquals(9, countTiles(ranges));
+        for (long x = 7; x <= 9; x++) {
+            for (long y = 3; y <= 5; y++) {
+                assertTrue(contains(ranges, x, y));
+            }
+        }
+    }
+
+    public void testLine() throws Exception {
+        DirtyTiles tiles = new DirtyTiles(gridSubset, 0);
+        tiles.add(geometry("LINESTRING(-170 -80, 170 80)"));
+
+        List<long[]> ranges = tiles.getTileRanges(4, 1000);
+        long count = countTiles(ranges);
+        // the envelope covers 512 tiles, the line crosses a few dozens
+        assertTrue(count >= 32);
+        assertTrue(count < 100);
+        assertTrue(contains(ranges, tileIndex(85, 40, 4)[0], tileIndex(85, 40, 4)[1]));
+        assertFalse(contains(ranges, tileIndex(-85, 40, 4)[0], tileIndex(-85, 40, 4)[1]));
+    }
+
+    public void testMaxRanges() throws Exception {
+        DirtyTiles tiles = new DirtyTiles(gridSubset, 0);
+        tiles.add(geometry("LINESTRING(-170 -80, 170 80)"));
+
+        List<long[]> ranges = tiles.getTileRanges(6, 4);
+        assertTrue(ranges.size() <= 4);
+        long[] index = tileIndex(85, 40, 6);
+        assertTrue(contains(ranges, index[0], index[1]));
+    }
+
+    public void testPolygon() throws Exception {
+        DirtyTiles tiles = new DirtyTiles(gridSubset, 0);
+        tiles.add(geometry("POLYGON((1 1, 89 1, 89 44, 1 44, 1 1))"));
+        List<long[]> ranges = tiles.getTileRanges(3, 100);
+        assertEquals(8, countTiles(ranges));
+
+        // at deeper levels the inner cells are taken as a whole
+        ranges = tiles.getTileRanges(8, 1000);
+        assertTrue(ranges.size() < countTiles(ranges) / 4);
+    }
+
+    public void testOutside() throws Exception {
+        DirtyTiles tiles = new DirtyTiles(gridSubset, 0);
+        assertTrue(tiles.isEmpty());
+        assertTrue(tiles.getBatches(10).isEmpty());
+        tiles.add(geometry("POINT(500 500)"));
+        assertFalse(tiles.isEmpty());
+        assertTrue(tiles.getTileRanges(3, 10).isEmpty());
+    }
+
+    public void testBatches() throws Exception {
+        DirtyTiles tiles = new DirtyTiles(gridSubset, 0);
+        tiles.add(geometry("LINESTRING(-170 -80, 170 80)"));
+        final int zoomStop = gridSubset.getZoomStop();
+
+        List<long[][]> batches = tiles.getBatches(3);
+        assertTrue(batches.size() >= 2);
+        assertTrue(batches.size() <= 3);
+        for (long[][] batch : batches) {
+            assertEquals(zoomStop + 1, batch.length);
+            for (int z = 0; z <= zoomStop; z++) {
+                assertEquals(z, batch[z][4]);
+            }
+        }
+        // the line touches both tiles of the first level, one per batch, the last one repeated
+        assertRange(new long[] { 0, 0, 0, 0, 0 }, batches.get(0)[0]);
+        assertRange(new long[] { 1, 0, 1, 0, 0 }, batches.get(1)[0]);
+        assertRange(batches.get(1)[0], batches.get(batches.size() - 1)[0]);
+    }
+
+    private Geometry geometry(String wkt) throws Exception {
+        return new WKTReader().read(wkt);
+    }
+
+    private long[] tileIndex(double x, double y, int z) {
+        double d = 1e-6;
+        return gridSubset.getCoverageIntersection(z, new BoundingBox(x - d, y - d, x + d, y + d));
+    }
+
+    private long countTiles(List<long[]> ranges) {
+        long count = 0;
+        for (long[] range : ranges) {
+            count += (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+        }
+        return count;
+    }
+
+    private boolean contains(List<long[]> ranges, long x, long y) {
+        for (long[] range : ranges) {
+            if (x >= range[0] && x <= range[2] && y >= range[1] && y <= range[3]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void assertRange(long[] expected, long[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+}
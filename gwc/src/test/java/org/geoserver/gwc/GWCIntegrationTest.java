@@ -1,14 +1,28 @@
 package org.geoserver.gwc;
 
 import static org.geoserver.data.test.MockData.BASIC_POLYGONS;
+import static org.geoserver.data.test.MockData.LAKES;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.Test;
 
 import org.geoserver.data.test.MockData;
+import org.geoserver.gwc.wms.CachedTileHandlerMapping;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.DispatcherCallback;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.impl.ServiceAccessRule;
+import org.geoserver.security.impl.ServiceAccessRuleDAO;
 import org.geoserver.test.GeoServerTestSupport;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.layer.TileLayer;
+import org.springframework.web.servlet.HandlerExecutionChain;
+import org.springframework.web.servlet.HandlerMapping;
 
+import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
 
 public class GWCIntegrationTest extends GeoServerTestSupport {
@@ -57,6 +71,112 @@ public class GWCIntegrationTest extends GeoServerTestSupport {
         assertEquals("[0, 0, 0]", response.getHeader("geowebcache-tile-index"));
     }
 
+    public void testDirectWMSFastPath() throws Exception {
+        final GWC gwc = GWC.get();
+        gwc.getConfig().setDirectWMSIntegrationEnabled(true);
+        final HandlerMapping mapping = (HandlerMapping) applicationContext
+                .getBean("gwcCachedTileMapping");
+
+        final String layerName = LAKES.getPrefix() + ":" + LAKES.getLocalPart();
+        final String request = buildGetMap(true, layerName, "EPSG:4326", null) + "&tiled=true";
+
+        // not cached yet, the normal path renders the tile
+        assertNull(getHandler(mapping, request));
+        MockHttpServletResponse response = getAsServletResponse(request);
+        assertEquals(200, response.getErrorCode());
+
+        // now it's served before parsing the request
+        assertNotNull(getHandler(mapping, request));
+        response = getAsServletResponse(request);
+        assertEquals(200, response.getErrorCode());
+        assertEquals("image/png", response.getContentType());
+        assertEquals("[0, 0, 0]", response.getHeader("geowebcache-tile-index"));
+
+        // parameters the tile layer does not know about go through the normal path
+        assertNull(getHandler(mapping, request + "&cql_filter=INCLUDE"));
+        // and so do the requests not matching a tile
+        assertNull(getHandler(mapping, request.replace("&tiled=true", "")));
+        assertNull(getHandler(mapping, request.replace("width=256", "width=512")));
+
+        gwc.getConfig().setDirectWMSIntegrationEnabled(false);
+        assertNull(getHandler(mapping, request));
+    }
+
+    public void testDirectWMSFastPathAxisOrder() throws Exception {
+        final GWC gwc = GWC.get();
+        gwc.getConfig().setDirectWMSIntegrationEnabled(true);
+        final HandlerMapping mapping = (HandlerMapping) applicationContext
+                .getBean("gwcCachedTileMapping");
+
+        final String layerName = LAKES.getPrefix() + ":" + LAKES.getLocalPart();
+        final String request = buildGetMap(true, layerName, "EPSG:4326", null) + "&tiled=true";
+        MockHttpServletResponse response = getAsServletResponse(request);
+        assertEquals(200, response.getErrorCode());
+        final String tileIndex = response.getHeader("geowebcache-tile-index");
+
+        final GridSubset gridSubset = gwc.getTileLayerByName(layerName).getGridSubset(
+                "EPSG:4326");
+        long[] coverage = gridSubset.getCoverage(0);
+        BoundingBox bounds = gridSubset.boundsFromIndex(new long[] { coverage[0], coverage[1],
+                coverage[4] });
+        final String request13 = request.replace("version=1.1.1", "version=1.3.0")
+                .replace("&srs=", "&crs=");
+
+        // EPSG:4326 is lat/lon in WMS 1.3
+        String latLon = request13.replaceAll("&bbox=[^&]*", "&bbox=" + bounds.getMinY()
+                + "," + bounds.getMinX() + "," + bounds.getMaxY() + "," + bounds.getMaxX());
+        assertNotNull(getHandler(mapping, latLon));
+        response = getAsServletResponse(latLon);
+        assertEquals(200, response.getErrorCode());
+        assertEquals(tileIndex, response.getHeader("geowebcache-tile-index"));
+
+        // the lon/lat bbox is a different area, not matching the tile
+        assertNull(getHandler(mapping, request13));
+
+        gwc.getConfig().setDirectWMSIntegrationEnabled(false);
+    }
+
+    public void testDirectWMSFastPathSecurity() throws Exception {
+        final GWC gwc = GWC.get();
+        gwc.getConfig().setDirectWMSIntegrationEnabled(true);
+        final HandlerMapping mapping = (HandlerMapping) applicationContext
+                .getBean("gwcCachedTileMapping");
+
+        final String layerName = LAKES.getPrefix() + ":" + LAKES.getLocalPart();
+        final String request = buildGetMap(true, layerName, "EPSG:4326", null) + "&tiled=true";
+        getAsServletResponse(request);
+        assertNotNull(getHandler(mapping, request));
+
+        // a GetMap service rule leaves the cached tiles to the dispatcher security checks
+        ServiceAccessRuleDAO dao = (ServiceAccessRuleDAO) applicationContext
+                .getBean("serviceRulesDao");
+        ServiceAccessRule rule = new ServiceAccessRule("wms", "GetMap", "ROLE_ADMINISTRATOR");
+        dao.addRule(rule);
+        try {
+            assertNull(getHandler(mapping, request));
+        } finally {
+            dao.removeRule(rule);
+        }
+        assertNotNull(getHandler(mapping, request));
+
+        // and so does any callback that might have something to do with the request
+        List<DispatcherCallback> callbacks = new ArrayList<DispatcherCallback>(
+                GeoServerExtensions.extensions(DispatcherCallback.class));
+        assertTrue(CachedTileHandlerMapping.isSkippable(callbacks));
+        callbacks.add(new AbstractDispatcherCallback() {
+        });
+        assertFalse(CachedTileHandlerMapping.isSkippable(callbacks));
+
+        gwc.getConfig().setDirectWMSIntegrationEnabled(false);
+    }
+
+    private Object getHandler(HandlerMapping mapping, String path) throws Exception {
+        MockHttpServletRequest request = createRequest(path);
+        request.setMethod("GET");
+        HandlerExecutionChain chain = mapping.getHandler(request);
+        return chain == null ? null : chain.getHandler();
+    }
+
     private String buildGetMap(final boolean directWMSIntegrationEndpoint, final String layerName,
             final String gridsetId, String styles) {
 
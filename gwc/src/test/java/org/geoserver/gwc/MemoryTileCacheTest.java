@@ -0,0 +1,164 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.geoserver.gwc.MemoryTileCache.TileKey;
+
+public class MemoryTileCacheTest extends TestCase {
+
+    public void testDisabled() {
+        assertFalse(new MemoryTileCache(0).isEnabled());
+        assertTrue(new MemoryTileCache(1024).isEnabled());
+    }
+
+    public void testGetPut() {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        TileKey key = key("topp:states", 0, 0, 0, null);
+        assertNull(cache.get(key));
+
+        put(cache, key, new byte[] { 1, 2, 3 });
+        assertEquals(3, cache.get(key("topp:states", 0, 0, 0, null)).length);
+        // different parameters, different tile
+        assertNull(cache.get(key("topp:states", 0, 0, 0, "{STYLES=population}")));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1d / 3, cache.getHitRatio(), 1e-6);
+        assertEquals(1, cache.getTileCount());
+        assertEquals(3, cache.getSize());
+
+        cache.remove(key);
+        assertEquals(0, cache.getTileCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testMBean() throws Exception {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        cache.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MemoryTileCache.MBEAN_NAME);
+        try {
+            TileKey key = key("topp:states", 0, 0, 0, null);
+            put(cache, key, new byte[] { 1, 2, 3 });
+            cache.get(key);
+            cache.get(key("topp:states", 1, 0, 0, null));
+            assertEquals(0.5, server.getAttribute(name, "HitRatio"));
+            assertEquals(1L, server.getAttribute(name, "HitCount"));
+            assertEquals(0L, server.getAttribute(name, "EvictionCount"));
+            assertEquals(1, server.getAttribute(name, "TileCount"));
+        } finally {
+            cache.destroy();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testTooBig() {
+        MemoryTileCache cache = new MemoryTileCache(MemoryTileCache.SEGMENTS * 800);
+        TileKey key = key("topp:states", 0, 0, 0, null);
+        put(cache, key, new byte[101]);
+        assertNull(cache.get(key));
+        put(cache, key, new byte[100]);
+        assertNotNull(cache.get(key));
+    }
+
+    public void testEvictionFavoursHotTiles() {
+        // a single tile per segment, at most
+        MemoryTileCache cache = new MemoryTileCache(MemoryTileCache.SEGMENTS * 800);
+        TileKey hot = key("topp:states", 0, 0, 0, null);
+        put(cache, hot, new byte[100]);
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(cache.get(hot));
+        }
+
+        // scan a lot of cold tiles, in the same segment as the hot one
+        int added = 0;
+        for (int i = 1; added < 20; i++) {
+            TileKey cold = key("topp:states", i, 0, 10, null);
+            if (cache.segment(cold) == cache.segment(hot)) {
+                put(cache, cold, new byte[100]);
+                added++;
+            }
+        }
+        assertTrue(cache.getEvictionCount() > 0);
+        assertNotNull(cache.get(hot));
+        assertTrue(cache.segment(hot).getBytes() <= cache.segment(hot).maxBytes);
+    }
+
+    public void testInvalidate() {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            put(cache, key("topp:states", i, 0, 5, null), new byte[10]);
+            put(cache, key("sf:roads", i, 0, 5, null), new byte[10]);
+        }
+        assertEquals(20, cache.getTileCount());
+
+        cache.invalidate("topp:states");
+        assertEquals(10, cache.getTileCount());
+        assertEquals(100, cache.getSize());
+        assertNull(cache.get(key("topp:states", 1, 0, 5, null)));
+        assertNotNull(cache.get(key("sf:roads", 1, 0, 5, null)));
+
+        cache.clear();
+        assertEquals(0, cache.getTileCount());
+    }
+
+    public void testBlobStoreEvents() {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        put(cache, key("topp:states", 1, 0, 5, null), new byte[10]);
+        put(cache, key("topp:states", 1, 0, 5, "{STYLES=population}"), new byte[10]);
+        put(cache, key("topp:states", 2, 0, 5, null), new byte[10]);
+        put(cache, key("sf:roads", 1, 0, 5, null), new byte[10]);
+
+        // all the parameters of the deleted tile are evicted
+        cache.tileDeleted("topp:states", "EPSG:4326", "image/png", "abc", 1, 0, 5, 10);
+        assertEquals(2, cache.getTileCount());
+        assertNull(cache.get(key("topp:states", 1, 0, 5, "{STYLES=population}")));
+        assertNotNull(cache.get(key("topp:states", 2, 0, 5, null)));
+
+        cache.tileUpdated("topp:states", "EPSG:4326", "image/png", null, 2, 0, 5, 10, 8);
+        assertNull(cache.get(key("topp:states", 2, 0, 5, null)));
+
+        put(cache, key("topp:states", 2, 0, 5, null), new byte[10]);
+        cache.gridSubsetDeleted("topp:states", "EPSG:900913");
+        assertNotNull(cache.get(key("topp:states", 2, 0, 5, null)));
+        cache.gridSubsetDeleted("topp:states", "EPSG:4326");
+        assertNull(cache.get(key("topp:states", 2, 0, 5, null)));
+
+        cache.layerDeleted("sf:roads");
+        assertEquals(0, cache.getTileCount());
+    }
+
+    public void testStalePut() {
+        MemoryTileCache cache = new MemoryTileCache(1024 * 1024);
+        TileKey key = key("topp:states", 1, 0, 5, null);
+        // a tile read from the storage while a truncate task deletes it
+        long generation = cache.getGeneration("topp:states");
+        cache.tileDeleted("topp:states", "EPSG:4326", "image/png", null, 1, 0, 5, 10);
+        assertFalse(cache.put(key, new byte[10], generation));
+        assertNull(cache.get(key));
+
+        // other layers are not affected
+        TileKey other = key("sf:roads", 1, 0, 5, null);
+        assertTrue(cache.put(other, new byte[10], cache.getGeneration("sf:roads")));
+
+        assertTrue(cache.put(key, new byte[10], cache.getGeneration("topp:states")));
+        assertNotNull(cache.get(key));
+    }
+
+    void put(MemoryTileCache cache, TileKey key, byte[] contents) {
+        cache.put(key, contents, cache.getGeneration(key.layerName));
+    }
+
+    TileKey key(String layer, long x, long y, long z, String parameters) {
+        return new TileKey(layer, "EPSG:4326", new long[] { x, y, z }, "image/png", parameters);
+    }
+}
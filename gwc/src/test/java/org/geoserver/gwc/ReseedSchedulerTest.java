@@ -0,0 +1,163 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.geoserver.gwc.ReseedScheduler.ReseedTask;
+import org.geoserver.ows.FlowControlStatus;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.StorageBroker;
+import org.mockito.ArgumentCaptor;
+
+public class ReseedSchedulerTest extends TestCase {
+
+    private GridSubset gridSubset;
+
+    private TileLayer layer;
+
+    private TileLayerDispatcher tld;
+
+    private ControlFlowPressure pressure;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(true, true);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+
+        layer = mock(TileLayer.class);
+        when(layer.isEnabled()).thenReturn(true);
+        when(layer.getMetaTilingFactors()).thenReturn(new int[] { 4, 4 });
+        tld = mock(TileLayerDispatcher.class);
+        when(tld.getTileLayer("topp:states")).thenReturn(layer);
+        pressure = new ControlFlowPressure();
+    }
+
+    private ReseedScheduler scheduler(int levels, long maxTiles) {
+        return new ReseedScheduler(tld, mock(StorageBroker.class), mock(TileBreeder.class),
+                pressure, levels, 0, Thread.MIN_PRIORITY, 0, maxTiles);
+    }
+
+    public void testDisabled() throws Exception {
+        ReseedScheduler scheduler = scheduler(0, 1000);
+        assertFalse(scheduler.isEnabled());
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png, null, (BoundingBox) null);
+        assertEquals(0, scheduler.getPendingTiles());
+        assertEquals(0, scheduler.seedNext());
+    }
+
+    public void testTopLevels() throws Exception {
+        ReseedScheduler scheduler = scheduler(3, 1000);
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png, null, (BoundingBox) null);
+        // 2 + 8 + 32 tiles
+        assertEquals(42, scheduler.getPendingTiles());
+        List<ReseedTask> backlog = scheduler.getBacklog();
+        assertEquals(3, backlog.size());
+        for (int z = 0; z < 3; z++) {
+            assertEquals(z, backlog.get(z).getZoomLevel());
+        }
+
+        // the same ranges again are not queued twice
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png, null, (BoundingBox) null);
+        assertEquals(42, scheduler.getPendingTiles());
+
+        // a different style is
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png,
+                Collections.singletonMap("STYLES", "pophatch"), (BoundingBox) null);
+        assertEquals(84, scheduler.getPendingTiles());
+    }
+
+    public void testBacklogLimit() throws Exception {
+        ReseedScheduler scheduler = scheduler(3, 20);
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png, null, (BoundingBox) null);
+        assertEquals(10, scheduler.getPendingTiles());
+        assertEquals(32, scheduler.getDroppedTiles());
+    }
+
+    public void testSeedMetaTiles() throws Exception {
+        ReseedScheduler scheduler = scheduler(2, 1000);
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png, null, (BoundingBox) null);
+        assertEquals(10, scheduler.getPendingTiles());
+
+        // the two tiles of level 0 fit in a single meta tile
+        assertEquals(2, scheduler.seedNext());
+        // level 1 is 4x2 tiles, a single meta tile too
+        assertEquals(8, scheduler.seedNext());
+        assertEquals(0, scheduler.seedNext());
+        assertEquals(0, scheduler.getPendingTiles());
+        assertEquals(10, scheduler.getSeededTiles());
+
+        ArgumentCaptor<ConveyorTile> tiles = ArgumentCaptor.forClass(ConveyorTile.class);
+        verify(layer, times(2)).seedTile(tiles.capture(), anyBoolean());
+        assertTrue(Arrays.equals(new long[] { 0, 0, 0 }, tiles.getAllValues().get(0)
+                .getTileIndex()));
+        assertTrue(Arrays.equals(new long[] { 0, 0, 1 }, tiles.getAllValues().get(1)
+                .getTileIndex()));
+        assertEquals("EPSG:4326", tiles.getAllValues().get(1).getGridSetId());
+    }
+
+    public void testNextAlignsToMetaTiles() throws Exception {
+        ReseedTask task = new ReseedTask("topp:states", "EPSG:4326", ImageMime.png,
+                new HashMap<String, String>(), new long[] { 3, 2, 9, 5, 4 });
+        assertEquals(28, task.getPendingTiles());
+        int[] metaTiling = new int[] { 4, 4 };
+
+        assertTrue(Arrays.equals(new long[] { 3, 2, 4 }, task.next(metaTiling)));
+        assertEquals(2, task.lastStep);
+        assertTrue(Arrays.equals(new long[] { 4, 2, 4 }, task.next(metaTiling)));
+        assertEquals(8, task.lastStep);
+        assertTrue(Arrays.equals(new long[] { 8, 2, 4 }, task.next(metaTiling)));
+        assertEquals(4, task.lastStep);
+        assertTrue(Arrays.equals(new long[] { 3, 4, 4 }, task.next(metaTiling)));
+        assertEquals(2, task.lastStep);
+        task.next(metaTiling);
+        assertFalse(task.isDone());
+        task.next(metaTiling);
+        assertTrue(task.isDone());
+        assertEquals(0, task.getPendingTiles());
+    }
+
+    public void testRemoveLayer() throws Exception {
+        ReseedScheduler scheduler = scheduler(2, 1000);
+        scheduler.reseed("topp:states", gridSubset, ImageMime.png, null, (BoundingBox) null);
+        scheduler.remove("topp:states");
+        assertEquals(0, scheduler.getPendingTiles());
+        assertTrue(scheduler.getBacklog().isEmpty());
+        assertEquals(0, scheduler.seedNext());
+        verify(layer, never()).seedTile((ConveyorTile) anyObject(), anyBoolean());
+    }
+
+    public void testPressure() throws Exception {
+        ReseedScheduler scheduler = scheduler(2, 1000);
+        assertFalse(scheduler.isUnderPressure());
+        FlowControlStatus status = mock(FlowControlStatus.class);
+        pressure.setStatuses(Collections.singletonList(status));
+        when(status.getQueuedRequests()).thenReturn(1);
+        assertTrue(scheduler.isUnderPressure());
+        when(status.getQueuedRequests()).thenReturn(0);
+        assertFalse(scheduler.isUnderPressure());
+    }
+}
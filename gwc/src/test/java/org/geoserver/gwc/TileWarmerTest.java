@@ -0,0 +1,193 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.gwc.TileWarmer.HotTile;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.StorageBroker;
+import org.mockito.ArgumentCaptor;
+
+public class TileWarmerTest extends TestCase {
+
+    private TileLayer layer;
+
+    private TileLayerDispatcher tld;
+
+    private StorageBroker storageBroker;
+
+    @Override
+    protected void setUp() throws Exception {
+        layer = mock(TileLayer.class);
+        when(layer.isEnabled()).thenReturn(true);
+        tld = mock(TileLayerDispatcher.class);
+        when(tld.getTileLayer("topp:states")).thenReturn(layer);
+        storageBroker = mock(StorageBroker.class);
+    }
+
+    private TileWarmer warmer(int tiles, int sampling, int tracked) {
+        return new TileWarmer(tld, storageBroker, mock(TileBreeder.class),
+                new ControlFlowPressure(), tiles, sampling, tracked, 60000, 100);
+    }
+
+    private void request(TileWarmer warmer, long x, long y, int z, Map<String, String> params,
+            int times) {
+        for (int i = 0; i < times; i++) {
+            warmer.record(new ConveyorTile(storageBroker, "topp:states", "EPSG:4326", new long[] {
+                    x, y, z }, ImageMime.png, params, null, null));
+        }
+    }
+
+    public void testDisabled() throws Exception {
+        TileWarmer warmer = warmer(0, 1, 0);
+        assertFalse(warmer.isEnabled());
+        request(warmer, 0, 0, 0, null, 10);
+        assertTrue(warmer.record.isEmpty());
+        warmer.warmUp("topp:states");
+        assertTrue(warmer.pending.isEmpty());
+    }
+
+    public void testSampling() throws Exception {
+        TileWarmer warmer = warmer(10, 4, 0);
+        request(warmer, 0, 0, 0, null, 20);
+        List<HotTile> hottest = warmer.getHottestTiles("topp:states", 10);
+        assertEquals(1, hottest.size());
+        assertEquals(5, hottest.get(0).hits);
+    }
+
+    public void testHottestTiles() throws Exception {
+        TileWarmer warmer = warmer(2, 1, 0);
+        request(warmer, 1, 0, 1, null, 3);
+        request(warmer, 0, 0, 0, null, 5);
+        request(warmer, 3, 1, 2, null, 1);
+        request(warmer, 1, 0, 1, Collections.singletonMap("STYLES", "pophatch"), 4);
+
+        List<HotTile> hottest = warmer.getHottestTiles("topp:states", 2);
+        assertEquals(2, hottest.size());
+        assertTrue(Arrays.equals(new long[] { 0, 0, 0 }, hottest.get(0).index.toArray()));
+        assertEquals("pophatch", hottest.get(1).tileSet.parameters.get("STYLES"));
+        assertTrue(warmer.getHottestTiles("topp:roads", 2).isEmpty());
+    }
+
+    public void testTrackedTilesEviction() throws Exception {
+        TileWarmer warmer = warmer(2, 1, 3);
+        request(warmer, 0, 0, 0, null, 4);
+        request(warmer, 1, 0, 0, null, 2);
+        request(warmer, 0, 0, 1, null, 1);
+        // full, the least requested tile makes room for the new one
+        request(warmer, 1, 0, 1, null, 1);
+        // a long tail of tiles requested once does not push out the hot ones
+        for (int x = 10; x < 30; x++) {
+            request(warmer, x, 0, 5, null, 1);
+        }
+
+        List<HotTile> hottest = warmer.getHottestTiles("topp:states", 10);
+        assertEquals(3, hottest.size());
+        assertTrue(Arrays.equals(new long[] { 0, 0, 0 }, hottest.get(0).index.toArray()));
+        assertEquals(4, hottest.get(0).hits);
+        assertTrue(Arrays.equals(new long[] { 1, 0, 0 }, hottest.get(1).index.toArray()));
+        assertEquals(2, hottest.get(1).hits);
+        assertTrue(Arrays.equals(new long[] { 29, 0, 5 }, hottest.get(2).index.toArray()));
+    }
+
+    public void testTrackedTilesAging() throws Exception {
+        TileWarmer warmer = warmer(2, 1, 3);
+        request(warmer, 0, 0, 0, null, 20);
+        request(warmer, 1, 0, 0, null, 6);
+        request(warmer, 0, 0, 1, null, 3);
+        // the 30th sample halves the counts, dropping the tiles left at zero
+        request(warmer, 1, 0, 1, null, 1);
+
+        List<HotTile> hottest = warmer.getHottestTiles("topp:states", 10);
+        assertEquals(3, hottest.size());
+        assertEquals(10, hottest.get(0).hits);
+        assertEquals(3, hottest.get(1).hits);
+        assertEquals(1, hottest.get(2).hits);
+        assertTrue(Arrays.equals(new long[] { 0, 0, 1 }, hottest.get(2).index.toArray()));
+    }
+
+    public void testWarmUp() throws Exception {
+        TileWarmer warmer = warmer(2, 1, 0);
+        request(warmer, 1, 0, 1, null, 3);
+        request(warmer, 0, 0, 0, null, 5);
+        request(warmer, 3, 1, 2, null, 1);
+
+        assertEquals(2, warmer.warmUpNow("topp:states"));
+        assertEquals(2, warmer.getWarmedTiles());
+
+        ArgumentCaptor<ConveyorTile> tiles = ArgumentCaptor.forClass(ConveyorTile.class);
+        verify(layer, times(2)).seedTile(tiles.capture(), anyBoolean());
+        assertTrue(Arrays.equals(new long[] { 0, 0, 0 }, tiles.getAllValues().get(0)
+                .getTileIndex()));
+        assertTrue(Arrays.equals(new long[] { 1, 0, 1 }, tiles.getAllValues().get(1)
+                .getTileIndex()));
+    }
+
+    public void testWarmUpTimeLimit() throws Exception {
+        TileWarmer warmer = new TileWarmer(tld, storageBroker, mock(TileBreeder.class), null,
+                2, 1, 0, 0, 100);
+        request(warmer, 0, 0, 0, null, 1);
+        assertEquals(0, warmer.warmUpNow("topp:states"));
+        verify(layer, never()).seedTile((ConveyorTile) anyObject(), anyBoolean());
+    }
+
+    public void testRemove() throws Exception {
+        TileWarmer warmer = warmer(2, 1, 0);
+        request(warmer, 0, 0, 0, null, 1);
+        warmer.warmUp("topp:states");
+        warmer.remove("topp:states");
+        assertTrue(warmer.pending.isEmpty());
+        assertTrue(warmer.getHottestTiles("topp:states", 2).isEmpty());
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        File root = new File("target/test-tile-warmer");
+        if (root.exists()) {
+            FileUtils.deleteDirectory(root);
+        }
+        root.mkdirs();
+        try {
+            TileWarmer warmer = warmer(2, 1, 0);
+            request(warmer, 0, 0, 0, null, 5);
+            request(warmer, 1, 0, 1, Collections.singletonMap("STYLES", "pop hatch&co"), 3);
+            File file = new File(root, TileWarmer.RECORD_FILE);
+            warmer.save(file);
+
+            TileWarmer loaded = warmer(2, 1, 0);
+            loaded.load(file);
+            List<HotTile> hottest = loaded.getHottestTiles("topp:states", 2);
+            assertEquals(2, hottest.size());
+            assertEquals(5, hottest.get(0).hits);
+            assertEquals(ImageMime.png, hottest.get(0).tileSet.mimeType);
+            assertEquals(3, hottest.get(1).hits);
+            assertEquals("pop hatch&co", hottest.get(1).tileSet.parameters.get("STYLES"));
+
+            loaded.warmUpAll();
+            assertEquals(Collections.singleton("topp:states"), loaded.pending);
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.geoserver.gwc.layer;
+
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RenderedImageMap;
+import org.geoserver.wms.map.RenderedImageMapResponse;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.mime.MimeType;
+
+public class GeoServerMetaTileTest extends TestCase {
+
+    static final Logger LOGGER = Logging.getLogger(GeoServerMetaTileTest.class);
+
+    private CatalogConfiguration mediator;
+
+    private GridSubset gridSubset;
+
+    private RenderedImageMapResponse encoder;
+
+    private BufferedImage image;
+
+    @Override
+    protected void setUp() throws Exception {
+        GridSetBroker gridSetBroker = new GridSetBroker(true, true);
+        gridSubset = GridSubsetFactory.createGridSubSet(gridSetBroker.WORLD_EPSG4326);
+
+        encoder = new RenderedImageMapResponse("image/png", null) {
+            @Override
+            public void formatImageOutputStream(RenderedImage image, OutputStream outStream,
+                    WMSMapContent mapContent) throws ServiceException, IOException {
+                ImageIO.write(image, "png", outStream);
+            }
+        };
+        mediator = mock(CatalogConfiguration.class);
+        when(mediator.getResponseEncoder((MimeType) anyObject(), (WebMap) anyObject()))
+                .thenReturn(encoder);
+    }
+
+    /**
+     * A 4x4 meta tile, each tile painted with its own color
+     */
+    private GeoServerMetaTile createMetaTile() {
+        GeoServerMetaTile metaTile = new GeoServerMetaTile("test:layer", gridSubset,
+                ImageMime.png, null, new long[] { 0, 0, 3 }, 4, 4, 0, mediator);
+        int width = metaTile.getMetaTileWidth();
+        int height = metaTile.getMetaTileHeight();
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        for (int x = 0; x < width; x += 256) {
+            for (int y = 0; y < height; y += 256) {
+                graphics.setColor(new Color(x / 256 * 60, y / 256 * 60, 128));
+                graphics.fillRect(x, y, 256, 256);
+            }
+        }
+        graphics.dispose();
+        metaTile.setWebMap(new RenderedImageMap(new WMSMapContent(), image, "image/png"));
+        return metaTile;
+    }
+
+    public void testCreateTileSharesRaster() throws Exception {
+        GeoServerMetaTile metaTile = createMetaTile();
+
+        RenderedImage tile = metaTile.createTile(256, 512, 256, 256);
+        assertTrue(tile instanceof BufferedImage);
+        assertEquals(256, tile.getWidth());
+        assertEquals(256, tile.getHeight());
+        assertSame(image.getRaster().getDataBuffer(), ((BufferedImage) tile).getRaster()
+                .getDataBuffer());
+        assertEquals(image.getRGB(256, 512), ((BufferedImage) tile).getRGB(0, 0));
+        assertEquals(new Color(60, 120, 128).getRGB(), ((BufferedImage) tile).getRGB(255, 255));
+        metaTile.dispose();
+    }
+
+    public void testEncodeTiles() throws Exception {
+        GeoServerMetaTile metaTile = createMetaTile();
+        int count = metaTile.getTilesGridPositions().length;
+        assertEquals(16, count);
+
+        List<Future<Resource>> encodings = new ArrayList<Future<Resource>>();
+        for (int i = 0; i < count; i++) {
+            encodings.add(metaTile.encodeTile(i));
+        }
+        Set<Integer> colors = new HashSet<Integer>();
+        for (Future<Resource> encoding : encodings) {
+            BufferedImage tile = ImageIO.read(encoding.get().getInputStream());
+            assertEquals(256, tile.getWidth());
+            assertEquals(256, tile.getHeight());
+            // each tile is uniform, and different from the others
+            assertEquals(tile.getRGB(0, 0), tile.getRGB(255, 255));
+            colors.add(tile.getRGB(0, 0));
+        }
+        assertEquals(16, colors.size());
+        metaTile.dispose();
+
+        // the encoder is looked up once per meta tile
+        verify(mediator, times(1)).getResponseEncoder(eq(ImageMime.png),
+                (WebMap) anyObject());
+    }
+
+    /**
+     * Compares the time it takes to encode meta tiles one tile after the other on the calling
+     * thread, and on the shared encoder pool, making sure the results are the same
+     */
+    public void testEncodingThroughput() throws Exception {
+        final int rounds = 10;
+        GeoServerMetaTile metaTile = createMetaTile();
+        int count = metaTile.getTilesGridPositions().length;
+
+        // warm up
+        byte[][] sequential = encodeSequentially(metaTile, count);
+        byte[][] parallel = encodeConcurrently(metaTile, count);
+        for (int i = 0; i < count; i++) {
+            assertTrue(Arrays.equals(sequential[i], parallel[i]));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            encodeSequentially(metaTile, count);
+        }
+        long sequentialTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            encodeConcurrently(metaTile, count);
+        }
+        long parallelTime = System.nanoTime() - start;
+        metaTile.dispose();
+
+        LOGGER.info("Encoded " + rounds + " meta tiles of " + count + " tiles in "
+                + (sequentialTime / 1000000) + "ms sequentially, " + (parallelTime / 1000000)
+                + "ms on the encoder pool with " + Runtime.getRuntime().availableProcessors()
+                + " processors");
+    }
+
+    private byte[][] encodeSequentially(GeoServerMetaTile metaTile, int count) throws Exception {
+        byte[][] result = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ByteArrayResource resource = new ByteArrayResource();
+            assertTrue(metaTile.writeTileToStream(i, resource));
+            result[i] = toByteArray(resource);
+        }
+        return result;
+    }
+
+    private byte[][] encodeConcurrently(GeoServerMetaTile metaTile, int count) throws Exception {
+        List<Future<Resource>> encodings = new ArrayList<Future<Resource>>();
+        for (int i = 0; i < count; i++) {
+            encodings.add(metaTile.encodeTile(i));
+        }
+        byte[][] result = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            result[i] = toByteArray(encodings.get(i).get());
+        }
+        return result;
+    }
+
+    private byte[] toByteArray(Resource resource) throws IOException {
+        InputStream in = resource.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -18,6 +19,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
@@ -56,9 +63,12 @@ import org.geowebcache.io.Resource;
 import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.mockrunner.mock.web.MockHttpServletRequest;
 import com.mockrunner.mock.web.MockHttpServletResponse;
@@ -480,6 +490,114 @@ public class GeoServerTileLayerTest extends TestCase {
         verify(storageBroker, atLeastOnce()).get((TileObject) anyObject());
         verify(catalogConfig, times(1)).getResponseEncoder(eq(mimeType),
                 isA(RenderedImageMap.class));
+        // tiles are saved in the background
+        verify(storageBroker, timeout(5000)).put((TileObject) anyObject());
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void testGetTilePending() throws Exception {
+        mockRendering();
+        final CountDownLatch putStarted = new CountDownLatch(1);
+        final CountDownLatch putReleased = new CountDownLatch(1);
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+        when(storageBroker.put((TileObject) anyObject())).thenAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                putStarted.countDown();
+                putReleased.await(10, TimeUnit.SECONDS);
+                return true;
+            }
+        });
+
+        ExecutorService requests = Executors.newFixedThreadPool(2);
+        try {
+            // both tiles belong to the same meta tile
+            Future<ConveyorTile> first = requests.submit(getTileTask(storageBroker, 0));
+            assertEquals(CacheResult.MISS, first.get(10, TimeUnit.SECONDS).getCacheResult());
+            assertTrue(putStarted.await(10, TimeUnit.SECONDS));
+
+            // the meta tile is still being saved, the second tile comes from the pending ones
+            Future<ConveyorTile> second = requests.submit(getTileTask(storageBroker, 1));
+            ConveyorTile returned = second.get(10, TimeUnit.SECONDS);
+            assertEquals(CacheResult.HIT, returned.getCacheResult());
+            assertNotNull(returned.getBlob());
+            assertFalse(GeoServerTileLayer.PENDING_TILES.isEmpty());
+            verify(catalogConfig, times(1)).dispatchOwsRequest((Map) anyObject(),
+                    (Cookie[]) anyObject());
+        } finally {
+            putReleased.countDown();
+            requests.shutdown();
+        }
+        assertNoPendingTiles();
+    }
+
+    @SuppressWarnings("rawtypes")
+    public void testGetTilePendingPutFailure() throws Exception {
+        mockRendering();
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+        when(storageBroker.put((TileObject) anyObject())).thenThrow(
+                new StorageException("put failed"));
+
+        ExecutorService requests = Executors.newSingleThreadExecutor();
+        try {
+            requests.submit(getTileTask(storageBroker, 0)).get(10, TimeUnit.SECONDS);
+            verify(storageBroker, timeout(5000).atLeastOnce()).put((TileObject) anyObject());
+            assertNoPendingTiles();
+
+            // nothing left behind, the other tile of the meta tile gets rendered again
+            ConveyorTile returned = requests.submit(getTileTask(storageBroker, 1)).get(10,
+                    TimeUnit.SECONDS);
+            assertEquals(CacheResult.MISS, returned.getCacheResult());
+            verify(catalogConfig, times(2)).dispatchOwsRequest((Map) anyObject(),
+                    (Cookie[]) anyObject());
+        } finally {
+            requests.shutdown();
+        }
+        assertNoPendingTiles();
+    }
+
+    /**
+     * Sets up the mediator to render the tiles of the layer
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void mockRendering() throws Exception {
+        when(catalogConfig.dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject()))
+                .thenReturn(mock(Resource.class));
+        when(catalogConfig.getResponseEncoder((MimeType) anyObject(), (WebMap) anyObject()))
+                .thenReturn(mock(RenderedImageMapResponse.class));
+        layerInfoTileLayer = new GeoServerTileLayer(catalogConfig, layerInfo);
+    }
+
+    /**
+     * Requests a tile of the first zoom level meta tile covering the layer, in the thread running
+     * the task
+     */
+    private Callable<ConveyorTile> getTileTask(final StorageBroker storageBroker, final long x) {
+        return new Callable<ConveyorTile>() {
+            public ConveyorTile call() throws Exception {
+                // large enough for the whole meta tile
+                BufferedImage image = new BufferedImage(1024, 512, BufferedImage.TYPE_INT_ARGB);
+                GeoServerTileLayer.WEB_MAP.set(new RenderedImageMap(new WMSMapContent(), image,
+                        "image/png"));
+                ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                        "EPSG:4326", new long[] { x, 0, 1 }, MimeType.createFromFormat("image/png"),
+                        null, new MockHttpServletRequest(), new MockHttpServletResponse());
+                return layerInfoTileLayer.getTile(tile);
+            }
+        };
+    }
+
+    /**
+     * The tiles are removed from the pending ones by the tile saver threads, once saved
+     */
+    private void assertNoPendingTiles() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!GeoServerTileLayer.PENDING_TILES.isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(GeoServerTileLayer.PENDING_TILES.isEmpty());
     }
 
     public void testGetMimeTypes() throws Exception {
@@ -47,6 +47,8 @@ import org.geoserver.config.GeoServerDataDirectory;
 import org.geoserver.data.util.CoverageStoreUtils;
 import org.geoserver.data.util.CoverageUtils;
 import org.geoserver.feature.retype.RetypingFeatureSource;
+import org.geoserver.ows.Span;
+import org.geoserver.ows.Tracing;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.data.DataAccess;
@@ -289,6 +291,7 @@ public class ResourcePool {
      * @throws IOException Any errors that occur connecting to the resource.
      */
     public DataAccess<? extends FeatureType, ? extends Feature> getDataStore( DataStoreInfo info ) throws IOException {
+        Span span = Tracing.start("dataStore");
         try {
             String id = info.getId();
             DataAccess<? extends FeatureType, ? extends Feature> dataStore;
@@ -387,6 +390,9 @@ public class ResourcePool {
         catch (Exception e) {
             throw (IOException) new IOException().initCause(e);
         }
+        finally {
+            span.end();
+        }
     }
         
     /**
@@ -824,6 +830,15 @@ public class ResourcePool {
      * @throws IOException Any errors that occur while loading the feature source.
      */
     public FeatureSource<? extends FeatureType, ? extends Feature> getFeatureSource( FeatureTypeInfo info, Hints hints ) throws IOException {
+        Span span = Tracing.start("featureSource");
+        try {
+            return loadFeatureSource(info, hints);
+        } finally {
+            span.end();
+        }
+    }
+    
+    FeatureSource<? extends FeatureType, ? extends Feature> loadFeatureSource( FeatureTypeInfo info, Hints hints ) throws IOException {
         DataAccess<? extends FeatureType, ? extends Feature> dataAccess = getDataStore(info.getStore());
         
         // TODO: support aliasing (renaming), reprojection, versioning, and locking for DataAccess
@@ -44,6 +44,11 @@ public class ServiceStrategyFactory implements OutputStrategyFactory, Applicatio
      */
     int partialBufferSize = PartialBufferedOutputStream2.DEFAULT_BUFFER_SIZE;
 
+    /**
+     * The memory buffer size when the spill strategy is used, -1 if not yet looked up
+     */
+    int spillBufferSize = -1;
+
     public ServiceStrategyFactory(GeoServer geoServer) {
         this.geoServer = geoServer;
     }
@@ -61,6 +66,10 @@ public class ServiceStrategyFactory implements OutputStrategyFactory, Applicatio
         this.partialBufferSize = partialBufferSize;
     }
 
+    public void setSpillBufferSize(int spillBufferSize) {
+        this.spillBufferSize = spillBufferSize;
+    }
+
     public ServletContext getServletContext() {
         return ((WebApplicationContext) context).getServletContext();
     }
@@ -120,6 +129,22 @@ public class ServiceStrategyFactory implements OutputStrategyFactory, Applicatio
             }
 
             ((PartialBufferStrategy2) theStrategy).setBufferSize(partialBufferSize);
+        } else if (theStrategy instanceof SpillStrategy) {
+            if (spillBufferSize == -1) {
+                spillBufferSize = 0;
+                String size = getServletContext().getInitParameter("SPILL_BUFFER_STRATEGY_SIZE");
+
+                if (size != null) {
+                    try {
+                        spillBufferSize = Math.max(0, Integer.parseInt(size.trim()));
+                    } catch (NumberFormatException nfe) {
+                        LOGGER.warning("Invalid spill buffer size, defaulting to "
+                            + SpillStrategy.DEFAULT_BUFFER_SIZE + " (was " + size + ")");
+                    }
+                }
+            }
+
+            ((SpillStrategy) theStrategy).setBufferSize(spillBufferSize);
         }
 
         return theStrategy;
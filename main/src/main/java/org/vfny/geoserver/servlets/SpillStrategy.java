@@ -0,0 +1,90 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.vfny.geoserver.servlets;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.ows.DispatcherOutputStream;
+import org.geoserver.ows.ServiceStrategy;
+import org.vfny.geoserver.util.SpillOutputStream;
+
+/**
+ * A safe strategy that buffers the whole response before sending it, keeping it in a pooled
+ * direct memory buffer as long as it fits, and spilling it to a temporary file otherwise.
+ * <p>
+ * Like the FILE strategy errors can always be reported to the client, but small responses never
+ * touch the disk and large ones do not end up on the heap as with the BUFFER strategy.
+ * </p>
+ *
+ * @see SpillOutputStream
+ */
+public class SpillStrategy implements ServiceStrategy {
+    /** Class logger */
+    protected static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.vfny.geoserver.servlets");
+
+    /**
+     * Default size of the memory buffer, in kilobytes
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 512;
+
+    private SpillOutputStream out;
+
+    private int bufferSize;
+
+    public String getId() {
+        return "SPILL";
+    }
+
+    /**
+     * Sets the size of the memory buffer, in kilobytes
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+    }
+
+    public DispatcherOutputStream getDestination(HttpServletResponse response)
+        throws IOException {
+        out = new SpillOutputStream(getBufferSize() * 1024);
+
+        return new DispatcherOutputStream(out);
+    }
+
+    public void flush(HttpServletResponse response) throws IOException {
+        if (out == null) {
+            throw new IllegalStateException("flush should only be called after getDestination");
+        }
+
+        try {
+            if (out.size() < Integer.MAX_VALUE) {
+                response.setContentLength((int) out.size());
+            }
+            out.writeTo(response.getOutputStream());
+        } finally {
+            out.release();
+            out = null;
+        }
+    }
+
+    public void abort() {
+        if (out != null) {
+            out.release();
+            out = null;
+        }
+    }
+
+    public Object clone() throws CloneNotSupportedException {
+        SpillStrategy clone = new SpillStrategy();
+        clone.bufferSize = bufferSize;
+
+        return clone;
+    }
+}
@@ -0,0 +1,224 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.vfny.geoserver.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An output stream that keeps the output in a direct memory buffer up to a certain size, and
+ * spills it to a temporary file beyond that, so that the output can be discarded if an error
+ * occurs without holding large responses on the heap.
+ * <p>
+ * The direct buffers are pooled and reused across streams, at most {@link #MAX_DIRECT_BUFFERS}
+ * are allocated and the streams opened while they are all in use get a heap buffer instead. Once
+ * the output has been spilled to
+ * disk the buffer is used to batch the writes to the temporary file, and the file is delivered
+ * with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, letting the operating
+ * system do the copy when the target allows for it.
+ * </p>
+ * <p>
+ * Nothing is written to the target until {@link #writeTo(OutputStream)} is called, and
+ * {@link #release()} must be called in any case to give back the buffer and remove the
+ * temporary file.
+ * </p>
+ */
+public class SpillOutputStream extends OutputStream {
+    static final Logger LOGGER = org.geotools.util.logging.Logging
+            .getLogger("org.vfny.geoserver.util");
+
+    /**
+     * Maximum number of direct buffers allocated, in use or idle in the pool
+     */
+    static final int MAX_DIRECT_BUFFERS = 16;
+
+    static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    static final AtomicInteger DIRECT_BUFFERS = new AtomicInteger();
+
+    ByteBuffer buffer;
+
+    File temp;
+
+    RandomAccessFile file;
+
+    FileChannel channel;
+
+    long size;
+
+    /**
+     * Builds a new stream
+     *
+     * @param bufferSize
+     *            the size of the memory buffer, in bytes
+     */
+    public SpillOutputStream(int bufferSize) {
+        this.buffer = acquire(bufferSize);
+    }
+
+    static ByteBuffer acquire(int bufferSize) {
+        ByteBuffer result = POOL.poll();
+        if (result != null) {
+            if (result.capacity() == bufferSize) {
+                result.clear();
+                return result;
+            }
+            // wrong size, let it be collected and make room for a new one
+            DIRECT_BUFFERS.decrementAndGet();
+        }
+        if (DIRECT_BUFFERS.incrementAndGet() <= MAX_DIRECT_BUFFERS) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        DIRECT_BUFFERS.decrementAndGet();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("All the " + MAX_DIRECT_BUFFERS
+                    + " direct buffers are in use, using a heap buffer");
+        }
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Returns a direct buffer to the pool, the heap ones are just dropped
+     */
+    static void giveBack(ByteBuffer buffer) {
+        if (buffer.isDirect()) {
+            buffer.clear();
+            POOL.offer(buffer);
+        }
+    }
+
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (!buffer.hasRemaining()) {
+            spill();
+        }
+        buffer.put((byte) b);
+        size++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                spill();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    void checkOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("The stream has been released");
+        }
+    }
+
+    /**
+     * Moves the buffer contents to the temporary file, creating it if necessary
+     */
+    void spill() throws IOException {
+        if (channel == null) {
+            temp = File.createTempFile("geoserver", ".spill");
+            file = new RandomAccessFile(temp, "rw");
+            channel = file.getChannel();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Output exceeded " + buffer.capacity() + " bytes, spilling to "
+                        + temp.getPath());
+            }
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the number of bytes written so far
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the output did not fit in memory
+     */
+    public boolean isSpilled() {
+        return channel != null;
+    }
+
+    /**
+     * Returns the temporary file holding the output, or null if it did not spill
+     */
+    public File getSpillFile() {
+        return temp;
+    }
+
+    /**
+     * Writes all the buffered output to the target stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        checkOpen();
+        WritableByteChannel target = Channels.newChannel(out);
+        if (channel == null) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+        } else {
+            spill();
+            long position = 0;
+            long count = channel.size();
+            while (position < count) {
+                position += channel.transferTo(position, count - position, target);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Gives back the memory buffer and removes the temporary file, if any
+     */
+    public void release() {
+        if (buffer != null) {
+            giveBack(buffer);
+            buffer = null;
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the spill file", e);
+            }
+            file = null;
+            channel = null;
+        }
+        if (temp != null) {
+            if (!temp.delete()) {
+                temp.deleteOnExit();
+            }
+            temp = null;
+        }
+    }
+
+    /**
+     * Closing the stream does nothing, the contents are kept until written out or released
+     */
+    public void close() throws IOException {
+    }
+}
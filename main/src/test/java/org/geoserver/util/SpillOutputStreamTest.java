@@ -0,0 +1,93 @@
+package org.geoserver.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.vfny.geoserver.util.SpillOutputStream;
+
+public class SpillOutputStreamTest extends TestCase {
+
+    public void testInMemory() throws IOException {
+        SpillOutputStream sos = new SpillOutputStream(1024);
+        try {
+            sos.write("Hello ".getBytes());
+            sos.write('w');
+            sos.write("orld!".getBytes());
+            sos.close();
+            assertFalse(sos.isSpilled());
+            assertEquals(12, sos.size());
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            sos.writeTo(bos);
+            assertEquals("Hello world!", bos.toString());
+        } finally {
+            sos.release();
+        }
+    }
+
+    public void testSpill() throws IOException {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        SpillOutputStream sos = new SpillOutputStream(1024);
+        try {
+            sos.write(data, 0, 5000);
+            for (int i = 5000; i < 6000; i++) {
+                sos.write(data[i]);
+            }
+            sos.write(data, 6000, 4000);
+            assertTrue(sos.isSpilled());
+            assertEquals(data.length, sos.size());
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            sos.writeTo(bos);
+            assertTrue(Arrays.equals(data, bos.toByteArray()));
+        } finally {
+            sos.release();
+        }
+    }
+
+    public void testManyStreams() throws IOException {
+        // more streams than pooled direct buffers, the last ones work on heap buffers
+        SpillOutputStream[] streams = new SpillOutputStream[40];
+        try {
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = new SpillOutputStream(1024);
+                streams[i].write(("stream " + i).getBytes());
+            }
+            for (int i = 0; i < streams.length; i++) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                streams[i].writeTo(bos);
+                assertEquals("stream " + i, bos.toString());
+            }
+        } finally {
+            for (SpillOutputStream sos : streams) {
+                if (sos != null) {
+                    sos.release();
+                }
+            }
+        }
+    }
+
+    public void testRelease() throws IOException {
+        SpillOutputStream sos = new SpillOutputStream(16);
+        sos.write(new byte[100]);
+        File temp = sos.getSpillFile();
+        assertTrue(temp.exists());
+        sos.release();
+        assertFalse(temp.exists());
+
+        try {
+            sos.write(1);
+            fail("The stream has been released, should have failed");
+        } catch (IOException e) {
+            // fine
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,11 +35,13 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
 
 import org.eclipse.emf.ecore.EObject;
+import org.geoserver.ows.util.CompressingOutputStream;
 import org.geoserver.ows.util.EncodingInfo;
 import org.geoserver.ows.util.KvpMap;
 import org.geoserver.ows.util.KvpUtils;
 import org.geoserver.ows.util.OwsUtils;
 import org.geoserver.ows.util.RequestUtils;
+import org.geoserver.ows.util.ResponseCompression;
 import org.geoserver.ows.util.XmlCharsetDetector;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
@@ -135,6 +139,16 @@ public class Dispatcher extends AbstractController {
      */
     List<DispatcherCallback> callbacks = Collections.EMPTY_LIST;
     
+    /**
+     * runs the requests of selected services on their own thread pools, if configured
+     */
+    ServiceExecutor executor;
+    
+    /**
+     * compression rules for the responses
+     */
+    ResponseCompression compression;
+    
     /**
      * Sets the flag to control wether the dispatcher is cite compliante.
      * <p>
@@ -160,6 +174,19 @@ public class Dispatcher extends AbstractController {
         //load life cycle callbacks
         callbacks = GeoServerExtensions.extensions( DispatcherCallback.class, context);
         
+        //load the per service executor
+        List<ServiceExecutor> executors = GeoServerExtensions.extensions(ServiceExecutor.class, context);
+        executor = executors.isEmpty() || executors.get(0).isEmpty() ? null : executors.get(0);
+        
+        //setup the response compression, see OWS_COMPRESSION
+        compression = new ResponseCompression(GeoServerExtensions.getProperty("OWS_COMPRESSION", context));
+        if (!compression.isEnabled()) {
+            compression = null;
+        }
+        
+        //setup the request tracing, see OWS_TRACING
+        Tracing.setEnabled(Boolean.valueOf(GeoServerExtensions.getProperty("OWS_TRACING", context)));
+        
         // setup the xml lookahead value
         String lookahead = GeoServerExtensions.getProperty("XML_LOOKAHEAD", context);
         if(lookahead != null) {
@@ -193,16 +220,43 @@ public class Dispatcher extends AbstractController {
         request.setCharacterEncoding(charSet.name());
     }
 
-    protected ModelAndView handleRequestInternal(HttpServletRequest httpRequest,
-        HttpServletResponse httpResponse) throws Exception {
+    protected ModelAndView handleRequestInternal(final HttpServletRequest httpRequest,
+        final HttpServletResponse httpResponse) throws Exception {
         preprocessRequest(httpRequest);
 
+        //run on the service thread pool if one is configured
+        String executorService = executor != null ? executor.getService(httpRequest) : null;
+        if (executorService != null) {
+            try {
+                return executor.execute(executorService, new Callable<ModelAndView>() {
+                    public ModelAndView call() throws Exception {
+                        return dispatchRequest(httpRequest, httpResponse);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.warning("Too many " + executorService + " requests, rejecting the request");
+                httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many " + executorService + " requests, try again later");
+                return null;
+            }
+        }
+        
+        return dispatchRequest(httpRequest, httpResponse);
+    }
+
+    ModelAndView dispatchRequest(HttpServletRequest httpRequest,
+        HttpServletResponse httpResponse) throws Exception {
         //create a new request instance
         Request request = new Request();
 
         //set request / response
         request.setHttpRequest(httpRequest);
         request.setHttpResponse(httpResponse);
+        
+        //trace the request phases if required
+        if (Tracing.isEnabled()) {
+            request.setTrace(new RequestTrace());
+        }
 
         Service service = null;
 
@@ -228,14 +282,31 @@ public class Dispatcher extends AbstractController {
             }
 
             //dispatch the operation
-            Operation operation = dispatch(request, service);
+            Operation operation;
+            Span span = Tracing.start(request, "read");
+            try {
+                operation = dispatch(request, service);
+            } finally {
+                span.end();
+            }
 
             //execute it
-            Object result = execute(request, operation);
+            Object result;
+            span = Tracing.start(request, "execute");
+            try {
+                result = execute(request, operation);
+            } finally {
+                span.end();
+            }
 
             //write the response
             if (result != null) {
-                response(result, request, operation);
+                span = Tracing.start(request, "write");
+                try {
+                    response(result, request, operation);
+                } finally {
+                    span.end();
+                }
             }
         } catch (Throwable t) {
          // make Spring security exceptions flow so that exception transformer filter can handle them
@@ -243,6 +314,7 @@ public class Dispatcher extends AbstractController {
                 throw (Exception) t;
             exception(t, service, request);
         } finally {
+            Tracing.complete(request);
             fireFinishedCallback(request);
             REQUEST.remove();
         }
@@ -251,8 +323,13 @@ public class Dispatcher extends AbstractController {
     }
 
     void fireFinishedCallback(Request req) {
+        // a failing callback must not keep the others from releasing their request resources
         for ( DispatcherCallback cb : callbacks ) {
-            cb.finished( req );
+            try {
+                cb.finished( req );
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Error running the finished callback of " + cb, t);
+            }
         }
     }
     
@@ -264,7 +341,12 @@ public class Dispatcher extends AbstractController {
             || "application/x-www-form-urlencoded".equals(httpRequest.getContentType()));
 
         //create the kvp map
-        parseKVP(request);
+        Span span = Tracing.start(request, "kvp");
+        try {
+            parseKVP(request);
+        } finally {
+            span.end();
+        }
         
         if ( !request.isGet() ) { // && httpRequest.getInputStream().available() > 0) {
             //wrap the input stream in a buffered input stream
@@ -740,14 +822,57 @@ public class Dispatcher extends AbstractController {
             }
 
             //set the mime type
-            req.getHttpResponse().setContentType(response.getMimeType(result, opDescriptor));
+            String mimeType = response.getMimeType(result, opDescriptor);
+            req.getHttpResponse().setContentType(mimeType);
 
             setHeaders(req,opDescriptor,result,response);
             
+            //compress the output if the client accepts it
+            String encoding = null;
+            int level = -1;
+            if (compression != null && !req.getHttpResponse().containsHeader("Content-Encoding")) {
+                encoding = compression.getEncoding(req.getHttpRequest());
+                level = encoding != null ? compression.getLevel(mimeType) : -1;
+                if (level >= 0) {
+                    req.getHttpResponse().setHeader("Content-Encoding", encoding);
+                    req.getHttpResponse().addHeader("Vary", "Accept-Encoding");
+                }
+            }
+            
             OutputStream output = outputStrategy.getDestination(req.getHttpResponse());
             
-            // actually write out the response
-            response.write(result, output, opDescriptor);
+            // actually write out the response, giving the strategy a chance to clean up
+            // if anything goes wrong
+            boolean written = false;
+            CompressingOutputStream compressed = null;
+            try {
+                if (level >= 0) {
+                    byte[] content = response.getCompressedContent(result, opDescriptor,
+                            encoding, level);
+                    if (content != null) {
+                        output.write(content);
+                    } else {
+                        compressed = new CompressingOutputStream(output, encoding, level);
+                        response.write(result, compressed, opDescriptor);
+                        compressed.finish();
+                    }
+                } else {
+                    response.write(result, output, opDescriptor);
+                }
+                written = true;
+            } finally {
+                if (compressed != null) {
+                    compressed.release();
+                }
+                if (!written) {
+                    outputStrategy.abort();
+                    // the exception report is not compressed, drop the encoding headers
+                    // along with any partial output, if still possible
+                    if (level >= 0 && !req.getHttpResponse().isCommitted()) {
+                        req.getHttpResponse().reset();
+                    }
+                }
+            }
 
             // flush the output with detection of client shutting the door in our face
             try {
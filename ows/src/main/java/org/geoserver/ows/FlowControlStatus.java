@@ -0,0 +1,18 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+/**
+ * Implemented by the {@link DispatcherCallback} holding back the OWS requests when too many are
+ * running, so that other modules can find it in the application context and tell how many
+ * requests are being held back without depending on its implementation.
+ */
+public interface FlowControlStatus {
+
+    /**
+     * The number of requests currently waiting to be let through
+     */
+    int getQueuedRequests();
+}
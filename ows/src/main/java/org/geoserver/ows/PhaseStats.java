@@ -0,0 +1,78 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The time distribution of a traced request phase, as published by {@link TraceStats}. Times are
+ * expressed in microseconds.
+ */
+public class PhaseStats {
+
+    String phase;
+
+    long count;
+
+    double meanTime;
+
+    long medianTime;
+
+    long time90;
+
+    long time99;
+
+    long maxTime;
+
+    @ConstructorProperties( { "phase", "count", "meanTime", "medianTime", "time90", "time99",
+            "maxTime" })
+    public PhaseStats(String phase, long count, double meanTime, long medianTime, long time90,
+            long time99, long maxTime) {
+        this.phase = phase;
+        this.count = count;
+        this.meanTime = meanTime;
+        this.medianTime = medianTime;
+        this.time90 = time90;
+        this.time99 = time99;
+        this.maxTime = maxTime;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    /**
+     * The number of requests that went through the phase
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanTime() {
+        return meanTime;
+    }
+
+    public long getMedianTime() {
+        return medianTime;
+    }
+
+    public long getTime90() {
+        return time90;
+    }
+
+    public long getTime99() {
+        return time99;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    @Override
+    public String toString() {
+        return phase + "[count=" + count + ", mean=" + meanTime + ", median=" + medianTime
+                + ", 90%=" + time90 + ", 99%=" + time99 + ", max=" + maxTime + "]";
+    }
+}
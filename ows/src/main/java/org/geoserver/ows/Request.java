@@ -21,6 +21,12 @@ import javax.servlet.http.HttpServletResponse;
  * @author Andrea Aime
  */
 public class Request {
+    /**
+     * Name of the http request attribute in which operations can publish the time, in
+     * milliseconds, spent accessing each resource, as a map from prefixed resource name to time
+     */
+    public static final String RESOURCE_TIMES = "org.geoserver.ows.Request.resourceTimes";
+
     /**
      * Http request / response
      */
@@ -81,6 +87,11 @@ public class Request {
      */
     protected Date timestamp;
     
+    /**
+     * The time spent in each phase of the request, only non-null if tracing is enabled
+     */
+    protected RequestTrace trace;
+    
     public Request() {
         timestamp = new Date(); 
     }
@@ -325,4 +336,20 @@ public class Request {
     public void setTimestamp(Date timestamp) {
         this.timestamp = timestamp;
     }
+
+    /**
+     * The trace of the request phases, or null if tracing is disabled, see {@link Tracing}
+     * @return
+     */
+    public RequestTrace getTrace() {
+        return trace;
+    }
+
+    /**
+     * Sets the request trace
+     * @param trace
+     */
+    public void setTrace(RequestTrace trace) {
+        this.trace = trace;
+    }
 }
\ No newline at end of file
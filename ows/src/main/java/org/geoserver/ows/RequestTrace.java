@@ -0,0 +1,58 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The time spent by a single request in each of its traced phases, see {@link Tracing}.
+ * <p>
+ * A phase can be entered several times, as well as from threads other than the one running the
+ * request (e.g., parallel queries), the trace accumulates the time spent in all of them.
+ * </p>
+ */
+public class RequestTrace {
+
+    Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Adds the specified amount of nanoseconds to the time spent in a phase
+     */
+    public synchronized void add(String phase, long nanos) {
+        long[] time = phases.get(phase);
+        if (time == null) {
+            time = new long[2];
+            phases.put(phase, time);
+        }
+        time[0] += nanos;
+        time[1]++;
+    }
+
+    /**
+     * Returns the time spent in each phase, in nanoseconds, in the order the phases were first
+     * entered
+     */
+    public synchronized Map<String, Long> getTimes() {
+        Map<String, Long> times = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+            times.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return times;
+    }
+
+    /**
+     * Returns the number of times a phase has been entered
+     */
+    public synchronized int getCount(String phase) {
+        long[] time = phases.get(phase);
+        return time != null ? (int) time[1] : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getTimes().toString();
+    }
+}
@@ -215,4 +215,21 @@ public abstract class Response {
         }
         return name;
     }
+    
+    /**
+     * Returns the response content already compressed with the specified HTTP content encoding
+     * and level, or null if the response has to be written out with {@link #write(Object,
+     * OutputStream, Operation)} and compressed on the fly. Responses serving contents kept in a
+     * cache can override this method to compress them only once.
+     * 
+     * @param value The value that will be serialized
+     * @param operation The operation being performed
+     * @param encoding The content encoding, gzip or deflate
+     * @param level The compression level configured for the response mime type
+     * @return The compressed content, or null
+     */
+    public byte[] getCompressedContent(Object value, Operation operation, String encoding,
+        int level) throws IOException {
+        return null;
+    }
 }
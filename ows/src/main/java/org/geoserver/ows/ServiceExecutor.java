@@ -0,0 +1,428 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.i18n.LocaleContext;
+import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+/**
+ * Runs the requests of selected services on thread pools managed by GeoServer, bounded per
+ * service, instead of running them straight on the servlet container threads.
+ * <p>
+ * Each configured service gets its own fixed size pool and bounded queue, so that slow operations
+ * (large WFS exports, WPS executions) cannot take over the whole server: when the pool and queue
+ * of a service are full further requests to that service are rejected immediately with a 503,
+ * instead of piling up on the container threads, while the other services keep on working. The
+ * number of requests in flight, queued, completed and rejected is tracked for each service.
+ * </p>
+ * <p>
+ * GeoServer is built against the servlet 2.5 API, so the container thread cannot be released
+ * while the operation runs, it waits for the pool thread to complete it. Moving to servlet 3
+ * asynchronous requests only requires changing the way {@link #execute(String, Callable)} waits.
+ * </p>
+ * <p>
+ * The pools are configured with the <code>OWS_EXECUTOR</code> system variable, a comma separated
+ * list of <code>service:threads[:queue]</code> entries, e.g., <code>WFS:8,WPS:4:16</code>. The
+ * queue size defaults to four times the number of threads. The service of a request is taken
+ * from the <code>service</code> parameter, or from the request path (e.g., <code>/wfs</code>)
+ * when missing; XML POST requests sent to the generic <code>/ows</code> endpoint are not
+ * recognized and run on the container thread.
+ * </p>
+ * <p>
+ * Besides the security, locale and request attributes contexts, the thread locals of the request
+ * are moved to the pool thread by the {@link ThreadLocalTransfer} extensions. The statistics of
+ * each pool are published over JMX as
+ * <code>org.geoserver:type=ServiceExecutor,service=&lt;service&gt;</code>.
+ * </p>
+ */
+public class ServiceExecutor implements DisposableBean, ApplicationContextAware {
+    static final Logger LOGGER = Logging.getLogger(ServiceExecutor.class);
+
+    static final int DEFAULT_QUEUE_FACTOR = 4;
+
+    static final String MBEAN_NAME = "org.geoserver:type=ServiceExecutor,service=";
+
+    Map<String, ServicePool> pools = new LinkedHashMap<String, ServicePool>();
+
+    ApplicationContext applicationContext;
+
+    volatile List<ThreadLocalTransfer> transfers;
+
+    public ServiceExecutor() {
+        this(GeoServerExtensions.getProperty("OWS_EXECUTOR"));
+    }
+
+    /**
+     * Builds the executor from a list of <code>service:threads[:queue]</code> entries
+     */
+    public ServiceExecutor(String config) {
+        if (config == null) {
+            return;
+        }
+        for (String entry : config.split("\\s*,\\s*")) {
+            if (entry.trim().length() == 0) {
+                continue;
+            }
+            String[] elements = entry.trim().split("\\s*:\\s*");
+            try {
+                if (elements.length < 2 || elements.length > 3) {
+                    throw new IllegalArgumentException();
+                }
+                int threads = Integer.parseInt(elements[1]);
+                int queue = elements.length == 3 ? Integer.parseInt(elements[2]) : threads
+                        * DEFAULT_QUEUE_FACTOR;
+                if (threads <= 0 || queue <= 0) {
+                    throw new IllegalArgumentException();
+                }
+                String service = elements[0].toUpperCase();
+                pools.put(service, new ServicePool(service, threads, queue));
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(Level.SEVERE, "Invalid OWS_EXECUTOR entry " + entry
+                        + ", expected service:threads[:queue]");
+            }
+        }
+        registerMBeans();
+    }
+
+    void registerMBeans() {
+        for (ServicePool pool : pools.values()) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(MBEAN_NAME + pool.service);
+                if (server.isRegistered(name)) {
+                    // left behind by a previous instance
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(pool, name);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not register the " + pool.service
+                        + " executor MBean", e);
+            }
+        }
+    }
+
+    void unregisterMBeans() {
+        for (ServicePool pool : pools.values()) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(MBEAN_NAME + pool.service);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Could not unregister the " + pool.service
+                        + " executor MBean", e);
+            }
+        }
+    }
+
+    public void setApplicationContext(ApplicationContext applicationContext)
+            throws BeansException {
+        this.applicationContext = applicationContext;
+    }
+
+    /**
+     * Sets the thread local transfers, looked up in the application context otherwise
+     */
+    public void setTransfers(List<ThreadLocalTransfer> transfers) {
+        this.transfers = transfers;
+    }
+
+    List<ThreadLocalTransfer> getTransfers() {
+        if (transfers == null) {
+            // looked up lazily, the transfers might depend on beans using the dispatcher
+            transfers = applicationContext != null ? GeoServerExtensions.extensions(
+                    ThreadLocalTransfer.class, applicationContext) : Collections
+                    .<ThreadLocalTransfer> emptyList();
+        }
+        return transfers;
+    }
+
+    /**
+     * Returns true if no service is run on the executor
+     */
+    public boolean isEmpty() {
+        return pools.isEmpty();
+    }
+
+    /**
+     * Returns the services having their own pool
+     */
+    public Set<String> getServices() {
+        return Collections.unmodifiableSet(pools.keySet());
+    }
+
+    /**
+     * Returns the service the request will be run on, or null if the request should run on the
+     * calling thread
+     */
+    public String getService(HttpServletRequest request) {
+        if (pools.isEmpty()) {
+            return null;
+        }
+
+        // the service parameter, if present, wins
+        for (Enumeration e = request.getParameterNames(); e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            if ("service".equalsIgnoreCase(name)) {
+                String value = request.getParameter(name);
+                if (value != null && pools.containsKey(value.trim().toUpperCase())) {
+                    return value.trim().toUpperCase();
+                }
+                return null;
+            }
+        }
+
+        // otherwise look at the path, e.g. /geoserver/wfs or /geoserver/topp/wfs
+        String path = request.getRequestURI();
+        if (path == null) {
+            return null;
+        }
+        if (request.getContextPath() != null && path.startsWith(request.getContextPath())) {
+            path = path.substring(request.getContextPath().length());
+        }
+        for (String element : path.split("/")) {
+            if (pools.containsKey(element.toUpperCase())) {
+                return element.toUpperCase();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs the task on the pool of the specified service, and waits for it to complete. The
+     * security, locale and request attributes contexts of the caller, and the thread locals
+     * handled by the {@link ThreadLocalTransfer} extensions, are propagated to the pool thread.
+     *
+     * @throws RejectedExecutionException
+     *             if the service pool and queue are full
+     */
+    public <T> T execute(String service, Callable<T> task) throws Exception {
+        ServicePool pool = pools.get(service);
+        if (pool == null) {
+            return task.call();
+        }
+
+        ContextCallable<T> callable = new ContextCallable<T>(task, pool, getTransfers());
+        Future<T> future;
+        pool.inFlight.incrementAndGet();
+        try {
+            future = pool.executor.submit(callable);
+        } catch (RejectedExecutionException e) {
+            pool.inFlight.decrementAndGet();
+            pool.rejected.incrementAndGet();
+            throw e;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            if (future.cancel(true)) {
+                // the task might never run
+                callable.release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of requests queued or running for the specified service
+     */
+    public int getInFlight(String service) {
+        ServicePool pool = pools.get(service.toUpperCase());
+        return pool != null ? pool.getInFlight() : 0;
+    }
+
+    /**
+     * Returns the number of requests waiting for a thread of the specified service
+     */
+    public int getQueued(String service) {
+        ServicePool pool = pools.get(service.toUpperCase());
+        return pool != null ? pool.getQueued() : 0;
+    }
+
+    /**
+     * Returns the number of requests completed by the specified service pool
+     */
+    public long getCompleted(String service) {
+        ServicePool pool = pools.get(service.toUpperCase());
+        return pool != null ? pool.getCompleted() : 0;
+    }
+
+    /**
+     * Returns the number of requests rejected because the specified service pool was full
+     */
+    public long getRejected(String service) {
+        ServicePool pool = pools.get(service.toUpperCase());
+        return pool != null ? pool.getRejected() : 0;
+    }
+
+    public void destroy() throws Exception {
+        unregisterMBeans();
+        for (ServicePool pool : pools.values()) {
+            pool.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The thread pool and statistics of a service
+     */
+    static class ServicePool implements ServicePoolMXBean {
+        String service;
+
+        int threads;
+
+        ThreadPoolExecutor executor;
+
+        AtomicInteger inFlight = new AtomicInteger();
+
+        AtomicLong completed = new AtomicLong();
+
+        AtomicLong rejected = new AtomicLong();
+
+        ServicePool(final String service, int threads, int queue) {
+            this.service = service;
+            this.threads = threads;
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+                        AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "GeoServer " + service + " executor "
+                                    + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            // start the threads now, so that they don't inherit the thread locals of a request
+            executor.prestartAllCoreThreads();
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public int getQueued() {
+            return executor.getQueue().size();
+        }
+
+        public long getCompleted() {
+            return completed.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+    }
+
+    /**
+     * Runs the task with the contexts and thread locals of the submitting thread
+     */
+    static class ContextCallable<T> implements Callable<T> {
+        Callable<T> delegate;
+
+        ServicePool pool;
+
+        List<ThreadLocalTransfer> transfers;
+
+        Map<String, Object> threadLocals = new HashMap<String, Object>();
+
+        AtomicBoolean released = new AtomicBoolean();
+
+        SecurityContext security = SecurityContextHolder.getContext();
+
+        LocaleContext locale = LocaleContextHolder.getLocaleContext();
+
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+
+        ContextCallable(Callable<T> delegate, ServicePool pool,
+                List<ThreadLocalTransfer> transfers) {
+            this.delegate = delegate;
+            this.pool = pool;
+            this.transfers = transfers;
+            for (ThreadLocalTransfer transfer : transfers) {
+                transfer.collect(threadLocals);
+            }
+        }
+
+        public T call() throws Exception {
+            SecurityContextHolder.setContext(security);
+            LocaleContextHolder.setLocaleContext(locale);
+            RequestContextHolder.setRequestAttributes(attributes);
+            try {
+                for (ThreadLocalTransfer transfer : transfers) {
+                    transfer.apply(threadLocals);
+                }
+                return delegate.call();
+            } finally {
+                for (ThreadLocalTransfer transfer : transfers) {
+                    transfer.cleanup();
+                }
+                RequestContextHolder.resetRequestAttributes();
+                LocaleContextHolder.resetLocaleContext();
+                SecurityContextHolder.clearContext();
+                pool.completed.incrementAndGet();
+                release();
+            }
+        }
+
+        /**
+         * Removes the task from the in flight count, only once
+         */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                pool.inFlight.decrementAndGet();
+            }
+        }
+    }
+}
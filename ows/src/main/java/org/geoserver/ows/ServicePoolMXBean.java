@@ -0,0 +1,37 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+/**
+ * Management interface of a {@link ServiceExecutor} pool, registered as
+ * <code>org.geoserver:type=ServiceExecutor,service=&lt;service&gt;</code>.
+ */
+public interface ServicePoolMXBean {
+
+    /**
+     * The number of threads of the pool
+     */
+    int getThreads();
+
+    /**
+     * The number of requests queued or running
+     */
+    int getInFlight();
+
+    /**
+     * The number of requests waiting for a thread
+     */
+    int getQueued();
+
+    /**
+     * The number of requests completed since startup
+     */
+    long getCompleted();
+
+    /**
+     * The number of requests rejected because the pool and its queue were full
+     */
+    long getRejected();
+}
@@ -0,0 +1,458 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.geoserver.ows.util.CompressingOutputStream;
+import org.geoserver.ows.util.ResponseUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Callback that makes identical concurrent GET requests share a single execution.
+ * <p>
+ * The first request (the leader) runs normally, while its response is captured in memory. Identical
+ * requests arriving while the leader is still running (same base URL and forwarding headers, same
+ * path, same KVP parameters regardless of their order and case, same authenticated user) wait for the leader to complete and then
+ * write out the captured response instead of executing the operation again. If the leader fails,
+ * or its response is bigger than the configured maximum, the waiting requests execute on their
+ * own.
+ * </p>
+ * <p>
+ * The callback is configured with two system variables:
+ * <ul>
+ * <li><code>OWS_SINGLE_FLIGHT</code>: a comma separated list of service.operation pairs to be
+ * deduplicated, e.g., <code>WMS.GetMap,WMS.GetLegendGraphic,WMS.GetCapabilities</code>. The
+ * callback does nothing if the list is empty (the default)</li>
+ * <li><code>OWS_SINGLE_FLIGHT_MAX_SIZE</code>: the maximum size of a shared response, in bytes,
+ * 1MB by default</li>
+ * </ul>
+ * </p>
+ * <p>
+ * The shared responses are written out by {@link SingleFlightResponse}.
+ * </p>
+ */
+public class SingleFlightCallback extends AbstractDispatcherCallback {
+    static final Logger LOGGER = Logging.getLogger(SingleFlightCallback.class);
+
+    static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    /**
+     * The flight led by the current thread, if any
+     */
+    static ThreadLocal<Flight> LEADER = new ThreadLocal<Flight>();
+
+    Set<String> operations = new HashSet<String>();
+
+    int maxSize = DEFAULT_MAX_SIZE;
+
+    long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * The headers set by proxies that might end up in the URLs of a response
+     */
+    static final String[] FORWARDED_HEADERS = { "Forwarded", "X-Forwarded-Host",
+            "X-Forwarded-Proto", "X-Forwarded-Port" };
+
+    ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    public SingleFlightCallback() {
+        String list = GeoServerExtensions.getProperty("OWS_SINGLE_FLIGHT");
+        if (list != null) {
+            for (String operation : list.split("\\s*,\\s*")) {
+                if (operation.trim().length() > 0) {
+                    operations.add(operation.trim().toUpperCase());
+                }
+            }
+        }
+        String size = GeoServerExtensions.getProperty("OWS_SINGLE_FLIGHT_MAX_SIZE");
+        if (size != null) {
+            try {
+                maxSize = Integer.parseInt(size.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid OWS_SINGLE_FLIGHT_MAX_SIZE value " + size
+                        + ", using the default " + DEFAULT_MAX_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Sets the service.operation pairs to be deduplicated
+     */
+    public void setOperations(Set<String> operations) {
+        this.operations = new HashSet<String>();
+        for (String operation : operations) {
+            this.operations.add(operation.toUpperCase());
+        }
+    }
+
+    public Set<String> getOperations() {
+        return Collections.unmodifiableSet(operations);
+    }
+
+    /**
+     * Sets the maximum size, in bytes, of a shared response
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a request will wait for an identical one to complete
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public Operation operationDispatched(Request request, Operation operation) {
+        if (!isShareable(request, operation)) {
+            return operation;
+        }
+
+        String key = buildKey(request);
+        Flight flight = new Flight(key, request);
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing == null) {
+            // we are the leader, the response will be captured
+            LEADER.set(flight);
+            return operation;
+        }
+
+        // wait for the leader to complete
+        try {
+            if (!existing.done.await(timeout, TimeUnit.MILLISECONDS)) {
+                return operation;
+            }
+        } catch (InterruptedException e) {
+            return operation;
+        }
+        if (existing.result == null) {
+            // the leader failed, or its response could not be captured
+            return operation;
+        }
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Sharing the response of an identical request: " + key);
+        }
+        Service service = operation.getService();
+        Service shared = new Service(service.getId(), new SharedResultProvider(existing.result),
+                service.getVersion(), service.getOperations());
+        return new Operation(operation.getId(), shared, SharedResultProvider.METHOD, operation
+                .getParameters());
+    }
+
+    @Override
+    public Response responseDispatched(Request request, Operation operation, Object result,
+            Response response) {
+        Flight flight = LEADER.get();
+        if (flight != null && flight.request == request) {
+            return new CapturingResponse(response, flight, maxSize);
+        }
+        return response;
+    }
+
+    @Override
+    public void finished(Request request) {
+        Flight flight = LEADER.get();
+        if (flight != null && flight.request == request) {
+            try {
+                if (request.getError() != null) {
+                    flight.result = null;
+                }
+            } finally {
+                LEADER.remove();
+                // no more followers after this point
+                flights.remove(flight.key, flight);
+                flight.done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Only GET requests of the configured operations, taking a single request object, are shared.
+     * Nested requests are never shared
+     */
+    boolean isShareable(Request request, Operation operation) {
+        if (operations.isEmpty() || !request.isGet() || request.getRawKvp() == null
+                || LEADER.get() != null) {
+            return false;
+        }
+        if (operation.getParameters() == null || operation.getParameters().length != 1) {
+            return false;
+        }
+        String id = operation.getService().getId() + "." + operation.getId();
+        return operations.contains(id.toUpperCase());
+    }
+
+    /**
+     * Builds a key that identifies the request regardless of the parameter order and case, and
+     * the authenticated user. The base URL the client used and the forwarding headers are part of
+     * the key, as responses like the capabilities documents contain URLs built out of them
+     */
+    String buildKey(Request request) {
+        Map<String, String> kvp = new TreeMap<String, String>();
+        for (Iterator it = request.getRawKvp().entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Object value = entry.getValue();
+            kvp.put(entry.getKey().toString().toUpperCase(), value != null ? value.toString()
+                    : null);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        sb.append(auth != null ? auth.getName() : "").append('@');
+        HttpServletRequest httpRequest = request.getHttpRequest();
+        if (httpRequest != null) {
+            sb.append(ResponseUtils.baseURL(httpRequest));
+            for (String header : FORWARDED_HEADERS) {
+                String value = httpRequest.getHeader(header);
+                if (value != null) {
+                    sb.append('[').append(header).append('=').append(value).append(']');
+                }
+            }
+        }
+        sb.append('|').append(request.getContext()).append('/').append(request.getPath()).append('?');
+        for (Map.Entry<String, String> entry : kvp.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('&');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A request being executed, along with its response once done
+     */
+    static class Flight {
+        String key;
+
+        Request request;
+
+        CountDownLatch done = new CountDownLatch(1);
+
+        volatile SharedResult result;
+
+        Flight(String key, Request request) {
+            this.key = key;
+            this.request = request;
+        }
+    }
+
+    /**
+     * The captured response of a request
+     */
+    public static class SharedResult {
+        byte[] content;
+
+        String mimeType;
+
+        String[][] headers;
+
+        String disposition;
+
+        String fileName;
+
+        /**
+         * The compressed contents, by encoding and level
+         */
+        Map<String, byte[]> compressed = new HashMap<String, byte[]>();
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Returns the content compressed with the specified encoding and level, compressing it
+         * only once for each combination
+         */
+        public synchronized byte[] getCompressedContent(String encoding, int level)
+                throws IOException {
+            String key = encoding + ":" + level;
+            byte[] result = compressed.get(key);
+            if (result == null) {
+                result = CompressingOutputStream.compress(content, encoding, level);
+                compressed.put(key, result);
+            }
+            return result;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    /**
+     * The "service" returning the shared result instead of executing the operation
+     */
+    public static class SharedResultProvider {
+        static final Method METHOD;
+        static {
+            try {
+                METHOD = SharedResultProvider.class.getMethod("execute", Object.class);
+            } catch (NoSuchMethodException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        SharedResult result;
+
+        SharedResultProvider(SharedResult result) {
+            this.result = result;
+        }
+
+        public SharedResult execute(Object request) {
+            return result;
+        }
+    }
+
+    /**
+     * Wraps the leader response and captures what it writes
+     */
+    static class CapturingResponse extends Response {
+        Response delegate;
+
+        Flight flight;
+
+        SharedResult captured = new SharedResult();
+
+        int maxSize;
+
+        CapturingResponse(Response delegate, Flight flight, int maxSize) {
+            super(delegate.getBinding(), delegate.getOutputFormats());
+            this.delegate = delegate;
+            this.flight = flight;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public boolean canHandle(Operation operation) {
+            return delegate.canHandle(operation);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            captured.mimeType = delegate.getMimeType(value, operation);
+            return captured.mimeType;
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            captured.headers = delegate.getHeaders(value, operation);
+            return captured.headers;
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            captured.disposition = delegate.getPreferredDisposition(value, operation);
+            return captured.disposition;
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            captured.fileName = delegate.getAttachmentFileName(value, operation);
+            return captured.fileName;
+        }
+
+        @Override
+        public byte[] getCompressedContent(Object value, Operation operation, String encoding,
+                int level) throws IOException {
+            return delegate.getCompressedContent(value, operation, encoding, level);
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            TeeOutputStream tee = new TeeOutputStream(output, maxSize);
+            delegate.write(value, tee, operation);
+            if (tee.copy != null) {
+                captured.content = tee.copy.toByteArray();
+                flight.result = captured;
+            }
+        }
+    }
+
+    /**
+     * Copies the output into a memory buffer, until the maximum size is reached
+     */
+    static class TeeOutputStream extends OutputStream {
+        OutputStream delegate;
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        int maxSize;
+
+        TeeOutputStream(OutputStream delegate, int maxSize) {
+            this.delegate = delegate;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        void checkSize() {
+            if (copy.size() > maxSize) {
+                // too big to be shared
+                copy = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
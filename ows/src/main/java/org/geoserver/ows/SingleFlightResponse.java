@@ -0,0 +1,59 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.geoserver.ows.SingleFlightCallback.SharedResult;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+
+/**
+ * Writes out a response captured by the {@link SingleFlightCallback}, along with the same mime
+ * type and headers of the original one
+ */
+public class SingleFlightResponse extends Response {
+
+    public SingleFlightResponse() {
+        super(SharedResult.class);
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return ((SharedResult) value).mimeType;
+    }
+
+    @Override
+    public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+        return ((SharedResult) value).headers;
+    }
+
+    @Override
+    public String getPreferredDisposition(Object value, Operation operation) {
+        return ((SharedResult) value).disposition;
+    }
+
+    @Override
+    public String getAttachmentFileName(Object value, Operation operation) {
+        return ((SharedResult) value).fileName;
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        output.write(((SharedResult) value).content);
+    }
+
+    /**
+     * The shared content is compressed once, and the result shared as well
+     */
+    @Override
+    public byte[] getCompressedContent(Object value, Operation operation, String encoding,
+            int level) throws IOException {
+        return ((SharedResult) value).getCompressedContent(encoding, level);
+    }
+
+}
@@ -0,0 +1,49 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+/**
+ * A timed phase of a request, started by {@link Tracing#start(String)}. Callers should end it in
+ * a finally block:
+ *
+ * <pre>
+ * Span span = Tracing.start(&quot;render&quot;);
+ * try {
+ *     ...
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ */
+public class Span {
+
+    /**
+     * The span returned when tracing is disabled, does not record anything
+     */
+    static final Span NOOP = new Span(null, null, 0);
+
+    RequestTrace trace;
+
+    String phase;
+
+    long start;
+
+    Span(RequestTrace trace, String phase, long start) {
+        this.trace = trace;
+        this.phase = phase;
+        this.start = start;
+    }
+
+    /**
+     * Adds the time elapsed since the span start to the request trace. Ending a span more than
+     * once has no effect.
+     */
+    public void end() {
+        if (trace != null) {
+            trace.add(phase, System.nanoTime() - start);
+            trace = null;
+        }
+    }
+}
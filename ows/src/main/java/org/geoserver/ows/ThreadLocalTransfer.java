@@ -0,0 +1,35 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.Map;
+
+/**
+ * Extension point moving the thread locals of a request from the thread that receives it to the
+ * {@link ServiceExecutor} thread that runs it.
+ * <p>
+ * The values are collected on the receiving thread when the request is submitted, applied on the
+ * executor thread before the request runs, and cleaned up once it is done. Implementations are
+ * looked up in the application context.
+ * </p>
+ */
+public interface ThreadLocalTransfer {
+
+    /**
+     * Collects the thread local values of the current thread into the storage, under keys unique
+     * to this transfer
+     */
+    void collect(Map<String, Object> storage);
+
+    /**
+     * Sets the values previously collected on the current thread
+     */
+    void apply(Map<String, Object> storage);
+
+    /**
+     * Removes the values from the current thread
+     */
+    void cleanup();
+}
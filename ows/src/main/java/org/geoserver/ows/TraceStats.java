@@ -0,0 +1,81 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.ows.util.Histogram;
+
+/**
+ * Aggregates the traces of the completed requests in a histogram per phase, recording the time
+ * each request spent in the phase in microseconds.
+ */
+public class TraceStats implements TraceStatsMXBean {
+
+    Map<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    AtomicLong requests = new AtomicLong();
+
+    /**
+     * Adds the phases of a completed request to the statistics
+     */
+    public void record(RequestTrace trace) {
+        for (Map.Entry<String, Long> entry : trace.getTimes().entrySet()) {
+            Histogram histogram = histograms.get(entry.getKey());
+            if (histogram == null) {
+                synchronized (histograms) {
+                    histogram = histograms.get(entry.getKey());
+                    if (histogram == null) {
+                        histogram = new Histogram();
+                        histograms.put(entry.getKey(), histogram);
+                    }
+                }
+            }
+            synchronized (histogram) {
+                histogram.record(entry.getValue() / 1000);
+            }
+        }
+        requests.incrementAndGet();
+    }
+
+    public List<PhaseStats> getPhaseStats() {
+        List<PhaseStats> result = new ArrayList<PhaseStats>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram h = entry.getValue();
+            synchronized (h) {
+                if (h.getCount() > 0) {
+                    result.add(new PhaseStats(entry.getKey(), h.getCount(), h.getMean(), h
+                            .getValueAtPercentile(50), h.getValueAtPercentile(90), h
+                            .getValueAtPercentile(99), h.getMax()));
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<PhaseStats>() {
+            public int compare(PhaseStats o1, PhaseStats o2) {
+                return o1.getPhase().compareTo(o2.getPhase());
+            }
+        });
+        return result;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public void reset() {
+        for (Histogram h : histograms.values()) {
+            synchronized (h) {
+                h.reset();
+            }
+        }
+        requests.set(0);
+    }
+}
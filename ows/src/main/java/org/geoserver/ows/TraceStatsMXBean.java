@@ -0,0 +1,29 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link TraceStats}, registered as <code>org.geoserver:type=Tracing</code>
+ * when request tracing is enabled.
+ */
+public interface TraceStatsMXBean {
+
+    /**
+     * The time distribution of each traced phase since startup, or the last reset
+     */
+    List<PhaseStats> getPhaseStats();
+
+    /**
+     * The number of traced requests since startup, or the last reset
+     */
+    long getRequestCount();
+
+    /**
+     * Clears the statistics
+     */
+    void reset();
+}
@@ -0,0 +1,114 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Lightweight timing of the phases of OWS requests.
+ * <p>
+ * When tracing is enabled, by setting the <code>OWS_TRACING</code> system variable to
+ * <code>true</code>, the {@link Dispatcher} attaches a {@link RequestTrace} to each
+ * {@link Request}, and code along the request path measures the time it spends in a phase with:
+ *
+ * <pre>
+ * Span span = Tracing.start(&quot;render&quot;);
+ * try {
+ *     ...
+ * } finally {
+ *     span.end();
+ * }
+ * </pre>
+ *
+ * The span is attached to the request found in {@link Dispatcher#REQUEST}. When tracing is
+ * disabled, or the code runs outside of an OWS request, a shared no-op span is returned, so that
+ * the cost of the instrumentation is limited to a field read.
+ * </p>
+ * <p>
+ * The phases traced by GeoServer itself are <code>kvp</code> (parsing the raw kvp parameters),
+ * <code>read</code> (parsing the request object), <code>execute</code>, <code>write</code>
+ * (encoding the response), <code>dataStore</code> and <code>featureSource</code> (looking up
+ * stores and feature sources in the resource pool), <code>query</code> (opening and counting
+ * feature collections), <code>render</code> and <code>encode</code> (rendering and encoding
+ * maps). Phases nest, the time of the inner ones is included in the outer ones.
+ * </p>
+ * <p>
+ * The traces of completed requests are aggregated in {@link TraceStats}, published over JMX as
+ * <code>org.geoserver:type=Tracing</code>.
+ * </p>
+ */
+public class Tracing {
+
+    static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.ows");
+
+    static final String MBEAN_NAME = "org.geoserver:type=Tracing";
+
+    static volatile boolean enabled;
+
+    static final TraceStats STATS = new TraceStats();
+
+    /**
+     * Turns tracing on or off, registering the statistics MBean the first time it is turned on
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        if (enabled && !Tracing.enabled) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(MBEAN_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(STATS, name);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not register the request tracing MBean", e);
+            }
+        }
+        Tracing.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The statistics of the traced requests
+     */
+    public static TraceStats getStats() {
+        return STATS;
+    }
+
+    /**
+     * Starts timing a phase of the current request
+     */
+    public static Span start(String phase) {
+        if (!enabled) {
+            return Span.NOOP;
+        }
+        return start(Dispatcher.REQUEST.get(), phase);
+    }
+
+    /**
+     * Starts timing a phase of the specified request
+     */
+    public static Span start(Request request, String phase) {
+        if (!enabled || request == null || request.getTrace() == null) {
+            return Span.NOOP;
+        }
+        return new Span(request.getTrace(), phase, System.nanoTime());
+    }
+
+    /**
+     * Adds the trace of a completed request to the statistics
+     */
+    static void complete(Request request) {
+        if (request.getTrace() != null) {
+            STATS.record(request.getTrace());
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the output in the gzip or deflate (zlib) HTTP content encodings, using a deflater
+ * taken from the {@link DeflaterPool}.
+ * <p>
+ * The deflater is given back to the pool by {@link #finish()}, or by {@link #release()} if the
+ * output is abandoned, one of the two must always be called.
+ * </p>
+ */
+public class CompressingOutputStream extends OutputStream {
+
+    public static final String GZIP = "gzip";
+
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Gzip header: magic number, deflate method, no flags, no time, no extra flags, unknown OS
+     */
+    static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0,
+            0, 0, 0, 0, (byte) 0xff };
+
+    OutputStream out;
+
+    Deflater deflater;
+
+    int level;
+
+    boolean gzip;
+
+    CRC32 crc;
+
+    byte[] buffer = new byte[8192];
+
+    boolean finished;
+
+    /**
+     * Builds a new compressing stream
+     *
+     * @param out
+     *            the stream receiving the compressed output
+     * @param encoding
+     *            {@link #GZIP} or {@link #DEFLATE}
+     * @param level
+     *            the compression level, from 0 to 9, or -1 for the default
+     */
+    public CompressingOutputStream(OutputStream out, String encoding, int level)
+            throws IOException {
+        if (!GZIP.equals(encoding) && !DEFLATE.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported encoding " + encoding);
+        }
+        this.out = out;
+        this.level = level;
+        this.gzip = GZIP.equals(encoding);
+        this.deflater = DeflaterPool.acquire(level, gzip);
+        if (gzip) {
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        }
+    }
+
+    /**
+     * Compresses the data in one shot
+     */
+    public static byte[] compress(byte[] data, String encoding, int level) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4 + 32);
+        CompressingOutputStream cos = new CompressingOutputStream(bos, encoding, level);
+        try {
+            cos.write(data, 0, data.length);
+            cos.finish();
+        } finally {
+            cos.release();
+        }
+        return bos.toByteArray();
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("The compressed stream has already been finished");
+        }
+        if (len == 0) {
+            return;
+        }
+        if (gzip) {
+            crc.update(b, off, len);
+        }
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    void deflate() throws IOException {
+        int n = deflater.deflate(buffer, 0, buffer.length);
+        if (n > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes out the remaining compressed data, without closing the underlying stream, and
+     * gives back the deflater to the pool
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate();
+        }
+        if (gzip) {
+            writeInt(crc.getValue());
+            writeInt(deflater.getBytesRead());
+        }
+        finished = true;
+        release();
+    }
+
+    void writeInt(long value) throws IOException {
+        // gzip uses little endian, and the size is stored modulo 2^32
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+
+    /**
+     * Gives back the deflater to the pool, the stream cannot be used anymore afterwards
+     */
+    public void release() {
+        if (deflater != null) {
+            DeflaterPool.release(deflater, level, gzip);
+            deflater = null;
+            finished = true;
+        }
+    }
+
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+}
@@ -0,0 +1,78 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater} objects, by compression level and format. Deflaters hold a sizeable
+ * amount of native memory that is only released by {@link Deflater#end()} or finalization, so
+ * creating one per response is expensive.
+ */
+public class DeflaterPool {
+
+    /**
+     * Maximum number of idle deflaters kept for each level and format
+     */
+    static final int MAX_IDLE = 32;
+
+    /**
+     * The pools, indexed by level (from -1 to 9) and format
+     */
+    static final Pool[] POOLS = new Pool[22];
+    static {
+        for (int i = 0; i < POOLS.length; i++) {
+            POOLS[i] = new Pool();
+        }
+    }
+
+    /**
+     * Returns a deflater with the specified level and format
+     *
+     * @param level
+     *            the compression level, from 0 to 9, or -1 for the default
+     * @param nowrap
+     *            if true the deflater produces raw deflate data (as needed by gzip), otherwise
+     *            zlib wrapped data
+     */
+    public static Deflater acquire(int level, boolean nowrap) {
+        Pool pool = pool(level, nowrap);
+        Deflater deflater = pool.idle.poll();
+        if (deflater != null) {
+            pool.size.decrementAndGet();
+            return deflater;
+        }
+        return new Deflater(level, nowrap);
+    }
+
+    /**
+     * Gives back a deflater obtained by {@link #acquire(int, boolean)}
+     */
+    public static void release(Deflater deflater, int level, boolean nowrap) {
+        Pool pool = pool(level, nowrap);
+        if (pool.size.incrementAndGet() <= MAX_IDLE) {
+            deflater.reset();
+            pool.idle.offer(deflater);
+        } else {
+            pool.size.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    static Pool pool(int level, boolean nowrap) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        return POOLS[(level + 1) * 2 + (nowrap ? 1 : 0)];
+    }
+
+    static class Pool {
+        ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<Deflater>();
+
+        AtomicInteger size = new AtomicInteger();
+    }
+}
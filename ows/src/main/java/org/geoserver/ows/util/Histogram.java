@@ -0,0 +1,156 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.util.Arrays;
+
+/**
+ * A log-linear histogram of non negative values, in the spirit of HDR histograms: values are
+ * counted exactly up to {@link #SUB_BUCKETS}, then each power of two is split in
+ * {@link #SUB_BUCKETS} linear buckets, giving a relative error below 1/{@link #SUB_BUCKETS} at
+ * any scale with a small, fixed memory footprint.
+ * <p>
+ * Recording a value does not allocate. Instances are not thread safe.
+ * </p>
+ */
+public class Histogram {
+
+    static final int SUB_BITS = 4;
+
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Values larger than 2^MAX_EXPONENT are recorded in the last bucket
+     */
+    static final int MAX_EXPONENT = 40;
+
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    long[] counts = new long[BUCKETS];
+
+    long count;
+
+    long total;
+
+    long min = Long.MAX_VALUE;
+
+    long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        total += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BITS;
+        // the top SUB_BITS + 1 bits of the value, the leading one being implicit
+        int sub = (int) (value >> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The smallest value falling in the specified bucket
+     */
+    static long lowestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub)) << shift;
+    }
+
+    /**
+     * The largest value falling in the specified bucket
+     */
+    static long highestValue(int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(index + 1) - 1;
+    }
+
+    /**
+     * Returns the value below which the specified percentage of the recorded values fall, as the
+     * upper bound of the bucket containing it, capped to the maximum recorded value
+     *
+     * @param percentile
+     *            a value between 0 and 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100d * count);
+        if (target == 0) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : ((double) total) / count;
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        if (count > 0) {
+            Arrays.fill(counts, 0);
+        }
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+}
@@ -18,8 +18,15 @@ public class KvpMap extends HashMap {
         super();
     }
     
+    /**
+     * Creates a map sized to hold the specified number of entries without rehashing
+     */
+    public KvpMap( int expectedSize ) {
+        super( Math.max( (int) (expectedSize / .75f) + 1, 16 ) );
+    }
+    
     public KvpMap( Map other ) {
-        this();
+        this( other.size() );
         for ( Iterator e = other.entrySet().iterator(); e.hasNext(); ) {
             Map.Entry entry = (Map.Entry) e.next();
             put( entry.getKey(), entry.getValue() );
@@ -0,0 +1,181 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geoserver.ows.KvpParser;
+import org.geoserver.platform.GeoServerExtensions;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+/**
+ * Index of the {@link KvpParser} extensions by key, used by {@link KvpUtils#parse(Map)} to avoid
+ * looking up and scanning the whole list of parsers for each parameter of each request.
+ * <p>
+ * The parsers are grouped by key once, and the parser chosen for a given combination of key,
+ * service, version and request is remembered, so that parsing a request is proportional to the
+ * number of its parameters. The index is dropped and rebuilt lazily when the application context
+ * is refreshed.
+ * </p>
+ * <p>
+ * The index is enabled by registering it in the application context:
+ * <pre>
+ *  &lt;bean id="kvpParserIndex" class="org.geoserver.ows.util.KvpParserIndex"/&gt;
+ * </pre>
+ * </p>
+ */
+public class KvpParserIndex implements ApplicationContextAware, ApplicationListener {
+
+    /**
+     * Maximum number of remembered parser choices, the service, version and request values come
+     * from the clients so we cannot let it grow without bounds
+     */
+    static final int MAX_CHOICES = 10000;
+
+    /**
+     * Placeholder for "no parser found" in the choices map
+     */
+    static final Object NO_PARSER = new Object();
+
+    /**
+     * The index of the current application context, if any
+     */
+    static volatile KvpParserIndex INSTANCE;
+
+    /**
+     * The parsers grouped by upper case key, in extension order
+     */
+    volatile Map<String, KvpParser[]> parsers;
+
+    ConcurrentHashMap<String, Object> choices = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Returns the index of the current application context, or null if no index has been
+     * registered
+     */
+    public static KvpParserIndex get() {
+        return INSTANCE;
+    }
+
+    public void setApplicationContext(ApplicationContext applicationContext)
+            throws BeansException {
+        reset();
+        INSTANCE = this;
+    }
+
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent) {
+            reset();
+        } else if (event instanceof ContextClosedEvent && INSTANCE == this) {
+            INSTANCE = null;
+        }
+    }
+
+    /**
+     * Drops the index, it will be rebuilt on the next lookup
+     */
+    public synchronized void reset() {
+        parsers = null;
+        choices.clear();
+    }
+
+    /**
+     * Returns the parser to be used for the specified key in the context of a request with the
+     * specified service, version and request, or null if no parser handles the key
+     */
+    public KvpParser getParser(String key, String service, String version, String request) {
+        String choiceKey = key.toUpperCase() + '\u0000' + lower(service) + '\u0000' + version
+                + '\u0000' + lower(request);
+        Object parser = choices.get(choiceKey);
+        if (parser == null) {
+            parser = select(getParsers().get(key.toUpperCase()), service, version, request);
+            if (parser == null) {
+                parser = NO_PARSER;
+            }
+            if (choices.size() >= MAX_CHOICES) {
+                choices.clear();
+            }
+            choices.put(choiceKey, parser);
+        }
+        return parser == NO_PARSER ? null : (KvpParser) parser;
+    }
+
+    String lower(String value) {
+        return value != null ? value.toLowerCase() : null;
+    }
+
+    Map<String, KvpParser[]> getParsers() {
+        Map<String, KvpParser[]> result = parsers;
+        if (result == null) {
+            synchronized (this) {
+                result = parsers;
+                if (result == null) {
+                    result = build(GeoServerExtensions.extensions(KvpParser.class));
+                    parsers = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the parsers by upper case key, preserving their order
+     */
+    static Map<String, KvpParser[]> build(Collection<KvpParser> extensions) {
+        Map<String, List<KvpParser>> grouped = new HashMap<String, List<KvpParser>>();
+        for (KvpParser parser : extensions) {
+            if (parser.getKey() == null) {
+                continue;
+            }
+            String key = parser.getKey().toUpperCase();
+            List<KvpParser> list = grouped.get(key);
+            if (list == null) {
+                list = new ArrayList<KvpParser>(2);
+                grouped.put(key, list);
+            }
+            list.add(parser);
+        }
+
+        Map<String, KvpParser[]> result = new HashMap<String, KvpParser[]>();
+        for (Map.Entry<String, List<KvpParser>> entry : grouped.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray(
+                    new KvpParser[entry.getValue().size()]));
+        }
+        return result;
+    }
+
+    /**
+     * Picks the parser among the candidates for a key, the same way {@link KvpUtils#parse(Map)}
+     * does: parsers not matching the service, version or request are skipped, the last one bound
+     * to the service wins, otherwise the first generic one is used
+     */
+    static KvpParser select(KvpParser[] candidates, String service, String version,
+            String request) {
+        if (candidates == null) {
+            return null;
+        }
+        KvpParser result = null;
+        for (KvpParser candidate : candidates) {
+            if (!KvpUtils.matches(candidate, service, version, request)) {
+                continue;
+            }
+            if (result == null || candidate.getService() != null) {
+                result = candidate;
+            }
+        }
+        return result;
+    }
+}
@@ -322,8 +322,8 @@ public class KvpUtils {
             return null;
         }
        
-        //create a normalied map
-        KvpMap normalizedKvp = new KvpMap();
+        //create a normalied map, sized upfront to avoid rehashing
+        KvpMap normalizedKvp = new KvpMap(kvp.size());
         
         for (Iterator itr = kvp.entrySet().iterator(); itr.hasNext();) {
             Map.Entry entry = (Map.Entry) itr.next();
@@ -342,8 +342,8 @@ public class KvpUtils {
                 value = value.trim(); 
             }
             
-            //convert key to lowercase 
-            normalizedKvp.put(key.toLowerCase(), value);
+            //the kvp map takes care of the key case 
+            normalizedKvp.put(key, value);
         }
         
         return normalizedKvp;
@@ -369,28 +369,29 @@ public class KvpUtils {
      * @return A list of errors that occured.
      */
     public static List<Throwable> parse( Map kvp ) {
+        String service = (String) kvp.get( "service" );
+        String version = (String) kvp.get( "version" );
+        String request = (String) kvp.get( "request" );
+        
+        //use the precomputed parser index when available
+        KvpParserIndex index = KvpParserIndex.get();
+        if ( index != null ) {
+            ArrayList<Throwable> errors = new ArrayList<Throwable>();
+            for (Iterator itr = kvp.entrySet().iterator(); itr.hasNext();) {
+                Map.Entry entry = (Map.Entry) itr.next();
+                KvpParser parser = index.getParser((String) entry.getKey(), service, version, request);
+                parse(parser, entry, errors);
+            }
+            return errors;
+        }
 
         //look up parser objects
         Collection parsers = GeoServerExtensions.extensions(KvpParser.class);
        
         //strip out parsers which do not match current service/request/version
-        String service = (String) kvp.get( "service" );
-        String version = (String) kvp.get( "version" );
-        String request = (String) kvp.get( "request" );
         for (Iterator p = parsers.iterator(); p.hasNext(); ) {
             KvpParser parser = (KvpParser) p.next();
-            
-            if ( parser.getService() != null && !parser.getService().equalsIgnoreCase(service) ) {
-                p.remove();
-                continue;
-            }
-            
-            if ( parser.getVersion() != null && !parser.getVersion().toString().equals(version) ) {
-                p.remove();
-                continue;
-            }
-            
-            if ( parser.getRequest() != null && !parser.getRequest().equalsIgnoreCase(request) ) {
+            if ( !matches(parser, service, version, request) ) {
                 p.remove();
             }
         }
@@ -400,13 +401,10 @@ public class KvpUtils {
         for (Iterator itr = kvp.entrySet().iterator(); itr.hasNext();) {
             Map.Entry entry = (Map.Entry) itr.next();
             String key = (String) entry.getKey();
-            String value = (String) entry.getValue();
             
             //find the parser for this key value pair
-            Object parsed = null;
-
             KvpParser parser = null;
-            for (Iterator pitr = parsers.iterator(); pitr.hasNext() && parsed == null;) {
+            for (Iterator pitr = parsers.iterator(); pitr.hasNext();) {
                 KvpParser candidate = (KvpParser) pitr.next();
                 if (key.equalsIgnoreCase(candidate.getKey())) {
                     if (parser == null)
@@ -425,25 +423,55 @@ public class KvpUtils {
                 }
             }
 
-            if (parser != null) {
-                try {
-                    parsed = parser.parse(value);
-                } catch (Throwable t) {
-                    //dont throw any exceptions yet, befor the service is
-                    // known
-                    errors.add( t );
-                }
-            }
-            
-            //if noone could parse, just set to string value
-            if (parsed != null) {
-                entry.setValue(parsed);
-            }
+            parse(parser, entry, errors);
         }
         
         return errors;
     }
     
+    /**
+     * Returns true if the parser can be used in a request with the specified service, version
+     * and request
+     */
+    static boolean matches(KvpParser parser, String service, String version, String request) {
+        if ( parser.getService() != null && !parser.getService().equalsIgnoreCase(service) ) {
+            return false;
+        }
+        
+        if ( parser.getVersion() != null && !parser.getVersion().toString().equals(version) ) {
+            return false;
+        }
+        
+        if ( parser.getRequest() != null && !parser.getRequest().equalsIgnoreCase(request) ) {
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Parses the entry value with the specified parser, if any, and replaces it with the result
+     */
+    static void parse(KvpParser parser, Map.Entry entry, List<Throwable> errors) {
+        if (parser == null) {
+            return;
+        }
+        
+        Object parsed = null;
+        try {
+            parsed = parser.parse((String) entry.getValue());
+        } catch (Throwable t) {
+            //dont throw any exceptions yet, befor the service is
+            // known
+            errors.add( t );
+        }
+        
+        //if noone could parse, just leave the string value
+        if (parsed != null) {
+            entry.setValue(parsed);
+        }
+    }
+    
     /**
      * Parses the parameters in the path query string. Normally this is done by the
      * servlet container but in a few cases (testing for example) we need to emulate the container
@@ -0,0 +1,166 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Decides whether, and how, the output of an OWS response should be compressed.
+ * <p>
+ * The configuration is a comma separated list of <code>mimeTypeRegex[=level]</code> entries,
+ * where the level goes from 0 (no compression) to 9 (best compression) and defaults to 6, e.g.,
+ * <code>text/.*=6,.*xml.*=4,application/json</code>. Responses whose mime type matches none
+ * of the expressions are not compressed, and neither are formats that are compressed already,
+ * such as PNG, JPEG and zip files, no matter the configuration. Compression is disabled unless
+ * configured, the value <code>true</code> enables it for the {@link #DEFAULT_TYPES}.
+ * </p>
+ */
+public class ResponseCompression {
+    static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.ows");
+
+    /**
+     * The same types compressed by default by the GZIP filter
+     */
+    public static final String DEFAULT_TYPES = "text/.*,.*xml.*,application/json,application/x-javascript";
+
+    public static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * Formats that do not gain anything from compression
+     */
+    static final Set<String> COMPRESSED_TYPES = new HashSet<String>(Arrays.asList("image/png",
+            "image/png8", "image/jpeg", "image/gif", "image/tiff", "application/zip",
+            "application/x-zip-compressed", "application/gzip", "application/x-gzip",
+            "application/x-shockwave-flash", "application/vnd.google-earth.kmz"));
+
+    List<Pattern> patterns = new ArrayList<Pattern>();
+
+    List<Integer> levels = new ArrayList<Integer>();
+
+    /**
+     * Builds the compression rules from their textual definition. A null definition, or one of
+     * <code>none</code> and <code>false</code>, disables compression, <code>true</code> uses the
+     * {@link #DEFAULT_TYPES}
+     */
+    public ResponseCompression(String config) {
+        if (config == null || "none".equalsIgnoreCase(config.trim())
+                || "false".equalsIgnoreCase(config.trim())) {
+            return;
+        } else if ("true".equalsIgnoreCase(config.trim())) {
+            config = DEFAULT_TYPES;
+        }
+
+        for (String entry : config.split(",")) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int level = DEFAULT_LEVEL;
+            int idx = entry.lastIndexOf('=');
+            try {
+                if (idx > 0) {
+                    level = Integer.parseInt(entry.substring(idx + 1).trim());
+                    entry = entry.substring(0, idx).trim();
+                    if (level < 0 || level > 9) {
+                        throw new NumberFormatException();
+                    }
+                }
+                patterns.add(Pattern.compile(entry, Pattern.CASE_INSENSITIVE));
+                levels.add(level);
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid compression level in " + entry
+                        + ", it should be between 0 and 9");
+            } catch (PatternSyntaxException e) {
+                LOGGER.log(Level.WARNING, "Invalid mime type expression " + entry, e);
+            }
+        }
+    }
+
+    /**
+     * Returns true if at least one mime type can be compressed
+     */
+    public boolean isEnabled() {
+        return !patterns.isEmpty();
+    }
+
+    /**
+     * Returns the content encoding to be used according to the request Accept-Encoding header,
+     * {@link CompressingOutputStream#GZIP}, {@link CompressingOutputStream#DEFLATE}, or null if
+     * the client does not accept compressed content
+     */
+    public String getEncoding(HttpServletRequest request) {
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null) {
+            return null;
+        }
+
+        boolean deflate = false;
+        for (String element : header.split(",")) {
+            String coding = element;
+            int idx = element.indexOf(';');
+            if (idx >= 0) {
+                coding = element.substring(0, idx);
+                if (isRefused(element.substring(idx + 1))) {
+                    continue;
+                }
+            }
+            coding = coding.trim();
+            if (CompressingOutputStream.GZIP.equalsIgnoreCase(coding) || "*".equals(coding)) {
+                return CompressingOutputStream.GZIP;
+            } else if (CompressingOutputStream.DEFLATE.equalsIgnoreCase(coding)) {
+                deflate = true;
+            }
+        }
+        return deflate ? CompressingOutputStream.DEFLATE : null;
+    }
+
+    /**
+     * Checks for a "q=0" parameter
+     */
+    boolean isRefused(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the compression level for the specified mime type, or -1 if the output should not
+     * be compressed
+     */
+    public int getLevel(String mimeType) {
+        if (mimeType == null || patterns.isEmpty()) {
+            return -1;
+        }
+        int idx = mimeType.indexOf(';');
+        String stripped = (idx >= 0 ? mimeType.substring(0, idx) : mimeType).trim().toLowerCase();
+        if (COMPRESSED_TYPES.contains(stripped)) {
+            return -1;
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(stripped).matches()) {
+                return levels.get(i);
+            }
+        }
+        return -1;
+    }
+}
@@ -10,14 +10,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.Map;
 
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 
+import org.geoserver.ows.util.ResponseCompression;
 import org.geoserver.test.CodeExpectingHttpServletResponse;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 
@@ -354,4 +357,52 @@ public class DispatcherTest extends TestCase {
         dispatcher.handleRequest(request, response);
         assertEquals(HttpServletResponse.SC_NO_CONTENT, response.getStatusCode());
     }
+
+    public void testCompressedWriteFailure() throws Exception {
+        URL url = getClass().getResource("applicationContext.xml");
+
+        FileSystemXmlApplicationContext context = new FileSystemXmlApplicationContext(url.toString());
+
+        Dispatcher dispatcher = (Dispatcher) context.getBean("dispatcher");
+        dispatcher.compression = new ResponseCompression("text/.*");
+
+        MockHttpServletRequest request = new MockHttpServletRequest() {
+                public int getServerPort() {
+                    return 8080;
+                }
+            };
+
+        request.setScheme("http");
+        request.setServerName("localhost");
+        request.setContextPath("/geoserver");
+        request.setMethod("GET");
+        request.addHeader("Accept-Encoding", "gzip");
+        request.setupAddParameter("service", "hello");
+        request.setupAddParameter("request", "Hello");
+        request.setupAddParameter("version", "1.0.0");
+        request.setupAddParameter("message", "Hello world!");
+        request.setRequestURI("http://localhost/geoserver/ows");
+
+        // the first write of the response fails, the exception report goes through
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+                boolean failed;
+
+                public ServletOutputStream getOutputStream() throws IOException {
+                    final OutputStream delegate = super.getOutputStream();
+                    return new ServletOutputStream() {
+                        public void write(int b) throws IOException {
+                            if (!failed) {
+                                failed = true;
+                                throw new IOException("Write failed");
+                            }
+                            delegate.write(b);
+                        }
+                    };
+                }
+            };
+
+        dispatcher.handleRequest(request, response);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertTrue(response.getOutputStreamContent().contains("Write failed"));
+    }
 }
@@ -0,0 +1,205 @@
+package org.geoserver.ows;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.geoserver.platform.ServiceException;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class ServiceExecutorTest extends TestCase {
+
+    ServiceExecutor executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new ServiceExecutor("wfs:1:1, WPS:2, bad, wcs:0");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.destroy();
+        SecurityContextHolder.clearContext();
+    }
+
+    public void testConfiguration() {
+        assertEquals(2, executor.getServices().size());
+        assertTrue(executor.getServices().contains("WFS"));
+        assertTrue(executor.getServices().contains("WPS"));
+        assertTrue(new ServiceExecutor((String) null).isEmpty());
+    }
+
+    public void testServiceLookup() {
+        assertEquals("WFS", executor.getService(request("/geoserver/ows", "wfs")));
+        assertNull(executor.getService(request("/geoserver/wfs", "WMS")));
+        assertEquals("WFS", executor.getService(request("/geoserver/wfs", null)));
+        assertEquals("WPS", executor.getService(request("/geoserver/topp/wps", null)));
+        assertNull(executor.getService(request("/geoserver/wms", null)));
+    }
+
+    public void testExecute() throws Exception {
+        Authentication auth = new TestingAuthenticationToken("user", "password");
+        SecurityContextHolder.getContext().setAuthentication(auth);
+        final Thread caller = Thread.currentThread();
+
+        String result = executor.execute("WPS", new Callable<String>() {
+            public String call() throws Exception {
+                assertNotSame(caller, Thread.currentThread());
+                return SecurityContextHolder.getContext().getAuthentication().getName();
+            }
+        });
+        assertEquals("user", result);
+        assertEquals(1, executor.getCompleted("WPS"));
+        assertEquals(0, executor.getInFlight("wps"));
+
+        // unmanaged services run on the calling thread
+        assertSame(caller, executor.execute("WMS", new Callable<Thread>() {
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        }));
+    }
+
+    public void testException() throws Exception {
+        try {
+            executor.execute("WPS", new Callable<Object>() {
+                public Object call() throws Exception {
+                    throw new ServiceException("failed");
+                }
+            });
+            fail("Should have thrown the task exception");
+        } catch (ServiceException e) {
+            assertEquals("failed", e.getMessage());
+        }
+    }
+
+    public void testRejection() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<Object> blocking = new Callable<Object>() {
+            public Object call() throws Exception {
+                running.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        };
+
+        // one running, one queued
+        Thread t1 = new Thread(new Executing(blocking));
+        Thread t2 = new Thread(new Executing(blocking));
+        t1.start();
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        t2.start();
+        long start = System.currentTimeMillis();
+        while (executor.getQueued("WFS") == 0 && System.currentTimeMillis() - start < 10000) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, executor.getInFlight("WFS"));
+
+        try {
+            executor.execute("WFS", blocking);
+            fail("The pool is full, should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, executor.getRejected("WFS"));
+        } finally {
+            release.countDown();
+            t1.join(10000);
+            t2.join(10000);
+        }
+        assertEquals(0, executor.getInFlight("WFS"));
+        assertEquals(2, executor.getCompleted("WFS"));
+    }
+
+    public void testTransfer() throws Exception {
+        final ThreadLocal<String> local = new ThreadLocal<String>();
+        executor.setTransfers(Collections.<ThreadLocalTransfer>singletonList(
+                new ThreadLocalTransfer() {
+                    public void collect(Map<String, Object> storage) {
+                        storage.put("local", local.get());
+                    }
+
+                    public void apply(Map<String, Object> storage) {
+                        local.set((String) storage.get("local"));
+                    }
+
+                    public void cleanup() {
+                        local.remove();
+                    }
+                }));
+
+        local.set("value");
+        final Thread[] worker = new Thread[1];
+        assertEquals("value", executor.execute("WFS", new Callable<String>() {
+            public String call() throws Exception {
+                worker[0] = Thread.currentThread();
+                return local.get();
+            }
+        }));
+        assertNotSame(Thread.currentThread(), worker[0]);
+
+        // cleaned up on the executor thread once done
+        local.remove();
+        assertNull(executor.execute("WFS", new Callable<String>() {
+            public String call() throws Exception {
+                return local.get();
+            }
+        }));
+    }
+
+    public void testManagement() throws Exception {
+        executor.execute("WPS", new Callable<Object>() {
+            public Object call() throws Exception {
+                return null;
+            }
+        });
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ServiceExecutor.MBEAN_NAME + "WPS");
+        assertTrue(server.isRegistered(name));
+        assertEquals(2, server.getAttribute(name, "Threads"));
+        assertEquals(1L, server.getAttribute(name, "Completed"));
+        assertEquals(0, server.getAttribute(name, "InFlight"));
+
+        executor.destroy();
+        assertFalse(server.isRegistered(name));
+    }
+
+    MockHttpServletRequest request(String uri, String service) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/geoserver");
+        request.setRequestURI(uri);
+        if (service != null) {
+            request.setupAddParameter("service", service);
+        }
+        return request;
+    }
+
+    class Executing implements Runnable {
+        Callable<Object> task;
+
+        Executing(Callable<Object> task) {
+            this.task = task;
+        }
+
+        public void run() {
+            try {
+                executor.execute("WFS", task);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.geoserver.ows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.geoserver.ows.SingleFlightCallback.SharedResult;
+import org.geoserver.ows.util.CompressingOutputStream;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geotools.util.Version;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class SingleFlightCallbackTest extends TestCase {
+
+    SingleFlightCallback callback;
+
+    Service service;
+
+    @Override
+    protected void setUp() throws Exception {
+        callback = new SingleFlightCallback();
+        callback.setOperations(Collections.singleton("hello.Hello"));
+        service = new Service("hello", new HelloWorld(), new Version("1.0.0"), Collections
+                .singletonList("Hello"));
+    }
+
+    public void testKey() {
+        Request r1 = request("message", "Hello", "service", "hello");
+        Request r2 = request("SERVICE", "hello", "MESSAGE", "Hello");
+        Request r3 = request("message", "Bye", "service", "hello");
+        assertEquals(callback.buildKey(r1), callback.buildKey(r2));
+        assertFalse(callback.buildKey(r1).equals(callback.buildKey(r3)));
+    }
+
+    public void testKeyBaseURL() {
+        Request r1 = request("message", "Hello");
+        r1.setHttpRequest(httpRequest("http", "localhost", null));
+        Request r2 = request("message", "Hello");
+        r2.setHttpRequest(httpRequest("http", "localhost", null));
+        assertEquals(callback.buildKey(r1), callback.buildKey(r2));
+
+        // different virtual host
+        Request r3 = request("message", "Hello");
+        r3.setHttpRequest(httpRequest("http", "maps.example.com", null));
+        assertFalse(callback.buildKey(r1).equals(callback.buildKey(r3)));
+
+        // different scheme
+        Request r4 = request("message", "Hello");
+        r4.setHttpRequest(httpRequest("https", "localhost", null));
+        assertFalse(callback.buildKey(r1).equals(callback.buildKey(r4)));
+
+        // same host, reached through a proxy
+        Request r5 = request("message", "Hello");
+        r5.setHttpRequest(httpRequest("http", "localhost", "maps.example.com"));
+        assertFalse(callback.buildKey(r1).equals(callback.buildKey(r5)));
+    }
+
+    MockHttpServletRequest httpRequest(String scheme, String host, String forwardedHost) {
+        MockHttpServletRequest request = new MockHttpServletRequest() {
+            public int getServerPort() {
+                return 8080;
+            }
+        };
+        request.setScheme(scheme);
+        request.setServerName(host);
+        request.setContextPath("/geoserver");
+        if (forwardedHost != null) {
+            request.addHeader("X-Forwarded-Host", forwardedHost);
+        }
+        return request;
+    }
+
+    public void testNotConfigured() {
+        callback.setOperations(Collections.<String>emptySet());
+        Request request = request("message", "Hello");
+        Operation op = operation("Hello");
+        assertSame(op, callback.operationDispatched(request, op));
+        assertNull(SingleFlightCallback.LEADER.get());
+    }
+
+    public void testShare() throws Exception {
+        final Request leader = request("message", "Hello");
+        Operation op = operation("Hello");
+
+        // the leader goes through untouched
+        assertSame(op, callback.operationDispatched(leader, op));
+        Response response = callback.responseDispatched(leader, op, op.getParameters()[0],
+                new MessageResponse());
+        assertTrue(response instanceof SingleFlightCallback.CapturingResponse);
+        assertEquals("text/plain", response.getMimeType(op.getParameters()[0], op));
+
+        // an identical request arrives while the leader is running
+        final Operation[] followerOp = new Operation[1];
+        Thread follower = new Thread() {
+            public void run() {
+                followerOp[0] = callback.operationDispatched(request("message", "Hello"),
+                        operation("Hello"));
+            }
+        };
+        follower.start();
+        while (follower.getState() != Thread.State.TIMED_WAITING && follower.isAlive()) {
+            Thread.sleep(10);
+        }
+        assertNull(followerOp[0]);
+
+        // leader writes out and completes
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        response.write(op.getParameters()[0], bos, op);
+        callback.finished(leader);
+        follower.join(5000);
+        assertNull(SingleFlightCallback.LEADER.get());
+        assertTrue(callback.flights.isEmpty());
+
+        // the follower got an operation returning the shared response
+        Operation shared = followerOp[0];
+        assertNotNull(shared);
+        assertEquals("Hello", shared.getId());
+        Object result = shared.getMethod().invoke(shared.getService().getService(),
+                shared.getParameters());
+        assertTrue(result instanceof SharedResult);
+
+        SingleFlightResponse sfr = new SingleFlightResponse();
+        assertEquals("text/plain", sfr.getMimeType(result, shared));
+        ByteArrayOutputStream shareBos = new ByteArrayOutputStream();
+        sfr.write(result, shareBos, shared);
+        assertEquals("Hello", new String(shareBos.toByteArray()));
+        assertEquals(new String(bos.toByteArray()), new String(shareBos.toByteArray()));
+    }
+
+    public void testCompressedContent() throws Exception {
+        SharedResult result = new SharedResult();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("Hello ").append(i * 7919 % 1000).append('\n');
+        }
+        result.content = sb.toString().getBytes("UTF-8");
+
+        // compressed once per encoding and level
+        byte[] fast = result.getCompressedContent(CompressingOutputStream.GZIP, 1);
+        assertSame(fast, result.getCompressedContent(CompressingOutputStream.GZIP, 1));
+        byte[] best = result.getCompressedContent(CompressingOutputStream.GZIP, 9);
+        assertNotSame(fast, best);
+        assertTrue(Arrays.equals(CompressingOutputStream.compress(result.content,
+                CompressingOutputStream.GZIP, 9), best));
+        assertNotSame(fast, result.getCompressedContent(CompressingOutputStream.DEFLATE, 1));
+
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(best));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = gis.read(buffer)) > 0) {
+            bos.write(buffer, 0, read);
+        }
+        assertEquals(sb.toString(), new String(bos.toByteArray(), "UTF-8"));
+    }
+
+    public void testTooBig() throws Exception {
+        callback.setMaxSize(2);
+        Request leader = request("message", "Hello");
+        Operation op = operation("Hello");
+        callback.operationDispatched(leader, op);
+        Response response = callback.responseDispatched(leader, op, op.getParameters()[0],
+                new MessageResponse());
+        response.write(op.getParameters()[0], new ByteArrayOutputStream(), op);
+
+        SingleFlightCallback.Flight flight = callback.flights.values().iterator().next();
+        callback.finished(leader);
+        assertNull(flight.result);
+    }
+
+    public void testReleasedAfterFailingCallback() throws Exception {
+        Request leader = request("message", "Hello");
+        Operation op = operation("Hello");
+        callback.operationDispatched(leader, op);
+        SingleFlightCallback.Flight flight = callback.flights.values().iterator().next();
+
+        // a callback running before this one fails at the end of the request
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.callbacks = Arrays.<DispatcherCallback> asList(new AbstractDispatcherCallback() {
+            @Override
+            public void finished(Request request) {
+                throw new RuntimeException("failing on purpose");
+            }
+        }, callback);
+        dispatcher.fireFinishedCallback(leader);
+
+        assertEquals(0, flight.done.getCount());
+        assertNull(SingleFlightCallback.LEADER.get());
+        assertTrue(callback.flights.isEmpty());
+    }
+
+    Operation operation(String message) {
+        return new Operation("Hello", service, null, new Object[] { new Message(message) });
+    }
+
+    Request request(String... kvps) {
+        Map<String, Object> kvp = new HashMap<String, Object>();
+        for (int i = 0; i < kvps.length; i += 2) {
+            kvp.put(kvps[i], kvps[i + 1]);
+        }
+        Request request = new Request();
+        request.setGet(true);
+        request.setRawKvp(kvp);
+        request.setPath("hello");
+        return request;
+    }
+}
@@ -0,0 +1,152 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.springframework.context.support.FileSystemXmlApplicationContext;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
+public class TracingTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        Tracing.setEnabled(false);
+        Tracing.getStats().reset();
+        Dispatcher.REQUEST.remove();
+    }
+
+    public void testDisabled() {
+        Request request = new Request();
+        request.setTrace(new RequestTrace());
+        Dispatcher.REQUEST.set(request);
+
+        assertSame(Span.NOOP, Tracing.start("test"));
+        assertSame(Span.NOOP, Tracing.start(request, "test"));
+        assertTrue(request.getTrace().getTimes().isEmpty());
+    }
+
+    public void testNoRequest() {
+        Tracing.setEnabled(true);
+        assertSame(Span.NOOP, Tracing.start("test"));
+        // no trace attached
+        Dispatcher.REQUEST.set(new Request());
+        assertSame(Span.NOOP, Tracing.start("test"));
+    }
+
+    public void testSpans() throws Exception {
+        Tracing.setEnabled(true);
+        Request request = new Request();
+        request.setTrace(new RequestTrace());
+        Dispatcher.REQUEST.set(request);
+
+        Span outer = Tracing.start("outer");
+        for (int i = 0; i < 3; i++) {
+            Span inner = Tracing.start("inner");
+            Thread.sleep(1);
+            inner.end();
+            // ending twice does not count
+            inner.end();
+        }
+        outer.end();
+
+        RequestTrace trace = request.getTrace();
+        assertEquals(1, trace.getCount("outer"));
+        assertEquals(3, trace.getCount("inner"));
+        assertEquals(0, trace.getCount("missing"));
+        Map<String, Long> times = trace.getTimes();
+        assertEquals(Arrays.asList("inner", "outer"), new ArrayList<String>(times.keySet()));
+        assertTrue(times.get("inner") >= 3000000);
+        assertTrue(times.get("outer") >= times.get("inner"));
+    }
+
+    public void testStats() throws Exception {
+        TraceStats stats = new TraceStats();
+        for (int i = 1; i <= 10; i++) {
+            RequestTrace trace = new RequestTrace();
+            trace.add("read", i * 1000);
+            trace.add("write", i * 2000);
+            stats.record(trace);
+        }
+        assertEquals(10, stats.getRequestCount());
+        List<PhaseStats> phases = stats.getPhaseStats();
+        assertEquals(2, phases.size());
+        PhaseStats read = phases.get(0);
+        assertEquals("read", read.getPhase());
+        assertEquals(10, read.getCount());
+        assertEquals(5.5, read.getMeanTime(), 0.001);
+        assertEquals(10, read.getMaxTime());
+        assertEquals(20, phases.get(1).getMaxTime());
+
+        stats.reset();
+        assertEquals(0, stats.getRequestCount());
+        assertTrue(stats.getPhaseStats().isEmpty());
+    }
+
+    public void testMBean() throws Exception {
+        Tracing.setEnabled(true);
+        ObjectName name = new ObjectName(Tracing.MBEAN_NAME);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertEquals(0l, ManagementFactory.getPlatformMBeanServer().getAttribute(name,
+                "RequestCount"));
+    }
+
+    public void testDispatcher() throws Exception {
+        URL url = getClass().getResource("applicationContext.xml");
+        FileSystemXmlApplicationContext context = new FileSystemXmlApplicationContext(url.toString());
+        Dispatcher dispatcher = (Dispatcher) context.getBean("dispatcher");
+        Tracing.setEnabled(true);
+
+        MockHttpServletRequest request = new MockHttpServletRequest() {
+            String encoding;
+
+            public int getServerPort() {
+                return 8080;
+            }
+
+            public String getCharacterEncoding() {
+                return encoding;
+            }
+
+            public void setCharacterEncoding(String encoding) {
+                this.encoding = encoding;
+            }
+        };
+        request.setScheme("http");
+        request.setServerName("localhost");
+        request.setContextPath("/geoserver");
+        request.setMethod("GET");
+        request.setupAddParameter("service", "hello");
+        request.setupAddParameter("request", "Hello");
+        request.setupAddParameter("version", "1.0.0");
+        request.setupAddParameter("message", "Hello world!");
+        request.setRequestURI("http://localhost/geoserver/ows?service=hello&request=hello&message=HelloWorld");
+        request.setQueryString("service=hello&request=hello&message=HelloWorld");
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        dispatcher.handleRequest(request, response);
+        assertEquals("Hello world!", response.getOutputStreamContent());
+
+        TraceStats stats = Tracing.getStats();
+        assertEquals(1, stats.getRequestCount());
+        List<String> phases = new ArrayList<String>();
+        for (PhaseStats ps : stats.getPhaseStats()) {
+            phases.add(ps.getPhase());
+            assertEquals(1, ps.getCount());
+        }
+        assertEquals(Arrays.asList("execute", "kvp", "read", "write"), phases);
+    }
+}
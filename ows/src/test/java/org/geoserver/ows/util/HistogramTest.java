@@ -0,0 +1,49 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase {
+
+    public void testRecord() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1, h.getMin());
+        assertEquals(1000, h.getMax());
+        assertEquals(500.5, h.getMean(), 0.001);
+        // within the bucket precision
+        assertEquals(500, h.getValueAtPercentile(50), 500 / Histogram.SUB_BUCKETS);
+        assertEquals(990, h.getValueAtPercentile(99), 990 / Histogram.SUB_BUCKETS);
+        assertEquals(1000, h.getValueAtPercentile(100));
+
+        // exact for small values
+        Histogram small = new Histogram();
+        small.record(3);
+        small.record(7);
+        assertEquals(3, small.getValueAtPercentile(50));
+        assertEquals(7, small.getValueAtPercentile(90));
+
+        h.add(small);
+        assertEquals(1002, h.getCount());
+        assertEquals(1, h.getMin());
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(50));
+    }
+
+    public void testBuckets() {
+        for (long v : new long[] { 0, 1, 15, 16, 17, 31, 32, 1000, 123456789, 1L << 40 }) {
+            int index = Histogram.index(v);
+            assertTrue(Histogram.lowestValue(index) <= v);
+            assertTrue(Histogram.highestValue(index) >= v);
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE));
+    }
+}
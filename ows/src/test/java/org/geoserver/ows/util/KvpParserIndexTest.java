@@ -0,0 +1,88 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.geoserver.ows.KvpParser;
+import org.geotools.util.Version;
+
+public class KvpParserIndexTest extends TestCase {
+
+    KvpParser generic;
+
+    KvpParser wms;
+
+    KvpParser wms111;
+
+    KvpParser wfsGetFeature;
+
+    KvpParserIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        generic = new StringParser("bbox");
+        wms = new StringParser("bbox");
+        wms.setService("WMS");
+        wms111 = new StringParser("BBOX");
+        wms111.setService("WMS");
+        wms111.setVersion(new Version("1.1.1"));
+        wfsGetFeature = new StringParser("bbox");
+        wfsGetFeature.setService("WFS");
+        wfsGetFeature.setRequest("GetFeature");
+
+        index = new KvpParserIndex();
+        index.parsers = KvpParserIndex.build(Arrays.asList(generic, wms, wms111, wfsGetFeature,
+                new StringParser("layers")));
+    }
+
+    public void testBuild() {
+        assertEquals(2, index.parsers.size());
+        assertEquals(4, index.parsers.get("BBOX").length);
+        assertEquals(1, index.parsers.get("LAYERS").length);
+    }
+
+    public void testSelection() {
+        assertSame(generic, index.getParser("bbox", null, null, null));
+        assertSame(generic, index.getParser("bbox", "WCS", "1.0.0", "GetCoverage"));
+        assertSame(wms, index.getParser("bbox", "wms", "1.3.0", "GetMap"));
+        assertSame(wms111, index.getParser("BBOX", "WMS", "1.1.1", "GetMap"));
+        assertSame(generic, index.getParser("bbox", "WFS", "1.1.0", "DescribeFeatureType"));
+        assertSame(wfsGetFeature, index.getParser("bbox", "WFS", "1.1.0", "GetFeature"));
+        assertNull(index.getParser("width", "WMS", "1.1.1", "GetMap"));
+
+        // choices are remembered
+        assertSame(wms111, index.getParser("bbox", "WMS", "1.1.1", "GetMap"));
+        assertNull(index.getParser("width", "WMS", "1.1.1", "GetMap"));
+        assertFalse(index.choices.isEmpty());
+    }
+
+    public void testChoicesBounded() {
+        for (int i = 0; i < KvpParserIndex.MAX_CHOICES + 10; i++) {
+            index.getParser("bbox", "WMS", String.valueOf(i), "GetMap");
+        }
+        assertTrue(index.choices.size() <= KvpParserIndex.MAX_CHOICES);
+    }
+
+    public void testReset() {
+        index.getParser("bbox", "WMS", "1.1.1", "GetMap");
+        index.reset();
+        assertNull(index.parsers);
+        assertTrue(index.choices.isEmpty());
+    }
+
+    static class StringParser extends KvpParser {
+        StringParser(String key) {
+            super(key, String.class);
+        }
+
+        @Override
+        public Object parse(String value) throws Exception {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.ows.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+import com.mockrunner.mock.web.MockHttpServletRequest;
+
+public class ResponseCompressionTest extends TestCase {
+
+    public void testDisabledByDefault() {
+        assertFalse(new ResponseCompression(null).isEnabled());
+        assertFalse(new ResponseCompression("false").isEnabled());
+        assertEquals(-1, new ResponseCompression(null).getLevel("text/xml"));
+    }
+
+    public void testDefaultLevels() {
+        ResponseCompression compression = new ResponseCompression("true");
+        assertTrue(compression.isEnabled());
+        assertEquals(ResponseCompression.DEFAULT_LEVEL, compression.getLevel("text/xml"));
+        assertEquals(ResponseCompression.DEFAULT_LEVEL, compression
+                .getLevel("application/vnd.ogc.gml; subtype=gml/3.1.1"));
+        assertEquals(ResponseCompression.DEFAULT_LEVEL, compression.getLevel("application/json"));
+        assertEquals(-1, compression.getLevel("image/png"));
+        assertEquals(-1, compression.getLevel("application/octet-stream"));
+        assertEquals(-1, compression.getLevel(null));
+    }
+
+    public void testConfiguredLevels() {
+        ResponseCompression compression = new ResponseCompression(
+                "text/.*=1, .*xml.*=9, application/json, .*=bad");
+        assertEquals(1, compression.getLevel("text/plain"));
+        assertEquals(9, compression.getLevel("application/xml"));
+        assertEquals(ResponseCompression.DEFAULT_LEVEL, compression.getLevel("application/json"));
+        assertEquals(-1, compression.getLevel("application/octet-stream"));
+
+        // already compressed types are never compressed
+        compression = new ResponseCompression(".*");
+        assertEquals(-1, compression.getLevel("image/jpeg"));
+        assertEquals(-1, compression.getLevel("application/zip"));
+        assertEquals(ResponseCompression.DEFAULT_LEVEL, compression.getLevel("image/svg+xml"));
+
+        assertFalse(new ResponseCompression("none").isEnabled());
+    }
+
+    public void testEncoding() {
+        ResponseCompression compression = new ResponseCompression("true");
+        assertNull(compression.getEncoding(request(null)));
+        assertNull(compression.getEncoding(request("identity")));
+        assertEquals("gzip", compression.getEncoding(request("gzip, deflate")));
+        assertEquals("gzip", compression.getEncoding(request("deflate, gzip")));
+        assertEquals("deflate", compression.getEncoding(request("deflate")));
+        assertEquals("deflate", compression.getEncoding(request("gzip;q=0, deflate;q=0.5")));
+        assertEquals("gzip", compression.getEncoding(request("*")));
+    }
+
+    public void testGzip() throws IOException {
+        byte[] data = data();
+        for (int i = 0; i < 3; i++) {
+            // the second and third round use pooled deflaters
+            byte[] compressed = CompressingOutputStream.compress(data, "gzip", 6);
+            assertTrue(compressed.length < data.length);
+            assertEquals(new String(data), new String(read(new GZIPInputStream(
+                    new ByteArrayInputStream(compressed)))));
+        }
+    }
+
+    public void testDeflate() throws IOException {
+        byte[] data = data();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CompressingOutputStream cos = new CompressingOutputStream(bos, "deflate", 9);
+        for (int i = 0; i < data.length; i += 100) {
+            cos.write(data, i, Math.min(100, data.length - i));
+        }
+        cos.write('!');
+        cos.close();
+
+        assertEquals(new String(data) + "!", new String(read(new InflaterInputStream(
+                new ByteArrayInputStream(bos.toByteArray())))));
+    }
+
+    byte[] data() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("<gml:featureMember>").append(i).append("</gml:featureMember>");
+        }
+        return sb.toString().getBytes();
+    }
+
+    byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, n);
+        }
+        is.close();
+        return bos.toByteArray();
+    }
+
+    MockHttpServletRequest request(String acceptEncoding) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        return request;
+    }
+}
@@ -65,7 +65,11 @@ public class AlternativesResponseStream extends ServletOutputStream {
 //            logger.warning("Mime type was not set before first write!");
 //        }
 
-        if (type != null && isCompressible(type)){
+        if (myResponse.containsHeader("Content-Encoding")) {
+            // the content has been encoded already, e.g. by the OWS dispatcher
+            logger.log(Level.FINE, "Not compressing already encoded output for mimetype: {0}", type);
+            myStream = myResponse.getOutputStream();
+        } else if (type != null && isCompressible(type)){
             logger.log(Level.FINE, "Compressing output for mimetype: {0}", type);
             myStream = new GZIPResponseStream(myResponse);
         } else {
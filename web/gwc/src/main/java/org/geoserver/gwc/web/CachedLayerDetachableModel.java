@@ -58,6 +58,8 @@ public class CachedLayerDetachableModel extends LoadableDetachableModel<CachedLa
         info.setEnabled(enabled);
         if (gwc.isDiskQuotaAvailable()) {
             info.setQuotaLimit(gwc.getQuotaLimit(name));
+        }
+        if (gwc.isUsedQuotaAvailable()) {
             info.setQuotaUsed(gwc.getUsedQuota(name));
         }
         if(!enabled && (layer instanceof GeoServerTileLayer)){
@@ -21,6 +21,7 @@ import org.geoserver.config.GeoServer;
 import org.geotools.xml.transform.TransformerBase;
 import org.opengis.filter.FilterFactory2;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 
@@ -31,7 +32,8 @@ import org.springframework.context.ApplicationContextAware;
  * @author Justin Deoliveira, The Open Planning Project
  *
  */
-public class DefaultWebFeatureService implements WebFeatureService, ApplicationContextAware {
+public class DefaultWebFeatureService implements WebFeatureService, ApplicationContextAware,
+        DisposableBean {
     /**
      * GeoServer configuration
      */
@@ -193,4 +195,11 @@ public class DefaultWebFeatureService implements WebFeatureService, ApplicationC
         throws BeansException {
         this.context = context;
     }
+
+    /**
+     * Shuts down the pool used to run the GetFeature queries in parallel
+     */
+    public void destroy() throws Exception {
+        GetFeature.shutdownQueryPool();
+    }
 }
@@ -9,8 +9,17 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
@@ -30,6 +39,11 @@ import org.geoserver.catalog.AttributeTypeInfo;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.ows.Span;
+import org.geoserver.ows.Tracing;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
@@ -60,6 +74,8 @@ import org.opengis.filter.spatial.BBOX;
 import org.opengis.filter.spatial.BinarySpatialOperator;
 import org.opengis.metadata.extent.GeographicBoundingBox;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.xml.sax.helpers.NamespaceSupport;
 
 /**
@@ -68,6 +84,12 @@ import org.xml.sax.helpers.NamespaceSupport;
  * This operation returns an array of {@link org.geotools.feature.FeatureCollection}
  * instances.
  * </p>
+ * <p>
+ * When the <code>WFS_QUERY_POOL_SIZE</code> system variable is set to a value greater than one,
+ * the feature collections of requests containing multiple queries are opened, and counted, in
+ * parallel on a pool of that size. The results are still returned in the order of the queries,
+ * and honor the request max features.
+ * </p>
  *
  * @author Rob Hranac, TOPP
  * @author Justin Deoliveira, The Open Planning Project, jdeolive@openplans.org
@@ -77,6 +99,20 @@ import org.xml.sax.helpers.NamespaceSupport;
 public class GetFeature {
     public static final String SQL_VIEW_PARAMS = "GS_SQL_VIEW_PARAMS";
     
+    /**
+     * Name of the http request attribute holding the time, in milliseconds, taken to open (and
+     * count, if necessary) the features of each feature type, as a map from prefixed feature type
+     * name to time
+     */
+    public static final String QUERY_TIMES = Request.RESOURCE_TIMES;
+    
+    /**
+     * The pool used to run multiple queries in parallel, if enabled
+     */
+    static volatile ExecutorService QUERY_POOL;
+    
+    static volatile Integer QUERY_POOL_SIZE;
+    
     /** Standard logging instance for class */
     private static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.vfny.geoserver.requests");
 
@@ -179,246 +215,51 @@ public class GetFeature {
 
         int count = 0; //should probably be long
         List results = new ArrayList();
+        
+        // optimization: WFS 1.0 does not require count unless we have multiple query elements
+        // and we are asked to perform a global limit on the results returned
+        boolean countNeeded = !(("1.0".equals(request.getVersion()) || "1.0.0".equals(request.getVersion())) && 
+                (request.getQuery().size() == 1 || maxFeatures == Integer.MAX_VALUE));
+        
+        // per query execution times, reported to whoever is monitoring the request
+        Map<String, Long> queryTimes = new LinkedHashMap<String, Long>();
         try {
-            for (int i = 0; (i < request.getQuery().size()) && (count < maxFeatures); i++) {
-                QueryType query = (QueryType) request.getQuery().get(i);
-
-                FeatureTypeInfo meta = null;
-
-                if (query.getTypeName().size() == 1) {
-                    meta = featureTypeInfo((QName) query.getTypeName().get(0));
-                } else {
-                    //TODO: a join is taking place
+            ExecutorService pool = getQueryPool();
+            if (pool != null && request.getQuery().size() > 1) {
+                // open the collections and compute the counts in parallel, each query
+                // getting the global limit, and then shave off the excess in the original order
+                List<Future<QueryResult>> futures = new ArrayList<Future<QueryResult>>();
+                for (int i = 0; i < request.getQuery().size(); i++) {
+                    futures.add(pool.submit(new QueryTask(request, i, maxFeatures, viewParams, countNeeded)));
                 }
-
-                FeatureSource<? extends FeatureType, ? extends Feature> source = meta.getFeatureSource(null,null);
-              
-                //make sure property names are cool
-                NamespaceSupport ns = getNamespaceSupport();
-                
-                List<PropertyName> propNames = null;
-                List<PropertyName> allPropNames = null;
-                                
-                if (!query.getPropertyName().isEmpty()){
-                    
-                    propNames = new ArrayList<PropertyName>();
-                    
-                    for (Iterator iter = query.getPropertyName().iterator(); iter.hasNext();) {
-                        PropertyName propName = createPropertyName((String) iter.next(), ns);
-    
-                        //if (!attNames.contains(propName)) {
-                        if ( propName.evaluate(meta.getFeatureType()) == null) {
-                            String mesg = "Requested property: " + propName + " is " + "not available "
-                                + "for " + query.getTypeName() + ".  ";
-                            
-                            if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                                List<AttributeTypeInfo> atts = meta.attributes();
-                                List attNames = new ArrayList( atts.size() );
-                                for ( AttributeTypeInfo att : atts ) {
-                                    attNames.add( att.getName() );
-                                }
-                                mesg += "The possible propertyName values are: " + attNames;
-                            }
-    
-                            throw new WFSException(mesg);
+                try {
+                    for (int i = 0; i < futures.size() && count < maxFeatures; i++) {
+                        QueryResult result = getQueryResult(futures.get(i));
+                        if (countNeeded && result.size > maxFeatures - count) {
+                            result.limit(maxFeatures - count);
                         }
-                        
-                        propNames.add(propName);
+                        count += addResult(result, results, queryTimes);
                     }
-                    
-                    // if we need to force feature bounds computation, we have to load 
-                    // all of the geometries, but we'll have to remove them in the 
-                    // returned feature type
-                    if(wfs.isFeatureBounding()) {
-                        allPropNames = addGeometryProperties(meta, propNames);                        
-                    } else {
-                        allPropNames = propNames;
-                    }     
-                    
-                    //we must also include any properties that are mandatory ( even if not requested ),
-                    // ie. those with minOccurs > 0
-                    //only do this for simple features, complex mandatory features are handled by app-schema
-                    if (meta.getFeatureType() instanceof SimpleFeatureType) {
-                        allPropNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), allPropNames);
-                        propNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), propNames);
+                } finally {
+                    // queries past the global limit are not needed anymore, the ones already
+                    // running are left to complete, interrupting them could break the readers
+                    // of the stores using interruptible channels
+                    for (Future<QueryResult> future : futures) {
+                        future.cancel(false);
                     }
-                    //for complex features, mandatory properties need to be handled by datastore.
-                    
-                }                
-
-                //make sure filters are sane
-                //
-                // Validation of filters on non-simple feature types is not yet supported.
-                // FIXME: Support validation of filters on non-simple feature types:
-                // need to consider xpath properties and how to configure namespace prefixes in
-                // GeoTools app-schema FeaturePropertyAccessorFactory.
-                if (query.getFilter() != null && source.getSchema() instanceof SimpleFeatureType) {
-                    
-                    //1. ensure any property name refers to a property that 
-                    // actually exists
-                    final FeatureType featureType = source.getSchema();
-                    ExpressionVisitor visitor = new AbstractExpressionVisitor() {
-                            public Object visit(PropertyName name, Object data) {
-                                // case of multiple geometries being returned
-                                if (name.evaluate(featureType) == null) {
-                                    throw new WFSException("Illegal property name: "
-                                        + name.getPropertyName(), "InvalidParameterValue");
-                                }
-
-                                return name;
-                            }
-                            ;
-                        };
-                    query.getFilter().accept(new AbstractFilterVisitor(visitor), null);
-                    
-                    //2. ensure any spatial predicate is made against a property 
-                    // that is actually special
-                    AbstractFilterVisitor fvisitor = new AbstractFilterVisitor() {
-                      
-                        protected Object visit( BinarySpatialOperator filter, Object data ) {
-                            PropertyName name = null;
-                            if ( filter.getExpression1() instanceof PropertyName ) {
-                                name = (PropertyName) filter.getExpression1();
-                            }
-                            else if ( filter.getExpression2() instanceof PropertyName ) {
-                                name = (PropertyName) filter.getExpression2();
-                            }
-                            
-                            if ( name != null ) {
-                                //check against fetaure type to make sure its
-                                // a geometric type
-                                AttributeDescriptor att = (AttributeDescriptor) name.evaluate(featureType);
-                                if ( !( att instanceof GeometryDescriptor ) ) {
-                                    throw new WFSException("Property " + name + " is not geometric", "InvalidParameterValue");
-                                }
-                            }
-                            
-                            return filter;
-                        }
-                    };
-                    query.getFilter().accept(fvisitor, null);
-                    
-                    //3. ensure that any bounds specified as part of the query
-                    // are valid with respect to the srs defined on the query
-                    if ( wfs.isCiteCompliant() ) {
-                        
-                        if ( query.getSrsName() != null ) {
-                            final QueryType fquery = query;
-                            fvisitor = new AbstractFilterVisitor() {
-                                public Object visit(BBOX filter, Object data) {
-                                    if ( filter.getSRS() != null && 
-                                            !fquery.getSrsName().toString().equals( filter.getSRS() ) ) {
-                                        
-                                        //back project bounding box into geographic coordinates
-                                        CoordinateReferenceSystem geo = DefaultGeographicCRS.WGS84;
-                                        
-                                        GeneralEnvelope e = new GeneralEnvelope( 
-                                            new double[] { filter.getMinX(), filter.getMinY()},
-                                            new double[] { filter.getMaxX(), filter.getMaxY()}
-                                        );
-                                        CoordinateReferenceSystem crs = null;
-                                        try {
-                                            crs = CRS.decode( filter.getSRS() );
-                                            e = CRS.transform(CRS.findMathTransform(crs, geo, true), e);
-                                        } 
-                                        catch( Exception ex ) {
-                                            throw new WFSException( ex );
-                                        }
-                                        
-                                        //ensure within bounds defined by srs specified on 
-                                        // query
-                                        try {
-                                            crs = CRS.decode( fquery.getSrsName().toString() );
-                                        } 
-                                        catch( Exception ex ) {
-                                            throw new WFSException( ex );
-                                        }
-                                        
-                                        GeographicBoundingBox valid = 
-                                            (GeographicBoundingBox) crs.getDomainOfValidity()
-                                            .getGeographicElements().iterator().next();
-                                        
-                                        if ( e.getMinimum(0) < valid.getWestBoundLongitude() || 
-                                            e.getMinimum(0) > valid.getEastBoundLongitude() || 
-                                            e.getMaximum(0) < valid.getWestBoundLongitude() || 
-                                            e.getMaximum(0) > valid.getEastBoundLongitude() ||
-                                            e.getMinimum(1) < valid.getSouthBoundLatitude() || 
-                                            e.getMinimum(1) > valid.getNorthBoundLatitude() || 
-                                            e.getMaximum(1) < valid.getSouthBoundLatitude() || 
-                                            e.getMaximum(1) > valid.getNorthBoundLatitude() ) {
-                                                
-                                            throw new WFSException( "bounding box out of valid range of crs", "InvalidParameterValue");
-                                        }
-                                    }
-                                    
-                                    return data;
-                                } 
-                            };
-                            
-                            query.getFilter().accept(fvisitor, null);
-                        }
-                    }   
-                }
-
-                // handle local maximum
-                int queryMaxFeatures = maxFeatures - count;
-                if(meta.getMaxFeatures() > 0 && meta.getMaxFeatures() < queryMaxFeatures)
-                    queryMaxFeatures = meta.getMaxFeatures();
-                Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
-                org.geotools.data.Query gtQuery = toDataQuery(query, queryMaxFeatures, source, request, allPropNames, viewParam);
-                
-                LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
-
-                FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
-                // For complex features, we need the targetCrs and version in scenario where we have
-                // a top level feature that does not contain a geometry(therefore no crs) and has a
-                // nested feature that contains geometry as its property.Furthermore it is possible
-                // for each nested feature to have different crs hence we need to reproject on each
-                // feature accordingly.
-                if (!(meta.getFeatureType() instanceof SimpleFeatureType)) {
-                    features.getSchema().getUserData().put("targetCrs", query.getSrsName());
-                    features.getSchema().getUserData().put("targetVersion", request.getVersion());
                 }
-                // optimization: WFS 1.0 does not require count unless we have multiple query elements
-                // and we are asked to perform a global limit on the results returned
-                if(("1.0".equals(request.getVersion()) || "1.0.0".equals(request.getVersion())) && 
-                        (request.getQuery().size() == 1 || maxFeatures == Integer.MAX_VALUE)) {
-                    // skip the count update, in this case we don't need it
-                } else {
-                	count += features.size();
-                }
-                
-                // we may need to shave off geometries we did load only to make bounds
-                // computation happy
-                // TODO: support non-SimpleFeature geometry shaving
-                if(features.getSchema() instanceof SimpleFeatureType && propNames!=null && propNames.size() < allPropNames.size()) {
-                    String[] residualNames = new String[propNames.size()];
-                    Iterator<PropertyName> it = propNames.iterator();
-                    int j =0;
-                    while (it.hasNext()) {
-                        residualNames[j] = it.next().getPropertyName();
-                        j++;
-                    }
-                    SimpleFeatureType targetType = DataUtilities.createSubType((SimpleFeatureType) features.getSchema(), residualNames);
-                    features = new FeatureBoundsFeatureCollection((SimpleFeatureCollection) features, targetType);
+            } else {
+                for (int i = 0; (i < request.getQuery().size()) && (count < maxFeatures); i++) {
+                    QueryResult result = runQuery(request, i, maxFeatures - count, viewParams, countNeeded);
+                    count += addResult(result, results, queryTimes);
                 }
-
-                //JD: TODO reoptimize
-                //                if ( i == request.getQuery().size() - 1 ) { 
-                //                	//DJB: dont calculate feature count if you dont have to. The MaxFeatureReader will take care of the last iteration
-                //                	maxFeatures -= features.getCount();
-                //                }
-
-                //GR: I don't know if the featuresults should be added here for later
-                //encoding if it was a lock request. may be after ensuring the lock
-                //succeed?
-                results.add(features);
             }
         } catch (IOException e) {
             throw new WFSException("Error occurred getting features", e, request.getHandle());
         } catch (SchemaException e) {
             throw new WFSException("Error occurred getting features", e, request.getHandle());
         }
+        reportQueryTimes(queryTimes);
 
         //locking
         String lockId = null;
@@ -452,6 +293,442 @@ public class GetFeature {
         return buildResults(count, results, lockId);
     }
 
+    /**
+     * Validates the i-th query of the request, turns it into a GeoTools query and opens the
+     * corresponding feature collection, eventually computing its size
+     * 
+     * @param maxFeatures the maximum number of features the query can return
+     * @param countNeeded whether the size of the collection has to be computed
+     */
+    QueryResult runQuery(GetFeatureType request, int i, int maxFeatures,
+            List<Map<String, String>> viewParams, boolean countNeeded) throws IOException {
+        long start = System.currentTimeMillis();
+        QueryType query = (QueryType) request.getQuery().get(i);
+
+        FeatureTypeInfo meta = null;
+
+        if (query.getTypeName().size() == 1) {
+            meta = featureTypeInfo((QName) query.getTypeName().get(0));
+        } else {
+            //TODO: a join is taking place
+        }
+
+        FeatureSource<? extends FeatureType, ? extends Feature> source = meta.getFeatureSource(null,null);
+      
+        //make sure property names are cool
+        NamespaceSupport ns = getNamespaceSupport();
+        
+        List<PropertyName> propNames = null;
+        List<PropertyName> allPropNames = null;
+                        
+        if (!query.getPropertyName().isEmpty()){
+            
+            propNames = new ArrayList<PropertyName>();
+            
+            for (Iterator iter = query.getPropertyName().iterator(); iter.hasNext();) {
+                PropertyName propName = createPropertyName((String) iter.next(), ns);
+
+                //if (!attNames.contains(propName)) {
+                if ( propName.evaluate(meta.getFeatureType()) == null) {
+                    String mesg = "Requested property: " + propName + " is " + "not available "
+                        + "for " + query.getTypeName() + ".  ";
+                    
+                    if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                        List<AttributeTypeInfo> atts = meta.attributes();
+                        List attNames = new ArrayList( atts.size() );
+                        for ( AttributeTypeInfo att : atts ) {
+                            attNames.add( att.getName() );
+                        }
+                        mesg += "The possible propertyName values are: " + attNames;
+                    }
+
+                    throw new WFSException(mesg);
+                }
+                
+                propNames.add(propName);
+            }
+            
+            // if we need to force feature bounds computation, we have to load 
+            // all of the geometries, but we'll have to remove them in the 
+            // returned feature type
+            if(wfs.isFeatureBounding()) {
+                allPropNames = addGeometryProperties(meta, propNames);                        
+            } else {
+                allPropNames = propNames;
+            }     
+            
+            //we must also include any properties that are mandatory ( even if not requested ),
+            // ie. those with minOccurs > 0
+            //only do this for simple features, complex mandatory features are handled by app-schema
+            if (meta.getFeatureType() instanceof SimpleFeatureType) {
+                allPropNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), allPropNames);
+                propNames = DataUtilities.addMandatoryProperties((SimpleFeatureType) meta.getFeatureType(), propNames);
+            }
+            //for complex features, mandatory properties need to be handled by datastore.
+            
+        }                
+
+        //make sure filters are sane
+        //
+        // Validation of filters on non-simple feature types is not yet supported.
+        // FIXME: Support validation of filters on non-simple feature types:
+        // need to consider xpath properties and how to configure namespace prefixes in
+        // GeoTools app-schema FeaturePropertyAccessorFactory.
+        if (query.getFilter() != null && source.getSchema() instanceof SimpleFeatureType) {
+            
+            //1. ensure any property name refers to a property that 
+            // actually exists
+            final FeatureType featureType = source.getSchema();
+            ExpressionVisitor visitor = new AbstractExpressionVisitor() {
+                    public Object visit(PropertyName name, Object data) {
+                        // case of multiple geometries being returned
+                        if (name.evaluate(featureType) == null) {
+                            throw new WFSException("Illegal property name: "
+                                + name.getPropertyName(), "InvalidParameterValue");
+                        }
+
+                        return name;
+                    }
+                    ;
+                };
+            query.getFilter().accept(new AbstractFilterVisitor(visitor), null);
+            
+            //2. ensure any spatial predicate is made against a property 
+            // that is actually special
+            AbstractFilterVisitor fvisitor = new AbstractFilterVisitor() {
+              
+                protected Object visit( BinarySpatialOperator filter, Object data ) {
+                    PropertyName name = null;
+                    if ( filter.getExpression1() instanceof PropertyName ) {
+                        name = (PropertyName) filter.getExpression1();
+                    }
+                    else if ( filter.getExpression2() instanceof PropertyName ) {
+                        name = (PropertyName) filter.getExpression2();
+                    }
+                    
+                    if ( name != null ) {
+                        //check against fetaure type to make sure its
+                        // a geometric type
+                        AttributeDescriptor att = (AttributeDescriptor) name.evaluate(featureType);
+                        if ( !( att instanceof GeometryDescriptor ) ) {
+                            throw new WFSException("Property " + name + " is not geometric", "InvalidParameterValue");
+                        }
+                    }
+                    
+                    return filter;
+                }
+            };
+            query.getFilter().accept(fvisitor, null);
+            
+            //3. ensure that any bounds specified as part of the query
+            // are valid with respect to the srs defined on the query
+            if ( wfs.isCiteCompliant() ) {
+                
+                if ( query.getSrsName() != null ) {
+                    final QueryType fquery = query;
+                    fvisitor = new AbstractFilterVisitor() {
+                        public Object visit(BBOX filter, Object data) {
+                            if ( filter.getSRS() != null && 
+                                    !fquery.getSrsName().toString().equals( filter.getSRS() ) ) {
+                                
+                                //back project bounding box into geographic coordinates
+                                CoordinateReferenceSystem geo = DefaultGeographicCRS.WGS84;
+                                
+                                GeneralEnvelope e = new GeneralEnvelope( 
+                                    new double[] { filter.getMinX(), filter.getMinY()},
+                                    new double[] { filter.getMaxX(), filter.getMaxY()}
+                                );
+                                CoordinateReferenceSystem crs = null;
+                                try {
+                                    crs = CRS.decode( filter.getSRS() );
+                                    e = CRS.transform(CRS.findMathTransform(crs, geo, true), e);
+                                } 
+                                catch( Exception ex ) {
+                                    throw new WFSException( ex );
+                                }
+                                
+                                //ensure within bounds defined by srs specified on 
+                                // query
+                                try {
+                                    crs = CRS.decode( fquery.getSrsName().toString() );
+                                } 
+                                catch( Exception ex ) {
+                                    throw new WFSException( ex );
+                                }
+                                
+                                GeographicBoundingBox valid = 
+                                    (GeographicBoundingBox) crs.getDomainOfValidity()
+                                    .getGeographicElements().iterator().next();
+                                
+                                if ( e.getMinimum(0) < valid.getWestBoundLongitude() || 
+                                    e.getMinimum(0) > valid.getEastBoundLongitude() || 
+                                    e.getMaximum(0) < valid.getWestBoundLongitude() || 
+                                    e.getMaximum(0) > valid.getEastBoundLongitude() ||
+                                    e.getMinimum(1) < valid.getSouthBoundLatitude() || 
+                                    e.getMinimum(1) > valid.getNorthBoundLatitude() || 
+                                    e.getMaximum(1) < valid.getSouthBoundLatitude() || 
+                                    e.getMaximum(1) > valid.getNorthBoundLatitude() ) {
+                                        
+                                    throw new WFSException( "bounding box out of valid range of crs", "InvalidParameterValue");
+                                }
+                            }
+                            
+                            return data;
+                        } 
+                    };
+                    
+                    query.getFilter().accept(fvisitor, null);
+                }
+            }   
+        }
+
+
+        // handle local maximum
+        int queryMaxFeatures = maxFeatures;
+        if(meta.getMaxFeatures() > 0 && meta.getMaxFeatures() < queryMaxFeatures)
+            queryMaxFeatures = meta.getMaxFeatures();
+        Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
+        org.geotools.data.Query gtQuery = toDataQuery(query, queryMaxFeatures, source, request, allPropNames, viewParam);
+        
+        LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
+
+        QueryResult result;
+        Span span = Tracing.start("query");
+        try {
+            result = new QueryResult(request, query, meta, source, gtQuery, propNames, allPropNames);
+            if (countNeeded) {
+                result.size = result.features.size();
+            }
+        } finally {
+            span.end();
+        }
+        result.time = System.currentTimeMillis() - start;
+        return result;
+    }
+    
+    /**
+     * Adds the features of a query to the results, eventually shaving off the geometries
+     * loaded only to compute the bounds, and returns the number of features added
+     */
+    int addResult(QueryResult result, List results, Map<String, Long> queryTimes)
+            throws SchemaException {
+        FeatureCollection<? extends FeatureType, ? extends Feature> features = result.features;
+        List<PropertyName> propNames = result.propNames;
+        List<PropertyName> allPropNames = result.allPropNames;
+        
+        // we may need to shave off geometries we did load only to make bounds
+        // computation happy
+        // TODO: support non-SimpleFeature geometry shaving
+        if(features.getSchema() instanceof SimpleFeatureType && propNames!=null && propNames.size() < allPropNames.size()) {
+            String[] residualNames = new String[propNames.size()];
+            Iterator<PropertyName> it = propNames.iterator();
+            int j =0;
+            while (it.hasNext()) {
+                residualNames[j] = it.next().getPropertyName();
+                j++;
+            }
+            SimpleFeatureType targetType = DataUtilities.createSubType((SimpleFeatureType) features.getSchema(), residualNames);
+            features = new FeatureBoundsFeatureCollection((SimpleFeatureCollection) features, targetType);
+        }
+
+        //JD: TODO reoptimize
+        //                if ( i == request.getQuery().size() - 1 ) { 
+        //                	//DJB: dont calculate feature count if you dont have to. The MaxFeatureReader will take care of the last iteration
+        //                	maxFeatures -= features.getCount();
+        //                }
+
+        //GR: I don't know if the featuresults should be added here for later
+        //encoding if it was a lock request. may be after ensuring the lock
+        //succeed?
+        results.add(features);
+        
+        String name = result.meta.getPrefixedName();
+        Long previous = queryTimes.get(name);
+        queryTimes.put(name, result.time + (previous != null ? previous : 0));
+        
+        return result.size > 0 ? result.size : 0;
+    }
+    
+    /**
+     * Waits for a query executed in the query pool to complete
+     */
+    QueryResult getQueryResult(Future<QueryResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new WFSException("Interrupted while waiting for the query results", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof WFSException) {
+                throw (WFSException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new WFSException(cause);
+            }
+        }
+    }
+    
+    /**
+     * Publishes the time each feature type took to be opened and counted as the
+     * {@link #QUERY_TIMES} attribute of the http request, for the monitoring subsystem to pick
+     * them up
+     */
+    void reportQueryTimes(Map<String, Long> queryTimes) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Query times (ms): " + queryTimes);
+        }
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null && request.getHttpRequest() != null) {
+            request.getHttpRequest().setAttribute(QUERY_TIMES, queryTimes);
+        }
+    }
+    
+    /**
+     * Returns the shared pool used to run the queries of a request in parallel, or null if
+     * parallel query execution has not been enabled by setting the
+     * <code>WFS_QUERY_POOL_SIZE</code> system variable to a value greater than one
+     */
+    static ExecutorService getQueryPool() {
+        if (QUERY_POOL_SIZE == null) {
+            synchronized (GetFeature.class) {
+                if (QUERY_POOL_SIZE == null) {
+                    int size = 0;
+                    String value = GeoServerExtensions.getProperty("WFS_QUERY_POOL_SIZE");
+                    if (value != null) {
+                        try {
+                            size = Integer.parseInt(value.trim());
+                        } catch (NumberFormatException e) {
+                            LOGGER.warning("Invalid WFS_QUERY_POOL_SIZE value " + value
+                                    + ", parallel query execution disabled");
+                        }
+                    }
+                    if (size > 1) {
+                        QUERY_POOL = Executors.newFixedThreadPool(size, new ThreadFactory() {
+                            int counter = 0;
+                            
+                            public synchronized Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "WFSQueryPool-" + (++counter));
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+                    }
+                    QUERY_POOL_SIZE = size;
+                }
+            }
+        }
+        return QUERY_POOL;
+    }
+
+    /**
+     * Shuts down the shared query pool, if it was ever created, waiting for the running queries
+     * to complete. Called when the WFS service is destroyed, a new pool will be created if needed
+     * afterwards.
+     */
+    static void shutdownQueryPool() throws InterruptedException {
+        synchronized (GetFeature.class) {
+            if (QUERY_POOL != null) {
+                QUERY_POOL.shutdown();
+                QUERY_POOL.awaitTermination(10, TimeUnit.SECONDS);
+                QUERY_POOL = null;
+            }
+            QUERY_POOL_SIZE = null;
+        }
+    }
+    
+    /**
+     * The outcome of a single query
+     */
+    class QueryResult {
+        GetFeatureType request;
+        QueryType query;
+        FeatureTypeInfo meta;
+        FeatureSource<? extends FeatureType, ? extends Feature> source;
+        org.geotools.data.Query gtQuery;
+        List<PropertyName> propNames;
+        List<PropertyName> allPropNames;
+        FeatureCollection<? extends FeatureType, ? extends Feature> features;
+        int size = -1;
+        long time;
+        
+        QueryResult(GetFeatureType request, QueryType query, FeatureTypeInfo meta,
+                FeatureSource<? extends FeatureType, ? extends Feature> source,
+                org.geotools.data.Query gtQuery, List<PropertyName> propNames,
+                List<PropertyName> allPropNames) throws IOException {
+            this.request = request;
+            this.query = query;
+            this.meta = meta;
+            this.source = source;
+            this.gtQuery = gtQuery;
+            this.propNames = propNames;
+            this.allPropNames = allPropNames;
+            this.features = openFeatures();
+        }
+        
+        /**
+         * Reduces the number of features returned by this query
+         */
+        void limit(int maxFeatures) throws IOException {
+            gtQuery.setMaxFeatures(maxFeatures);
+            features = openFeatures();
+            size = maxFeatures;
+        }
+        
+        FeatureCollection<? extends FeatureType, ? extends Feature> openFeatures() throws IOException {
+            FeatureCollection<? extends FeatureType, ? extends Feature> features = getFeatures(request, source, gtQuery);
+            // For complex features, we need the targetCrs and version in scenario where we have
+            // a top level feature that does not contain a geometry(therefore no crs) and has a
+            // nested feature that contains geometry as its property.Furthermore it is possible
+            // for each nested feature to have different crs hence we need to reproject on each
+            // feature accordingly.
+            if (!(meta.getFeatureType() instanceof SimpleFeatureType)) {
+                features.getSchema().getUserData().put("targetCrs", query.getSrsName());
+                features.getSchema().getUserData().put("targetVersion", request.getVersion());
+            }
+            return features;
+        }
+    }
+    
+    /**
+     * Runs a query in the query pool, carrying over the security context and the current
+     * request of the calling thread
+     */
+    class QueryTask implements Callable<QueryResult> {
+        GetFeatureType request;
+        int index;
+        int maxFeatures;
+        List<Map<String, String>> viewParams;
+        boolean countNeeded;
+        SecurityContext securityContext;
+        Request owsRequest;
+        
+        QueryTask(GetFeatureType request, int index, int maxFeatures,
+                List<Map<String, String>> viewParams, boolean countNeeded) {
+            this.request = request;
+            this.index = index;
+            this.maxFeatures = maxFeatures;
+            this.viewParams = viewParams;
+            this.countNeeded = countNeeded;
+            this.securityContext = SecurityContextHolder.getContext();
+            this.owsRequest = Dispatcher.REQUEST.get();
+        }
+        
+        public QueryResult call() throws Exception {
+            SecurityContext previous = SecurityContextHolder.getContext();
+            SecurityContextHolder.setContext(securityContext);
+            Dispatcher.REQUEST.set(owsRequest);
+            try {
+                return runQuery(request, index, maxFeatures, viewParams, countNeeded);
+            } finally {
+                Dispatcher.REQUEST.remove();
+                SecurityContextHolder.setContext(previous);
+            }
+        }
+    }
+
     /**
      * Allows subclasses to alter the result generation
      * @param count
@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -27,12 +28,14 @@ import org.eclipse.emf.ecore.EObject;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.feature.ReprojectingFeatureCollection;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.xml.StreamingInsertElementType;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureStore;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureStore;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.operation.projection.PointOutsideEnvelopeException;
 import org.opengis.feature.simple.SimpleFeature;
@@ -47,6 +50,19 @@ import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * Handler for the insert element
+ * <p>
+ * Features are handed over to the {@link FeatureStore} in batches of at most
+ * {@link #getBatchSize()} features, each batch being surrounded by its own
+ * {@link TransactionEventType#PRE_INSERT} and {@link TransactionEventType#POST_INSERT}
+ * events. This allows stores that support it (e.g. JDBC ones) to turn each batch into a single
+ * bulk write, and keeps the events (and the POST_INSERT fid lookups) bounded in size for large
+ * inserts. The batch size can be set using the <code>WFS_INSERT_BATCH_SIZE</code> system
+ * variable, non positive values are rejected as they would hold whole inserts in memory.
+ * </p>
+ * <p>
+ * When the insert is a {@link StreamingInsertElementType} the features are parsed while being
+ * inserted, so that at most one batch of features is held in memory at any given time.
+ * </p>
  *
  * @author Andrea Aime - TOPP
  *
@@ -56,11 +72,54 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
      * logger
      */
     static Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+    
+    /**
+     * The default amount of features sent to the store in a single addFeatures call
+     */
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    
     private FilterFactory filterFactory;
+    
+    private int batchSize;
 
     public InsertElementHandler(GeoServer gs, FilterFactory filterFactory) {
         super(gs);
         this.filterFactory = filterFactory;
+        this.batchSize = lookupBatchSize();
+    }
+    
+    static int lookupBatchSize() {
+        String value = GeoServerExtensions.getProperty("WFS_INSERT_BATCH_SIZE");
+        if (value == null) {
+            return DEFAULT_BATCH_SIZE;
+        }
+        int batchSize = -1;
+        try {
+            batchSize = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        if (batchSize <= 0) {
+            LOGGER.warning("Invalid WFS_INSERT_BATCH_SIZE value " + value
+                    + ", expected a positive number, using " + DEFAULT_BATCH_SIZE + " instead");
+            return DEFAULT_BATCH_SIZE;
+        }
+        return batchSize;
+    }
+    
+    /**
+     * The maximum number of features sent to the store in a single
+     * {@link FeatureStore#addFeatures(org.geotools.feature.FeatureCollection)} call
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The insert batch size must be positive");
+        }
+        this.batchSize = batchSize;
     }
 
     public void checkValidity(EObject element, Map<QName, FeatureTypeInfo> featureTypeInfos)
@@ -79,135 +138,159 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
         InsertElementType insert = (InsertElementType) element;
         long inserted = response.getTransactionSummary().getTotalInserted().longValue();
 
+        Iterator<SimpleFeature> features = null;
         try {
-            // group features by their schema
-            HashMap /* <SimpleFeatureType,FeatureCollection> */ schema2features = new HashMap();
-
-            for (Iterator f = insert.getFeature().iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
+            if (insert instanceof StreamingInsertElementType) {
+                // features are parsed as we go, never holding more than a batch in memory
+                features = ((StreamingInsertElementType) insert).features();
+            } else {
+                features = insert.getFeature().iterator();
+            }
+            
+            // group features by their schema, keeping the original order
+            Map<SimpleFeatureType, List<SimpleFeature>> schema2features = 
+                new LinkedHashMap<SimpleFeatureType, List<SimpleFeature>>();
+            // the schema of each pending feature, in the order they were supplied, used to
+            // report back the fids in the same order
+            List<SimpleFeatureType> order = new ArrayList<SimpleFeatureType>();
+
+            while (features.hasNext()) {
+                SimpleFeature feature = features.next();
                 SimpleFeatureType schema = feature.getFeatureType();
-                SimpleFeatureCollection collection;
-                collection = (SimpleFeatureCollection) schema2features.get(schema);
+                List<SimpleFeature> schemaFeatures = schema2features.get(schema);
 
-                if (collection == null) {
-                    collection = new DefaultFeatureCollection(null, schema);
-                    schema2features.put(schema, collection);
+                if (schemaFeatures == null) {
+                    schemaFeatures = new ArrayList<SimpleFeature>();
+                    schema2features.put(schema, schemaFeatures);
                 }
 
-                collection.add(feature);
-            }
-
-            // JD: change from set fo list because if inserting
-            // features into different feature stores, they could very well
-            // get given the same id
-            // JD: change from list to map so that the map can later be
-            // processed and we can report the fids back in the same order
-            // as they were supplied
-            Map<String, List<FeatureId>> schema2fids = new HashMap<String, List<FeatureId>>();
-
-            for (Iterator c = schema2features.values().iterator(); c.hasNext();) {
-                SimpleFeatureCollection collection = (SimpleFeatureCollection) c.next();
-                SimpleFeatureType schema = collection.getSchema();
-
-                final QName elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
-                SimpleFeatureStore store;
-                store = DataUtilities.simple((FeatureStore) featureStores.get(elementName));
-
-                if (store == null) {
-                    throw new WFSException("Could not locate FeatureStore for '" + elementName
-                        + "'");
+                schemaFeatures.add(feature);
+                order.add(schema);
+                
+                if (order.size() >= batchSize) {
+                    inserted += flush(schema2features, order, insert, request, featureStores, 
+                            response, listener);
                 }
+            }
+            inserted += flush(schema2features, order, insert, request, featureStores, response,
+                    listener);
+        } catch (Exception e) {
+            String msg = "Error performing insert: " + e.getMessage();
+            throw new WFSTransactionException(msg, e, insert.getHandle());
+        } finally {
+            if (features instanceof StreamingInsertElementType.FeatureStream) {
+                ((StreamingInsertElementType.FeatureStream) features).close();
+            }
+        }
 
-                if (collection != null) {
-                    // if we really need to, make sure we are inserting coordinates that do
-                    // match the CRS area of validity
-                    if(getInfo().isCiteCompliant()) {
-                        checkFeatureCoordinatesRange(collection);
-                    }
-                    
-                    // reprojection
-                    final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
-                    if(defaultGeometry != null) {
-                        CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
-                        if (target != null) {
-                            collection = new ReprojectingFeatureCollection(collection, target);
-                        }
-                    }
-                    
-                    // Need to use the namespace here for the
-                    // lookup, due to our weird
-                    // prefixed internal typenames. see
-                    // http://jira.codehaus.org/secure/ViewIssue.jspa?key=GEOS-143
-
-                    // Once we get our datastores making features
-                    // with the correct namespaces
-                    // we can do something like this:
-                    // FeatureTypeInfo typeInfo =
-                    // catalog.getFeatureTypeInfo(schema.getTypeName(),
-                    // schema.getNamespace());
-                    // until then (when geos-144 is resolved) we're
-                    // stuck with:
-                    // QName qName = (QName) typeNames.get( i );
-                    // FeatureTypeInfo typeInfo =
-                    // catalog.featureType( qName.getPrefix(),
-                    // qName.getLocalPart() );
-
-                    // this is possible with the insert hack above.
-                    LOGGER.finer("Use featureValidation to check contents of insert");
-
-                    // featureValidation(
-                    // typeInfo.getDataStore().getId(), schema,
-                    // collection );
-                    List<FeatureId> fids = schema2fids.get(schema.getTypeName());
-
-                    if (fids == null) {
-                        fids = new LinkedList<FeatureId>();
-                        schema2fids.put(schema.getTypeName(), fids);
-                    }
+        // update transaction summary
+        response.getTransactionSummary().setTotalInserted(BigInteger.valueOf(inserted));
+    }
+    
+    /**
+     * Writes out the pending features, one addFeatures call per feature type, reports back the
+     * fids and clears the pending features
+     * 
+     * @return the number of features inserted
+     */
+    int flush(Map<SimpleFeatureType, List<SimpleFeature>> schema2features,
+            List<SimpleFeatureType> order, InsertElementType insert, TransactionType request,
+            @SuppressWarnings("rawtypes") Map<QName, FeatureStore> featureStores,
+            TransactionResponseType response, TransactionListener listener) throws Exception {
+        // JD: change from set fo list because if inserting
+        // features into different feature stores, they could very well
+        // get given the same id
+        // JD: change from list to map so that the map can later be
+        // processed and we can report the fids back in the same order
+        // as they were supplied
+        Map<SimpleFeatureType, LinkedList<FeatureId>> schema2fids = 
+            new HashMap<SimpleFeatureType, LinkedList<FeatureId>>();
+
+        for (Map.Entry<SimpleFeatureType, List<SimpleFeature>> entry : schema2features.entrySet()) {
+            SimpleFeatureType schema = entry.getKey();
+            SimpleFeatureCollection collection = new ListFeatureCollection(schema, entry.getValue());
+
+            final QName elementName = new QName(schema.getName().getNamespaceURI(), schema.getTypeName());
+            SimpleFeatureStore store;
+            store = DataUtilities.simple((FeatureStore) featureStores.get(elementName));
+
+            if (store == null) {
+                throw new WFSException("Could not locate FeatureStore for '" + elementName
+                    + "'");
+            }
 
-                    //fire pre insert event
-                    TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_INSERT,
-                            request, elementName, collection);
-                    event.setSource( insert );
-                    
-                    listener.dataStoreChange( event );
-                    fids.addAll(store.addFeatures(collection));
-                    
-                    //fire post insert event
-                    SimpleFeatureCollection features = store.getFeatures(filterFactory.id(new HashSet<FeatureId>(fids)));
-                    event = new TransactionEvent(TransactionEventType.POST_INSERT, request, elementName, features, insert );
-                    listener.dataStoreChange( event );
+            // if we really need to, make sure we are inserting coordinates that do
+            // match the CRS area of validity
+            if(getInfo().isCiteCompliant()) {
+                checkFeatureCoordinatesRange(collection);
+            }
+            
+            // reprojection
+            final GeometryDescriptor defaultGeometry = store.getSchema().getGeometryDescriptor();
+            if(defaultGeometry != null) {
+                CoordinateReferenceSystem target = defaultGeometry.getCoordinateReferenceSystem();
+                if (target != null) {
+                    collection = new ReprojectingFeatureCollection(collection, target);
                 }
             }
+            
+            // Need to use the namespace here for the
+            // lookup, due to our weird
+            // prefixed internal typenames. see
+            // http://jira.codehaus.org/secure/ViewIssue.jspa?key=GEOS-143
+
+            // Once we get our datastores making features
+            // with the correct namespaces
+            // we can do something like this:
+            // FeatureTypeInfo typeInfo =
+            // catalog.getFeatureTypeInfo(schema.getTypeName(),
+            // schema.getNamespace());
+            // until then (when geos-144 is resolved) we're
+            // stuck with:
+            // QName qName = (QName) typeNames.get( i );
+            // FeatureTypeInfo typeInfo =
+            // catalog.featureType( qName.getPrefix(),
+            // qName.getLocalPart() );
+
+            // this is possible with the insert hack above.
+            LOGGER.finer("Use featureValidation to check contents of insert");
+
+            // featureValidation(
+            // typeInfo.getDataStore().getId(), schema,
+            // collection );
+
+            //fire pre insert event
+            TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_INSERT,
+                    request, elementName, collection);
+            event.setSource( insert );
+            
+            listener.dataStoreChange( event );
+            List<FeatureId> fids = store.addFeatures(collection);
+            schema2fids.put(schema, new LinkedList<FeatureId>(fids));
+            
+            //fire post insert event, only for the features in this batch
+            SimpleFeatureCollection features = store.getFeatures(filterFactory.id(new HashSet<FeatureId>(fids)));
+            event = new TransactionEvent(TransactionEventType.POST_INSERT, request, elementName, features, insert );
+            listener.dataStoreChange( event );
+        }
 
-            // report back fids, we need to keep the same order the
-            // fids were reported in the original feature collection
-            InsertedFeatureType insertedFeature = null;
-
-            for (Iterator f = insert.getFeature().iterator(); f.hasNext();) {
-                SimpleFeature feature = (SimpleFeature) f.next();
-                SimpleFeatureType schema = feature.getFeatureType();
-
-                // get the next fid
-                LinkedList fids = (LinkedList) schema2fids.get(schema.getTypeName());
-                String fid = ((FeatureId) fids.removeFirst()).getID();
-
-                insertedFeature = WfsFactory.eINSTANCE.createInsertedFeatureType();
-                insertedFeature.setHandle(insert.getHandle());
-                insertedFeature.getFeatureId().add(filterFactory.featureId(fid));
+        // report back fids, we need to keep the same order the
+        // fids were reported in the original feature collection
+        for (SimpleFeatureType schema : order) {
+            // get the next fid
+            String fid = schema2fids.get(schema).removeFirst().getID();
 
-                response.getInsertResults().getFeature().add(insertedFeature);
-            }
+            InsertedFeatureType insertedFeature = WfsFactory.eINSTANCE.createInsertedFeatureType();
+            insertedFeature.setHandle(insert.getHandle());
+            insertedFeature.getFeatureId().add(filterFactory.featureId(fid));
 
-            // update the insert counter
-            inserted += insert.getFeature().size();
-        } catch (Exception e) {
-            String msg = "Error performing insert: " + e.getMessage();
-            throw new WFSTransactionException(msg, e, insert.getHandle());
+            response.getInsertResults().getFeature().add(insertedFeature);
         }
 
-        // update transaction summary
-        response.getTransactionSummary().setTotalInserted(BigInteger.valueOf(inserted));
+        int count = order.size();
+        schema2features.clear();
+        order.clear();
+        return count;
     }
 
     
@@ -252,6 +335,12 @@ public class InsertElementHandler extends AbstractTransactionElementHandler {
     @SuppressWarnings("unchecked")
     public QName[] getTypeNames(EObject element) throws WFSTransactionException {
         InsertElementType insert = (InsertElementType) element;
+        if (insert instanceof StreamingInsertElementType) {
+            // the features have not been parsed yet, use the names gathered while splitting
+            Set<QName> typeNames = ((StreamingInsertElementType) insert).getTypeNames();
+            return (QName[]) typeNames.toArray(new QName[typeNames.size()]);
+        }
+        
         Set<QName> typeNames = new HashSet<QName>();
 
         if (!insert.getFeature().isEmpty()) {
@@ -35,6 +35,7 @@ import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.xml.StreamingInsertElementType;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.FeatureStore;
@@ -112,6 +113,14 @@ public class Transaction {
         } catch (Throwable t) {
             abort(request); // release any locks
             throw new WFSException(t);
+        } finally {
+            // get rid of the temporary files backing the streaming inserts, if any
+            for (Iterator it = request.getInsert().iterator(); it.hasNext();) {
+                Object insert = it.next();
+                if (insert instanceof StreamingInsertElementType) {
+                    ((StreamingInsertElementType) insert).dispose();
+                }
+            }
         }
     }
 
@@ -26,6 +26,7 @@ import org.geoserver.ows.WorkspaceQualifyingCallback;
 import org.geoserver.ows.util.OwsUtils;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.Service;
+import org.geoserver.wfs.xml.StreamingInsertElementType;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.Name;
 
@@ -98,6 +99,17 @@ public class WFSWorkspaceQualifier extends WorkspaceQualifyingCallback {
             for (Iterator i = t.getInsert().iterator(); i.hasNext();) {
                 InsertElementType in = (InsertElementType) i.next();
                 
+                //streaming inserts have not been parsed yet, check the gathered type names
+                if (in instanceof StreamingInsertElementType) {
+                    for (QName name : ((StreamingInsertElementType) in).getTypeNames()) {
+                        if (name.getNamespaceURI() != null && !"".equals(name.getNamespaceURI())
+                                && !ns.getURI().equals(name.getNamespaceURI())) {
+                            throw new WFSException("No such feature type " + name);
+                        }
+                    }
+                    continue;
+                }
+                
                 //in the insert case the objects are gt feature types which are not mutable
                 // so we just check them and throw an exception if a name does not match
                 for (Iterator j = in.getFeature().iterator(); j.hasNext(); ) {
@@ -8,9 +8,14 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.text.NumberFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.namespace.QName;
 
@@ -31,10 +36,26 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTWriter;
+
 /**
  * WFS output format for a GetFeature operation in which the outputFormat is "csv".
  * The refence specification for this format can be found in this RFC:
  * http://www.rfc-editor.org/rfc/rfc4180.txt
+ * <p>
+ * The output is streamed feature by feature with a constant memory footprint: values are
+ * escaped in a single scan, numbers are formatted into a reusable buffer and geometries are
+ * written straight to the output. The following format options are supported:
+ * <ul>
+ * <li><code>GEOMETRY</code>: <code>WKT</code> (default) or <code>WKB</code>, the latter
+ * encoding the geometries as hexadecimal well known binary</li>
+ * <li><code>GZIP</code>: if <code>true</code> the output is compressed on the fly and returned
+ * as a <code>.csv.gz</code> attachment</li>
+ * </ul>
+ * </p>
  *
  * @author Justin Deoliveira, OpenGeo, jdeolive@opengeo.org
  * @author Sebastian Benthall, OpenGeo, seb@opengeo.org
@@ -42,6 +63,25 @@ import org.opengis.feature.type.AttributeDescriptor;
  */
 public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
+    static final String GEOMETRY_OPTION = "GEOMETRY";
+
+    static final String GZIP_OPTION = "GZIP";
+
+    static final String GZIP_MIME_TYPE = "application/x-gzip";
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Powers of ten used to round decimal numbers without going through {@link NumberFormat}
+     */
+    static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
     public CSVOutputFormat(GeoServer gs) {
         //this is the name of your output format, it is the string
         // that will be used when requesting the format in a 
@@ -51,11 +91,14 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     }
     
     /**
-     * @return "text/csv";
+     * @return "text/csv", or "application/x-gzip" if compression has been requested
      */
     @Override
     public String getMimeType(Object value, Operation operation)
                throws ServiceException {
+        if (isGzipRequested(operation)) {
+            return GZIP_MIME_TYPE;
+        }
         // won't allow browsers to open it directly, but that's the mime
         // state in the RFC
         return "text/csv";
@@ -70,8 +113,9 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     public String getAttachmentFileName(Object value, Operation operation) {
         GetFeatureType request = (GetFeatureType) OwsUtils.parameter(operation.getParameters(),
                 GetFeatureType.class);
-        return ((QName) ((QueryType) request.getQuery().get(0)).getTypeName().get(0))
+        String name = ((QName) ((QueryType) request.getQuery().get(0)).getTypeName().get(0))
             .getLocalPart() + ".csv";
+        return isGzipRequested(operation) ? name + ".gz" : name;
     }
     
     /**
@@ -81,10 +125,14 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     protected void write(FeatureCollectionType featureCollection,
             OutputStream output, Operation getFeature) throws IOException,
             ServiceException {
-    	   //write out content here
+        GZIPOutputStream gzip = null;
+        if (isGzipRequested(getFeature)) {
+            gzip = new GZIPOutputStream(output, BUFFER_SIZE);
+            output = gzip;
+        }
         
         //create a writer
-        BufferedWriter w = new BufferedWriter( new OutputStreamWriter( output ) );
+        Writer w = new BufferedWriter( new OutputStreamWriter( output ), BUFFER_SIZE );
                    
         //get the feature collection
         SimpleFeatureCollection fc = 
@@ -95,19 +143,19 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         w.write("FID,");
         for ( int i = 0; i < ft.getAttributeCount(); i++ ) {
             AttributeDescriptor ad = ft.getDescriptor( i );
-            w.write( prepCSVField(ad.getLocalName()) );
+            writeField(w, ad.getLocalName());
                
             if ( i < ft.getAttributeCount()-1 ) {
-               w.write( "," );
+               w.write( ',' );
             }
         }
         // by RFC each line is terminated by CRLF
         w.write( "\r\n" );
         
-        // prepare the formatter for numbers
-        NumberFormat coordFormatter = NumberFormat.getInstance(Locale.US);
-        coordFormatter.setMaximumFractionDigits(getInfo().getGeoServer().getGlobal().getNumDecimals());
-        coordFormatter.setGroupingUsed(false);
+        // prepare the value writer, shared by all the features
+        ValueWriter values = new ValueWriter(w, getInfo().getGeoServer().getGlobal()
+                .getNumDecimals(), "WKB".equalsIgnoreCase(getFormatOption(getFeature,
+                GEOMETRY_OPTION)));
            
         //write out the features
         SimpleFeatureIterator i = fc.features();
@@ -115,33 +163,16 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
             while( i.hasNext() ) {
                 SimpleFeature f = i.next();
                 // dump fid
-                w.write(prepCSVField(f.getID()));
-                w.write(",");
+                writeField(w, f.getID());
+                w.write(',');
                 // dump attributes
                 for ( int j = 0; j < f.getAttributeCount(); j++ ) {
                     Object att = f.getAttribute( j );
                     if ( att != null ) {
-                        String value = null;
-                        if(att instanceof Number) {
-                            // don't allow scientific notation in the output, as OpenOffice won't 
-                            // recognize that as a number 
-                            value = coordFormatter.format(att);
-                        } else if(att instanceof Date) {
-                            // serialize dates in ISO format
-                            if(att instanceof java.sql.Date)
-                                value = DateUtil.serializeSqlDate((java.sql.Date) att);
-                            else if(att instanceof java.sql.Time)
-                                value = DateUtil.serializeSqlTime((java.sql.Time) att);
-                            else
-                                value = DateUtil.serializeDateTime((Date) att);
-                        } else {
-                            // everything else we just "toString"
-                            value = att.toString();
-                        }
-                        w.write( prepCSVField(value) );
+                        values.write(att);
                     }
                     if ( j < f.getAttributeCount()-1 ) {
-                        w.write(",");    
+                        w.write(',');
                     }
                 }
                 // by RFC each line is terminated by CRLF
@@ -152,27 +183,56 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         }
            
         w.flush();
+        if (gzip != null) {
+            gzip.finish();
+        }
     }
     
     /*
      * The CSV "spec" explains that fields with certain properties must be
      * delimited by double quotes, and also that double quotes within fields
-     * must be escaped.  This method takes a field and returns one that
-     * obeys the CSV spec.
-     */    
-    private String prepCSVField(String field){
-    	// "embedded double-quote characters must be represented by a pair of double-quote characters."
-    	String mod = field.replaceAll("\"", "\"\"");
-    	
-    	/*
-    	 * Enclose string in double quotes if it contains double quotes, commas, or newlines
-    	 */
-    	if(mod.matches(".*(\"|\n|,).*")){
-    		mod = "\"" + mod + "\"";
-    	}
-    	
-		return mod;
-    	
+     * must be escaped. This method writes out a field obeying the CSV spec,
+     * scanning it only once and without creating intermediate strings.
+     */
+    static void writeField(Writer w, String field) throws IOException {
+        final int length = field.length();
+        boolean quote = false;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == '"' || c == ',' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            w.write(field);
+            return;
+        }
+
+        // "embedded double-quote characters must be represented by a pair of double-quote characters."
+        w.write('"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (field.charAt(i) == '"') {
+                w.write(field, start, i - start + 1);
+                w.write('"');
+                start = i + 1;
+            }
+        }
+        w.write(field, start, length - start);
+        w.write('"');
+    }
+    
+    boolean isGzipRequested(Operation operation) {
+        return Boolean.valueOf(getFormatOption(operation, GZIP_OPTION));
+    }
+    
+    String getFormatOption(Operation operation, String name) {
+        GetFeatureType request = (GetFeatureType) OwsUtils.parameter(operation.getParameters(),
+                GetFeatureType.class);
+        if (request == null) {
+            return null;
+        }
+        Map options = request.getFormatOptions();
+        Object value = options != null ? options.get(name) : null;
+        return value != null ? value.toString() : null;
     }
     
     @Override
@@ -180,4 +240,161 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
     	return "CSV";
     }
 
+    /**
+     * Writes out the attribute values, reusing the formatters and buffers across the features
+     */
+    static class ValueWriter {
+        Writer w;
+
+        int numDecimals;
+
+        boolean wkb;
+
+        NumberFormat coordFormatter;
+
+        WKTWriter wktWriter;
+
+        WKBWriter wkbWriter;
+
+        WKBWriter wkbWriter3D;
+
+        char[] buffer = new char[64];
+
+        ValueWriter(Writer w, int numDecimals, boolean wkb) {
+            this.w = w;
+            this.numDecimals = numDecimals;
+            this.wkb = wkb;
+
+            // used for the numbers we cannot format on our own
+            coordFormatter = NumberFormat.getInstance(Locale.US);
+            coordFormatter.setMaximumFractionDigits(numDecimals);
+            coordFormatter.setGroupingUsed(false);
+        }
+
+        void write(Object att) throws IOException {
+            if (att instanceof Geometry) {
+                writeGeometry((Geometry) att);
+            } else if (att instanceof Number) {
+                // don't allow scientific notation in the output, as OpenOffice won't 
+                // recognize that as a number 
+                writeNumber((Number) att);
+            } else if (att instanceof Date) {
+                // serialize dates in ISO format
+                if (att instanceof java.sql.Date)
+                    w.write(DateUtil.serializeSqlDate((java.sql.Date) att));
+                else if (att instanceof java.sql.Time)
+                    w.write(DateUtil.serializeSqlTime((java.sql.Time) att));
+                else
+                    w.write(DateUtil.serializeDateTime((Date) att));
+            } else {
+                // everything else we just "toString"
+                writeField(w, att.toString());
+            }
+        }
+
+        void writeGeometry(Geometry geometry) throws IOException {
+            if (wkb) {
+                // hex digits need no escaping
+                byte[] bytes = getWKBWriter(geometry).write(geometry);
+                for (int i = 0; i < bytes.length; i++) {
+                    w.write(toHexDigit((bytes[i] >> 4) & 0x0F));
+                    w.write(toHexDigit(bytes[i] & 0x0F));
+                }
+            } else {
+                // the WKT contains commas, but never quotes or newlines
+                if (wktWriter == null) {
+                    wktWriter = new WKTWriter();
+                }
+                w.write('"');
+                wktWriter.write(geometry, w);
+                w.write('"');
+            }
+        }
+
+        WKBWriter getWKBWriter(Geometry geometry) {
+            Coordinate c = geometry.getCoordinate();
+            if (c != null && !Double.isNaN(c.z)) {
+                if (wkbWriter3D == null) {
+                    wkbWriter3D = new WKBWriter(3);
+                }
+                return wkbWriter3D;
+            } else {
+                if (wkbWriter == null) {
+                    wkbWriter = new WKBWriter(2);
+                }
+                return wkbWriter;
+            }
+        }
+
+        char toHexDigit(int n) {
+            return (char) (n < 10 ? '0' + n : 'A' + n - 10);
+        }
+
+        void writeNumber(Number number) throws IOException {
+            if (number instanceof Integer || number instanceof Long || number instanceof Short
+                    || number instanceof Byte) {
+                writeLong(number.longValue(), 0);
+            } else if ((number instanceof Double || number instanceof Float)
+                    && numDecimals < POWERS_OF_TEN.length) {
+                double value = number.doubleValue();
+                long scale = POWERS_OF_TEN[numDecimals];
+                // make sure the scaled value fits in a long, otherwise fall back on the formatter
+                if (!Double.isNaN(value) && Math.abs(value) < Long.MAX_VALUE / (double) scale) {
+                    writeLong(Math.round(value * scale), numDecimals);
+                } else {
+                    w.write(coordFormatter.format(number));
+                }
+            } else if (number instanceof BigDecimal || number instanceof BigInteger) {
+                w.write(coordFormatter.format(number));
+            } else {
+                w.write(coordFormatter.format(number.doubleValue()));
+            }
+        }
+
+        /**
+         * Writes value / 10^decimals, omitting the trailing zeroes of the fractional part
+         */
+        void writeLong(long value, int decimals) throws IOException {
+            if (value == 0) {
+                w.write('0');
+                return;
+            }
+            if (value == Long.MIN_VALUE) {
+                // cannot be negated, rare enough to go the slow way
+                w.write(coordFormatter.format(decimals == 0 ? value : value
+                        / (double) POWERS_OF_TEN[decimals]));
+                return;
+            }
+            boolean negative = value < 0;
+            if (negative) {
+                value = -value;
+            }
+
+            // fill the buffer backwards
+            int pos = buffer.length;
+            int digits = 0;
+            boolean significant = false;
+            while (value > 0 || digits <= decimals) {
+                int digit = (int) (value % 10);
+                value /= 10;
+                if (digits < decimals) {
+                    // skip the trailing zeroes of the fractional part
+                    if (digit != 0 || significant) {
+                        buffer[--pos] = (char) ('0' + digit);
+                        significant = true;
+                    }
+                } else {
+                    if (digits == decimals && significant) {
+                        buffer[--pos] = '.';
+                    }
+                    buffer[--pos] = (char) ('0' + digit);
+                }
+                digits++;
+            }
+            if (negative) {
+                buffer[--pos] = '-';
+            }
+            w.write(buffer, pos, buffer.length - pos);
+        }
+    }
 }
@@ -0,0 +1,282 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListener;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.LoggingInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.ows.LocalLayer;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.GeoServerExtensions;
+
+/**
+ * Keeps the encoded DescribeFeatureType schemas around so that they are not rebuilt at each
+ * request (GML3 GetFeature responses point to DescribeFeatureType in their xsi:schemaLocation,
+ * so clients validating the output hit it very often).
+ * <p>
+ * The schemas are cached in their serialized form, as the {@link org.eclipse.xsd.XSDSchema}
+ * objects are disposed at the end of each request by the {@link SchemaCleanerCallback}. Entries
+ * are dropped when one of the feature types they describe is modified or removed, the whole cache
+ * is cleared on namespace, workspace and store changes, on global and service configuration
+ * changes, and on reload.
+ * </p>
+ * <p>
+ * Building a schema happens outside of the cache lock, so every eviction bumps a generation
+ * counter: a schema is only cached if no eviction happened since the {@link #get(Key)} call that
+ * missed it, as it might have been built from the old configuration.
+ * </p>
+ * <p>
+ * The cache holds at most <code>WFS_SCHEMA_CACHE_SIZE</code> schemas (100 by default), setting
+ * the variable to 0 disables it.
+ * </p>
+ */
+public class FeatureTypeSchemaCache implements CatalogListener, ConfigurationListener {
+
+    static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    static final int DEFAULT_SIZE = 100;
+
+    int maxSize;
+
+    Map<Key, byte[]> schemas;
+
+    /**
+     * Incremented at each eviction, guarded by the cache lock
+     */
+    long generation;
+
+    public FeatureTypeSchemaCache(GeoServer geoServer) {
+        this.maxSize = lookupSize();
+        this.schemas = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > maxSize;
+            }
+        };
+
+        geoServer.getCatalog().addListener(this);
+        geoServer.addListener(this);
+    }
+
+    static int lookupSize() {
+        String value = GeoServerExtensions.getProperty("WFS_SCHEMA_CACHE_SIZE");
+        if (value != null) {
+            try {
+                return Math.max(0, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid WFS_SCHEMA_CACHE_SIZE value " + value
+                        + ", using the default " + DEFAULT_SIZE);
+            }
+        }
+        return DEFAULT_SIZE;
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Builds the cache key for the specified schema in the context of the current request
+     */
+    public Key key(String format, FeatureTypeInfo[] featureTypes, String baseUrl, String charset) {
+        String[] ids = new String[featureTypes.length];
+        for (int i = 0; i < featureTypes.length; i++) {
+            ids[i] = featureTypes[i].getId();
+        }
+        // the local workspace and layer affect the urls generated in the schema
+        String workspace = LocalWorkspace.get() != null ? LocalWorkspace.get().getName() : null;
+        String layer = LocalLayer.get() != null ? LocalLayer.get().getName() : null;
+        return new Key(format, ids, baseUrl, charset, workspace, layer);
+    }
+
+    /**
+     * Returns the cached schema, or null if not found. The key remembers the cache generation,
+     * for the following {@link #put(Key, byte[])}
+     */
+    public synchronized byte[] get(Key key) {
+        key.generation = generation;
+        return schemas.get(key);
+    }
+
+    /**
+     * Caches the serialized schema, unless the cache has been evicted since the key was looked
+     * up with {@link #get(Key)}
+     */
+    public synchronized void put(Key key, byte[] schema) {
+        if (isEnabled() && key.generation == generation) {
+            schemas.put(key, schema);
+        }
+    }
+
+    /**
+     * Returns the number of cached schemas
+     */
+    public synchronized int size() {
+        return schemas.size();
+    }
+
+    /**
+     * Removes all the cached schemas
+     */
+    public synchronized void clear() {
+        generation++;
+        schemas.clear();
+    }
+
+    /**
+     * Removes the cached schemas describing the specified feature type
+     */
+    synchronized void evict(String featureTypeId) {
+        generation++;
+        for (Iterator<Key> it = schemas.keySet().iterator(); it.hasNext();) {
+            if (Arrays.asList(it.next().featureTypeIds).contains(featureTypeId)) {
+                it.remove();
+            }
+        }
+    }
+
+    void handleChange(CatalogInfo source) {
+        if (source instanceof FeatureTypeInfo) {
+            evict(((FeatureTypeInfo) source).getId());
+        } else if (!(source instanceof LayerInfo || source instanceof StyleInfo)) {
+            // namespaces, workspaces and stores can change the feature types as a whole
+            clear();
+        }
+    }
+
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // a new feature type cannot be part of a cached schema
+    }
+
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        handleChange(event.getSource());
+    }
+
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // we use the post event
+    }
+
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        handleChange(event.getSource());
+    }
+
+    public void reloaded() {
+        clear();
+    }
+
+    public void handleGlobalChange(GeoServerInfo global, List<String> propertyNames,
+            List<Object> oldValues, List<Object> newValues) {
+        // we use the post event
+    }
+
+    public void handlePostGlobalChange(GeoServerInfo global) {
+        // charset and proxy base url are used in the schemas
+        clear();
+    }
+
+    public void handleLoggingChange(LoggingInfo logging, List<String> propertyNames,
+            List<Object> oldValues, List<Object> newValues) {
+        // logging does not affect the schemas
+    }
+
+    public void handlePostLoggingChange(LoggingInfo logging) {
+        // logging does not affect the schemas
+    }
+
+    public void handleServiceChange(ServiceInfo service, List<String> propertyNames,
+            List<Object> oldValues, List<Object> newValues) {
+        // we use the post event
+    }
+
+    public void handlePostServiceChange(ServiceInfo service) {
+        // the schema base url and gml settings are part of the wfs configuration
+        clear();
+    }
+
+    /**
+     * Identifies a cached schema
+     */
+    public static class Key {
+        String format;
+
+        String[] featureTypeIds;
+
+        String baseUrl;
+
+        String charset;
+
+        String workspace;
+
+        String layer;
+
+        /**
+         * The cache generation at lookup time, not part of the key identity
+         */
+        long generation = -1;
+
+        Key(String format, String[] featureTypeIds, String baseUrl, String charset,
+                String workspace, String layer) {
+            this.format = format;
+            this.featureTypeIds = featureTypeIds;
+            this.baseUrl = baseUrl;
+            this.charset = charset;
+            this.workspace = workspace;
+            this.layer = layer;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Arrays.hashCode(featureTypeIds);
+            result = 31 * result + hash(format);
+            result = 31 * result + hash(baseUrl);
+            result = 31 * result + hash(charset);
+            result = 31 * result + hash(workspace);
+            result = 31 * result + hash(layer);
+            return result;
+        }
+
+        int hash(Object o) {
+            return o == null ? 0 : o.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Arrays.equals(featureTypeIds, other.featureTypeIds)
+                    && eq(format, other.format) && eq(baseUrl, other.baseUrl)
+                    && eq(charset, other.charset) && eq(workspace, other.workspace)
+                    && eq(layer, other.layer);
+        }
+
+        boolean eq(Object o1, Object o2) {
+            return o1 == null ? o2 == null : o1.equals(o2);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.InsertElementType;
+import net.opengis.wfs.impl.InsertElementTypeImpl;
+
+import org.geotools.xml.Configuration;
+import org.geotools.xml.StreamingParser;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * An Insert element whose features have not been parsed, but are kept on disk and parsed one at a
+ * time while the insert is being executed (see {@link StreamingTransactionSplitter}).
+ * <p>
+ * The {@link #getFeature()} list is always empty, code that needs to access the features has to
+ * check for this class and use {@link #features()} instead. In particular the features are not
+ * available to the {@link org.geoserver.wfs.TransactionPlugin#beforeTransaction} hooks, the
+ * {@link org.geoserver.wfs.TransactionListener}s receive them in the
+ * {@link org.geoserver.wfs.TransactionEventType#PRE_INSERT} and
+ * {@link org.geoserver.wfs.TransactionEventType#POST_INSERT} events, one batch at a time.
+ * </p>
+ */
+public class StreamingInsertElementType extends InsertElementTypeImpl {
+
+    static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    File file;
+
+    Set<QName> typeNames;
+
+    Configuration configuration;
+
+    StreamingInsertElementType(InsertElementType insert, File file, Set<QName> typeNames,
+            Configuration configuration) {
+        this.file = file;
+        this.typeNames = typeNames;
+        this.configuration = configuration;
+
+        setHandle(insert.getHandle());
+        setIdgen(insert.getIdgen());
+        setInputFormat(insert.getInputFormat());
+        setSrsName(insert.getSrsName());
+    }
+
+    /**
+     * The names of the feature types contained in this insert
+     */
+    public Set<QName> getTypeNames() {
+        return typeNames;
+    }
+
+    /**
+     * Opens a new stream over the insert features, the caller must close it when done
+     */
+    public FeatureStream features() throws IOException {
+        return new FeatureStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    /**
+     * Removes the temporary file backing this insert
+     */
+    public void dispose() {
+        if (file.exists() && !file.delete()) {
+            LOGGER.log(Level.WARNING, "Could not remove temporary insert file " + file);
+        }
+    }
+
+    /**
+     * Iterator parsing the features out of the backing file one at a time
+     */
+    public class FeatureStream implements Iterator<SimpleFeature> {
+        InputStream input;
+
+        StreamingParser parser;
+
+        SimpleFeature next;
+
+        FeatureStream(InputStream input) throws IOException {
+            this.input = input;
+            try {
+                this.parser = new StreamingParser(configuration, input, SimpleFeature.class);
+            } catch (Exception e) {
+                input.close();
+                throw (IOException) new IOException("Failed to parse the insert features")
+                        .initCause(e);
+            }
+        }
+
+        public boolean hasNext() {
+            if (next == null && parser != null) {
+                next = (SimpleFeature) parser.parse();
+                if (next == null) {
+                    // end of the document
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            parser = null;
+            try {
+                input.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close the insert features file", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+
+/**
+ * Removes the temporary files of the streaming transaction inserts when the request ends, however
+ * the request went
+ */
+public class StreamingTransactionCleaner extends AbstractDispatcherCallback {
+
+    static final ThreadLocal<List<StreamingTransactionSplitter>> splitters = 
+        new ThreadLocal<List<StreamingTransactionSplitter>>();
+
+    /**
+     * Schedules the splitter files for removal at the end of the request
+     */
+    public static void schedule(StreamingTransactionSplitter splitter) {
+        List<StreamingTransactionSplitter> list = splitters.get();
+        if (list == null) {
+            list = new ArrayList<StreamingTransactionSplitter>();
+            splitters.set(list);
+        }
+        list.add(splitter);
+    }
+
+    @Override
+    public void finished(Request request) {
+        List<StreamingTransactionSplitter> list = splitters.get();
+        if (list != null) {
+            splitters.remove();
+            for (StreamingTransactionSplitter splitter : list) {
+                splitter.dispose();
+            }
+        }
+    }
+}
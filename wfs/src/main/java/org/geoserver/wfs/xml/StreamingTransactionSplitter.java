@@ -0,0 +1,265 @@
+/* Copyright (c) 2001 - 2011 TOPP - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, availible at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.InsertElementType;
+import net.opengis.wfs.TransactionType;
+
+import org.eclipse.emf.ecore.util.FeatureMap;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.xml.Configuration;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+import org.xmlpull.v1.XmlSerializer;
+
+/**
+ * Splits a WFS Transaction document so that the features contained in the Insert elements are
+ * never fully loaded in memory.
+ * <p>
+ * The document is scanned once with a pull parser: everything but the contents of the Insert
+ * elements is copied into a (small) skeleton document that can be parsed by the usual transaction
+ * parser, while the features of each Insert are copied into a temporary file, wrapped in a copy of
+ * the original Insert element (so that attributes such as srsName keep on applying) declaring all
+ * the namespaces that were in scope. Once the skeleton has been parsed,
+ * {@link #attach(TransactionType, Configuration)} replaces the empty inserts with
+ * {@link StreamingInsertElementType} instances that parse the features one at a time.
+ * </p>
+ * <p>
+ * The streaming mode is enabled by setting the <code>WFS_STREAMING_TRANSACTION</code> system
+ * variable to true, the variable is checked for each request. Strict requests are never split,
+ * since the validating parser has to see the features.
+ * </p>
+ * <p>
+ * Since the features are parsed while being inserted, the {@link InsertElementType#getFeature()}
+ * list of the streaming inserts is empty: {@link org.geoserver.wfs.TransactionPlugin}s looking
+ * at the features before the transaction runs will not find them, while
+ * {@link org.geoserver.wfs.TransactionListener}s get them one batch at a time in the insert
+ * events.
+ * </p>
+ */
+public class StreamingTransactionSplitter {
+
+    static final Logger LOGGER = org.geotools.util.logging.Logging.getLogger("org.geoserver.wfs");
+
+    static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
+    static final String INSERT = "Insert";
+
+    /**
+     * The same namespace is used by WFS 1.0 and 1.1
+     */
+    static final String WFS = "http://www.opengis.net/wfs";
+
+    /**
+     * Returns true if the streaming transaction mode has been enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.valueOf(GeoServerExtensions.getProperty("WFS_STREAMING_TRANSACTION"));
+    }
+
+    List<File> insertFiles = new ArrayList<File>();
+
+    List<Set<QName>> insertTypeNames = new ArrayList<Set<QName>>();
+
+    /**
+     * Scans the transaction document, dumps the Insert contents on disk, and returns a reader over
+     * the skeleton document
+     */
+    public Reader split(Reader input) throws IOException, XmlPullParserException {
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+
+        XmlPullParser parser = factory.newPullParser();
+        parser.setInput(input);
+
+        StringWriter skeleton = new StringWriter();
+        XmlSerializer serializer = factory.newSerializer();
+        serializer.setOutput(skeleton);
+        serializer.startDocument(null, null);
+
+        Map<String, String> rootXsiAttributes = new LinkedHashMap<String, String>();
+        XmlSerializer insertSerializer = null;
+        Writer insertWriter = null;
+        Set<QName> typeNames = null;
+        int insertDepth = -1;
+
+        boolean completed = false;
+        try {
+            int event = parser.next();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    if (parser.getDepth() == 1) {
+                        for (int i = 0; i < parser.getAttributeCount(); i++) {
+                            if (XSI.equals(parser.getAttributeNamespace(i))) {
+                                rootXsiAttributes.put(parser.getAttributeName(i),
+                                        parser.getAttributeValue(i));
+                            }
+                        }
+                    }
+
+                    if (insertDepth == -1 && isInsert(parser)) {
+                        // leave an empty insert in the skeleton, it will be replaced later
+                        copyStartTag(parser, serializer, null);
+                        serializer.endTag(parser.getNamespace(), parser.getName());
+
+                        // and dump the features in a separate document
+                        File file = File.createTempFile("wfs-insert", ".xml");
+                        insertFiles.add(file);
+                        typeNames = new LinkedHashSet<QName>();
+                        insertTypeNames.add(typeNames);
+                        insertWriter = new OutputStreamWriter(new BufferedOutputStream(
+                                new FileOutputStream(file)), "UTF-8");
+                        insertSerializer = factory.newSerializer();
+                        insertSerializer.setOutput(insertWriter);
+                        insertSerializer.startDocument("UTF-8", null);
+                        copyStartTag(parser, insertSerializer, rootXsiAttributes);
+                        insertDepth = parser.getDepth();
+                    } else if (insertDepth != -1) {
+                        if (parser.getDepth() == insertDepth + 1) {
+                            typeNames.add(new QName(parser.getNamespace(), parser.getName()));
+                        }
+                        copyStartTag(parser, insertSerializer, null);
+                    } else {
+                        copyStartTag(parser, serializer, null);
+                    }
+                } else if (event == XmlPullParser.END_TAG) {
+                    if (insertDepth != -1) {
+                        insertSerializer.endTag(parser.getNamespace(), parser.getName());
+                        if (parser.getDepth() == insertDepth) {
+                            insertSerializer.endDocument();
+                            insertWriter.close();
+                            insertWriter = null;
+                            insertDepth = -1;
+                        }
+                    } else {
+                        serializer.endTag(parser.getNamespace(), parser.getName());
+                    }
+                } else if (event == XmlPullParser.TEXT) {
+                    if (insertDepth != -1) {
+                        insertSerializer.text(parser.getText());
+                    } else {
+                        serializer.text(parser.getText());
+                    }
+                }
+
+                event = parser.next();
+            }
+            serializer.endDocument();
+            completed = true;
+        } finally {
+            parser.setInput(null);
+            if (insertWriter != null) {
+                insertWriter.close();
+            }
+            if (!completed) {
+                dispose();
+            }
+        }
+
+        return new StringReader(skeleton.toString());
+    }
+
+    /**
+     * Replaces the empty inserts parsed from the skeleton document with their streaming
+     * equivalents
+     */
+    public void attach(TransactionType transaction, Configuration configuration) {
+        FeatureMap group = transaction.getGroup();
+        int insertIdx = 0;
+        for (int i = 0; i < group.size(); i++) {
+            Object value = group.getValue(i);
+            if (value instanceof InsertElementType) {
+                if (insertIdx >= insertFiles.size()) {
+                    // should not happen, the skeleton contains exactly the inserts we found
+                    throw new IllegalStateException("Found more inserts in the parsed "
+                            + "transaction than in the original document");
+                }
+                StreamingInsertElementType streaming = new StreamingInsertElementType(
+                        (InsertElementType) value, insertFiles.get(insertIdx),
+                        insertTypeNames.get(insertIdx), configuration);
+                group.setValue(i, streaming);
+                insertIdx++;
+            }
+        }
+    }
+
+    /**
+     * Removes all the temporary files, called by {@link StreamingTransactionCleaner} at the end of
+     * the request, or earlier if the skeleton could not be parsed
+     */
+    public void dispose() {
+        for (File file : insertFiles) {
+            if (file.exists() && !file.delete()) {
+                LOGGER.log(Level.WARNING, "Could not remove temporary insert file " + file);
+            }
+        }
+    }
+
+    boolean isInsert(XmlPullParser parser) {
+        // inserts are direct children of the root Transaction element
+        return parser.getDepth() == 2 && INSERT.equals(parser.getName())
+                && WFS.equals(parser.getNamespace());
+    }
+
+    /**
+     * Copies the current start tag into the serializer. If xsiAttributes is not null, the tag is
+     * going to be the root of a new document, so all the namespaces in scope will be declared,
+     * along with the xsi attributes
+     */
+    void copyStartTag(XmlPullParser parser, XmlSerializer serializer,
+            Map<String, String> xsiAttributes) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        int start = xsiAttributes != null ? 0 : parser.getNamespaceCount(depth - 1);
+        int end = parser.getNamespaceCount(depth);
+
+        // collect the declarations, inner declarations override outer ones
+        Map<String, String> namespaces = new LinkedHashMap<String, String>();
+        for (int i = start; i < end; i++) {
+            String prefix = parser.getNamespacePrefix(i);
+            namespaces.put(prefix == null ? "" : prefix, parser.getNamespaceUri(i));
+        }
+        if (xsiAttributes != null && !xsiAttributes.isEmpty() && !namespaces.containsValue(XSI)) {
+            namespaces.put("xsi", XSI);
+        }
+        for (Map.Entry<String, String> ns : namespaces.entrySet()) {
+            serializer.setPrefix(ns.getKey(), ns.getValue());
+        }
+
+        serializer.startTag(parser.getNamespace(), parser.getName());
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            serializer.attribute(parser.getAttributeNamespace(i), parser.getAttributeName(i),
+                    parser.getAttributeValue(i));
+        }
+        if (xsiAttributes != null) {
+            for (Map.Entry<String, String> att : xsiAttributes.entrySet()) {
+                if (parser.getAttributeValue(XSI, att.getKey()) == null) {
+                    serializer.attribute(XSI, att.getKey(), att.getValue());
+                }
+            }
+        }
+    }
+}
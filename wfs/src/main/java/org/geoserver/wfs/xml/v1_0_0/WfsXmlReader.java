@@ -11,10 +11,14 @@ import java.util.Map;
 
 import javax.xml.namespace.QName;
 
+import net.opengis.wfs.TransactionType;
+
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.NamespaceInfo;
 import org.geoserver.ows.XmlRequestReader;
 import org.geoserver.wfs.WFSException;
+import org.geoserver.wfs.xml.StreamingTransactionCleaner;
+import org.geoserver.wfs.xml.StreamingTransactionSplitter;
 import org.geotools.util.Version;
 import org.geotools.xml.Configuration;
 import org.geotools.xml.Parser;
@@ -68,8 +72,34 @@ public class WfsXmlReader extends XmlRequestReader {
         //set validation based on strict or not
         parser.setValidating(strict.booleanValue());
         
+        //in streaming mode keep the insert features out of the parsed request, unless they
+        //have to be validated along with the rest of it
+        StreamingTransactionSplitter splitter = null;
+        if ("Transaction".equalsIgnoreCase(getElement().getLocalPart()) 
+                && !strict.booleanValue() && StreamingTransactionSplitter.isEnabled()) {
+            splitter = new StreamingTransactionSplitter();
+            // whatever happens to the transaction the files go away with the request
+            StreamingTransactionCleaner.schedule(splitter);
+            reader = splitter.split(reader);
+        }
+        
         //parse
-        Object parsed = parser.parse(reader); 
+        Object parsed;
+        try {
+            parsed = parser.parse(reader);
+        } catch (Exception e) {
+            if (splitter != null) {
+                splitter.dispose();
+            }
+            throw e;
+        }
+        if (splitter != null) {
+            if (parsed instanceof TransactionType) {
+                splitter.attach((TransactionType) parsed, configuration);
+            } else {
+                splitter.dispose();
+            }
+        }
         
         //if strict was set, check for validation errors and throw an exception 
         if (strict.booleanValue() && !parser.getValidationErrors().isEmpty()) {
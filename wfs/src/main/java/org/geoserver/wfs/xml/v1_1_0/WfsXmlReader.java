@@ -11,12 +11,16 @@ import java.util.Map;
 
 import javax.xml.namespace.QName;
 
+import net.opengis.wfs.TransactionType;
+
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.NamespaceInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.ows.XmlRequestReader;
 import org.geoserver.wfs.WFSException;
 import org.geoserver.wfs.WFSInfo;
+import org.geoserver.wfs.xml.StreamingTransactionCleaner;
+import org.geoserver.wfs.xml.StreamingTransactionSplitter;
 import org.geotools.util.Version;
 import org.geotools.xml.Configuration;
 import org.geotools.xml.Parser;
@@ -85,11 +89,37 @@ public class WfsXmlReader extends XmlRequestReader {
                 ns.getPrefix(), ns.getURI());
         }
        
+        //in streaming mode keep the insert features out of the parsed request, unless they
+        //have to be validated along with the rest of it
+        StreamingTransactionSplitter splitter = null;
+        if ("Transaction".equalsIgnoreCase(getElement().getLocalPart()) 
+                && !strict.booleanValue() && StreamingTransactionSplitter.isEnabled()) {
+            splitter = new StreamingTransactionSplitter();
+            // whatever happens to the transaction the files go away with the request
+            StreamingTransactionCleaner.schedule(splitter);
+            reader = splitter.split(reader);
+        }
+        
         //set the input source with the correct encoding
         InputSource source = new InputSource(reader);
         source.setEncoding(wfs.getGeoServer().getGlobal().getCharset());
 
-        Object parsed = parser.parse(source);
+        Object parsed;
+        try {
+            parsed = parser.parse(source);
+        } catch (Exception e) {
+            if (splitter != null) {
+                splitter.dispose();
+            }
+            throw e;
+        }
+        if (splitter != null) {
+            if (parsed instanceof TransactionType) {
+                splitter.attach((TransactionType) parsed, configuration);
+            } else {
+                splitter.dispose();
+            }
+        }
 
         //TODO: HACK, disabling validation for transaction
         if (!"Transaction".equalsIgnoreCase(getElement().getLocalPart())) {
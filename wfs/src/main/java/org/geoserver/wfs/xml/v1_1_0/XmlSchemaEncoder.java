@@ -4,6 +4,7 @@
  */
 package org.geoserver.wfs.xml.v1_1_0;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -20,6 +21,7 @@ import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSDescribeFeatureTypeOutputFormat;
 import org.geoserver.wfs.xml.FeatureTypeSchemaBuilder;
+import org.geoserver.wfs.xml.FeatureTypeSchemaCache;
 import org.geotools.xml.Schemas;
 
 
@@ -33,6 +35,9 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
     
     /** schema builder */
     FeatureTypeSchemaBuilder schemaBuilder;
+    
+    /** cache of the encoded schemas, optional */
+    FeatureTypeSchemaCache schemaCache;
 
     public XmlSchemaEncoder(String mimeType, GeoServer gs, FeatureTypeSchemaBuilder schemaBuilder) {
         super(gs, mimeType);
@@ -48,19 +53,46 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
         return getOutputFormat();
         //return "text/xml; subtype=gml/3.1.1";
     }
+    
+    public FeatureTypeSchemaCache getSchemaCache() {
+        return schemaCache;
+    }
+    
+    public void setSchemaCache(FeatureTypeSchemaCache schemaCache) {
+        this.schemaCache = schemaCache;
+    }
 
     protected void write(FeatureTypeInfo[] featureTypeInfos, OutputStream output,
         Operation describeFeatureType) throws IOException {
         
         GeoServerInfo global = gs.getGlobal();
-        //create the schema
         DescribeFeatureTypeType req = (DescribeFeatureTypeType)describeFeatureType.getParameters()[0];
+        final String encoding = global.getCharset();
+        
+        //look for a cached copy first
+        FeatureTypeSchemaCache.Key key = null;
+        if(schemaCache != null && schemaCache.isEnabled()) {
+            key = schemaCache.key(getOutputFormat(), featureTypeInfos, req.getBaseUrl(), encoding);
+            byte[] cached = schemaCache.get(key);
+            if(cached != null) {
+                output.write(cached);
+                return;
+            }
+        }
+        
+        //create the schema
         XSDSchema schema = schemaBuilder.build(featureTypeInfos, req.getBaseUrl());
     
         //serialize
         schema.updateElement();
-        final String encoding = global.getCharset();
-        XSDResourceImpl.serialize(output, schema.getElement(), encoding);
+        if(key != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            XSDResourceImpl.serialize(bytes, schema.getElement(), encoding);
+            schemaCache.put(key, bytes.toByteArray());
+            bytes.writeTo(output);
+        } else {
+            XSDResourceImpl.serialize(output, schema.getElement(), encoding);
+        }
     }
     
     public static class V20 extends XmlSchemaEncoder {
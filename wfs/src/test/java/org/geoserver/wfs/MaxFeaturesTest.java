@@ -1,5 +1,8 @@
 package org.geoserver.wfs;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import junit.framework.Test;
 
 import org.geoserver.catalog.Catalog;
@@ -111,6 +114,44 @@ public class MaxFeaturesTest extends WFSTestSupport {
         assertEquals(1, doc.getElementsByTagName("cite:BasicPolygons").getLength());
     }
     
+    public void testCombinedLocalMaxesBiggerParallel() throws Exception {
+        // fifteen has 15 features, basic polygons 3
+        FeatureTypeInfo info = getFeatureTypeInfo(MockData.FIFTEEN);
+        info.setMaxFeatures(4);
+        catalog.save( info );
+        
+        info = getFeatureTypeInfo(MockData.BASIC_POLYGONS);
+        info.setMaxFeatures(2);
+        catalog.save( info );
+        
+        // run the queries in parallel, the results must be the same as the sequential ones
+        GetFeature.QUERY_POOL = Executors.newFixedThreadPool(2);
+        GetFeature.QUERY_POOL_SIZE = 2;
+        try {
+            Document doc = getAsDOM("wfs?request=GetFeature&typename=cdf:Fifteen,cite:BasicPolygons" +
+                    "&version=1.0.0&service=wfs");
+            assertEquals("wfs:FeatureCollection", doc.getDocumentElement().getNodeName());
+    
+            assertEquals(5, doc.getElementsByTagName("gml:featureMember").getLength());
+            assertEquals(4, doc.getElementsByTagName("cdf:Fifteen").getLength());
+            assertEquals(1, doc.getElementsByTagName("cite:BasicPolygons").getLength());
+        } finally {
+            GetFeature.shutdownQueryPool();
+        }
+    }
+
+    public void testShutdownQueryPool() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        GetFeature.QUERY_POOL = pool;
+        GetFeature.QUERY_POOL_SIZE = 2;
+        
+        // the pool goes away with the service bean, as it happens on redeploy
+        ((DefaultWebFeatureService) applicationContext.getBean("wfsServiceTarget")).destroy();
+        assertTrue(pool.isTerminated());
+        assertNull(GetFeature.QUERY_POOL);
+        assertNull(GetFeature.QUERY_POOL_SIZE);
+    }
+    
     public void testCombinedLocalMaxesBiggerRequestOverride() throws Exception {
         // fifteen has 15 features, basic polygons 3
         FeatureTypeInfo info = getFeatureTypeInfo(MockData.FIFTEEN);
@@ -102,6 +102,72 @@ public class TransactionListenerTest extends WFSTestSupport {
         assertEquals(fid, inserted.getIdentifier().getID());
     }
 
+    public void testInsertBatched() throws Exception {
+        InsertElementHandler handler = (InsertElementHandler) applicationContext.getBean("wfsInsertElementHandler");
+        int batchSize = handler.getBatchSize();
+        handler.setBatchSize(2);
+        try {
+            StringBuilder sb = new StringBuilder();
+            sb.append("<wfs:Transaction service=\"WFS\" version=\"1.0.0\" "
+                + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                + "xmlns:ogc=\"http://www.opengis.net/ogc\" "
+                + "xmlns:wfs=\"http://www.opengis.net/wfs\" "
+                + "xmlns:gml=\"http://www.opengis.net/gml\"> "
+                + "<wfs:Insert > ");
+            for (int i = 0; i < 3; i++) {
+                sb.append("<cgf:Lines>"
+                    + "<cgf:lineStringProperty>"
+                    + "<gml:LineString>"
+                    + "<gml:coordinates decimal=\".\" cs=\",\" ts=\" \">"
+                    + "494475.71056415,5433016.8189323 494982.70115662,5435041.95096618"
+                    + "</gml:coordinates>" + "</gml:LineString>"
+                    + "</cgf:lineStringProperty>" + "<cgf:id>b000" + i + "</cgf:id>"
+                    + "</cgf:Lines>");
+            }
+            sb.append("</wfs:Insert>" + "</wfs:Transaction>");
+
+            Document dom = postAsDOM("wfs", sb.toString());
+            assertEquals(3, dom.getElementsByTagName("ogc:FeatureId").getLength());
+            
+            // two batches, a pre and post event for each
+            assertEquals(4, listener.events.size());
+            assertEquals(TransactionEventType.PRE_INSERT, ((TransactionEvent) listener.events.get(0)).getType());
+            assertEquals(TransactionEventType.POST_INSERT, ((TransactionEvent) listener.events.get(1)).getType());
+            assertEquals(TransactionEventType.PRE_INSERT, ((TransactionEvent) listener.events.get(2)).getType());
+            assertEquals(TransactionEventType.POST_INSERT, ((TransactionEvent) listener.events.get(3)).getType());
+            // 3 features in the pre events, 3 in the post ones
+            assertEquals(6, listener.features.size());
+        } finally {
+            handler.setBatchSize(batchSize);
+        }
+    }
+
+    public void testInvalidBatchSize() throws Exception {
+        try {
+            System.setProperty("WFS_INSERT_BATCH_SIZE", "0");
+            assertEquals(InsertElementHandler.DEFAULT_BATCH_SIZE,
+                    InsertElementHandler.lookupBatchSize());
+            System.setProperty("WFS_INSERT_BATCH_SIZE", "-5");
+            assertEquals(InsertElementHandler.DEFAULT_BATCH_SIZE,
+                    InsertElementHandler.lookupBatchSize());
+            System.setProperty("WFS_INSERT_BATCH_SIZE", "abc");
+            assertEquals(InsertElementHandler.DEFAULT_BATCH_SIZE,
+                    InsertElementHandler.lookupBatchSize());
+            System.setProperty("WFS_INSERT_BATCH_SIZE", "50");
+            assertEquals(50, InsertElementHandler.lookupBatchSize());
+        } finally {
+            System.clearProperty("WFS_INSERT_BATCH_SIZE");
+        }
+        
+        InsertElementHandler handler = (InsertElementHandler) applicationContext.getBean("wfsInsertElementHandler");
+        try {
+            handler.setBatchSize(0);
+            fail("A non positive batch size should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // fine
+        }
+    }
+
     public void testUpdate() throws Exception {
         // perform an update
         String insert = "<wfs:Transaction service=\"WFS\" version=\"1.0.0\" "
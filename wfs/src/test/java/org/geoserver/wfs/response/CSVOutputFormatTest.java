@@ -3,13 +3,17 @@ package org.geoserver.wfs.response;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import net.opengis.wfs.FeatureCollectionType;
 import net.opengis.wfs.GetFeatureType;
 import net.opengis.wfs.WfsFactory;
 
+import org.apache.commons.io.IOUtils;
 import org.geoserver.data.test.MockData;
 import org.geoserver.platform.Operation;
 import org.geoserver.wfs.WFSTestSupport;
@@ -26,8 +30,10 @@ import au.com.bytecode.opencsv.CSVReader;
 
 import com.mockrunner.mock.web.MockHttpServletResponse;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKBReader;
 
 
 public class CSVOutputFormatTest extends WFSTestSupport {
@@ -101,6 +107,43 @@ public class CSVOutputFormatTest extends WFSTestSupport {
         assertEquals(f2.getAttribute("label"), lines.get(2)[2]);
     }
     
+    public void testGzipWKB() throws Exception {
+        MockHttpServletResponse resp = getAsServletResponse("wfs?request=GetFeature&typeName=sf:PrimitiveGeoFeature&outputFormat=csv"
+                + "&format_options=gzip:true;geometry:wkb");
+        
+        assertEquals("application/x-gzip", resp.getContentType());
+        assertEquals("attachment; filename=PrimitiveGeoFeature.csv.gz", resp.getHeader("Content-Disposition"));
+        
+        GZIPInputStream gzip = new GZIPInputStream(getBinaryInputStream(resp));
+        List<String[]> lines = readLines(IOUtils.toString(gzip));
+        
+        FeatureSource fs = getFeatureSource(MockData.PRIMITIVEGEOFEATURE);
+        assertEquals(fs.getCount(Query.ALL) + 1, lines.size());
+        
+        // the geometries are hex encoded wkb, parse them back (first column is the fid)
+        int geomIndex = Arrays.asList(lines.get(0)).indexOf("pointProperty");
+        for (int i = 1; i < lines.size(); i++) {
+            String value = lines.get(i)[geomIndex];
+            if (value.length() > 0) {
+                Geometry g = new WKBReader().read(WKBReader.hexToBytes(value));
+                assertTrue(g instanceof Point);
+            }
+        }
+    }
+    
+    public void testNumbers() throws Exception {
+        StringWriter sw = new StringWriter();
+        CSVOutputFormat.ValueWriter writer = new CSVOutputFormat.ValueWriter(sw, 4, false);
+        Object[] values = new Object[] { 0, -15, Long.MAX_VALUE, 1.5, -0.00012, 0.00001, 
+                123456.123456, 1e20, Double.valueOf(-3), 2.5f };
+        for (Object value : values) {
+            writer.write(value);
+            sw.write(' ');
+        }
+        assertEquals("0 -15 9223372036854775807 1.5 -0.0001 0 123456.1235 100000000000000000000 -3 2.5 ", 
+                sw.toString());
+    }
+    
     /**
      * Convenience to read the csv content and 
      * @param csvContent
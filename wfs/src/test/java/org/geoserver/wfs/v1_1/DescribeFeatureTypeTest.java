@@ -22,6 +22,7 @@ import org.geoserver.data.util.IOUtils;
 import org.geoserver.wfs.GMLInfo;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
+import org.geoserver.wfs.xml.FeatureTypeSchemaCache;
 import org.geotools.xml.Schemas;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -235,6 +236,7 @@ public class DescribeFeatureTypeTest extends WFSTestSupport {
         XMLAssert.assertXpathNotExists("//xsd:element[@name = 'description']", dom);
         
         gml.setOverrideGMLAttributes(true);
+        getGeoServer().save(wfs);
         dom = getAsDOM("ows?service=WFS&version=1.1.0&request=DescribeFeatureType" +
                 "&typename=" + getLayerId(MockData.PRIMITIVEGEOFEATURE));
         XMLAssert.assertXpathExists("//xsd:element[@name = 'name']", dom);
@@ -250,6 +252,51 @@ public class DescribeFeatureTypeTest extends WFSTestSupport {
         XMLAssert.assertXpathNotExists("//xsd:element[@name = 'dataTime']", dom);
     }
     
+    public void testSchemaCache() throws Exception {
+        FeatureTypeSchemaCache cache = (FeatureTypeSchemaCache) applicationContext
+                .getBean("featureTypeSchemaCache");
+        cache.clear();
+        
+        String path = "ows?service=WFS&version=1.1.0&request=DescribeFeatureType&typeName="
+                + getLayerId(MockData.PRIMITIVEGEOFEATURE);
+        Document dom = getAsDOM(path);
+        XMLAssert.assertXpathExists("//xsd:element[@name = 'dateProperty']", dom);
+        assertEquals(1, cache.size());
+        
+        // same request, same schema, served from the cache
+        dom = getAsDOM(path);
+        XMLAssert.assertXpathExists("//xsd:element[@name = 'dateProperty']", dom);
+        assertEquals(1, cache.size());
+        
+        // changing the feature type evicts it
+        FeatureTypeInfo ft = getFeatureTypeInfo(MockData.PRIMITIVEGEOFEATURE);
+        ft.setTitle("Changed primitives");
+        getCatalog().save(ft);
+        assertEquals(0, cache.size());
+    }
+    
+    public void testSchemaCacheEvictedWhileBuilding() throws Exception {
+        FeatureTypeSchemaCache cache = (FeatureTypeSchemaCache) applicationContext
+                .getBean("featureTypeSchemaCache");
+        cache.clear();
+        FeatureTypeInfo ft = getFeatureTypeInfo(MockData.PRIMITIVEGEOFEATURE);
+        FeatureTypeSchemaCache.Key key = cache.key("text/xml; subtype=gml/3.1.1",
+                new FeatureTypeInfo[] { ft }, "http://localhost/geoserver", "UTF-8");
+        
+        // the feature type changes while the schema is being built, the stale schema is dropped
+        assertNull(cache.get(key));
+        ft.setTitle("Changed while building");
+        getCatalog().save(ft);
+        cache.put(key, new byte[] { 1 });
+        assertEquals(0, cache.size());
+        
+        // no change in between, the schema is cached
+        assertNull(cache.get(key));
+        cache.put(key, new byte[] { 1 });
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(key));
+    }
+    
 //    OUR CURRENT TEST HARNESS DOES NOT SUPPORT CONCURRENT TESTING...
 //    public void testConcurrentDescribe() throws Exception {
 //        ExecutorService es = Executors.newFixedThreadPool(8);
@@ -1,11 +1,15 @@
 package org.geoserver.wfs.v1_1;
 
+import java.io.File;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.xml.namespace.QName;
 
 import org.custommonkey.xmlunit.XMLAssert;
 import org.geoserver.data.test.MockData;
+import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.WFSTestSupport;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -150,6 +154,89 @@ public class TransactionTest extends WFSTestSupport {
         assertEquals("20.0 40.0", getFirstElementByTagName(dom, "gml:pos").getFirstChild().getNodeValue());
     }
 
+    public void testStreamingInsert() throws Exception {
+        String insert = "<wfs:Transaction service=\"WFS\" version=\"1.1.0\" "
+                + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                + "xmlns:wfs=\"http://www.opengis.net/wfs\" "
+                + "xmlns:gml=\"http://www.opengis.net/gml\"> " + "<wfs:Insert handle=\"stream\"> "
+                + "<cgf:Points>" + "<cgf:pointProperty>" + "<gml:Point>"
+                + "<gml:pos>21 41</gml:pos>" + "</gml:Point>" + "</cgf:pointProperty>"
+                + "<cgf:id>t0100</cgf:id>" + "</cgf:Points>" + "<cgf:Points>"
+                + "<cgf:pointProperty>" + "<gml:Point>" + "<gml:pos>22 42</gml:pos>"
+                + "</gml:Point>" + "</cgf:pointProperty>" + "<cgf:id>t0101</cgf:id>"
+                + "</cgf:Points>" + "</wfs:Insert>" + "</wfs:Transaction>";
+
+        System.setProperty("WFS_STREAMING_TRANSACTION", "true");
+        Document dom;
+        try {
+            dom = postAsDOM("wfs", insert);
+        } finally {
+            System.clearProperty("WFS_STREAMING_TRANSACTION");
+        }
+        assertEquals("2", getFirstElementByTagName(dom, "wfs:totalInserted").getFirstChild()
+                .getNodeValue());
+        assertEquals(2, dom.getElementsByTagName("ogc:FeatureId").getLength());
+
+        String getFeature = "<wfs:GetFeature " + "service=\"WFS\" " + "version=\"1.1.0\" "
+                + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                + "xmlns:ogc=\"http://www.opengis.net/ogc\" "
+                + "xmlns:wfs=\"http://www.opengis.net/wfs\" " + "> "
+                + "<wfs:Query typeName=\"cgf:Points\"> " + "<ogc:Filter>"
+                + "<ogc:PropertyIsEqualTo>" + "<ogc:PropertyName>cgf:id</ogc:PropertyName>"
+                + "<ogc:Literal>t0101</ogc:Literal>" + "</ogc:PropertyIsEqualTo>"
+                + "</ogc:Filter></wfs:Query> " + "</wfs:GetFeature>";
+        dom = postAsDOM("wfs", getFeature);
+        assertEquals(1, dom.getElementsByTagName("cgf:Points").getLength());
+        assertEquals("22.0 42.0", getFirstElementByTagName(dom, "gml:pos").getFirstChild()
+                .getNodeValue());
+    }
+
+    public void testStreamingInsertFailure() throws Exception {
+        String insert = "<wfs:Transaction service=\"WFS\" version=\"1.1.0\" "
+                + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+                + "xmlns:wfs=\"http://www.opengis.net/wfs\" "
+                + "xmlns:gml=\"http://www.opengis.net/gml\"> " + "<wfs:Insert handle=\"stream\"> "
+                + "<cgf:Points>" + "<cgf:pointProperty>" + "<gml:Point>"
+                + "<gml:pos>21 41</gml:pos>" + "</gml:Point>" + "</cgf:pointProperty>"
+                + "<cgf:id>t0200</cgf:id>" + "</cgf:Points>" + "</wfs:Insert>"
+                + "</wfs:Transaction>";
+
+        // make the transaction fail after the request has been parsed
+        WFSInfo wfs = getGeoServer().getService(WFSInfo.class);
+        WFSInfo.ServiceLevel level = wfs.getServiceLevel();
+        wfs.setServiceLevel(WFSInfo.ServiceLevel.BASIC);
+        getGeoServer().save(wfs);
+        Set<String> before = insertFiles();
+        System.setProperty("WFS_STREAMING_TRANSACTION", "true");
+        Document dom;
+        try {
+            dom = postAsDOM("wfs", insert);
+        } finally {
+            System.clearProperty("WFS_STREAMING_TRANSACTION");
+            wfs.setServiceLevel(level);
+            getGeoServer().save(wfs);
+        }
+        assertEquals("ows:ExceptionReport", dom.getDocumentElement().getNodeName());
+
+        // the temporary insert files went away with the request
+        Set<String> after = insertFiles();
+        after.removeAll(before);
+        assertTrue(after.toString(), after.isEmpty());
+    }
+
+    Set<String> insertFiles() {
+        Set<String> names = new HashSet<String>();
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+        if (files != null) {
+            for (String name : files) {
+                if (name.startsWith("wfs-insert") && name.endsWith(".xml")) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
     public void testInsertWithSRS() throws Exception {
 
         // 1. do a getFeature
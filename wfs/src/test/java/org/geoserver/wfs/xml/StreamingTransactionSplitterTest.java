@@ -0,0 +1,103 @@
+package org.geoserver.wfs.xml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringReader;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.data.test.MockData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+public class StreamingTransactionSplitterTest extends TestCase {
+
+    static final String TRANSACTION = "<wfs:Transaction service=\"WFS\" version=\"1.0.0\" "
+            + "xmlns:cgf=\"http://www.opengis.net/cite/geometry\" "
+            + "xmlns:ogc=\"http://www.opengis.net/ogc\" "
+            + "xmlns:wfs=\"http://www.opengis.net/wfs\"> "
+            + "<wfs:Insert handle=\"first\">"
+            + "<cgf:Lines xmlns:gml=\"http://www.opengis.net/gml\">"
+            + "<cgf:lineStringProperty>"
+            + "<gml:LineString>"
+            + "<gml:coordinates decimal=\".\" cs=\",\" ts=\" \">"
+            + "494475.71056415,5433016.8189323 494982.70115662,5435041.95096618"
+            + "</gml:coordinates>" + "</gml:LineString>"
+            + "</cgf:lineStringProperty>" + "<cgf:id>t0002</cgf:id>"
+            + "</cgf:Lines>" + "</wfs:Insert>"
+            + "<wfs:Delete typeName=\"cgf:Points\"> " + "<ogc:Filter> "
+            + "<ogc:PropertyIsEqualTo> "
+            + "<ogc:PropertyName>cgf:id</ogc:PropertyName> "
+            + "<ogc:Literal>t0000</ogc:Literal> "
+            + "</ogc:PropertyIsEqualTo> " + "</ogc:Filter> "
+            + "</wfs:Delete> " + "</wfs:Transaction>";
+
+    public void testSplit() throws Exception {
+        StreamingTransactionSplitter splitter = new StreamingTransactionSplitter();
+        try {
+            String skeleton = IOUtils.toString(splitter.split(new StringReader(TRANSACTION)));
+            Document dom = parse(skeleton);
+
+            // the insert is still there, but empty, the delete is untouched
+            Element insert = (Element) dom.getElementsByTagNameNS("http://www.opengis.net/wfs",
+                    "Insert").item(0);
+            assertEquals("first", insert.getAttribute("handle"));
+            assertEquals(0, insert.getChildNodes().getLength());
+            assertEquals(1, dom.getElementsByTagNameNS("http://www.opengis.net/ogc", "Literal")
+                    .getLength());
+
+            // the features went to the side file, with their namespaces declared
+            assertEquals(1, splitter.insertFiles.size());
+            assertEquals(1, splitter.insertTypeNames.get(0).size());
+            assertEquals(new QName(MockData.CGF_URI, "Lines"),
+                    splitter.insertTypeNames.get(0).iterator().next());
+
+            File file = splitter.insertFiles.get(0);
+            FileInputStream fis = new FileInputStream(file);
+            Document features;
+            try {
+                features = parse(IOUtils.toString(fis, "UTF-8"));
+            } finally {
+                fis.close();
+            }
+            assertEquals("Insert", features.getDocumentElement().getLocalName());
+            assertEquals("first", features.getDocumentElement().getAttribute("handle"));
+            assertEquals(1, features.getElementsByTagNameNS(MockData.CGF_URI, "Lines")
+                    .getLength());
+            assertEquals(1, features.getElementsByTagNameNS("http://www.opengis.net/gml",
+                    "coordinates").getLength());
+        } finally {
+            splitter.dispose();
+        }
+
+        for (File file : splitter.insertFiles) {
+            assertFalse(file.exists());
+        }
+    }
+
+    public void testInsertNamespace() throws Exception {
+        // an Insert element outside of the WFS namespace is left alone
+        String xml = TRANSACTION.replace("<wfs:Insert handle=\"first\">",
+                "<foo:Insert xmlns:foo=\"http://www.example.com/foo\" handle=\"first\">")
+                .replace("</wfs:Insert>", "</foo:Insert>");
+        StreamingTransactionSplitter splitter = new StreamingTransactionSplitter();
+        try {
+            Document dom = parse(IOUtils.toString(splitter.split(new StringReader(xml))));
+            assertTrue(splitter.insertFiles.isEmpty());
+            assertEquals(1, dom.getElementsByTagNameNS(MockData.CGF_URI, "Lines").getLength());
+        } finally {
+            splitter.dispose();
+        }
+    }
+
+    Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+}
@@ -13,8 +13,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,6 +41,7 @@ import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.ows.Layer;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.store.FilteringFeatureCollection;
@@ -47,6 +51,7 @@ import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.GeoTools;
 import org.geotools.factory.Hints;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.geotools.feature.NameImpl;
 import org.geotools.feature.SchemaException;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
@@ -77,6 +82,7 @@ import org.opengis.coverage.CannotEvaluateException;
 import org.opengis.coverage.PointOutsideCoverageException;
 import org.opengis.coverage.grid.GridEnvelope;
 import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
@@ -94,6 +100,7 @@ import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LinearRing;
 import com.vividsolutions.jts.geom.Polygon;
@@ -107,8 +114,21 @@ public class GetFeatureInfo {
 
     private static final Logger LOGGER = Logging.getLogger(GetFeatureInfo.class);
 
+    /**
+     * Max number of style radius estimates kept in memory
+     */
+    static final int MAX_CACHED_STYLE_RADIUSES = 256;
+
     private WMS wms;
 
+    private final Map<StyleRadiusKey, Double> styleRadiuses = Collections
+            .synchronizedMap(new LinkedHashMap<StyleRadiusKey, Double>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<StyleRadiusKey, Double> eldest) {
+                    return size() > MAX_CACHED_STYLE_RADIUSES;
+                }
+            });
+
     public GetFeatureInfo(final WMS wms) {
         this.wms = wms;
     }
@@ -227,8 +247,8 @@ public class GetFeatureInfo {
             if (layer.getType() == MapLayerInfo.TYPE_VECTOR) {
                 final Map<String, String> viewParam = viewParams != null ? viewParams.get(i) : null;
 				collection = identifyVectorLayer(filters, x, y, buffer, viewParam,
-                        requestedCRS, width, height, bbox, ff, results, i, layer, rules, maxFeatures,
-                        times, elevations);
+                        requestedCRS, width, height, bbox, ff, results, i, layer, style, rules,
+                        maxFeatures, times, elevations, getMapReq.getEnv());
 
             } else if (layer.getType() == MapLayerInfo.TYPE_RASTER) {
                 final CoverageInfo cinfo = requestedLayers.get(i).getCoverage();
@@ -365,9 +385,9 @@ public class GetFeatureInfo {
             final int x, final int y, final int buffer, final Map<String, String> viewParams,
             final CoordinateReferenceSystem requestedCRS, final int width, final int height,
             final ReferencedEnvelope bbox, final FilterFactory2 ff,
-            List<FeatureCollection> results, int i, final MapLayerInfo layer, final List<Rule> rules,
-            final int maxFeatures, List<Object> times, List<Object> elevations)
-            throws IOException {
+            List<FeatureCollection> results, int i, final MapLayerInfo layer, final Style style,
+            final List<Rule> rules, final int maxFeatures, List<Object> times,
+            List<Object> elevations, final Map<String, String> env) throws IOException {
 
         CoordinateReferenceSystem dataCRS = layer.getCoordinateReferenceSystem();
 
@@ -382,17 +402,7 @@ public class GetFeatureInfo {
             if (layerBuffer != null && layerBuffer > 0) {
                 radius = layerBuffer / 2.0;
             } else {
-                // estimate the radius given the currently active rules
-                MetaBufferEstimator estimator = new MetaBufferEstimator();
-                for (Rule rule : rules) {
-                    rule.accept(estimator);
-                }
-
-                if (estimator.getBuffer() < 6.0 || !estimator.isEstimateAccurate()) {
-                    radius = 3.0;
-                } else {
-                    radius = estimator.getBuffer() / 2.0;
-                }
+                radius = getStyleRadius(style, rules, env);
             }
         } else {
             radius = buffer;
@@ -420,12 +430,23 @@ public class GetFeatureInfo {
         final FeatureSource<? extends FeatureType, ? extends Feature> featureSource;
         featureSource = layer.getFeatureSource(false);
         FeatureType schema = featureSource.getSchema();
+        // simple features are queried by envelope only, and hit tested in memory
+        final boolean hitTest = schema instanceof SimpleFeatureType;
 
         Filter getFInfoFilter = null;
+        Filter hitFilter = Filter.INCLUDE;
         try {
             GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
             String localName = geometryDescriptor.getLocalName();
-            getFInfoFilter = ff.intersects(ff.property(localName), ff.literal(pixelRect));
+            Filter intersects = ff.intersects(ff.property(localName), ff.literal(pixelRect));
+            if (hitTest) {
+                Envelope envelope = pixelRect.getEnvelopeInternal();
+                getFInfoFilter = ff.bbox(ff.property(localName), envelope.getMinX(), envelope
+                        .getMinY(), envelope.getMaxX(), envelope.getMaxY(), null);
+                hitFilter = intersects;
+            } else {
+                getFInfoFilter = intersects;
+            }
         } catch (IllegalFilterException e) {
             e.printStackTrace();
             throw new ServiceException("Internal error : " + e.getMessage(), e);
@@ -455,10 +476,11 @@ public class GetFeatureInfo {
         SimplifyingFilterVisitor simplifier = new SimplifyingFilterVisitor();
         getFInfoFilter = (Filter) getFInfoFilter.accept(simplifier, null);
         
-        // build the query
+        // build the query, the features count can be limited only if nothing is left to filter
+        // in memory
         String typeName = schema.getName().getLocalPart();
-        Query q = new Query(typeName, null, getFInfoFilter, maxFeatures,
-                Query.ALL_NAMES, null);
+        Query q = new Query(typeName, null, getFInfoFilter, hitTest ? Query.DEFAULT_MAX
+                : maxFeatures, Query.ALL_NAMES, null);
 
         // handle sql view params
         if (viewParams != null && viewParams.size() > 0) {
@@ -468,6 +490,11 @@ public class GetFeatureInfo {
         FeatureCollection<? extends FeatureType, ? extends Feature> match;
         match = featureSource.getFeatures(q);
 
+        if (hitTest) {
+            Filter inMemory = (Filter) ff.and(hitFilter, postFilter).accept(simplifier, null);
+            return collectHits(match, inMemory, maxFeatures);
+        }
+
         // if we could not include the rules filter into the query, post process in
         // memory
         if (!Filter.INCLUDE.equals(postFilter)) {
@@ -480,6 +507,95 @@ public class GetFeatureInfo {
         return match;
     }
 
+    /**
+     * Collects the features matching the in memory filter, stopping as soon as the max number of
+     * features is reached
+     */
+    @SuppressWarnings("rawtypes")
+    private FeatureCollection collectHits(FeatureCollection match, Filter filter, int maxFeatures) {
+        List<SimpleFeature> hits = new ArrayList<SimpleFeature>();
+        FeatureIterator it = match.features();
+        try {
+            while (it.hasNext() && hits.size() < maxFeatures) {
+                SimpleFeature feature = (SimpleFeature) it.next();
+                if (filter.evaluate(feature)) {
+                    hits.add(feature);
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return new ListFeatureCollection((SimpleFeatureType) match.getSchema(), hits);
+    }
+
+    /**
+     * Returns the search radius, in pixels, needed to hit the features painted with the active
+     * rules of the style. The estimates depend on the rules and on the env variables used in the
+     * style, and are cached for the styles used the most
+     */
+    double getStyleRadius(Style style, List<Rule> rules, Map<String, String> env) {
+        StyleRadiusKey key = new StyleRadiusKey(style, rules, env);
+        Double radius = styleRadiuses.get(key);
+        if (radius == null) {
+            // estimate the radius given the currently active rules
+            MetaBufferEstimator estimator = new MetaBufferEstimator();
+            for (Rule rule : rules) {
+                rule.accept(estimator);
+            }
+
+            if (estimator.getBuffer() < 6.0 || !estimator.isEstimateAccurate()) {
+                radius = 3.0;
+            } else {
+                radius = estimator.getBuffer() / 2.0;
+            }
+            styleRadiuses.put(key, radius);
+        }
+        return radius;
+    }
+
+    /**
+     * Identifies a style radius estimate: the style and rules are compared by identity, as a
+     * modified style is a new object
+     */
+    static class StyleRadiusKey {
+
+        final Style style;
+
+        final List<Rule> rules;
+
+        final Map<String, String> env;
+
+        StyleRadiusKey(Style style, List<Rule> rules, Map<String, String> env) {
+            this.style = style;
+            this.rules = rules;
+            this.env = env == null ? Collections.<String, String> emptyMap()
+                    : new HashMap<String, String>(env);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StyleRadiusKey)) {
+                return false;
+            }
+            StyleRadiusKey other = (StyleRadiusKey) obj;
+            if (style != other.style || rules.size() != other.rules.size()
+                    || !env.equals(other.env)) {
+                return false;
+            }
+            for (int i = 0; i < rules.size(); i++) {
+                if (rules.get(i) != other.rules.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(style) * 31 + env.hashCode();
+        }
+    }
+
     @SuppressWarnings({ "rawtypes", "unchecked" })
     private List<FeatureCollection> handleGetFeatureInfoCascade(GetFeatureInfoRequest request,
             int maxFeatures,
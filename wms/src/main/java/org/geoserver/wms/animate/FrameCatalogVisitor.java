@@ -10,13 +10,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.media.jai.RenderedImageList;
 
@@ -34,25 +37,52 @@ import org.geoserver.wms.map.RenderedImageMapResponse;
 
 /**
  * The Frame Visitor contains the logic to produce frame images.<br/>
- * The "visit" method initializes the runnables and the animatorExecutor service, while
- * the "produce" method runs the tasks and generated the frames images.
+ * The "visit" method collects the frames to be produced, while the "produce" method renders them
+ * on the animatorExecutor service and collects the frames images in order.
+ * <p>
+ * Frames with the same animation value are rendered only once. The frames of a single animation
+ * are rendered at most as many at a time as the executor core threads, so that a long animation
+ * does not fill the queue shared by all the requests, and the whole production is bounded by the
+ * max animator rendering time and size.
+ * </p>
  * @author Alessio Fabiani, GeoSolutions S.A.S., alessio.fabiani@geo-solutions.it
  * @author Andrea Aime, GeoSolutions S.A.S., andrea.aime@geo-solutions.it
  */
 public class FrameCatalogVisitor {
 
+    /**
+     * max number of frames of an animation rendered at the same time, if the executor does not
+     * tell its own number of threads
+     */
+    static final int DEFAULT_PARALLEL_FRAMES = 4;
+
     /**
      * total number of available frames for this visitor
      */
     int framesNumber;
 
     /**
-     * the list of runnables to be executed
+     * the loaders of the distinct frames, in order of first appearance
+     */
+    List<FrameLoader> loaders;
+
+    /**
+     * the index of the loader of each frame
+     */
+    List<Integer> frameLoaders;
+
+    /**
+     * the loader index of each distinct animation value
+     */
+    Map<String, Integer> loaderIndexes;
+
+    /**
+     * the running tasks, indexed like the loaders
      */
     List<Future<RenderedImage>> tasks;
 
     /**
-     * Adds a new visitor to the runnables list and initializes the animatorExecutor service is not yet initialied. 
+     * Adds a new frame to the ones to be produced, reusing the frame with the same value if any.
      * @param request
      * @param wms
      * @param wmsConfiguration
@@ -60,19 +90,20 @@ public class FrameCatalogVisitor {
      * @param avalue
      */
     public void visit(final GetMapRequest request, WebMapService wms, WMS wmsConfiguration, String aparam, String avalue) {
-        if (this.tasks == null) {
-            this.tasks = new LinkedList<Future<RenderedImage>>();
+        if (this.loaders == null) {
+            this.loaders = new ArrayList<FrameLoader>();
+            this.frameLoaders = new ArrayList<Integer>();
+            this.loaderIndexes = new HashMap<String, Integer>();
         }
 
-        FrameLoader loader = new FrameLoader(request, wms, wmsConfiguration, aparam, avalue);
-        
-        
-        final FutureTask<RenderedImage> task = new FutureTask<RenderedImage>(loader);
-        this.tasks.add(task);
+        Integer index = this.loaderIndexes.get(avalue);
+        if (index == null) {
+            index = this.loaders.size();
+            this.loaders.add(new FrameLoader(request, wms, wmsConfiguration, aparam, avalue));
+            this.loaderIndexes.put(avalue, index);
+        }
+        this.frameLoaders.add(index);
         this.framesNumber++;
-
-        // run the loading in this thread
-        wmsConfiguration.getAnimatorExecutorService().execute(task);
     }
 
     /**
@@ -82,38 +113,76 @@ public class FrameCatalogVisitor {
      * @throws IOException
      */
     public RenderedImageList produce(WMS wmsConfiguration) throws IOException {
-        List<RenderedImage> images = new ArrayList<RenderedImage>();
+        if (loaders == null || loaders.isEmpty()) {
+            dispose();
+            throw new IOException("Empty list of frames.");
+        }
+
+        final ExecutorService executor = wmsConfiguration.getAnimatorExecutorService();
+        final int parallelFrames = executor instanceof ThreadPoolExecutor ? Math.max(1,
+                ((ThreadPoolExecutor) executor).getCorePoolSize()) : DEFAULT_PARALLEL_FRAMES;
+        final Long maxRenderingTime = wmsConfiguration.getMaxAnimatorRenderingTime();
+        final long deadline = maxRenderingTime != null ? System.currentTimeMillis()
+                + maxRenderingTime : Long.MAX_VALUE;
+        final Long maxRenderingSize = wmsConfiguration.getMaxRenderingSize();
 
+        tasks = new ArrayList<Future<RenderedImage>>(loaders.size());
+        List<RenderedImage> images = new ArrayList<RenderedImage>();
+        boolean[] collected = new boolean[loaders.size()];
         long gifAnimatedSize = 0;
+        try {
+            for (int loaderIndex : frameLoaders) {
+                // keep up to parallelFrames distinct frames rendering ahead of the one we wait for
+                while (tasks.size() < loaders.size()
+                        && tasks.size() < loaderIndex + parallelFrames) {
+                    tasks.add(executor.submit(loaders.get(tasks.size())));
+                }
 
-        for (Future<RenderedImage> future : tasks) {
-            RenderedImage image = null;
-            try {
-                image = future.get();
-            } catch (InterruptedException e) {
-                dispose();
-                throw new IOException(e);
-            } catch (ExecutionException e) {
-                dispose();
-                throw new IOException(e);
-            }
+                Future<RenderedImage> future = tasks.get(loaderIndex);
+                RenderedImage image;
+                if (deadline == Long.MAX_VALUE) {
+                    image = future.get();
+                } else {
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        throw new IOException("Max animator rendering time exceeded!");
+                    }
+                    image = future.get(timeout, TimeUnit.MILLISECONDS);
+                }
 
-            if (image == null) {
-                continue;
-            }
+                if (image == null) {
+                    continue;
+                }
 
-            // collect the images
-            gifAnimatedSize += getImageSizeInBytes(image);
-            if (wmsConfiguration.getMaxRenderingSize() != null
-                    && gifAnimatedSize >= wmsConfiguration.getMaxRenderingSize()) {
-                dispose();
-                throw new IOException("Max rendering size exceed!");
-            }
+                // collect the images, the repeated frames are not taking any more memory
+                if (!collected[loaderIndex]) {
+                    collected[loaderIndex] = true;
+                    gifAnimatedSize += getImageSizeInBytes(image);
+                    if (maxRenderingSize != null && gifAnimatedSize >= maxRenderingSize) {
+                        throw new IOException("Max rendering size exceed!");
+                    }
+                }
 
-            images.add(image);
+                images.add(image);
+            }
+        } catch (IOException e) {
+            dispose();
+            throw e;
+        } catch (InterruptedException e) {
+            dispose();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            dispose();
+            throw new IOException(e);
+        } catch (TimeoutException e) {
+            dispose();
+            throw new IOException("Max animator rendering time exceeded!");
+        } catch (RejectedExecutionException e) {
+            dispose();
+            throw new IOException(e);
         }
 
-        if (images == null || images.size() == 0) {
+        if (images.size() == 0) {
             dispose();
             throw new IOException("Empty list of frames.");
         }
@@ -132,15 +201,22 @@ public class FrameCatalogVisitor {
     }
 
     /**
-     * Suddenly stops the Executor service and clear instantiated visitors.
+     * Suddenly stops the frames still being rendered and clear instantiated visitors.
      */
     private void dispose() {
         this.framesNumber = 0;
 
-        if (this.tasks != null)
+        if (this.tasks != null) {
+            for (Future<RenderedImage> task : this.tasks) {
+                task.cancel(true);
+            }
             this.tasks.clear();
-        
+        }
+
         this.tasks = null;
+        this.loaders = null;
+        this.frameLoaders = null;
+        this.loaderIndexes = null;
     }
 
 }
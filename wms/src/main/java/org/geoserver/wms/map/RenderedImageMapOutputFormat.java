@@ -43,6 +43,8 @@ import javax.media.jai.operator.ConstantDescriptor;
 import javax.media.jai.operator.LookupDescriptor;
 import javax.media.jai.operator.MosaicDescriptor;
 
+import org.geoserver.ows.Span;
+import org.geoserver.ows.Tracing;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.DefaultWebMapService;
 import org.geoserver.wms.GetMapOutputFormat;
@@ -485,6 +487,7 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
         RenderingTimeoutEnforcer timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer,
                 graphic);
         timeout.start();
+        Span span = Tracing.start("render");
         try {
             // finally render the image;
             renderer.paint(graphic, paintArea, mapContent.getRenderingArea(),
@@ -499,6 +502,7 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                 }
             }
         } finally {
+            span.end();
             timeout.stop();
             graphic.dispose();
         }
@@ -12,6 +12,8 @@ import java.util.List;
 
 import javax.media.jai.PlanarImage;
 
+import org.geoserver.ows.Span;
+import org.geoserver.ows.Tracing;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.GetMapOutputFormat;
@@ -111,10 +113,12 @@ public abstract class RenderedImageMapResponse extends AbstractMapResponse {
             final RenderedImage image = imageMap.getImage();
             final List<GridCoverage2D> renderedCoverages = imageMap.getRenderedCoverages();
             final WMSMapContent mapContent = imageMap.getMapContext();
+            Span span = Tracing.start("encode");
             try {
                 formatImageOutputStream(image, output, mapContent);
                 output.flush();
             } finally {
+                span.end();
                 // let go of the coverages created for rendering
                 for (GridCoverage2D coverage : renderedCoverages) {
                     RasterCleaner.addCoverage(coverage);
@@ -102,6 +102,35 @@ public class AnimatorTest extends WMSTestSupport {
     	assertEquals(4, frames.size());
     }
     
+    /**
+     * Testing the frames with the same value are rendered only once.
+     * 
+     * @throws Exception
+     */
+    public void testFrameVisitorDuplicateValues() throws Exception {
+        final WebMapService wms = (WebMapService) applicationContext.getBean("wmsService2");
+        final String layerName = MockData.BASIC_POLYGONS.getPrefix() + ":" +
+            MockData.BASIC_POLYGONS.getLocalPart();
+
+        GetMapRequest getMapRequest = createGetMapRequest(new QName(layerName));
+        getMapRequest.getRawKvp().put("aparam", "fake_param");
+        getMapRequest.getRawKvp().put("avalues", "val0,val1,val0,val1,val0");
+        getMapRequest.getRawKvp().put("format", GIF_ANIMATED_FORMAT);
+
+        FrameCatalog catalog = new FrameCatalog(getMapRequest, wms, getWMS());
+        FrameCatalogVisitor visitor = new FrameCatalogVisitor();
+        catalog.getFrames(visitor);
+
+        assertEquals(5, visitor.framesNumber);
+        assertEquals(2, visitor.loaders.size());
+
+        RenderedImageList frames = visitor.produce(getWMS());
+        assertEquals(5, frames.size());
+        assertSame(frames.get(0), frames.get(2));
+        assertSame(frames.get(0), frames.get(4));
+        assertSame(frames.get(1), frames.get(3));
+    }
+
     /**
      * Produce animated gif through the WMS request.
      */
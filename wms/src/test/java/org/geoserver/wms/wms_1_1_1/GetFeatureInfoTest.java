@@ -223,6 +223,27 @@ public class GetFeatureInfoTest extends WMSTestSupport {
         
     }
     
+    /**
+     * Tests FEATURE_COUNT is respected within a single layer when the features are hit tested in
+     * memory
+     * 
+     * @throws Exception
+     */
+    public void testFeatureCountSingleLayer() throws Exception {
+        String layer = getLayerId(SQUARES);
+        String base = "wms?version=1.1.1&format=png&info_format=text/html&request=GetFeatureInfo&layers="
+                + layer + "&query_layers=" + layer + "&styles=squares&bbox=0,0,10000,10000";
+
+        // scale is 1:10, the request hits two squares
+        int w = (int) (1000.0 / 0.28 * 1000); // dpi compensation
+        String request = base + "&width=" + w + "&height=" + w + "&x=20&y=" + (w - 20);
+        Document dom = getAsDOM(request + "&feature_count=10");
+        assertXpathEvaluatesTo("2", "count(/html/body/table/tr/td[starts-with(.,'squares.')])", dom);
+
+        dom = getAsDOM(request + "&feature_count=1");
+        assertXpathEvaluatesTo("1", "count(/html/body/table/tr/td[starts-with(.,'squares.')])", dom);
+    }
+
     /**
      * Tests a GetFeatureInfo again works, and that the result contains the
      * expected polygon